@@ -0,0 +1,7 @@
+#!/bin/bash
+set -e
+
+# Lists or replays the commands that failed after every retry.
+# Usage: replay_dead_letters.sh (list|replay) [max count]
+HIVE_CLASSPATH=$(hive -e "set env:CLASSPATH;" | grep env:CLASSPATH= | sed -e "s/^env:CLASSPATH=//")
+java -cp $HIVE_CLASSPATH:. net.snowflake.hivemetastoreconnector.core.DeadLetterTool "$@"
@@ -0,0 +1,8 @@
+#!/bin/bash
+set -e
+
+# Sends the changes of the metastore to Snowflake by tailing its
+# notification log, instead of running the listener in the metastore.
+# Usage: tail_notification_log.sh
+HIVE_CLASSPATH=$(hive -e "set env:CLASSPATH;" | grep env:CLASSPATH= | sed -e "s/^env:CLASSPATH=//")
+java -cp $HIVE_CLASSPATH:. net.snowflake.hivemetastoreconnector.core.NotificationLogTailer "$@"
@@ -67,6 +67,353 @@ public class SnowflakeConf extends Configuration
         "snowflake.hive-metastore-listener.retry.timeout",
         "retryTimeout",
         "The time between retries when connecting with Snowflake, in milliseconds"),
+    SNOWFLAKE_RETRY_MAX_DELAY_MILLISECONDS(
+        "snowflake.hive-metastore-listener.retry.max-delay",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The time between retries doubles with every retry up to this " +
+            "maximum, in milliseconds"),
+    SNOWFLAKE_RETRY_JITTER(
+        "snowflake.hive-metastore-listener.retry.jitter",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The fraction, between 0 and 1, of the time between retries that " +
+            "is randomized"),
+    SNOWFLAKE_RETRY_DEADLINE_MILLISECONDS(
+        "snowflake.hive-metastore-listener.retry.deadline",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The time after the first attempt past which a failed command is " +
+            "not retried, in milliseconds. Set to 0 for no deadline."),
+    SNOWFLAKE_RETRY_FATAL_ERROR_CODES(
+        "snowflake.hive-metastore-listener.retry.fatal-error-codes",
+        NOT_A_SF_JDBC_PROPERTY,
+        "A comma-separated list of additional Snowflake error codes that " +
+            "are never retried"),
+    SNOWFLAKE_RETRY_RETRYABLE_ERROR_CODES(
+        "snowflake.hive-metastore-listener.retry.retryable-error-codes",
+        NOT_A_SF_JDBC_PROPERTY,
+        "A comma-separated list of additional Snowflake error codes that " +
+            "are always retried"),
+    SNOWFLAKE_CIRCUIT_BREAKER_ENABLED(
+        "snowflake.hive-metastore-listener.circuit-breaker.enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether background commands are paused while Snowflake appears to " +
+            "be unavailable, instead of failing one after the other. " +
+            "Disabled by default."),
+    SNOWFLAKE_CIRCUIT_BREAKER_WINDOW_SIZE(
+        "snowflake.hive-metastore-listener.circuit-breaker.window-size",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The number of recent commands whose outcomes are used to compute " +
+            "the failure rate"),
+    SNOWFLAKE_CIRCUIT_BREAKER_MINIMUM_CALLS(
+        "snowflake.hive-metastore-listener.circuit-breaker.minimum-calls",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The number of commands that must have completed before the " +
+            "circuit breaker may open"),
+    SNOWFLAKE_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD(
+        "snowflake.hive-metastore-listener.circuit-breaker.failure-rate-threshold",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The fraction of failed commands, between 0 and 1, at which the " +
+            "circuit breaker opens"),
+    SNOWFLAKE_CIRCUIT_BREAKER_OPEN_DURATION_MILLISECONDS(
+        "snowflake.hive-metastore-listener.circuit-breaker.open-duration",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The time the circuit breaker stays open before Snowflake is " +
+            "probed, in milliseconds. Doubles every time the probe fails."),
+    SNOWFLAKE_CIRCUIT_BREAKER_MAX_OPEN_DURATION_MILLISECONDS(
+        "snowflake.hive-metastore-listener.circuit-breaker.max-open-duration",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum time between probes while the circuit breaker is " +
+            "open, in milliseconds"),
+    SNOWFLAKE_CIRCUIT_BREAKER_HALF_OPEN_PERMITS(
+        "snowflake.hive-metastore-listener.circuit-breaker.half-open-permits",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The number of commands let through at a time after a successful " +
+            "probe, and that must succeed before the circuit breaker closes"),
+    SNOWFLAKE_WARM_UP_ENABLED(
+        "snowflake.hive-metastore-listener.warm-up.enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether the listener starts connecting to Snowflake in the " +
+            "background when it is created, instead of on the first event."),
+    SNOWFLAKE_REFRESH_COALESCING_ENABLED(
+        "snowflake.hive-metastore-listener.refresh-coalescing.enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether consecutive queued refreshes of a table are sent as a " +
+            "single refresh to the newest metadata file."),
+    SNOWFLAKE_REFRESH_DEBOUNCE_MILLISECONDS(
+        "snowflake.hive-metastore-listener.refresh-coalescing.debounce",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The time a refresh waits for newer commits of its table before it " +
+            "is sent, in milliseconds. Set to 0 to send refreshes right away."),
+    SNOWFLAKE_REFRESH_MAX_STALENESS_MILLISECONDS(
+        "snowflake.hive-metastore-listener.refresh-coalescing.max-staleness",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum time a refresh is held back by the debounce window " +
+            "after its first commit was queued, in milliseconds"),
+    SNOWFLAKE_QUEUE_MAX_COMMANDS(
+        "snowflake.hive-metastore-listener.queue.max-commands",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum number of commands held in memory by all table queues"),
+    SNOWFLAKE_QUEUE_MAX_BYTES(
+        "snowflake.hive-metastore-listener.queue.max-bytes",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum estimated memory of the commands held by all table " +
+            "queues, in bytes"),
+    SNOWFLAKE_QUEUE_OVERLOAD_POLICY(
+        "snowflake.hive-metastore-listener.queue.overload-policy",
+        NOT_A_SF_JDBC_PROPERTY,
+        "What to do with a command when the queues are over budget: " +
+            "coalesce-only (queue it anyway), block (wait for room, then " +
+            "drop it), drop-oldest (drop the oldest commands of its table, " +
+            "or the command itself if its table has none) or spill (write " +
+            "it to disk). coalesce-only doesn't bound memory, as commands " +
+            "of distinct tables don't supersede each other."),
+    SNOWFLAKE_QUEUE_BLOCK_TIMEOUT_MILLISECONDS(
+        "snowflake.hive-metastore-listener.queue.block-timeout",
+        NOT_A_SF_JDBC_PROPERTY,
+        "With the block overload policy, the maximum time a metastore " +
+            "thread waits for room, in milliseconds"),
+    SNOWFLAKE_QUEUE_SPILL_DIRECTORY(
+        "snowflake.hive-metastore-listener.queue.spill-directory",
+        NOT_A_SF_JDBC_PROPERTY,
+        "With the spill overload policy, the directory of the spill file. " +
+            "Defaults to the temporary directory."),
+    SNOWFLAKE_QUEUE_SPILL_MAX_BYTES(
+        "snowflake.hive-metastore-listener.queue.spill-max-bytes",
+        NOT_A_SF_JDBC_PROPERTY,
+        "With the spill overload policy, the maximum size of the spill " +
+            "file, in bytes. Commands are dropped when it is full."),
+    SNOWFLAKE_JOURNAL_ENABLED(
+        "snowflake.hive-metastore-listener.journal.enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether queued commands are journaled to disk, so that commands " +
+            "not sent to Snowflake yet are sent after a restart"),
+    SNOWFLAKE_JOURNAL_DIRECTORY(
+        "snowflake.hive-metastore-listener.journal.directory",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The directory of the journal. It should be on a local disk that " +
+            "persists across restarts."),
+    SNOWFLAKE_JOURNAL_SEGMENT_SIZE(
+        "snowflake.hive-metastore-listener.journal.segment-size",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The size of a journal segment file, in bytes"),
+    SNOWFLAKE_JOURNAL_SYNC_INTERVAL_MILLISECONDS(
+        "snowflake.hive-metastore-listener.journal.sync-interval",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The time between syncs of the journal to disk, in milliseconds"),
+    SNOWFLAKE_JOURNAL_SYNC_ON_ENQUEUE(
+        "snowflake.hive-metastore-listener.journal.sync-on-enqueue",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether the listener waits for a command to be synced to disk " +
+            "before returning. Otherwise a command survives a crash of the " +
+            "metastore, but may be lost if the host crashes."),
+    SNOWFLAKE_SCHEDULING_QUANTUM(
+        "snowflake.hive-metastore-listener.scheduling.quantum",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The number of commands a database of weight 1 may send per round " +
+            "before other databases get a turn"),
+    SNOWFLAKE_SCHEDULING_DATABASE_WEIGHTS(
+        "snowflake.hive-metastore-listener.scheduling.database-weights",
+        NOT_A_SF_JDBC_PROPERTY,
+        "A comma-separated list of database:weight pairs. A database gets " +
+            "a share of the commands sent in proportion to its weight. The " +
+            "default weight is 1."),
+    SNOWFLAKE_SCHEDULING_DATABASE_MAX_CONCURRENCY(
+        "snowflake.hive-metastore-listener.scheduling.database-max-concurrency",
+        NOT_A_SF_JDBC_PROPERTY,
+        "A comma-separated list of database:count pairs, capping the " +
+            "number of tables of a database processed at once"),
+    SNOWFLAKE_SCHEDULING_DEFAULT_MAX_CONCURRENCY(
+        "snowflake.hive-metastore-listener.scheduling.default-database-max-concurrency",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The number of tables of a database processed at once, for " +
+            "databases not listed in database-max-concurrency"),
+    SNOWFLAKE_SCHEDULING_MAX_ACTIVE_TABLES(
+        "snowflake.hive-metastore-listener.scheduling.max-active-tables",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum number of tables processed at once, including tables " +
+            "waiting for a retry. Defaults to 4 times the thread count, or " +
+            "with virtual threads to the connection pool max size, as " +
+            "tables above it only wait for a connection."),
+    SNOWFLAKE_SCHEDULING_PRIORITY_RATIO(
+        "snowflake.hive-metastore-listener.scheduling.priority-ratio",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The number of consecutive turns of tables with creates, replaces " +
+            "or drops queued before a table with a refresh queued gets a " +
+            "turn"),
+    SNOWFLAKE_VIRTUAL_THREADS_ENABLED(
+        "snowflake.hive-metastore-listener.virtual-threads.enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether each table is processed on its own virtual thread on Java " +
+            "21 or later, instead of on client-thread-count platform " +
+            "threads. The connection pool max size then bounds the " +
+            "statements in flight, and is the default of the max active " +
+            "tables. Raise both together."),
+    SNOWFLAKE_DEDUP_ENABLED(
+        "snowflake.hive-metastore-listener.dedup.enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether refreshes to a version of a table that is older than, or " +
+            "the same as, the version applied last are discarded"),
+    SNOWFLAKE_DEDUP_MAX_TABLES(
+        "snowflake.hive-metastore-listener.dedup.max-tables",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The number of recently changed tables whose last applied version " +
+            "is remembered"),
+    SNOWFLAKE_DEAD_LETTER_ENABLED(
+        "snowflake.hive-metastore-listener.dead-letter.enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether commands that fail after every retry are kept on disk to " +
+            "be replayed"),
+    SNOWFLAKE_DEAD_LETTER_DIRECTORY(
+        "snowflake.hive-metastore-listener.dead-letter.directory",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The directory of the dead letters. It should be on a local disk " +
+            "that persists across restarts."),
+    SNOWFLAKE_DEAD_LETTER_MAX_ENTRIES(
+        "snowflake.hive-metastore-listener.dead-letter.max-entries",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum number of dead letters kept. The oldest are dropped " +
+            "to make room."),
+    SNOWFLAKE_DEAD_LETTER_REPLAY_BATCH_SIZE(
+        "snowflake.hive-metastore-listener.dead-letter.replay-batch-size",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The number of dead letters queued at a time when replaying"),
+    SNOWFLAKE_DEAD_LETTER_REPLAY_TIMEOUT_MILLISECONDS(
+        "snowflake.hive-metastore-listener.dead-letter.replay-timeout",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum time to wait for a batch of replayed dead letters to " +
+            "be mostly sent before stopping the replay, in milliseconds"),
+    SNOWFLAKE_NOTIFICATION_LOG_CHECKPOINT_FILE(
+        "snowflake.hive-metastore-listener.notification-log.checkpoint-file",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The file where the notification log tailer keeps the ID of the last " +
+            "event it processed, so that it resumes from there after a restart"),
+    SNOWFLAKE_NOTIFICATION_LOG_BATCH_SIZE(
+        "snowflake.hive-metastore-listener.notification-log.batch-size",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum number of events the notification log tailer reads from " +
+            "the metastore at a time"),
+    SNOWFLAKE_NOTIFICATION_LOG_POLL_INTERVAL_MILLISECONDS(
+        "snowflake.hive-metastore-listener.notification-log.poll-interval-milliseconds",
+        NOT_A_SF_JDBC_PROPERTY,
+        "How long the notification log tailer waits before reading again " +
+            "once it caught up with the metastore"),
+    SNOWFLAKE_SYNC_PARALLELISM(
+        "snowflake.hive-metastore-listener.sync.parallelism",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The number of databases the sync tool reconciles at a time"),
+    SNOWFLAKE_SYNC_CHECKPOINT_FILE(
+        "snowflake.hive-metastore-listener.sync.checkpoint-file",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The file where the sync tool keeps its progress, so that an " +
+            "interrupted run resumes and the next run only refreshes the " +
+            "tables that changed"),
+    SNOWFLAKE_SYNC_DROP_ORPHANS(
+        "snowflake.hive-metastore-listener.sync.drop-orphans",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether the sync tool drops the Iceberg tables of Snowflake that no " +
+            "longer exist in Hive"),
+    SNOWFLAKE_TABLE_REGISTRY_ENABLED(
+        "snowflake.hive-metastore-listener.table-registry.enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether the listener remembers the Iceberg tables of Snowflake and " +
+            "their metadata files, and skips the drops of tables Snowflake " +
+            "doesn't have and the refreshes to the metadata file a table " +
+            "already points at. Tables changed in Snowflake by other means " +
+            "are only noticed once their database is listed again."),
+    SNOWFLAKE_TABLE_REGISTRY_FILE(
+        "snowflake.hive-metastore-listener.table-registry.file",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The file the table registry is saved to at shutdown and loaded " +
+            "from at startup. The registry starts empty if not set."),
+    SNOWFLAKE_TABLE_REGISTRY_SEED_TTL_MILLISECONDS(
+        "snowflake.hive-metastore-listener.table-registry.seed-ttl",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The time after which the Iceberg tables of a database are listed " +
+            "from Snowflake again before drops are skipped, in milliseconds. " +
+            "Tables created in Snowflake by other means within that time " +
+            "aren't noticed."),
+    SNOWFLAKE_SHUTDOWN_HOOK_ENABLED(
+        "snowflake.hive-metastore-listener.shutdown.hook-enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether queued events are drained when the metastore shuts down"),
+    SNOWFLAKE_SHUTDOWN_DRAIN_TIMEOUT_MILLISECONDS(
+        "snowflake.hive-metastore-listener.shutdown.drain-timeout",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum time spent sending queued events when shutting down, " +
+            "in milliseconds"),
+    SNOWFLAKE_SHUTDOWN_IN_FLIGHT_TIMEOUT_MILLISECONDS(
+        "snowflake.hive-metastore-listener.shutdown.in-flight-timeout",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum time to wait for the statements being sent once " +
+            "draining is over, in milliseconds"),
+    SNOWFLAKE_SHUTDOWN_HANDOFF_FILE(
+        "snowflake.hive-metastore-listener.shutdown.handoff-file",
+        NOT_A_SF_JDBC_PROPERTY,
+        "A file to write the events left when shutting down to, so that " +
+            "they are sent at the next start. Not needed if the journal is " +
+            "enabled."),
+    SNOWFLAKE_RATE_LIMIT_ENABLED(
+        "snowflake.hive-metastore-listener.rate-limit.enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether the rate of commands sent to Snowflake is limited per " +
+            "account, database and table"),
+    SNOWFLAKE_RATE_LIMIT_ACCOUNT_RATE(
+        "snowflake.hive-metastore-listener.rate-limit.account-rate",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The commands per second sent to the Snowflake account. Unlimited " +
+            "if 0."),
+    SNOWFLAKE_RATE_LIMIT_ACCOUNT_BURST(
+        "snowflake.hive-metastore-listener.rate-limit.account-burst",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The commands that may be sent to the account at once after a quiet " +
+            "period. Defaults to the rate."),
+    SNOWFLAKE_RATE_LIMIT_DATABASE_RATE(
+        "snowflake.hive-metastore-listener.rate-limit.database-rate",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The commands per second sent for each database. Unlimited if 0."),
+    SNOWFLAKE_RATE_LIMIT_DATABASE_RATES(
+        "snowflake.hive-metastore-listener.rate-limit.database-rates",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The commands per second sent for specific databases, as a list of " +
+            "database:rate pairs, e.g. \"sales:5,logs:0.5\""),
+    SNOWFLAKE_RATE_LIMIT_DATABASE_BURST(
+        "snowflake.hive-metastore-listener.rate-limit.database-burst",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The commands that may be sent for a database at once after a quiet " +
+            "period. Defaults to the rate of the database."),
+    SNOWFLAKE_RATE_LIMIT_TABLE_RATE(
+        "snowflake.hive-metastore-listener.rate-limit.table-rate",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The commands per second sent for each table. Unlimited if 0."),
+    SNOWFLAKE_RATE_LIMIT_TABLE_BURST(
+        "snowflake.hive-metastore-listener.rate-limit.table-burst",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The commands that may be sent for a table at once after a quiet " +
+            "period. Defaults to the rate."),
+    SNOWFLAKE_CONCURRENCY_ADAPTIVE_ENABLED(
+        "snowflake.hive-metastore-listener.concurrency.adaptive-enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether the number of commands sent to Snowflake at once adapts to " +
+            "the latency and errors of Snowflake. The limit starts at " +
+            "client-thread-count."),
+    SNOWFLAKE_CONCURRENCY_MIN_LIMIT(
+        "snowflake.hive-metastore-listener.concurrency.min-limit",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The lowest number of commands sent at once by the adaptive limit"),
+    SNOWFLAKE_CONCURRENCY_MAX_LIMIT(
+        "snowflake.hive-metastore-listener.concurrency.max-limit",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The highest number of commands sent at once by the adaptive " +
+            "limit. Defaults to 4 times client-thread-count."),
+    SNOWFLAKE_CONCURRENCY_BACKOFF_RATIO(
+        "snowflake.hive-metastore-listener.concurrency.backoff-ratio",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The ratio the adaptive limit is multiplied by when Snowflake is " +
+            "overloaded"),
+    SNOWFLAKE_CONCURRENCY_LATENCY_TOLERANCE(
+        "snowflake.hive-metastore-listener.concurrency.latency-tolerance",
+        NOT_A_SF_JDBC_PROPERTY,
+        "How many times slower than the lowest recent latency a command " +
+            "may be before Snowflake is taken to be overloaded"),
     SNOWFLAKE_CLIENT_FORCE_SYNCHRONOUS(
         "snowflake.hive-metastore-listener.force-synchronous",
         NOT_A_SF_JDBC_PROPERTY,
@@ -77,6 +424,98 @@ public class SnowflakeConf extends Configuration
         NOT_A_SF_JDBC_PROPERTY,
         "Determines the number of possible concurrent clients to communicate " +
             "with Snowflake"),
+    SNOWFLAKE_CONNECTION_POOL_ENABLED(
+        "snowflake.hive-metastore-listener.connection-pool.enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether connections to Snowflake are pooled and reused between " +
+            "commands instead of being opened for every command."),
+    SNOWFLAKE_CONNECTION_POOL_MIN_SIZE(
+        "snowflake.hive-metastore-listener.connection-pool.min-size",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The number of connections per schema that the pool keeps open, " +
+            "even when they are idle."),
+    SNOWFLAKE_CONNECTION_POOL_MAX_SIZE(
+        "snowflake.hive-metastore-listener.connection-pool.max-size",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum number of connections per schema. Defaults to the " +
+            "client thread count."),
+    SNOWFLAKE_CONNECTION_POOL_IDLE_TIMEOUT_MILLISECONDS(
+        "snowflake.hive-metastore-listener.connection-pool.idle-timeout",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The time after which an idle connection above the minimum pool " +
+            "size is closed, in milliseconds"),
+    SNOWFLAKE_CONNECTION_POOL_BORROW_TIMEOUT_MILLISECONDS(
+        "snowflake.hive-metastore-listener.connection-pool.borrow-timeout",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum time to wait for a connection when the pool is " +
+            "exhausted, in milliseconds. A scheduled command then waits " +
+            "again, without counting it as a failure or a retry."),
+    SNOWFLAKE_CONNECTION_POOL_VALIDATION_INTERVAL_MILLISECONDS(
+        "snowflake.hive-metastore-listener.connection-pool.validation-interval",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Connections idle for longer than this are validated before they " +
+            "are borrowed, in milliseconds"),
+    SNOWFLAKE_CONNECTION_POOL_VALIDATION_TIMEOUT_SECONDS(
+        "snowflake.hive-metastore-listener.connection-pool.validation-timeout",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The time to wait for a connection to be validated, in seconds"),
+    SNOWFLAKE_CONNECTION_POOL_KEEP_ALIVE_MILLISECONDS(
+        "snowflake.hive-metastore-listener.connection-pool.keep-alive-interval",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The interval at which idle connections are kept alive, in " +
+            "milliseconds. Set to 0 to disable keep-alive."),
+    SNOWFLAKE_BATCHING_ENABLED(
+        "snowflake.hive-metastore-listener.batching.enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether statements queued for different tables are sent to " +
+            "Snowflake together as multi-statement requests."),
+    SNOWFLAKE_BATCHING_MAX_STATEMENTS(
+        "snowflake.hive-metastore-listener.batching.max-statements",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum number of statements in a multi-statement request"),
+    SNOWFLAKE_BATCHING_LINGER_MILLISECONDS(
+        "snowflake.hive-metastore-listener.batching.linger",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The time to wait for more statements before a multi-statement " +
+            "request is sent, in milliseconds"),
+    SNOWFLAKE_ASYNC_QUERIES_ENABLED(
+        "snowflake.hive-metastore-listener.async-queries.enabled",
+        NOT_A_SF_JDBC_PROPERTY,
+        "Whether background statements are submitted as asynchronous " +
+            "queries, so that worker threads do not wait for them to finish. " +
+            "Ignored if batching is enabled."),
+    SNOWFLAKE_ASYNC_QUERIES_MAX_IN_FLIGHT(
+        "snowflake.hive-metastore-listener.async-queries.max-in-flight",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The maximum number of asynchronous queries running at once. Each " +
+            "query keeps a connection until it completes, so the max size " +
+            "of the connection pool also bounds them."),
+    SNOWFLAKE_ASYNC_QUERIES_POLL_INTERVAL_MILLISECONDS(
+        "snowflake.hive-metastore-listener.async-queries.poll-interval",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The interval at which the status of asynchronous queries is " +
+            "checked, in milliseconds"),
+    SNOWFLAKE_RESULT_SAMPLE_RATE(
+        "snowflake.hive-metastore-listener.result-sample-rate",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The fraction of statements, between 0 and 1, whose result rows are " +
+            "logged. Result rows are always logged when debug logging is " +
+            "enabled."),
+    SNOWFLAKE_CREDENTIAL_PROVIDER(
+        "snowflake.hive-metastore-listener.credential-provider",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The class implementing CredentialProvider that supplies the " +
+            "credentials used to connect to Snowflake."),
+    SNOWFLAKE_CREDENTIAL_CACHE_TTL_MILLISECONDS(
+        "snowflake.hive-metastore-listener.credential-cache.ttl",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The time after which cached credentials expire, in milliseconds. " +
+            "Set to 0 to fetch credentials for every connection."),
+    SNOWFLAKE_CREDENTIAL_CACHE_REFRESH_MILLISECONDS(
+        "snowflake.hive-metastore-listener.credential-cache.refresh-interval",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The interval at which cached credentials are refreshed in the " +
+            "background, in milliseconds. Defaults to 3/4 of the TTL."),
     SNOWFLAKE_ENABLE_CREDENTIALS_FROM_HIVE_CONF(
       "snowflake.hive-metastore-listener.enable-creds-from-conf",
       NOT_A_SF_JDBC_PROPERTY,
@@ -92,6 +531,29 @@ public class SnowflakeConf extends Configuration
         NOT_A_SF_JDBC_PROPERTY,
         "A regex to filter events with. Databases with names that match " +
             "this regex will be be ignored."),
+    SNOWFLAKE_DATABASE_INCLUDE(
+        "snowflake.hive-metastore-listener.database-include",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The databases whose tables are handled, all if empty. A comma " +
+            "separated list of names, prefixes ending with '*', or regexes " +
+            "starting with 'regex:'. A comma inside a character class, " +
+            "quantifier or group of a regex, e.g. 'regex:t[0-9]{1,3}', or " +
+            "escaped as '\\,' doesn't end the regex."),
+    SNOWFLAKE_DATABASE_EXCLUDE(
+        "snowflake.hive-metastore-listener.database-exclude",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The databases whose tables are ignored, as a list of rules like " +
+            "database-include. Takes precedence over database-include."),
+    SNOWFLAKE_TABLE_INCLUDE(
+        "snowflake.hive-metastore-listener.table-include",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The tables that are handled, all if empty, as a list of rules " +
+            "like database-include"),
+    SNOWFLAKE_TABLE_EXCLUDE(
+        "snowflake.hive-metastore-listener.table-exclude",
+        NOT_A_SF_JDBC_PROPERTY,
+        "The tables that are ignored, as a list of rules like " +
+            "database-include. Takes precedence over table-include."),
     SNOWFLAKE_DATA_COLUMN_CASING(
         "snowflake.hive-metastore-listener.data-column-casing",
         NOT_A_SF_JDBC_PROPERTY,
@@ -5,6 +5,7 @@ package net.snowflake.hivemetastoreconnector;
 
 import com.google.common.base.Preconditions;
 import net.snowflake.hivemetastoreconnector.core.SnowflakeClient;
+import net.snowflake.hivemetastoreconnector.core.TableFilter;
 import net.snowflake.hivemetastoreconnector.util.IcebergTableUtil;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hive.metastore.MetaStoreEventListener;
@@ -15,7 +16,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 /**
  * The listener for Hive
@@ -28,9 +29,9 @@ public class SnowflakeIcebergListener extends MetaStoreEventListener
 
   private static SnowflakeConf snowflakeConf;
 
-  private static Pattern tableNameFilter; // null if there is no filter
+  private static TableFilter tableFilter;
 
-  private static Pattern databaseNameFilter; // null if there is no filter
+  private static boolean shutdownHookAdded = false;
 
   public SnowflakeIcebergListener(Configuration config)
   {
@@ -38,13 +39,58 @@ public class SnowflakeIcebergListener extends MetaStoreEventListener
 
     // generate the snowflake jdbc conf
     snowflakeConf = new SnowflakeConf();
-    tableNameFilter = snowflakeConf.getPattern(
-        SnowflakeConf.ConfVars.SNOWFLAKE_TABLE_FILTER_REGEX.getVarname(), null);
-    databaseNameFilter = snowflakeConf.getPattern(
-        SnowflakeConf.ConfVars.SNOWFLAKE_DATABASE_FILTER_REGEX.getVarname(), null);
+    tableFilter = TableFilter.fromConf(snowflakeConf);
+
+    // Connect in the background so that the first events don't have to
+    boolean warmUpEnabled = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_WARM_UP_ENABLED.getVarname(), false);
+    if (warmUpEnabled)
+    {
+      SnowflakeClient.startWarmUp(snowflakeConf);
+    }
+
+    // Drain queued events when the metastore stops
+    boolean shutdownHookEnabled = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SHUTDOWN_HOOK_ENABLED.getVarname(), true);
+    if (shutdownHookEnabled)
+    {
+      addShutdownHook();
+    }
     log.info("SnowflakeIcebergListener created");
   }
 
+  private static synchronized void addShutdownHook()
+  {
+    if (shutdownHookAdded)
+    {
+      return;
+    }
+    Runtime.getRuntime().addShutdownHook(
+        new Thread(SnowflakeIcebergListener::shutdown, "snowflake-shutdown"));
+    shutdownHookAdded = true;
+  }
+
+  /**
+   * Stops sending events to Snowflake, draining the events queued so far.
+   * Events that could not be sent in time are kept for the next start if
+   * the journal or a handoff file is configured.
+   * @return whether every queued event was sent
+   */
+  public static boolean shutdown()
+  {
+    log.info("Shutting down SnowflakeIcebergListener");
+    return SnowflakeClient.shutdown(snowflakeConf);
+  }
+
+  /**
+   * @return whether the listener finished warming up, and can process
+   *         events with steady-state latency
+   */
+  public static boolean isReady()
+  {
+    return SnowflakeClient.isWarmedUp();
+  }
+
   /**
    * The listener for the create table command
    * @param tableEvent An event that was listened for
@@ -90,16 +136,13 @@ public class SnowflakeIcebergListener extends MetaStoreEventListener
   @Override
   public void onAlterTable(AlterTableEvent tableEvent) throws MetaException
   {
-    logTableEvent("Event received", tableEvent, tableEvent.getNewTable());
+    // Most events are ignored, so nothing is logged before they are
     if (shouldHandle(tableEvent, tableEvent.getNewTable()))
     {
+      logTableEvent("Event received", tableEvent, tableEvent.getNewTable());
       SnowflakeClient.createAndExecuteCommandIcebergForSnowflake(tableEvent,
                                                           snowflakeConf);
     }
-    else
-    {
-      logTableEvent("Nothing to do", tableEvent, tableEvent.getNewTable());
-    }
   }
 
 
@@ -135,7 +178,7 @@ public class SnowflakeIcebergListener extends MetaStoreEventListener
     }
     if(!IcebergTableUtil.isAbletoCreateTable(table))
     {
-      logTableEvent("Skip event, missing sf_catalog or sf_external_volume or sf_base_location property of iceberg table",
+      logSkippedEvent("sf_catalog, sf_external_volume or sf_base_location is missing from the iceberg table properties",
               event, table);
       return false;
     }
@@ -152,36 +195,44 @@ public class SnowflakeIcebergListener extends MetaStoreEventListener
   {
     if (!event.getStatus())
     {
-      logTableEvent("Skip event, as status is false", event, table);
+      logSkippedEvent("status is false", event, table);
       return false;
     }
 
-    if (tableNameFilter != null && tableNameFilter.matcher(table.getTableName()).matches())
+    if (!tableFilter.accepts(table.getDbName(), table.getTableName()))
     {
-      logTableEvent("Skip event, as table name matched filter",
-                    event, table);
+      logSkippedEvent("the table is filtered out", event, table);
       return false;
     }
 
-    if (databaseNameFilter != null && databaseNameFilter.matcher(table.getDbName()).matches())
+    Map<String, String> parameters = table.getParameters();
+    String metadataLocation = parameters == null
+        ? null : parameters.get(IcebergTableUtil.metadataLocation);
+    if (metadataLocation == null)
     {
-      logTableEvent("Skip event, as database name matched filter",
-                    event, table);
+      logSkippedEvent("there is no metadata_location in the table TBLPROPERTIES",
+                      event, table);
       return false;
     }
+    log.info("metadata_location:" + metadataLocation);
 
-    log.debug(table.toString());
+    return true;
+  }
 
-    if(!table.getParameters().keySet().contains(IcebergTableUtil.metadataLocation))
+  /**
+   * Helper method for logging why an event is skipped. Skipped events are
+   * the common case, so the message is only built if it is logged.
+   * @param reason Why the event is skipped
+   * @param event The event
+   * @param hiveTable The Hive table associated with the event
+   */
+  private static void logSkippedEvent(String reason, ListenerEvent event,
+                                      Table hiveTable)
+  {
+    if (log.isDebugEnabled())
     {
-      logTableEvent("Skip event, as there is no metadata_location in the table TBLPROPERTIES",
-              event, table);
-      return false;
-    }else{
-      log.info("metadata_location:"+table.getParameters().get(IcebergTableUtil.metadataLocation));
+      logTableEvent("Skip event, as " + reason, event, hiveTable);
     }
-
-    return true;
   }
 }
 
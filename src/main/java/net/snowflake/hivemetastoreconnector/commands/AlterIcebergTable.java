@@ -7,11 +7,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import net.snowflake.hivemetastoreconnector.SnowflakeConf;
 import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
-import net.snowflake.hivemetastoreconnector.util.IcebergTableUtil;
+import net.snowflake.hivemetastoreconnector.util.HiveToSnowflakeSchema;
 import net.snowflake.hivemetastoreconnector.util.StringUtil;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hive.metastore.api.FieldSchema;
-import org.apache.hadoop.hive.metastore.api.Table;
 import org.apache.hadoop.hive.metastore.events.AlterTableEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,14 +41,40 @@ public class AlterIcebergTable extends Command
   public AlterIcebergTable(AlterTableEvent alterTableEvent,
                            SnowflakeConf snowflakeConf)
   {
-    super(Preconditions.checkNotNull(alterTableEvent).getOldTable());
-    this.oldHiveTable =
-        Preconditions.checkNotNull(alterTableEvent.getOldTable());
-    this.newHiveTable =
-        Preconditions.checkNotNull(alterTableEvent.getNewTable());
+    this(TableSnapshot.of(Preconditions.checkNotNull(alterTableEvent).getOldTable()),
+         TableSnapshot.of(alterTableEvent.getNewTable()),
+         snowflakeConf);
+  }
+
+  /**
+   * Creates a AlterTable command from snapshots of the table
+   * @param oldHiveTable The snapshot of the table before the change
+   * @param newHiveTable The snapshot of the table after the change, whose
+   *                     name the command is executed under. A rename or
+   *                     move is queued behind the commands of the old name,
+   *                     and later commands on the new name run after it.
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   */
+  public AlterIcebergTable(TableSnapshot oldHiveTable,
+                           TableSnapshot newHiveTable,
+                           SnowflakeConf snowflakeConf)
+  {
+    super(newHiveTable.getDatabaseName(), newHiveTable.getTableName(),
+          BASE_SIZE_IN_BYTES + newHiveTable.getEstimatedSizeInBytes());
+    this.oldDatabaseName = oldHiveTable.getDatabaseName();
+    this.oldTableName = oldHiveTable.getTableName();
+    this.newHiveTable = newHiveTable;
     this.snowflakeConf = Preconditions.checkNotNull(snowflakeConf);
-    this.hiveConf = Preconditions.checkNotNull(
-        alterTableEvent.getHandler().getConf());
+    this.change = TableChange.between(oldHiveTable, newHiveTable);
+  }
+
+  /**
+   * @return what the alter changed, and what Snowflake needs for it
+   */
+  public TableChange getChange()
+  {
+    return change;
   }
 
   /**
@@ -64,28 +88,96 @@ public class AlterIcebergTable extends Command
       throws SQLException, UnsupportedOperationException
   {
     List<String> commands = new ArrayList<>();
-    if(IcebergTableUtil.isAbletoCreateTable(newHiveTable)){
-      commands = new CreateIcebergTable(
+    if (change.isRenamed())
+    {
+      // Conditional, so that the statements can run again once renamed
+      // ALTER ICEBERG TABLE IF EXISTS my_iceberg_table RENAME TO my_renamed_table;
+      commands.add(String.format("ALTER ICEBERG TABLE IF EXISTS %s RENAME TO %s;",
+              StringUtil.escapeSqlIdentifier(oldTableName),
+              StringUtil.escapeSqlIdentifier(getTableName())));
+    }
+    if (change.getAction() == TableChange.Action.CREATE_OR_REPLACE)
+    {
+      commands.addAll(new CreateIcebergTable(
               newHiveTable,
               snowflakeConf,
-              hiveConf,
               false // Do not replace table
-      ).generateSqlQueries();
-    }else {
-      // ALTER ICEBERG TABLE my_iceberg_table REFRESH 'metadata/v1.metadata.json';
-      String refreshCommand = String.format("ALTER ICEBERG TABLE %s REFRESH '%s';",
-              StringUtil.escapeSqlIdentifier(newHiveTable.getTableName()),
-              IcebergTableUtil.getMetadataLocation(newHiveTable));
-      commands.add(refreshCommand);
+      ).generateSqlQueries());
+    }
+    else if (change.getAction() == TableChange.Action.REFRESH)
+    {
+      commands.addAll(
+              new RefreshIcebergTable(newHiveTable).generateSqlQueries());
+    }
+    if (change.isMoved())
+    {
+      // The statements run in the schema of the new database
+      // DROP ICEBERG TABLE IF EXISTS old_schema.my_iceberg_table;
+      commands.add(String.format("DROP ICEBERG TABLE IF EXISTS %s.%s;",
+              StringUtil.escapeSqlIdentifier(
+                  HiveToSnowflakeSchema.getSnowflakeSchemaFromHiveSchema(
+                      oldDatabaseName, snowflakeConf)),
+              StringUtil.escapeSqlIdentifier(oldTableName)));
     }
     return commands;
   }
 
-  private final Table oldHiveTable;
+  /**
+   * @return whether this command only refreshes the table to the latest
+   *         metadata file, rather than recreating or renaming it
+   */
+  @Override
+  public boolean isRefresh()
+  {
+    return change.getAction() == TableChange.Action.REFRESH
+        && !change.isRenamed() && !change.isMoved();
+  }
+
+  /**
+   * @return the version of the metadata file the table is brought to, or
+   *         {@link #NO_VERSION} if the command doesn't move it
+   */
+  @Override
+  public long getVersion()
+  {
+    return change.getAction() == TableChange.Action.NONE
+        ? NO_VERSION : newHiveTable.getMetadataVersion();
+  }
+
+  /**
+   * @return the location of the metadata file the table is brought to, or
+   *         null if the command doesn't move it
+   */
+  @Override
+  public String getMetadataLocation()
+  {
+    return change.getAction() == TableChange.Action.NONE
+        ? null : newHiveTable.getMetadataLocation();
+  }
+
+  /**
+   * @return the name of the database of the table before the alter
+   */
+  public String getOldDatabaseName()
+  {
+    return oldDatabaseName;
+  }
+
+  /**
+   * @return the name of the table before the alter
+   */
+  public String getOldTableName()
+  {
+    return oldTableName;
+  }
+
+  private final String oldDatabaseName;
+
+  private final String oldTableName;
 
-  private final Table newHiveTable;
+  private final TableSnapshot newHiveTable;
 
-  private final Configuration hiveConf;
+  private final TableChange change;
 
   private final SnowflakeConf snowflakeConf;
 }
@@ -7,6 +7,7 @@ import com.google.common.base.Preconditions;
 import org.apache.hadoop.hive.metastore.api.Table;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * A class that represents a command to generate executable Snowflake
@@ -19,16 +20,41 @@ public abstract class Command
 
   private final String tableName;
 
+  // A rough estimate of the memory held by the command, used to bound the
+  // memory of queued commands
+  private final long estimatedSizeInBytes;
+
+  // The estimated size of a command, not counting its table
+  protected static final long BASE_SIZE_IN_BYTES = 256;
+
+  // The version of a command that can't be ordered with other commands
+  public static final long NO_VERSION = -1;
+
   protected Command(Table table)
   {
     this(Preconditions.checkNotNull(table).getDbName(),
-         table.getTableName());
+         table.getTableName(),
+         BASE_SIZE_IN_BYTES + estimateSizeInBytes(table));
+  }
+
+  protected Command(TableSnapshot table)
+  {
+    this(Preconditions.checkNotNull(table).getDatabaseName(),
+         table.getTableName(),
+         BASE_SIZE_IN_BYTES + table.getEstimatedSizeInBytes());
   }
 
   protected Command(String databaseName, String tableName)
+  {
+    this(databaseName, tableName, BASE_SIZE_IN_BYTES);
+  }
+
+  protected Command(String databaseName, String tableName,
+                    long estimatedSizeInBytes)
   {
     this.databaseName = databaseName;
     this.tableName = tableName;
+    this.estimatedSizeInBytes = estimatedSizeInBytes;
   }
 
   public String getDatabaseName()
@@ -41,6 +67,70 @@ public abstract class Command
     return tableName;
   }
 
+  /**
+   * @return a rough estimate of the memory held by the command, in bytes
+   */
+  public long getEstimatedSizeInBytes()
+  {
+    return estimatedSizeInBytes;
+  }
+
+  /**
+   * @return whether this command only refreshes a table to its latest
+   *         metadata file, so that it is superseded by a later refresh of
+   *         the same table
+   */
+  public boolean isRefresh()
+  {
+    return false;
+  }
+
+  /**
+   * @return the version of the table the command brings Snowflake to, which
+   *         grows with every commit to the table, or {@link #NO_VERSION}
+   */
+  public long getVersion()
+  {
+    return NO_VERSION;
+  }
+
+  /**
+   * @return the full location of the metadata file the command points the
+   *         table at, or null if it doesn't or it isn't known
+   */
+  public String getMetadataLocation()
+  {
+    return null;
+  }
+
+  /**
+   * Helper method that estimates the memory held by a Hive table, counting
+   * its parameters and columns
+   * @param table the Hive table
+   * @return the estimated size, in bytes
+   */
+  private static long estimateSizeInBytes(Table table)
+  {
+    long size = 512;
+    if (table.getParameters() != null)
+    {
+      for (Map.Entry<String, String> parameter : table.getParameters().entrySet())
+      {
+        size += 64 + 2L * (length(parameter.getKey()) + length(parameter.getValue()));
+      }
+    }
+    if (table.getSd() != null && table.getSd().getCols() != null)
+    {
+      size += 128L * table.getSd().getCols().size();
+    }
+    return size;
+  }
+
+  private static int length(String str)
+  {
+    return str == null ? 0 : str.length();
+  }
+
   /**
    * Generates the query in a string form to be sent to Snowflake
    * @return The Snowflake queries generated
@@ -4,10 +4,8 @@
 package net.snowflake.hivemetastoreconnector.commands;
 
 import com.google.common.base.Preconditions;
-import net.snowflake.hivemetastoreconnector.util.IcebergTableUtil;
 import net.snowflake.hivemetastoreconnector.SnowflakeConf;
 import net.snowflake.hivemetastoreconnector.util.StringUtil;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hive.metastore.api.Table;
 import org.apache.hadoop.hive.metastore.events.CreateTableEvent;
 import org.slf4j.Logger;
@@ -38,7 +36,6 @@ public class CreateIcebergTable extends Command {
                               SnowflakeConf snowflakeConf) {
         this(Preconditions.checkNotNull(createTableEvent).getTable(),
                 snowflakeConf,
-                createTableEvent.getHandler().getConf(),
                 true);
     }
 
@@ -48,20 +45,44 @@ public class CreateIcebergTable extends Command {
      * @param hiveTable     The Hive table to generate a command from
      * @param snowflakeConf The configuration for Snowflake Hive metastore
      *                      listener
-     * @param hiveConf      The Hive configuration
      * @param canReplace    Whether to replace existing resources or not
      */
     public CreateIcebergTable(Table hiveTable,
                               SnowflakeConf snowflakeConf,
-                              Configuration hiveConf,
+                              boolean canReplace) {
+        this(TableSnapshot.of(hiveTable), snowflakeConf, canReplace);
+    }
+
+    /**
+     * Creates a CreateExternalTable command from a snapshot of the table
+     *
+     * @param hiveTable     The snapshot of the Hive table
+     * @param snowflakeConf The configuration for Snowflake Hive metastore
+     *                      listener
+     * @param canReplace    Whether to replace existing resources or not
+     */
+    public CreateIcebergTable(TableSnapshot hiveTable,
+                              SnowflakeConf snowflakeConf,
                               boolean canReplace) {
         super(hiveTable);
-        this.hiveTable = Preconditions.checkNotNull(hiveTable);
+        this.hiveTable = hiveTable;
         this.snowflakeConf = Preconditions.checkNotNull(snowflakeConf);
-        this.hiveConf = Preconditions.checkNotNull(hiveConf);
         this.canReplace = canReplace;
     }
 
+    /**
+     * @return the version of the metadata file the table is created from
+     */
+    @Override
+    public long getVersion() {
+        return hiveTable.getMetadataVersion();
+    }
+
+    @Override
+    public String getMetadataLocation() {
+        return hiveTable.getMetadataLocation();
+    }
+
     /**
      * Helper method to get the version of the connector (aka the Maven
      * artifact version).
@@ -105,10 +126,10 @@ public class CreateIcebergTable extends Command {
                         " BASE_LOCATION='%s'" +
                         " METADATA_FILE_PATH='%s';",
                 StringUtil.escapeSqlIdentifier(hiveTable.getTableName()),
-                hiveTable.getParameters().get(IcebergTableUtil.sfExternalVolume),
-                hiveTable.getParameters().get(IcebergTableUtil.sfCatalog),
-                hiveTable.getParameters().get(IcebergTableUtil.sfBaseLocation),
-                IcebergTableUtil.getMetadataLocation(hiveTable)));
+                hiveTable.getExternalVolume(),
+                hiveTable.getCatalog(),
+                hiveTable.getBaseLocation(),
+                hiveTable.getMetadataFilePath()));
 
 //       if(!table.getParameters().keySet().contains(sfCatalog) || !table.getParameters().keySet().contains(sfExternalVolume) || !table.getParameters().keySet().contains(sfBaseLocation))
         // Add the connector version in the comments
@@ -120,9 +141,7 @@ public class CreateIcebergTable extends Command {
         return queryList;
     }
 
-    private final Table hiveTable;
-
-    private final Configuration hiveConf;
+    private final TableSnapshot hiveTable;
 
     private final SnowflakeConf snowflakeConf;
 
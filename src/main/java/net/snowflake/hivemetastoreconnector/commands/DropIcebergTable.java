@@ -5,9 +5,7 @@ package net.snowflake.hivemetastoreconnector.commands;
 
 import com.google.common.base.Preconditions;
 import net.snowflake.hivemetastoreconnector.SnowflakeConf;
-import net.snowflake.hivemetastoreconnector.util.IcebergTableUtil;
 import net.snowflake.hivemetastoreconnector.util.StringUtil;
-import org.apache.hadoop.hive.metastore.api.Table;
 import org.apache.hadoop.hive.metastore.events.DropTableEvent;
 
 import java.util.ArrayList;
@@ -27,8 +25,20 @@ public class DropIcebergTable extends Command
   public DropIcebergTable(DropTableEvent dropTableEvent,
                           SnowflakeConf snowflakeConf)
   {
-    super(Preconditions.checkNotNull(dropTableEvent).getTable());
-    this.hiveTable = Preconditions.checkNotNull(dropTableEvent.getTable());
+    this(TableSnapshot.of(Preconditions.checkNotNull(dropTableEvent).getTable()),
+         snowflakeConf);
+  }
+
+  /**
+   * Creates a DropExternalTable command from a snapshot of the table
+   * @param hiveTable The snapshot of the Hive table
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   */
+  public DropIcebergTable(TableSnapshot hiveTable, SnowflakeConf snowflakeConf)
+  {
+    super(hiveTable);
+    this.hiveTable = hiveTable;
     this.snowflakeConf = Preconditions.checkNotNull(snowflakeConf);
   }
 
@@ -45,7 +55,7 @@ public class DropIcebergTable extends Command
     return queryList;
   }
 
-  private final Table hiveTable;
+  private final TableSnapshot hiveTable;
 
   private final SnowflakeConf snowflakeConf;
 }
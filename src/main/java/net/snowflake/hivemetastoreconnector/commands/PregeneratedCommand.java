@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.commands;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * A command whose statements were generated ahead of time, for example a
+ * command that was written to disk and read back.
+ */
+public class PregeneratedCommand extends Command
+{
+  /**
+   * Creates a command from its statements
+   * @param databaseName the Hive database of the table
+   * @param tableName the Hive table
+   * @param refresh whether the command only refreshes the table
+   * @param statements the Snowflake statements of the command
+   */
+  public PregeneratedCommand(String databaseName, String tableName,
+                             boolean refresh, List<String> statements)
+  {
+    this(databaseName, tableName, refresh, NO_VERSION, statements);
+  }
+
+  /**
+   * Creates a command from its statements
+   * @param databaseName the Hive database of the table
+   * @param tableName the Hive table
+   * @param refresh whether the command only refreshes the table
+   * @param version the version of the table the command brings Snowflake to
+   * @param statements the Snowflake statements of the command
+   */
+  public PregeneratedCommand(String databaseName, String tableName,
+                             boolean refresh, long version,
+                             List<String> statements)
+  {
+    super(databaseName, tableName, BASE_SIZE_IN_BYTES + estimateSizeInBytes(statements));
+    this.refresh = refresh;
+    this.version = version;
+    this.statements = ImmutableList.copyOf(Preconditions.checkNotNull(statements));
+  }
+
+  /**
+   * Generates the statements of a command ahead of time
+   * @param command the command
+   * @return the command with its statements generated
+   * @throws Exception Thrown when there is an error generating SQL queries
+   */
+  public static PregeneratedCommand of(Command command) throws Exception
+  {
+    if (command instanceof PregeneratedCommand)
+    {
+      return (PregeneratedCommand) command;
+    }
+    return new PregeneratedCommand(command.getDatabaseName(),
+                                   command.getTableName(),
+                                   command.isRefresh(),
+                                   command.getVersion(),
+                                   command.generateSqlQueries());
+  }
+
+  /**
+   * @return the statements generated ahead of time
+   */
+  public List<String> generateSqlQueries()
+  {
+    return statements;
+  }
+
+  @Override
+  public boolean isRefresh()
+  {
+    return refresh;
+  }
+
+  @Override
+  public long getVersion()
+  {
+    return version;
+  }
+
+  private static long estimateSizeInBytes(List<String> statements)
+  {
+    long size = 0;
+    for (String statement : statements)
+    {
+      size += 48 + 2L * statement.length();
+    }
+    return size;
+  }
+
+  private final boolean refresh;
+
+  private final long version;
+
+  private final List<String> statements;
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.commands;
+
+import net.snowflake.hivemetastoreconnector.util.StringUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class for the command that points an Iceberg table to its latest
+ * metadata file
+ */
+public class RefreshIcebergTable extends Command
+{
+  /**
+   * Creates a RefreshIcebergTable command
+   * @param hiveTable The snapshot of the Hive table, with its metadata
+   *                  location
+   */
+  public RefreshIcebergTable(TableSnapshot hiveTable)
+  {
+    super(hiveTable);
+    this.hiveTable = hiveTable;
+  }
+
+  /**
+   * Generates the query to refresh the table
+   * @return The Snowflake queries generated
+   */
+  public List<String> generateSqlQueries()
+  {
+    List<String> queryList = new ArrayList<>();
+    // ALTER ICEBERG TABLE my_iceberg_table REFRESH 'metadata/v1.metadata.json';
+    queryList.add(String.format("ALTER ICEBERG TABLE %s REFRESH '%s';",
+            StringUtil.escapeSqlIdentifier(hiveTable.getTableName()),
+            hiveTable.getMetadataFilePath()));
+    return queryList;
+  }
+
+  @Override
+  public boolean isRefresh()
+  {
+    return true;
+  }
+
+  /**
+   * @return the version of the metadata file the table is brought to
+   */
+  @Override
+  public long getVersion()
+  {
+    return hiveTable.getMetadataVersion();
+  }
+
+  @Override
+  public String getMetadataLocation()
+  {
+    return hiveTable.getMetadataLocation();
+  }
+
+  private final TableSnapshot hiveTable;
+}
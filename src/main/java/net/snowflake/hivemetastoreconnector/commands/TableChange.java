@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.commands;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Objects;
+
+/**
+ * What an alter table event changed that matters to Snowflake, and the
+ * cheapest way to bring the Snowflake table up to date.
+ *
+ * Most alters, such as statistics updates, comments or owner changes, don't
+ * touch the fields the Snowflake table is made from, and need nothing. A
+ * commit only moves the metadata location, and needs a refresh. The table
+ * is only created again when its Snowflake properties were added or
+ * changed, as it is then missing from Snowflake or points to another
+ * catalog, volume or location.
+ *
+ * Tables renamed within their database are renamed in Snowflake first.
+ * Tables moved to another database are created in the schema of the new
+ * database, if they can be, and dropped from the schema of the old one.
+ */
+public final class TableChange
+{
+  /**
+   * The statement needed to bring the table up to date, besides a rename
+   */
+  public enum Action
+  {
+    // Nothing the Snowflake table depends on changed
+    NONE,
+
+    // Point the table to its new metadata file
+    REFRESH,
+
+    // Create the table, or replace it
+    CREATE_OR_REPLACE
+  }
+
+  private final Action action;
+
+  private final boolean renamed;
+
+  private final boolean moved;
+
+  private TableChange(Action action, boolean renamed, boolean moved)
+  {
+    this.action = action;
+    this.renamed = renamed;
+    this.moved = moved;
+  }
+
+  /**
+   * Compares a table before and after an alter
+   * @param oldTable the snapshot of the table before the alter
+   * @param newTable the snapshot of the table after the alter
+   * @return the change
+   */
+  public static TableChange between(TableSnapshot oldTable,
+                                    TableSnapshot newTable)
+  {
+    Preconditions.checkNotNull(oldTable);
+    Preconditions.checkNotNull(newTable);
+    boolean moved =
+        !oldTable.getDatabaseName().equalsIgnoreCase(newTable.getDatabaseName());
+    boolean renamed = !moved
+        && !oldTable.getTableName().equalsIgnoreCase(newTable.getTableName());
+
+    // Without a metadata file there is nothing to point Snowflake to
+    if (newTable.getMetadataLocation() == null)
+    {
+      return new TableChange(Action.NONE, renamed, moved);
+    }
+
+    // A moved table is new to the schema of its new database
+    if (moved)
+    {
+      return new TableChange(newTable.isAbleToCreateTable()
+                                 ? Action.CREATE_OR_REPLACE : Action.NONE,
+                             false, true);
+    }
+
+    boolean propertiesChanged = !oldTable.isAbleToCreateTable()
+        || !Objects.equals(oldTable.getCatalog(), newTable.getCatalog())
+        || !Objects.equals(oldTable.getExternalVolume(), newTable.getExternalVolume())
+        || !Objects.equals(oldTable.getBaseLocation(), newTable.getBaseLocation());
+    if (newTable.isAbleToCreateTable() && propertiesChanged)
+    {
+      return new TableChange(Action.CREATE_OR_REPLACE, renamed, false);
+    }
+    if (!Objects.equals(oldTable.getMetadataLocation(),
+                        newTable.getMetadataLocation()))
+    {
+      return new TableChange(Action.REFRESH, renamed, false);
+    }
+    return new TableChange(Action.NONE, renamed, false);
+  }
+
+  public Action getAction()
+  {
+    return action;
+  }
+
+  /**
+   * @return whether the table was renamed within its database
+   */
+  public boolean isRenamed()
+  {
+    return renamed;
+  }
+
+  /**
+   * @return whether the table was moved to another database, possibly
+   *         under another name
+   */
+  public boolean isMoved()
+  {
+    return moved;
+  }
+
+  /**
+   * @return whether Snowflake needs no statement at all
+   */
+  public boolean isEmpty()
+  {
+    return action == Action.NONE && !renamed && !moved;
+  }
+
+  @Override
+  public String toString()
+  {
+    return renamed ? "RENAME+" + action
+        : moved ? "MOVE+" + action : action.toString();
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.commands;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import net.snowflake.hivemetastoreconnector.util.IcebergTableUtil;
+import org.apache.hadoop.hive.metastore.api.Table;
+
+import java.util.Map;
+
+/**
+ * The fields of a Hive table that commands need, copied out of the Thrift
+ * table when the event is received, so that a queued command doesn't keep
+ * the table, its storage descriptor, columns and parameters in memory.
+ *
+ * Names and the Snowflake properties repeat across the commands of a
+ * table and the tables of a database, so they are interned: a backlog of
+ * commands shares them, and each command costs little more than the
+ * snapshot itself and its metadata location.
+ */
+public final class TableSnapshot
+{
+  // Weak, so that names of tables no longer queued can be collected
+  private static final Interner<String> strings = Interners.newWeakInterner();
+
+  private final String databaseName;
+
+  private final String tableName;
+
+  // The full location of the metadata file, or null
+  private final String metadataLocation;
+
+  // The Snowflake properties of the table, or null if missing
+  private final String catalog;
+
+  private final String externalVolume;
+
+  private final String baseLocation;
+
+  private TableSnapshot(String databaseName, String tableName,
+                        String metadataLocation, String catalog,
+                        String externalVolume, String baseLocation)
+  {
+    this.databaseName = databaseName;
+    this.tableName = tableName;
+    this.metadataLocation = metadataLocation;
+    this.catalog = catalog;
+    this.externalVolume = externalVolume;
+    this.baseLocation = baseLocation;
+  }
+
+  /**
+   * Takes a snapshot of a Hive table
+   * @param table the Hive table
+   * @return the snapshot
+   */
+  public static TableSnapshot of(Table table)
+  {
+    Preconditions.checkNotNull(table);
+    Map<String, String> parameters = table.getParameters();
+    return new TableSnapshot(
+        intern(table.getDbName()),
+        intern(table.getTableName()),
+        // Unique to each commit, not worth interning
+        parameters == null ? null : parameters.get(IcebergTableUtil.metadataLocation),
+        intern(getParameter(parameters, IcebergTableUtil.sfCatalog)),
+        intern(getParameter(parameters, IcebergTableUtil.sfExternalVolume)),
+        intern(getParameter(parameters, IcebergTableUtil.sfBaseLocation)));
+  }
+
+  /**
+   * Takes a snapshot of a table known only by its name, for example one
+   * that exists in Snowflake but no longer in Hive
+   * @param databaseName the database of the table
+   * @param tableName the table
+   * @return the snapshot, without a metadata location or properties
+   */
+  public static TableSnapshot ofName(String databaseName, String tableName)
+  {
+    return new TableSnapshot(intern(Preconditions.checkNotNull(databaseName)),
+                             intern(Preconditions.checkNotNull(tableName)),
+                             null, null, null, null);
+  }
+
+  private static String getParameter(Map<String, String> parameters, String key)
+  {
+    return parameters == null ? null : parameters.get(key);
+  }
+
+  private static String intern(String str)
+  {
+    return str == null ? null : strings.intern(str);
+  }
+
+  public String getDatabaseName()
+  {
+    return databaseName;
+  }
+
+  public String getTableName()
+  {
+    return tableName;
+  }
+
+  /**
+   * @return the full location of the metadata file, or null
+   */
+  public String getMetadataLocation()
+  {
+    return metadataLocation;
+  }
+
+  /**
+   * @return the location of the metadata file relative to the base location
+   *         of the table, e.g. "metadata/v1.metadata.json"
+   */
+  public String getMetadataFilePath()
+  {
+    return IcebergTableUtil.getMetadataFilePath(metadataLocation);
+  }
+
+  /**
+   * @return the version of the metadata file, or -1 if unknown
+   */
+  public long getMetadataVersion()
+  {
+    return IcebergTableUtil.getMetadataVersion(metadataLocation);
+  }
+
+  public String getCatalog()
+  {
+    return catalog;
+  }
+
+  public String getExternalVolume()
+  {
+    return externalVolume;
+  }
+
+  public String getBaseLocation()
+  {
+    return baseLocation;
+  }
+
+  /**
+   * @return whether the table has the Snowflake properties needed to create
+   *         it in Snowflake
+   */
+  public boolean isAbleToCreateTable()
+  {
+    return catalog != null && externalVolume != null && baseLocation != null;
+  }
+
+  /**
+   * @return a rough estimate of the memory held by the snapshot, not
+   *         counting the interned strings it shares with other snapshots
+   */
+  public long getEstimatedSizeInBytes()
+  {
+    return 48 + (metadataLocation == null ? 0 : 40 + 2L * metadataLocation.length());
+  }
+}
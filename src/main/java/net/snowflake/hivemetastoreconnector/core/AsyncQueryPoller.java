@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.google.common.base.Preconditions;
+import net.snowflake.client.core.QueryStatus;
+import net.snowflake.client.jdbc.SnowflakeResultSet;
+import net.snowflake.client.jdbc.SnowflakeStatement;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import net.snowflake.hivemetastoreconnector.util.ConnectorMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes statements with the asynchronous query API of the Snowflake JDBC
+ * driver.
+ *
+ * A statement is submitted by a small pool of submitter threads, which
+ * borrow a connection and only wait for Snowflake to accept the query, so
+ * the calling thread never waits for a login or a connection. A single
+ * poller thread periodically checks the status of all queries in flight and
+ * completes the future of each query that finished. The statements of a
+ * command are submitted one after the other, so they still execute in
+ * order.
+ *
+ * A query keeps its connection borrowed until it completes, so that no
+ * other command uses the connection, and the pool doesn't evict it or run a
+ * keep-alive on it, while the query runs. The queries in flight are thus
+ * also bounded by the max size of the connection pool.
+ *
+ * When the maximum number of queries are in flight, further statements wait
+ * in a queue and are handed to the submitters as queries complete.
+ */
+public class AsyncQueryPoller
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  private final SnowflakeConf snowflakeConf;
+
+  private final Queue<InFlightQuery> inFlightQueries =
+      new ConcurrentLinkedQueue<>();
+
+  // Statements waiting for a free slot
+  private final Queue<PendingStatement> pendingStatements =
+      new ConcurrentLinkedQueue<>();
+
+  private final Semaphore inFlightPermits;
+
+  private final ScheduledExecutorService pollExecutor;
+
+  // Borrows connections and submits queries, so that neither the callers
+  // nor the poller wait for them
+  private final ExecutorService submitExecutor;
+
+  private final Counter submittedCounter;
+
+  private final Counter succeededCounter;
+
+  private final Counter failedCounter;
+
+  /**
+   * Constructor for the poller
+   * @param snowflakeConf the configuration for Snowflake Hive metastore
+   *                      listener
+   */
+  public AsyncQueryPoller(SnowflakeConf snowflakeConf)
+  {
+    this.snowflakeConf = Preconditions.checkNotNull(snowflakeConf);
+    int maxInFlight = snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_ASYNC_QUERIES_MAX_IN_FLIGHT.getVarname(), 500);
+    long pollIntervalMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_ASYNC_QUERIES_POLL_INTERVAL_MILLISECONDS.getVarname(),
+        500);
+    Preconditions.checkArgument(maxInFlight > 0);
+    Preconditions.checkArgument(pollIntervalMillis > 0);
+    this.inFlightPermits = new Semaphore(maxInFlight);
+
+    this.submittedCounter = ConnectorMetrics.counter("async-queries.submitted");
+    this.succeededCounter = ConnectorMetrics.counter("async-queries.succeeded");
+    this.failedCounter = ConnectorMetrics.counter("async-queries.failed");
+    ConnectorMetrics.gauge("async-queries.in-flight",
+                           (Gauge<Integer>) inFlightQueries::size);
+    ConnectorMetrics.gauge("async-queries.pending",
+                           (Gauge<Integer>) pendingStatements::size);
+
+    this.pollExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+    {
+      Thread thread = new Thread(runnable, "snowflake-async-query-poller");
+      thread.setDaemon(true);
+      return thread;
+    });
+    pollExecutor.scheduleWithFixedDelay(this::poll, pollIntervalMillis,
+                                        pollIntervalMillis, TimeUnit.MILLISECONDS);
+    int submitterCount = Math.min(maxInFlight, snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CLIENT_THREAD_COUNT.getVarname(), 8));
+    this.submitExecutor = Executors.newFixedThreadPool(
+        Math.max(1, submitterCount), runnable ->
+        {
+          Thread thread = new Thread(runnable, "snowflake-async-query-submitter");
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * Stops polling. Called once no query is in flight.
+   */
+  public void shutdown()
+  {
+    pollExecutor.shutdown();
+    submitExecutor.shutdown();
+  }
+
+  /**
+   * Submits the statements of a command. Only the first statement is
+   * submitted right away, each following statement is submitted once the
+   * previous one succeeds.
+   * @param schema the Snowflake schema of the statements
+   * @param statements the statements of the command
+   * @return a future of the outcome of each statement, completed
+   *         exceptionally with the first failure
+   */
+  public CompletableFuture<List<StatementOutcome>> submit(String schema,
+                                                         List<String> statements)
+  {
+    Preconditions.checkNotNull(statements);
+    List<StatementOutcome> outcomes = new ArrayList<>(statements.size());
+    CompletableFuture<Void> result = CompletableFuture.completedFuture(null);
+    for (String statement : statements)
+    {
+      result = result
+          .thenCompose(ignored -> submitStatement(schema, statement))
+          .thenAccept(outcomes::add);
+    }
+    return result.thenApply(ignored -> outcomes);
+  }
+
+  private CompletableFuture<StatementOutcome> submitStatement(String schema,
+                                                              String sql)
+  {
+    PendingStatement pending = new PendingStatement(schema, sql);
+    if (inFlightPermits.tryAcquire())
+    {
+      startAsync(pending);
+    }
+    else
+    {
+      pendingStatements.add(pending);
+    }
+    return pending.future;
+  }
+
+  /**
+   * Helper method that hands a statement to the submitters. Must be called
+   * with an in-flight permit.
+   * @param pending the statement to send
+   */
+  private void startAsync(PendingStatement pending)
+  {
+    try
+    {
+      submitExecutor.execute(() -> start(pending));
+    }
+    catch (RejectedExecutionException e)
+    {
+      inFlightPermits.release();
+      failedCounter.inc();
+      pending.future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Helper method that sends a statement to Snowflake without waiting for it
+   * to finish. Must be called with an in-flight permit. The connection stays
+   * borrowed until the query completes.
+   * @param pending the statement to send
+   */
+  private void start(PendingStatement pending)
+  {
+    SnowflakeConnectionPool.PooledConnection pooled = null;
+    Connection connection = null;
+    Statement statement = null;
+    try
+    {
+      // Failures are retried by the scheduler, not while holding a slot
+      RetryPolicy noRetries =
+          SnowflakeClient.getRetryPolicy(snowflakeConf).withoutRetries();
+      if (snowflakeConf.getBoolean(
+          SnowflakeConf.ConfVars.SNOWFLAKE_CONNECTION_POOL_ENABLED.getVarname(), true))
+      {
+        pooled = SnowflakeClient.retry(
+            () -> SnowflakeClient.getConnectionPool(snowflakeConf,
+                                                    pending.schema).borrow(),
+            noRetries);
+        connection = pooled.getConnection();
+      }
+      else
+      {
+        connection = SnowflakeClient.retry(
+            () -> SnowflakeClient.getConnection(snowflakeConf, pending.schema),
+            noRetries);
+      }
+
+      // The statement stays open until the query completes
+      statement = connection.createStatement();
+      log.info("Submitting command: " + pending.sql);
+      ResultSet resultSet = statement.unwrap(SnowflakeStatement.class)
+          .executeAsyncQuery(pending.sql);
+      InFlightQuery query = new InFlightQuery(
+          pending, pooled, connection, statement,
+          resultSet.unwrap(SnowflakeResultSet.class));
+      submittedCounter.inc();
+      log.info("Submitted query " + query.queryId);
+      inFlightQueries.add(query);
+    }
+    catch (Throwable t)
+    {
+      if (statement != null)
+      {
+        closeQuietly(statement);
+      }
+      release(pooled, connection, true);
+      inFlightPermits.release();
+      failedCounter.inc();
+      pending.future.completeExceptionally(t);
+    }
+  }
+
+  /**
+   * Helper method that returns the connection of a query to the pool, or
+   * closes it if pooling is disabled
+   * @param pooled the borrowed connection, null if pooling is disabled
+   * @param connection the connection, null if none was opened
+   * @param suspect whether the connection may be broken
+   */
+  private static void release(SnowflakeConnectionPool.PooledConnection pooled,
+                              Connection connection,
+                              boolean suspect)
+  {
+    if (pooled != null)
+    {
+      if (suspect)
+      {
+        pooled.markSuspect();
+      }
+      pooled.close();
+    }
+    else if (connection != null)
+    {
+      try
+      {
+        connection.close();
+      }
+      catch (SQLException e)
+      {
+        log.warn("Error closing connection: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Helper method run periodically. Checks the status of every query in
+   * flight, then submits waiting statements into the freed slots.
+   */
+  private void poll()
+  {
+    try
+    {
+      Iterator<InFlightQuery> iterator = inFlightQueries.iterator();
+      while (iterator.hasNext())
+      {
+        InFlightQuery query = iterator.next();
+        Throwable error = null;
+        try
+        {
+          QueryStatus status = query.resultSet.getStatus();
+          if (QueryStatus.isStillRunning(status))
+          {
+            continue;
+          }
+          if (QueryStatus.isAnError(status))
+          {
+            error = new SQLException(
+                String.format("Query %s failed: %s", query.queryId,
+                              status.getErrorMessage()),
+                null, status.getErrorCode());
+          }
+        }
+        catch (Throwable t)
+        {
+          error = t;
+        }
+
+        iterator.remove();
+        closeQuietly(query.statement);
+        release(query.pooled, query.connection, error != null);
+        inFlightPermits.release();
+        long elapsedMillis = System.currentTimeMillis() - query.submittedMillis;
+        if (error == null)
+        {
+          succeededCounter.inc();
+          StatementOutcome outcome = StatementOutcome.succeeded(
+              query.pending.sql, query.queryId, elapsedMillis,
+              StatementOutcome.UNKNOWN_ROW_COUNT);
+          log.info("Command executed: " + outcome);
+          query.pending.future.complete(outcome);
+        }
+        else
+        {
+          log.error("Async query failed: " + error + " " + new StatementOutcome(
+              query.pending.sql, query.queryId, StatementOutcome.Status.FAILED,
+              elapsedMillis, StatementOutcome.UNKNOWN_ROW_COUNT, null));
+          failedCounter.inc();
+          query.pending.future.completeExceptionally(error);
+        }
+      }
+
+      PendingStatement pending;
+      while (!pendingStatements.isEmpty() && inFlightPermits.tryAcquire())
+      {
+        pending = pendingStatements.poll();
+        if (pending == null)
+        {
+          inFlightPermits.release();
+          break;
+        }
+        startAsync(pending);
+      }
+    }
+    catch (Throwable t)
+    {
+      log.error("Error polling async queries: " + t);
+    }
+  }
+
+  private static void closeQuietly(Statement statement)
+  {
+    try
+    {
+      statement.close();
+    }
+    catch (SQLException e)
+    {
+      log.warn("Error closing statement: " + e.getMessage());
+    }
+  }
+
+  /**
+   * A statement that has not been submitted yet
+   */
+  private static class PendingStatement
+  {
+    private final String schema;
+
+    private final String sql;
+
+    private final CompletableFuture<StatementOutcome> future =
+        new CompletableFuture<>();
+
+    PendingStatement(String schema, String sql)
+    {
+      this.schema = schema;
+      this.sql = sql;
+    }
+  }
+
+  /**
+   * A statement that was submitted and has not completed yet
+   */
+  private static class InFlightQuery
+  {
+    private final PendingStatement pending;
+
+    // Null if pooling is disabled
+    private final SnowflakeConnectionPool.PooledConnection pooled;
+
+    private final Connection connection;
+
+    private final Statement statement;
+
+    private final SnowflakeResultSet resultSet;
+
+    private final String queryId;
+
+    private final long submittedMillis = System.currentTimeMillis();
+
+    InFlightQuery(PendingStatement pending,
+                  SnowflakeConnectionPool.PooledConnection pooled,
+                  Connection connection, Statement statement,
+                  SnowflakeResultSet resultSet) throws SQLException
+    {
+      this.pending = pending;
+      this.pooled = pooled;
+      this.connection = connection;
+      this.statement = statement;
+      this.resultSet = resultSet;
+      this.queryId = resultSet.getQueryID();
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A credential provider that caches the credentials of another provider.
+ *
+ * Cached credentials expire after a TTL. A refresh interval after each
+ * fetch, they are refreshed in the background while the previous
+ * credentials continue to be served, so fetching credentials is normally never on the event path. If a
+ * background refresh fails, the previous credentials are kept until they
+ * expire. Concurrent requests for credentials that are not cached result in
+ * a single fetch.
+ */
+public class CachingCredentialProvider implements CredentialProvider
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  // The cache only ever holds a single entry
+  private static final String KEY = "credentials";
+
+  private final CredentialProvider delegate;
+
+  private final long ttlMillis;
+
+  private final long refreshIntervalMillis;
+
+  private final ScheduledExecutorService refreshExecutor =
+      Executors.newSingleThreadScheduledExecutor(runnable ->
+      {
+        Thread thread = new Thread(runnable, "snowflake-credential-refresh");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private volatile LoadingCache<String, SnowflakeCredentials> cache;
+
+  // The next background refresh, guarded by this
+  private ScheduledFuture<?> nextRefresh;
+
+  /**
+   * Constructor for the caching provider
+   * @param delegate the provider that fetches the credentials
+   * @param ttlMillis the time after which cached credentials expire
+   * @param refreshIntervalMillis the time after which cached credentials are
+   *                              refreshed in the background, should be
+   *                              less than the TTL
+   */
+  public CachingCredentialProvider(CredentialProvider delegate,
+                                   long ttlMillis,
+                                   long refreshIntervalMillis)
+  {
+    Preconditions.checkArgument(ttlMillis > 0);
+    Preconditions.checkArgument(refreshIntervalMillis > 0);
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.ttlMillis = ttlMillis;
+    this.refreshIntervalMillis = refreshIntervalMillis;
+  }
+
+  @Override
+  public void initialize(SnowflakeConf snowflakeConf)
+  {
+    delegate.initialize(snowflakeConf);
+    this.cache = CacheBuilder.newBuilder()
+        .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+        .build(CacheLoader.asyncReloading(
+            new CacheLoader<String, SnowflakeCredentials>()
+            {
+              @ParametersAreNonnullByDefault
+              public SnowflakeCredentials load(String key) throws Exception
+              {
+                log.info("Fetching Snowflake credentials");
+                try
+                {
+                  return delegate.getCredentials();
+                }
+                finally
+                {
+                  scheduleRefresh();
+                }
+              }
+            },
+            refreshExecutor));
+  }
+
+  /**
+   * Helper method that schedules a refresh a refresh interval from now,
+   * replacing the one scheduled before. The cache keeps serving the old
+   * value while the new one is fetched, and if the fetch fails, in which
+   * case the failed fetch schedules the next attempt.
+   */
+  private synchronized void scheduleRefresh()
+  {
+    if (nextRefresh != null)
+    {
+      nextRefresh.cancel(false);
+    }
+    nextRefresh = refreshExecutor.schedule(
+        () ->
+        {
+          if (cache.getIfPresent(KEY) != null)
+          {
+            cache.refresh(KEY);
+          }
+        },
+        refreshIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public SnowflakeCredentials getCredentials() throws Exception
+  {
+    Preconditions.checkState(cache != null,
+                             "The credential provider is not initialized");
+    try
+    {
+      return cache.get(KEY);
+    }
+    catch (ExecutionException | UncheckedExecutionException e)
+    {
+      // Surface the exception of the delegate
+      if (e.getCause() instanceof Exception)
+      {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void invalidate()
+  {
+    log.info("Invalidating cached Snowflake credentials");
+    if (cache != null)
+    {
+      cache.invalidate(KEY);
+    }
+    delegate.invalidate();
+  }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.google.common.base.Preconditions;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import net.snowflake.hivemetastoreconnector.util.ConnectorMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending commands to a Snowflake account while it appears to be
+ * unavailable.
+ *
+ * The breaker is closed while Snowflake is healthy. It keeps the outcomes of
+ * the most recent commands, and trips open when the fraction of failures
+ * among them reaches a threshold. While open, no permits are handed out, so
+ * commands wait in their queues instead of failing one after the other.
+ * A lightweight probe is sent after the open duration, which doubles every
+ * time the probe fails.
+ *
+ * When a probe succeeds, the breaker is half-open: only a few commands are
+ * let through at a time. The breaker closes once enough of them succeed and
+ * opens again if one fails, so that recovery does not start with every
+ * waiting command being sent at once.
+ */
+public class CircuitBreaker
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  // Shared by all circuit breakers, only runs the probes
+  private static final ScheduledExecutorService probeExecutor =
+      Executors.newSingleThreadScheduledExecutor(runnable ->
+      {
+        Thread thread = new Thread(runnable, "snowflake-circuit-breaker");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  public enum State
+  {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  /**
+   * Helper interface that represents a probe of the availability of
+   * Snowflake. The probe fails by throwing.
+   */
+  @FunctionalInterface
+  public interface Probe
+  {
+    void run() throws Exception;
+  }
+
+  /**
+   * A permission to send a command. The outcome of the command must be
+   * reported with the permit.
+   */
+  public static class Permit
+  {
+    // The number of times the breaker changed state when the permit was given
+    private final long generation;
+
+    private Permit(long generation)
+    {
+      this.generation = generation;
+    }
+  }
+
+  private final String name;
+
+  private final Probe probe;
+
+  private final int windowSize;
+
+  private final int minimumCalls;
+
+  private final double failureRateThreshold;
+
+  private final long openDurationMillis;
+
+  private final long maxOpenDurationMillis;
+
+  private final int halfOpenPermits;
+
+  // The following are guarded by this
+
+  private State state = State.CLOSED;
+
+  private long generation = 0;
+
+  // Ring buffer of the outcomes of the most recent commands
+  private final boolean[] failures;
+
+  private int recordedCalls = 0;
+
+  private int recordedFailures = 0;
+
+  private int nextIndex = 0;
+
+  private long currentOpenDurationMillis;
+
+  private int halfOpenInFlight = 0;
+
+  private int halfOpenSuccesses = 0;
+
+  private final Queue<CompletableFuture<Permit>> waiters = new ArrayDeque<>();
+
+  private final Counter tripCounter;
+
+  private final Counter probeFailureCounter;
+
+  /**
+   * Constructor for the circuit breaker
+   * @param name the name of the breaker, used for metrics
+   * @param snowflakeConf the configuration for Snowflake Hive metastore
+   *                      listener
+   * @param probe checks whether Snowflake is available again
+   */
+  public CircuitBreaker(String name, SnowflakeConf snowflakeConf, Probe probe)
+  {
+    this.name = Preconditions.checkNotNull(name);
+    this.probe = Preconditions.checkNotNull(probe);
+    this.windowSize = snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CIRCUIT_BREAKER_WINDOW_SIZE.getVarname(), 20);
+    this.minimumCalls = Math.min(windowSize, snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CIRCUIT_BREAKER_MINIMUM_CALLS.getVarname(), 10));
+    this.failureRateThreshold = snowflakeConf.getDouble(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD.getVarname(),
+        0.5);
+    this.openDurationMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CIRCUIT_BREAKER_OPEN_DURATION_MILLISECONDS.getVarname(),
+        5000);
+    this.maxOpenDurationMillis = Math.max(openDurationMillis, snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CIRCUIT_BREAKER_MAX_OPEN_DURATION_MILLISECONDS.getVarname(),
+        60000));
+    this.halfOpenPermits = snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CIRCUIT_BREAKER_HALF_OPEN_PERMITS.getVarname(), 3);
+    Preconditions.checkArgument(windowSize > 0);
+    Preconditions.checkArgument(minimumCalls > 0);
+    Preconditions.checkArgument(failureRateThreshold > 0 && failureRateThreshold <= 1);
+    Preconditions.checkArgument(openDurationMillis > 0);
+    Preconditions.checkArgument(halfOpenPermits > 0);
+    this.failures = new boolean[windowSize];
+    this.currentOpenDurationMillis = openDurationMillis;
+
+    String prefix = ConnectorMetrics.name("circuit-breaker", name);
+    this.tripCounter = ConnectorMetrics.counter(ConnectorMetrics.name(prefix, "trips"));
+    this.probeFailureCounter =
+        ConnectorMetrics.counter(ConnectorMetrics.name(prefix, "probe-failures"));
+    ConnectorMetrics.gauge(ConnectorMetrics.name(prefix, "state"),
+                           (Gauge<Integer>) () -> getState().ordinal());
+    ConnectorMetrics.gauge(ConnectorMetrics.name(prefix, "waiting"),
+                           (Gauge<Integer>) this::getWaitingCount);
+    ConnectorMetrics.gauge(ConnectorMetrics.name(prefix, "failure-rate"),
+                           (Gauge<Double>) this::getFailureRate);
+  }
+
+  /**
+   * Asks for permission to send a command
+   * @return a future of the permit, completed right away while the breaker
+   *         is closed, or once the breaker lets the command through
+   */
+  public synchronized CompletableFuture<Permit> acquire()
+  {
+    if (state == State.CLOSED)
+    {
+      return CompletableFuture.completedFuture(new Permit(generation));
+    }
+    if (state == State.HALF_OPEN && halfOpenInFlight < halfOpenPermits)
+    {
+      halfOpenInFlight++;
+      return CompletableFuture.completedFuture(new Permit(generation));
+    }
+    CompletableFuture<Permit> waiter = new CompletableFuture<>();
+    waiters.add(waiter);
+    return waiter;
+  }
+
+  /**
+   * Reports the outcome of a command. Failures that are not caused by the
+   * availability of Snowflake, e.g. compilation errors, should be reported
+   * as successes.
+   * @param permit the permit the command was sent with
+   * @param succeeded whether the command succeeded
+   */
+  public void record(Permit permit, boolean succeeded)
+  {
+    List<CompletableFuture<Permit>> released = new ArrayList<>();
+    Permit releasedPermit;
+    synchronized (this)
+    {
+      // Ignore outcomes of commands sent before the last change of state
+      if (permit.generation != generation)
+      {
+        return;
+      }
+
+      if (state == State.CLOSED)
+      {
+        recordClosed(succeeded);
+      }
+      else if (state == State.HALF_OPEN)
+      {
+        halfOpenInFlight--;
+        if (!succeeded)
+        {
+          trip();
+        }
+        else if (++halfOpenSuccesses >= halfOpenPermits)
+        {
+          log.info(String.format("Circuit breaker %s closed", name));
+          setState(State.CLOSED);
+          currentOpenDurationMillis = openDurationMillis;
+          released.addAll(waiters);
+          waiters.clear();
+        }
+        else
+        {
+          releaseHalfOpenLocked(released);
+        }
+      }
+      releasedPermit = new Permit(generation);
+    }
+
+    completeAll(released, releasedPermit);
+  }
+
+  /**
+   * Gives back a permit whose command was not sent, e.g. because no
+   * connection was free, without recording an outcome
+   * @param permit the permit
+   */
+  public void release(Permit permit)
+  {
+    List<CompletableFuture<Permit>> released = new ArrayList<>();
+    Permit releasedPermit;
+    synchronized (this)
+    {
+      if (permit.generation != generation || state != State.HALF_OPEN)
+      {
+        return;
+      }
+      halfOpenInFlight--;
+      releaseHalfOpenLocked(released);
+      releasedPermit = new Permit(generation);
+    }
+
+    completeAll(released, releasedPermit);
+  }
+
+  private void recordClosed(boolean succeeded)
+  {
+    if (recordedCalls == windowSize && failures[nextIndex])
+    {
+      recordedFailures--;
+    }
+    failures[nextIndex] = !succeeded;
+    nextIndex = (nextIndex + 1) % windowSize;
+    recordedCalls = Math.min(windowSize, recordedCalls + 1);
+    if (!succeeded)
+    {
+      recordedFailures++;
+    }
+
+    if (recordedCalls >= minimumCalls
+        && recordedFailures >= failureRateThreshold * recordedCalls)
+    {
+      trip();
+    }
+  }
+
+  /**
+   * Helper method that opens the breaker and schedules a probe. Must be
+   * called while holding the lock.
+   */
+  private void trip()
+  {
+    log.warn(String.format("Circuit breaker %s opened, probing again in %sms",
+                           name, currentOpenDurationMillis));
+    tripCounter.inc();
+    setState(State.OPEN);
+    probeExecutor.schedule(this::probe, currentOpenDurationMillis,
+                           TimeUnit.MILLISECONDS);
+  }
+
+  private void setState(State newState)
+  {
+    state = newState;
+    generation++;
+    recordedCalls = 0;
+    recordedFailures = 0;
+    nextIndex = 0;
+    halfOpenInFlight = 0;
+    halfOpenSuccesses = 0;
+  }
+
+  /**
+   * Helper method run on the probe thread while the breaker is open
+   */
+  private void probe()
+  {
+    boolean succeeded;
+    try
+    {
+      probe.run();
+      succeeded = true;
+    }
+    catch (Throwable t)
+    {
+      log.warn(String.format("Circuit breaker %s probe failed: %s", name, t));
+      probeFailureCounter.inc();
+      succeeded = false;
+    }
+
+    List<CompletableFuture<Permit>> released = new ArrayList<>();
+    Permit releasedPermit;
+    synchronized (this)
+    {
+      if (state != State.OPEN)
+      {
+        return;
+      }
+      if (succeeded)
+      {
+        log.info(String.format("Circuit breaker %s half-open", name));
+        setState(State.HALF_OPEN);
+        releaseHalfOpenLocked(released);
+        if (halfOpenInFlight == 0)
+        {
+          // Nothing is waiting to confirm the recovery
+          setState(State.CLOSED);
+          currentOpenDurationMillis = openDurationMillis;
+        }
+      }
+      else
+      {
+        currentOpenDurationMillis =
+            Math.min(maxOpenDurationMillis, currentOpenDurationMillis * 2);
+        probeExecutor.schedule(this::probe, currentOpenDurationMillis,
+                               TimeUnit.MILLISECONDS);
+      }
+      releasedPermit = new Permit(generation);
+    }
+
+    completeAll(released, releasedPermit);
+  }
+
+  /**
+   * Helper method that lets waiting commands through while half-open. Must
+   * be called while holding the lock.
+   * @param released collects the waiters to complete once the lock is
+   *                 released
+   */
+  private void releaseHalfOpenLocked(List<CompletableFuture<Permit>> released)
+  {
+    while (halfOpenInFlight < halfOpenPermits && !waiters.isEmpty())
+    {
+      halfOpenInFlight++;
+      released.add(waiters.poll());
+    }
+  }
+
+  private static void completeAll(List<CompletableFuture<Permit>> released,
+                                  Permit permit)
+  {
+    // Completing a waiter may run its command, so don't hold the lock
+    released.forEach(waiter -> waiter.complete(permit));
+  }
+
+  public synchronized State getState()
+  {
+    return state;
+  }
+
+  public synchronized int getWaitingCount()
+  {
+    return waiters.size();
+  }
+
+  public synchronized double getFailureRate()
+  {
+    return recordedCalls == 0 ? 0 : (double) recordedFailures / recordedCalls;
+  }
+}
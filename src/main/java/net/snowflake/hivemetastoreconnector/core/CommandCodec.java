@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import net.snowflake.hivemetastoreconnector.commands.Command;
+import net.snowflake.hivemetastoreconnector.commands.PregeneratedCommand;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes commands to a compact binary form, to keep them outside of the
+ * heap. A command is stored as its generated statements:
+ *
+ *   version (byte), flags (byte), table version (long), database, table,
+ *   statement count (int), statements
+ *
+ * where strings are stored as their UTF-8 length (int) and bytes, and a
+ * null string has length -1. Commands encoded before the table version
+ * was added (version 1) are still read.
+ */
+public class CommandCodec
+{
+  private static final byte VERSION = 2;
+
+  private static final byte FLAG_REFRESH = 1;
+
+  /**
+   * Encodes a command
+   * @param command the command
+   * @return the encoded command
+   * @throws Exception thrown when the statements of the command could not be
+   *                   generated
+   */
+  public static byte[] encode(Command command) throws Exception
+  {
+    PregeneratedCommand pregenerated = PregeneratedCommand.of(command);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(VERSION);
+    out.writeByte(pregenerated.isRefresh() ? FLAG_REFRESH : 0);
+    out.writeLong(pregenerated.getVersion());
+    writeString(out, pregenerated.getDatabaseName());
+    writeString(out, pregenerated.getTableName());
+    List<String> statements = pregenerated.generateSqlQueries();
+    out.writeInt(statements.size());
+    for (String statement : statements)
+    {
+      writeString(out, statement);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes a command
+   * @param encoded the encoded command
+   * @return the command
+   * @throws IOException thrown when the command is corrupt
+   */
+  public static PregeneratedCommand decode(byte[] encoded) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+    byte version = in.readByte();
+    if (version != 1 && version != VERSION)
+    {
+      throw new IOException("Unknown command encoding version " + version);
+    }
+    byte flags = in.readByte();
+    long tableVersion = version == 1 ? Command.NO_VERSION : in.readLong();
+    String databaseName = readString(in);
+    String tableName = readString(in);
+    int count = in.readInt();
+    if (count < 0)
+    {
+      throw new IOException("Invalid statement count " + count);
+    }
+    List<String> statements = new ArrayList<>(count);
+    for (int i = 0; i < count; i++)
+    {
+      statements.add(readString(in));
+    }
+    return new PregeneratedCommand(databaseName, tableName,
+                                   (flags & FLAG_REFRESH) != 0, tableVersion,
+                                   statements);
+  }
+
+  private static void writeString(DataOutputStream out, String str)
+      throws IOException
+  {
+    if (str == null)
+    {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] utf8 = str.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(utf8.length);
+    out.write(utf8);
+  }
+
+  private static String readString(DataInputStream in) throws IOException
+  {
+    int length = in.readInt();
+    if (length < 0)
+    {
+      return null;
+    }
+    byte[] utf8 = new byte[length];
+    in.readFully(utf8);
+    return new String(utf8, StandardCharsets.UTF_8);
+  }
+}
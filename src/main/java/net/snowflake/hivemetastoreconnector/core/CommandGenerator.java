@@ -8,7 +8,9 @@ import net.snowflake.hivemetastoreconnector.commands.Command;
 import net.snowflake.hivemetastoreconnector.commands.CreateIcebergTable;
 import net.snowflake.hivemetastoreconnector.commands.DropIcebergTable;
 import net.snowflake.hivemetastoreconnector.commands.AlterIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.TableSnapshot;
 import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import org.apache.hadoop.hive.metastore.api.Table;
 import org.apache.hadoop.hive.metastore.events.AddPartitionEvent;
 import org.apache.hadoop.hive.metastore.events.AlterPartitionEvent;
 import org.apache.hadoop.hive.metastore.events.AlterTableEvent;
@@ -37,7 +39,8 @@ public class CommandGenerator
    * @param event - the event passed from the hive metastore
    * @param snowflakeConf - the configuration for Snowflake Hive metastore
    *                        listener
-   * @return a command corresponding to the command to be executed
+   * @return a command corresponding to the command to be executed, or null
+   *         if the event needs nothing in Snowflake
    */
   public static Command getIcebergCommand(ListenerEvent event,
                                    SnowflakeConf snowflakeConf)
@@ -58,7 +61,14 @@ public class CommandGenerator
     else if (event instanceof AlterTableEvent)
     {
       iceberglog.info("Generating Alter Table command");
-      command = new AlterIcebergTable((AlterTableEvent)event, snowflakeConf);
+      AlterTableEvent alterTableEvent = (AlterTableEvent)event;
+      command = getAlterCommand(alterTableEvent.getOldTable(),
+                                alterTableEvent.getNewTable(),
+                                snowflakeConf);
+      if (command == null)
+      {
+        return null;
+      }
     }
     try {
       iceberglog.info("command:" + command.generateSqlQueries());
@@ -67,4 +77,28 @@ public class CommandGenerator
     }
     return command;
   }
-}
\ No newline at end of file
+
+  /**
+   * Creates the command for an altered table, from the table before and
+   * after the alter
+   * @param oldTable the table before the alter
+   * @param newTable the table after the alter
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @return the command, or null if the alter needs nothing in Snowflake
+   */
+  public static Command getAlterCommand(Table oldTable, Table newTable,
+                                        SnowflakeConf snowflakeConf)
+  {
+    AlterIcebergTable command = new AlterIcebergTable(
+        TableSnapshot.of(oldTable), TableSnapshot.of(newTable), snowflakeConf);
+    if (command.getChange().isEmpty())
+    {
+      // Statistics, comments, owners and the like don't matter to Snowflake
+      iceberglog.info("Nothing to change in Snowflake, skipping");
+      return null;
+    }
+    iceberglog.info("Change detected: " + command.getChange());
+    return command;
+  }
+}
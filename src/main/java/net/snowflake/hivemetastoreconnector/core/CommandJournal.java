@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.google.common.base.Preconditions;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import net.snowflake.hivemetastoreconnector.commands.Command;
+import net.snowflake.hivemetastoreconnector.commands.PregeneratedCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the commands queued by the scheduler, so that
+ * they survive a restart of the metastore.
+ *
+ * The journal is a sequence of memory-mapped segment files. A queued
+ * command is appended as a record, and a record acknowledging it is
+ * appended once the command is done. A segment is deleted once it and all
+ * older segments hold no unacknowledged command. Records are written to the
+ * mapped pages, which survive a crash of the process, and a background
+ * thread forces them to disk every sync interval, so that appends waiting
+ * for durability share a single sync.
+ *
+ * Each record is laid out as:
+ *
+ *   length (int), CRC32 of the rest of the record (int), sequence (long),
+ *   type (byte), payload
+ *
+ * where the payload of a command is its encoding by {@link CommandCodec},
+ * and a record of length 0 ends the segment.
+ */
+public class CommandJournal implements Closeable
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  private static final int MAGIC = 0x534e4a4c;
+
+  private static final int VERSION = 1;
+
+  private static final int SEGMENT_HEADER_SIZE = 8;
+
+  private static final int RECORD_HEADER_SIZE = 17;
+
+  private static final byte TYPE_COMMAND = 1;
+
+  private static final byte TYPE_ACK = 2;
+
+  private static final String SEGMENT_PREFIX = "journal-";
+
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /**
+   * A memory-mapped segment file
+   */
+  private static class Segment
+  {
+    private final File file;
+
+    private final RandomAccessFile raf;
+
+    private final MappedByteBuffer buffer;
+
+    // The number of commands in the segment not acknowledged yet
+    private int liveCommands = 0;
+
+    Segment(File file, long size) throws IOException
+    {
+      this.file = file;
+      this.raf = new RandomAccessFile(file, "rw");
+      raf.setLength(size);
+      this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.putInt(MAGIC);
+      buffer.putInt(VERSION);
+    }
+
+    void close() throws IOException
+    {
+      raf.close();
+    }
+  }
+
+  private final File directory;
+
+  private final long segmentSize;
+
+  private final boolean syncOnAppend;
+
+  private final RandomAccessFile lockFile;
+
+  private final FileLock lock;
+
+  // Segments holding unacknowledged commands, oldest first. The last one is
+  // appended to. Guarded by this.
+  private final Deque<Segment> segments = new ArrayDeque<>();
+
+  // The segment of each unacknowledged command. Guarded by this.
+  private final Map<Long, Segment> liveCommands = new HashMap<>();
+
+  // Guarded by this
+  private long nextSequence;
+
+  // Guarded by this
+  private long appendedSequence;
+
+  // Guarded by this
+  private long syncedSequence;
+
+  // Guarded by this
+  private boolean closed = false;
+
+  // Unacknowledged commands of a previous run, and their segment files
+  private final List<PregeneratedCommand> recoveredCommands;
+
+  private final List<File> recoveredFiles;
+
+  private final ScheduledExecutorService syncer;
+
+  /**
+   * Opens the journal in a directory, reading back the commands that were
+   * not acknowledged before
+   * @param directory the directory of the segment files
+   * @param segmentSize the size of a segment file, in bytes
+   * @param syncIntervalMillis the time between syncs of the journal to disk
+   * @param syncOnAppend whether appending waits for the command to be
+   *                     synced to disk
+   * @throws IOException thrown when the journal could not be opened
+   */
+  public CommandJournal(File directory, long segmentSize,
+                        long syncIntervalMillis, boolean syncOnAppend)
+      throws IOException
+  {
+    Preconditions.checkArgument(segmentSize > SEGMENT_HEADER_SIZE);
+    Preconditions.checkArgument(syncIntervalMillis > 0);
+    if (!directory.isDirectory() && !directory.mkdirs())
+    {
+      throw new IOException("Could not create journal directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.syncOnAppend = syncOnAppend;
+
+    // Only one metastore may use the journal
+    this.lockFile = new RandomAccessFile(new File(directory, "journal.lock"), "rw");
+    this.lock = lockFile.getChannel().tryLock();
+    if (lock == null)
+    {
+      lockFile.close();
+      throw new IOException("The journal is used by another process: " + directory);
+    }
+
+    this.recoveredFiles = listSegmentFiles();
+    Map<Long, PregeneratedCommand> unacknowledged = new LinkedHashMap<>();
+    long lastSequence = 0;
+    for (File file : recoveredFiles)
+    {
+      lastSequence = Math.max(lastSequence, readSegment(file, unacknowledged));
+    }
+    this.recoveredCommands = new ArrayList<>(unacknowledged.values());
+    this.nextSequence = lastSequence + 1;
+    this.appendedSequence = lastSequence;
+    this.syncedSequence = lastSequence;
+    segments.add(newSegment(nextSequence, SEGMENT_HEADER_SIZE));
+
+    this.syncer = Executors.newSingleThreadScheduledExecutor(runnable ->
+    {
+      Thread thread = new Thread(runnable, "snowflake-journal-sync");
+      thread.setDaemon(true);
+      return thread;
+    });
+    syncer.scheduleWithFixedDelay(this::sync, syncIntervalMillis,
+                                  syncIntervalMillis, TimeUnit.MILLISECONDS);
+
+    log.info(String.format("Opened journal %s, recovered %s commands",
+                           directory, recoveredCommands.size()));
+  }
+
+  /**
+   * @return the commands of a previous run that were not acknowledged, in
+   *         the order they were appended
+   */
+  public List<PregeneratedCommand> getRecoveredCommands()
+  {
+    return recoveredCommands;
+  }
+
+  /**
+   * Deletes the segments of a previous run. Called once the recovered
+   * commands are appended again.
+   */
+  public void deleteRecoveredSegments()
+  {
+    // The commands appended again must be on disk first
+    sync();
+    synchronized (this)
+    {
+      for (File file : recoveredFiles)
+      {
+        if (!file.delete())
+        {
+          log.warn("Could not delete journal segment " + file);
+        }
+      }
+      recoveredFiles.clear();
+    }
+  }
+
+  /**
+   * Appends a command
+   * @param command the command
+   * @return the sequence number of the command, to acknowledge it with
+   * @throws Exception thrown when the command could not be encoded or
+   *                   written
+   */
+  public long append(Command command) throws Exception
+  {
+    byte[] payload = CommandCodec.encode(command);
+    long sequence;
+    synchronized (this)
+    {
+      Preconditions.checkState(!closed, "The journal is closed");
+      sequence = nextSequence++;
+      Segment segment = write(sequence, TYPE_COMMAND, payload);
+      segment.liveCommands++;
+      liveCommands.put(sequence, segment);
+    }
+
+    if (syncOnAppend)
+    {
+      awaitSync(sequence);
+    }
+    return sequence;
+  }
+
+  /**
+   * Acknowledges a command, so that it isn't recovered after a restart
+   * @param sequence the sequence number of the command
+   */
+  public synchronized void acknowledge(long sequence)
+  {
+    Segment segment = liveCommands.remove(sequence);
+    if (segment == null || closed)
+    {
+      return;
+    }
+    segment.liveCommands--;
+
+    try
+    {
+      // Losing an acknowledgement only means the command is sent again
+      write(nextSequence++, TYPE_ACK,
+            ByteBuffer.allocate(8).putLong(sequence).array());
+    }
+    catch (IOException e)
+    {
+      log.warn("Could not write to the journal: " + e);
+    }
+    compact();
+  }
+
+  /**
+   * @return the number of commands not acknowledged yet
+   */
+  public synchronized int getLiveCommandCount()
+  {
+    return liveCommands.size();
+  }
+
+  /**
+   * @return the number of segment files in use
+   */
+  public synchronized int getSegmentCount()
+  {
+    return segments.size() + recoveredFiles.size();
+  }
+
+  /**
+   * Syncs the journal to disk and closes it. Unacknowledged commands are
+   * recovered the next time the journal is opened.
+   */
+  @Override
+  public void close() throws IOException
+  {
+    syncer.shutdown();
+    sync();
+    synchronized (this)
+    {
+      closed = true;
+      for (Segment segment : segments)
+      {
+        segment.close();
+      }
+      segments.clear();
+      notifyAll();
+    }
+    lock.release();
+    lockFile.close();
+  }
+
+  /**
+   * Helper method that writes a record to the active segment, starting a
+   * new segment if the record doesn't fit
+   */
+  private Segment write(long sequence, byte type, byte[] payload)
+      throws IOException
+  {
+    int length = RECORD_HEADER_SIZE + payload.length;
+    Segment segment = segments.getLast();
+    // Keep room for the record ending the segment
+    if (segment.buffer.remaining() < length + 4)
+    {
+      segment = newSegment(sequence, length + 4);
+      segments.add(segment);
+    }
+
+    CRC32 crc = new CRC32();
+    ByteBuffer body = ByteBuffer.allocate(9 + payload.length);
+    body.putLong(sequence).put(type).put(payload);
+    crc.update(body.array());
+
+    segment.buffer.putInt(length);
+    segment.buffer.putInt((int) crc.getValue());
+    segment.buffer.put(body.array());
+    appendedSequence = sequence;
+    return segment;
+  }
+
+  /**
+   * Helper method that deletes the oldest segments once none of their
+   * commands are waiting for an acknowledgement
+   */
+  private void compact()
+  {
+    while (segments.size() > 1 && segments.getFirst().liveCommands == 0)
+    {
+      Segment segment = segments.removeFirst();
+      try
+      {
+        segment.close();
+      }
+      catch (IOException e)
+      {
+        log.warn("Could not close journal segment " + segment.file + ": " + e);
+      }
+      if (!segment.file.delete())
+      {
+        log.warn("Could not delete journal segment " + segment.file);
+      }
+    }
+  }
+
+  /**
+   * Helper method that creates a segment, named after the first sequence
+   * number written to it so that segments sort in the order they were written
+   */
+  private Segment newSegment(long firstSequence, long minimumSize)
+      throws IOException
+  {
+    File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX,
+                                                  firstSequence, SEGMENT_SUFFIX));
+    return new Segment(file, Math.max(segmentSize, minimumSize + SEGMENT_HEADER_SIZE));
+  }
+
+  /**
+   * Helper method that forces the appended records to disk, and wakes up
+   * the appends waiting for them
+   */
+  private void sync()
+  {
+    List<MappedByteBuffer> buffers = new ArrayList<>();
+    long sequence;
+    synchronized (this)
+    {
+      if (closed || syncedSequence >= appendedSequence)
+      {
+        return;
+      }
+      sequence = appendedSequence;
+      for (Segment segment : segments)
+      {
+        buffers.add(segment.buffer);
+      }
+    }
+
+    try
+    {
+      for (MappedByteBuffer buffer : buffers)
+      {
+        buffer.force();
+      }
+    }
+    catch (RuntimeException e)
+    {
+      // A segment deleted meanwhile doesn't need syncing
+      log.debug("Could not sync a journal segment: " + e);
+    }
+
+    synchronized (this)
+    {
+      syncedSequence = Math.max(syncedSequence, sequence);
+      notifyAll();
+    }
+  }
+
+  private synchronized void awaitSync(long sequence) throws InterruptedException
+  {
+    while (syncedSequence < sequence && !closed)
+    {
+      wait();
+    }
+  }
+
+  private List<File> listSegmentFiles()
+  {
+    File[] files = directory.listFiles(
+        file -> file.getName().startsWith(SEGMENT_PREFIX)
+            && file.getName().endsWith(SEGMENT_SUFFIX));
+    List<File> sorted = new ArrayList<>();
+    if (files != null)
+    {
+      sorted.addAll(Arrays.asList(files));
+    }
+    sorted.sort((a, b) -> a.getName().compareTo(b.getName()));
+    return sorted;
+  }
+
+  /**
+   * Helper method that reads the records of a segment file of a previous
+   * run, stopping at the first incomplete or corrupt record
+   * @param file the segment file
+   * @param unacknowledged the commands not acknowledged yet, by sequence
+   * @return the highest sequence number read
+   */
+  private static long readSegment(File file,
+                                  Map<Long, PregeneratedCommand> unacknowledged)
+      throws IOException
+  {
+    long lastSequence = 0;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+    {
+      MappedByteBuffer buffer = raf.getChannel().map(
+          FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (buffer.remaining() < SEGMENT_HEADER_SIZE
+          || buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+      {
+        log.warn("Skipping invalid journal segment " + file);
+        return 0;
+      }
+
+      while (buffer.remaining() >= RECORD_HEADER_SIZE)
+      {
+        int length = buffer.getInt();
+        if (length < RECORD_HEADER_SIZE || length - 4 > buffer.remaining())
+        {
+          break;
+        }
+        int checksum = buffer.getInt();
+        byte[] body = new byte[length - 8];
+        buffer.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != checksum)
+        {
+          log.warn("Found a corrupt record in journal segment " + file);
+          break;
+        }
+
+        ByteBuffer record = ByteBuffer.wrap(body);
+        long sequence = record.getLong();
+        byte type = record.get();
+        lastSequence = Math.max(lastSequence, sequence);
+        if (type == TYPE_COMMAND)
+        {
+          byte[] payload = new byte[record.remaining()];
+          record.get(payload);
+          unacknowledged.put(sequence, CommandCodec.decode(payload));
+        }
+        else if (type == TYPE_ACK)
+        {
+          unacknowledged.remove(record.getLong());
+        }
+      }
+    }
+    return lastSequence;
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import net.snowflake.hivemetastoreconnector.util.ConnectorMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Limits the number of commands sent to Snowflake at once, adapting the
+ * limit to how Snowflake responds.
+ *
+ * The limit follows additive increase, multiplicative decrease: while
+ * commands are fast and the limit is in use, it grows by about one each
+ * time a limit's worth of commands completes. When a command takes much
+ * longer than the baseline latency, or fails with an error that may go
+ * away, Snowflake is taken to be queueing our statements and the limit is
+ * cut by the backoff ratio. The limit is cut at most once per baseline
+ * latency, so that the commands in flight when Snowflake slows down don't
+ * each cut it again.
+ *
+ * The baseline is the lowest latency seen over the current and previous
+ * windows of commands, so that it follows the load of Snowflake through the
+ * day. Refreshes are much cheaper than creating a table, so each has its
+ * own baseline.
+ */
+public class ConcurrencyLimiter
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  // The number of commands the lowest latency is measured over
+  private static final int BASELINE_WINDOW = 100;
+
+  /**
+   * A permission to send a command. The outcome of the command must be
+   * reported with the permit.
+   */
+  public static class Permit
+  {
+    private final long startNanos = System.nanoTime();
+
+    private Permit()
+    {
+    }
+  }
+
+  private final int minLimit;
+
+  private final int maxLimit;
+
+  private final double backoffRatio;
+
+  private final double latencyTolerance;
+
+  // The following are guarded by this
+
+  private double limit;
+
+  private int inFlight = 0;
+
+  // The lowest latency of the previous and current windows, for refreshes
+  // and for other commands
+  private final long[] previousWindowMinNanos = {Long.MAX_VALUE, Long.MAX_VALUE};
+
+  private final long[] windowMinNanos = {Long.MAX_VALUE, Long.MAX_VALUE};
+
+  private final int[] windowSamples = {0, 0};
+
+  // Null until the limit is first cut
+  private Long lastDecreaseNanos = null;
+
+  private final Queue<CompletableFuture<Permit>> waiters = new ArrayDeque<>();
+
+  private final Counter decreaseCounter;
+
+  /**
+   * Constructor for the limiter
+   * @param initialLimit the limit to start with
+   * @param snowflakeConf the configuration for Snowflake Hive metastore
+   *                      listener
+   */
+  public ConcurrencyLimiter(int initialLimit, SnowflakeConf snowflakeConf)
+  {
+    this.minLimit = Math.max(1, snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONCURRENCY_MIN_LIMIT.getVarname(), 1));
+    this.maxLimit = Math.max(minLimit, snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONCURRENCY_MAX_LIMIT.getVarname(),
+        4 * initialLimit));
+    this.backoffRatio = snowflakeConf.getDouble(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONCURRENCY_BACKOFF_RATIO.getVarname(), 0.9);
+    this.latencyTolerance = snowflakeConf.getDouble(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONCURRENCY_LATENCY_TOLERANCE.getVarname(), 2.0);
+    this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+
+    this.decreaseCounter = ConnectorMetrics.counter("concurrency-limit.decreases");
+    ConnectorMetrics.gauge("concurrency-limit.limit",
+                           (Gauge<Integer>) this::getLimit);
+    ConnectorMetrics.gauge("concurrency-limit.in-flight",
+                           (Gauge<Integer>) this::getInFlight);
+    ConnectorMetrics.gauge("concurrency-limit.waiting",
+                           (Gauge<Integer>) this::getWaitingCount);
+  }
+
+  /**
+   * Asks for a permission to send a command
+   * @return a future completed with a permit once the command may be sent
+   */
+  public synchronized CompletableFuture<Permit> acquire()
+  {
+    CompletableFuture<Permit> permit = new CompletableFuture<>();
+    if (waiters.isEmpty() && inFlight < getLimit())
+    {
+      inFlight++;
+      permit.complete(new Permit());
+    }
+    else
+    {
+      waiters.add(permit);
+    }
+    return permit;
+  }
+
+  /**
+   * Reports the outcome of a command, and lets waiting commands through if
+   * the limit allows
+   * @param permit the permit the command was sent with
+   * @param refresh whether the command only refreshed a table
+   * @param overloaded whether the command failed with an error that may go
+   *                   away, which is taken as a sign of overload
+   */
+  public void release(Permit permit, boolean refresh, boolean overloaded)
+  {
+    int kind = refresh ? 0 : 1;
+    long nowNanos = System.nanoTime();
+    long latencyNanos = nowNanos - permit.startNanos;
+    List<CompletableFuture<Permit>> granted = new ArrayList<>();
+    synchronized (this)
+    {
+      inFlight--;
+      // Compare with the baseline before this command counts towards it
+      long baselineNanos = Math.min(previousWindowMinNanos[kind],
+                                    windowMinNanos[kind]);
+      recordLatency(kind, latencyNanos);
+
+      boolean slow = baselineNanos != Long.MAX_VALUE
+          && latencyNanos > baselineNanos * latencyTolerance;
+      if (overloaded || slow)
+      {
+        // At most once per baseline latency
+        long interval = Math.min(baselineNanos, latencyNanos);
+        if (lastDecreaseNanos == null || nowNanos - lastDecreaseNanos >= interval)
+        {
+          double previous = limit;
+          limit = Math.max(minLimit, limit * backoffRatio);
+          lastDecreaseNanos = nowNanos;
+          decreaseCounter.inc();
+          log.debug(String.format("Concurrency limit lowered from %.1f to %.1f",
+                                  previous, limit));
+        }
+      }
+      else if (inFlight + 1 >= getLimit())
+      {
+        // Only grow a limit that is in use
+        limit = Math.min(maxLimit, limit + 1 / limit);
+      }
+
+      while (!waiters.isEmpty() && inFlight < getLimit())
+      {
+        inFlight++;
+        granted.add(waiters.poll());
+      }
+    }
+
+    // Complete outside the lock, the waiters may send their commands inline
+    granted.forEach(waiter -> waiter.complete(new Permit()));
+  }
+
+  private void recordLatency(int kind, long latencyNanos)
+  {
+    windowMinNanos[kind] = Math.min(windowMinNanos[kind], latencyNanos);
+    windowSamples[kind]++;
+    if (windowSamples[kind] >= BASELINE_WINDOW)
+    {
+      previousWindowMinNanos[kind] = windowMinNanos[kind];
+      windowMinNanos[kind] = Long.MAX_VALUE;
+      windowSamples[kind] = 0;
+    }
+  }
+
+  public synchronized int getLimit()
+  {
+    return (int) limit;
+  }
+
+  public synchronized int getInFlight()
+  {
+    return inFlight;
+  }
+
+  public synchronized int getWaitingCount()
+  {
+    return waiters.size();
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+
+/**
+ * Provides the credentials used to connect to Snowflake.
+ *
+ * Implementations are configured with
+ * snowflake.hive-metastore-listener.credential-provider and must have a
+ * public no-argument constructor. The returned credentials are cached by the
+ * connector, so implementations may do expensive work, such as fetching a
+ * secret over the network, on every call.
+ */
+public interface CredentialProvider
+{
+  /**
+   * Initializes the provider. Called once, before any credentials are
+   * requested.
+   * @param snowflakeConf the configuration for Snowflake Hive metastore
+   *                      listener
+   */
+  void initialize(SnowflakeConf snowflakeConf);
+
+  /**
+   * Fetches the credentials
+   * @return the credentials
+   * @throws Exception thrown when the credentials could not be fetched
+   */
+  SnowflakeCredentials getCredentials() throws Exception;
+
+  /**
+   * Discards any cached credentials, for example after Snowflake rejected
+   * them. The next call to getCredentials fetches fresh credentials.
+   */
+  default void invalidate()
+  {
+  }
+}
@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.google.common.base.Preconditions;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import net.snowflake.hivemetastoreconnector.commands.Command;
+import net.snowflake.hivemetastoreconnector.commands.PregeneratedCommand;
+import net.snowflake.hivemetastoreconnector.util.ConnectorMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the commands that failed after every retry on local disk, so that
+ * they can be replayed once the cause is fixed instead of resyncing every
+ * table.
+ *
+ * Each dead letter is a file named after its sequence number, holding:
+ *
+ *   magic (int), version (byte), attempts (int), first attempt time (long),
+ *   failure time (long), error, command
+ *
+ * where the error and the command, encoded by {@link CommandCodec}, are
+ * stored as their length (int) and bytes. Files are written to a temporary
+ * name and renamed, so a dead letter is either complete or absent.
+ *
+ * The store holds at most a number of dead letters, and drops the oldest
+ * to make room. A refresh that fails right after another refresh of the
+ * same table failed replaces it, as only the newest metadata file matters.
+ *
+ * Only one process may open the store at a time, as sequence numbers are
+ * assigned in memory.
+ */
+public class DeadLetterStore
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  private static final int MAGIC = 0x534e444c;
+
+  private static final byte VERSION = 1;
+
+  // Errors are kept for diagnosis, long stack traces aren't needed
+  private static final int MAX_ERROR_LENGTH = 4000;
+
+  private static final Pattern FILE_NAME =
+      Pattern.compile("dead-letter-(\\d{20})\\.bin");
+
+  /**
+   * A command that failed after every retry
+   */
+  public static class DeadLetter
+  {
+    private final long sequence;
+
+    private final PregeneratedCommand command;
+
+    private final String error;
+
+    private final int attempts;
+
+    private final long firstAttemptMillis;
+
+    private final long failedMillis;
+
+    DeadLetter(long sequence, PregeneratedCommand command, String error,
+               int attempts, long firstAttemptMillis, long failedMillis)
+    {
+      this.sequence = sequence;
+      this.command = command;
+      this.error = error;
+      this.attempts = attempts;
+      this.firstAttemptMillis = firstAttemptMillis;
+      this.failedMillis = failedMillis;
+    }
+
+    public long getSequence()
+    {
+      return sequence;
+    }
+
+    public PregeneratedCommand getCommand()
+    {
+      return command;
+    }
+
+    public String getError()
+    {
+      return error;
+    }
+
+    public int getAttempts()
+    {
+      return attempts;
+    }
+
+    public long getFirstAttemptMillis()
+    {
+      return firstAttemptMillis;
+    }
+
+    public long getFailedMillis()
+    {
+      return failedMillis;
+    }
+  }
+
+  /**
+   * What the store remembers of a dead letter without reading its file
+   */
+  private static class Header
+  {
+    private final String tableKey;
+
+    private final boolean refresh;
+
+    Header(String tableKey, boolean refresh)
+    {
+      this.tableKey = tableKey;
+      this.refresh = refresh;
+    }
+  }
+
+  private final File directory;
+
+  private final int maxEntries;
+
+  private final RandomAccessFile lockFile;
+
+  private final FileLock lock;
+
+  // The following are guarded by this
+
+  // The dead letters, by sequence number
+  private final TreeMap<Long, Header> index = new TreeMap<>();
+
+  // The sequence number of the newest dead letter of each table
+  private final Map<String, Long> newestByTable = new HashMap<>();
+
+  private long nextSequence = 0;
+
+  private final Counter addedCounter;
+
+  private final Counter evictedCounter;
+
+  /**
+   * Opens the store, creating its directory if necessary
+   * @param directory the directory of the dead letters
+   * @param maxEntries the maximum number of dead letters kept
+   * @throws IOException thrown when the directory could not be read, or
+   *                     is used by another process
+   */
+  public DeadLetterStore(File directory, int maxEntries) throws IOException
+  {
+    Preconditions.checkArgument(maxEntries > 0);
+    this.directory = directory;
+    this.maxEntries = maxEntries;
+    if (!directory.isDirectory() && !directory.mkdirs())
+    {
+      throw new IOException("Could not create the directory " + directory);
+    }
+
+    // Only one process may use the store
+    this.lockFile = new RandomAccessFile(
+        new File(directory, "dead-letters.lock"), "rw");
+    FileLock acquired;
+    try
+    {
+      acquired = lockFile.getChannel().tryLock();
+    }
+    catch (OverlappingFileLockException e)
+    {
+      // Held by this process
+      acquired = null;
+    }
+    this.lock = acquired;
+    if (lock == null)
+    {
+      lockFile.close();
+      throw new IOException("The dead letters are used by another process: " +
+                                directory);
+    }
+
+    File[] files = directory.listFiles();
+    if (files == null)
+    {
+      close();
+      throw new IOException("Could not list the directory " + directory);
+    }
+    TreeMap<Long, File> found = new TreeMap<>();
+    for (File file : files)
+    {
+      Matcher matcher = FILE_NAME.matcher(file.getName());
+      if (matcher.matches())
+      {
+        found.put(Long.parseLong(matcher.group(1)), file);
+      }
+      else if (file.getName().endsWith(".tmp"))
+      {
+        // Left by a write that didn't finish
+        Files.deleteIfExists(file.toPath());
+      }
+    }
+    for (Map.Entry<Long, File> entry : found.entrySet())
+    {
+      try
+      {
+        DeadLetter deadLetter = read(entry.getKey(), entry.getValue());
+        index(entry.getKey(), deadLetter.getCommand());
+      }
+      catch (IOException e)
+      {
+        log.error("Skipping the unreadable dead letter " + entry.getValue() +
+                      ": " + e);
+      }
+      nextSequence = entry.getKey() + 1;
+    }
+
+    this.addedCounter = ConnectorMetrics.counter("dead-letters.added");
+    this.evictedCounter = ConnectorMetrics.counter("dead-letters.evicted");
+    ConnectorMetrics.gauge("dead-letters.count", (Gauge<Integer>) this::size);
+  }
+
+  /**
+   * Adds a command that failed after every retry
+   * @param command the command
+   * @param error the last error
+   * @param attempts the number of times the command was sent
+   * @param firstAttemptMillis the time the command was first sent
+   * @return whether the dead letter was written
+   */
+  public synchronized boolean add(Command command, Throwable error,
+                                  int attempts, long firstAttemptMillis)
+  {
+    long failedMillis = System.currentTimeMillis();
+    PregeneratedCommand pregenerated;
+    byte[] encodedCommand;
+    try
+    {
+      encodedCommand = CommandCodec.encode(command);
+      pregenerated = CommandCodec.decode(encodedCommand);
+    }
+    catch (Exception e)
+    {
+      log.error(String.format("Could not keep a dead letter for %s.%s: %s",
+                              command.getDatabaseName(),
+                              command.getTableName(), e));
+      return false;
+    }
+
+    String errorText = String.valueOf(error);
+    if (errorText.length() > MAX_ERROR_LENGTH)
+    {
+      errorText = errorText.substring(0, MAX_ERROR_LENGTH);
+    }
+
+    long sequence = nextSequence++;
+    try
+    {
+      write(sequence, encodedCommand, errorText, attempts, firstAttemptMillis,
+            failedMillis);
+    }
+    catch (IOException e)
+    {
+      log.error(String.format("Could not write a dead letter for %s.%s: %s",
+                              command.getDatabaseName(),
+                              command.getTableName(), e));
+      return false;
+    }
+
+    // A refresh right after a failed refresh makes it useless
+    Long newest = newestByTable.get(getTableKey(pregenerated));
+    if (newest != null && pregenerated.isRefresh() && index.get(newest).refresh)
+    {
+      delete(newest);
+    }
+    index(sequence, pregenerated);
+    addedCounter.inc();
+
+    while (index.size() > maxEntries)
+    {
+      long oldest = index.firstKey();
+      log.warn("Too many dead letters, dropping " + getFile(oldest));
+      delete(oldest);
+      evictedCounter.inc();
+    }
+    return true;
+  }
+
+  /**
+   * Reads the dead letters, oldest first. Unreadable dead letters are
+   * skipped.
+   * @param maxCount the maximum number of dead letters to read
+   * @param beforeSequence only dead letters with a lower sequence number are
+   *                       read
+   * @return the dead letters
+   */
+  public List<DeadLetter> list(int maxCount, long beforeSequence)
+  {
+    return list(maxCount, 0, beforeSequence);
+  }
+
+  /**
+   * Reads the dead letters in a range of sequence numbers, oldest first.
+   * Unreadable dead letters are skipped.
+   * @param maxCount the maximum number of dead letters to read
+   * @param fromSequence only dead letters with this or a higher sequence
+   *                     number are read
+   * @param beforeSequence only dead letters with a lower sequence number are
+   *                       read
+   * @return the dead letters
+   */
+  public List<DeadLetter> list(int maxCount, long fromSequence,
+                               long beforeSequence)
+  {
+    List<Long> sequences;
+    synchronized (this)
+    {
+      sequences = fromSequence < beforeSequence
+          ? new ArrayList<>(index.subMap(fromSequence, beforeSequence).keySet())
+          : new ArrayList<>();
+    }
+    List<DeadLetter> deadLetters = new ArrayList<>();
+    for (long sequence : sequences)
+    {
+      if (deadLetters.size() >= maxCount)
+      {
+        break;
+      }
+      try
+      {
+        deadLetters.add(read(sequence, getFile(sequence)));
+      }
+      catch (IOException e)
+      {
+        // Removed meanwhile, or corrupt
+        log.warn("Could not read the dead letter " + getFile(sequence) +
+                     ": " + e);
+      }
+    }
+    return deadLetters;
+  }
+
+  /**
+   * Removes a dead letter, for example once it is replayed
+   * @param deadLetter the dead letter
+   */
+  public synchronized void remove(DeadLetter deadLetter)
+  {
+    if (index.containsKey(deadLetter.getSequence()))
+    {
+      delete(deadLetter.getSequence());
+    }
+  }
+
+  /**
+   * @return the sequence number the next dead letter will have
+   */
+  public synchronized long getNextSequence()
+  {
+    return nextSequence;
+  }
+
+  /**
+   * @return the number of dead letters
+   */
+  public synchronized int size()
+  {
+    return index.size();
+  }
+
+  /**
+   * Releases the store for other processes. The dead letters are kept.
+   * @throws IOException thrown when the lock could not be released
+   */
+  public synchronized void close() throws IOException
+  {
+    if (lock.isValid())
+    {
+      lock.release();
+    }
+    lockFile.close();
+  }
+
+  private void index(long sequence, Command command)
+  {
+    index.put(sequence, new Header(getTableKey(command), command.isRefresh()));
+    newestByTable.put(getTableKey(command), sequence);
+  }
+
+  private void delete(long sequence)
+  {
+    Header header = index.remove(sequence);
+    if (header != null
+        && Long.valueOf(sequence).equals(newestByTable.get(header.tableKey)))
+    {
+      newestByTable.remove(header.tableKey);
+    }
+    File file = getFile(sequence);
+    if (!file.delete() && file.exists())
+    {
+      log.warn("Could not delete the dead letter " + file);
+    }
+  }
+
+  private static String getTableKey(Command command)
+  {
+    return (command.getDatabaseName() + "." + command.getTableName()).toLowerCase();
+  }
+
+  private File getFile(long sequence)
+  {
+    return new File(directory, String.format("dead-letter-%020d.bin", sequence));
+  }
+
+  private void write(long sequence, byte[] encodedCommand, String error,
+                     int attempts, long firstAttemptMillis, long failedMillis)
+      throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        encodedCommand.length + error.length() + 64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    out.writeInt(attempts);
+    out.writeLong(firstAttemptMillis);
+    out.writeLong(failedMillis);
+    byte[] errorBytes = error.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(errorBytes.length);
+    out.write(errorBytes);
+    out.writeInt(encodedCommand.length);
+    out.write(encodedCommand);
+    out.flush();
+
+    File file = getFile(sequence);
+    File temporary = new File(directory, file.getName() + ".tmp");
+    try (FileOutputStream stream = new FileOutputStream(temporary))
+    {
+      stream.write(bytes.toByteArray());
+      stream.getFD().sync();
+    }
+    Files.move(temporary.toPath(), file.toPath(),
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static DeadLetter read(long sequence, File file) throws IOException
+  {
+    try (DataInputStream in = new DataInputStream(
+        new ByteArrayInputStream(Files.readAllBytes(file.toPath()))))
+    {
+      if (in.readInt() != MAGIC)
+      {
+        throw new IOException("Not a dead letter");
+      }
+      byte version = in.readByte();
+      if (version != VERSION)
+      {
+        throw new IOException("Unknown dead letter version " + version);
+      }
+      int attempts = in.readInt();
+      long firstAttemptMillis = in.readLong();
+      long failedMillis = in.readLong();
+      String error = new String(readBytes(in), StandardCharsets.UTF_8);
+      PregeneratedCommand command = CommandCodec.decode(readBytes(in));
+      return new DeadLetter(sequence, command, error, attempts,
+                            firstAttemptMillis, failedMillis);
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException
+  {
+    int length = in.readInt();
+    if (length < 0)
+    {
+      throw new IOException("Invalid length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+
+/**
+ * Command line tool that lists or replays the commands that failed after
+ * every retry. It reads the Snowflake configuration of the metastore, and
+ * should run on the host of the metastore so that it finds the dead letter
+ * directory.
+ *
+ * Usage:
+ *   list [max count]    prints the dead letters, oldest first
+ *   replay [max count]  sends the dead letters again, in batches and under
+ *                       the configured rate limits, and waits for them
+ *
+ * Dead letters that fail again are kept for a later replay.
+ *
+ * The dead letters can only be opened by one process at a time, so the
+ * metastore, or its Snowflake listener, must be stopped first.
+ */
+public class DeadLetterTool
+{
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 1 || args.length > 2
+        || !(args[0].equals("list") || args[0].equals("replay")))
+    {
+      System.err.println("Usage: DeadLetterTool (list|replay) [max count]");
+      System.exit(2);
+    }
+    int maxCount = args.length > 1 ? Integer.parseInt(args[1]) : Integer.MAX_VALUE;
+
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.setBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_DEAD_LETTER_ENABLED.getVarname(), true);
+    // The journal, the handoff file and the table registry file belong to
+    // the metastore
+    snowflakeConf.setBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_JOURNAL_ENABLED.getVarname(), false);
+    snowflakeConf.unset(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SHUTDOWN_HANDOFF_FILE.getVarname());
+    snowflakeConf.unset(
+        SnowflakeConf.ConfVars.SNOWFLAKE_TABLE_REGISTRY_FILE.getVarname());
+    // Wait for every replayed command, failures become dead letters again
+    snowflakeConf.setLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SHUTDOWN_DRAIN_TIMEOUT_MILLISECONDS.getVarname(),
+        Long.MAX_VALUE / 4);
+
+    if (args[0].equals("list"))
+    {
+      DeadLetterStore store = openStore(snowflakeConf);
+      for (DeadLetterStore.DeadLetter deadLetter
+          : store.list(maxCount, store.getNextSequence()))
+      {
+        System.out.println(String.format(
+            "%s\t%s.%s\tattempts=%s\tfirst=%s\tfailed=%s\t%s",
+            deadLetter.getSequence(),
+            deadLetter.getCommand().getDatabaseName(),
+            deadLetter.getCommand().getTableName(),
+            deadLetter.getAttempts(),
+            Instant.ofEpochMilli(deadLetter.getFirstAttemptMillis()),
+            Instant.ofEpochMilli(deadLetter.getFailedMillis()),
+            deadLetter.getError().replace('\n', ' ')));
+      }
+      System.out.println(store.size() + " dead letters");
+      store.close();
+      return;
+    }
+
+    // Fails early if the metastore holds the dead letters
+    openStore(snowflakeConf).close();
+
+    int replayed = SnowflakeClient.replayDeadLetters(snowflakeConf, maxCount);
+    boolean drained = SnowflakeClient.shutdown(snowflakeConf);
+    System.out.println(String.format("Replayed %s dead letters, %s", replayed,
+                                     drained ? "all were sent"
+                                         : "some were not sent in time"));
+    System.exit(drained ? 0 : 1);
+  }
+
+  private static DeadLetterStore openStore(SnowflakeConf snowflakeConf)
+  {
+    File directory = new File(snowflakeConf.get(
+        SnowflakeConf.ConfVars.SNOWFLAKE_DEAD_LETTER_DIRECTORY.getVarname(),
+        new File(System.getProperty("java.io.tmpdir"),
+                 "snowflake-hive-metastore-dead-letters").getPath()));
+    try
+    {
+      return new DeadLetterStore(directory, Integer.MAX_VALUE);
+    }
+    catch (IOException e)
+    {
+      System.err.println("Could not open the dead letters, stop the " +
+                             "metastore first: " + e.getMessage());
+      System.exit(1);
+      return null;
+    }
+  }
+}
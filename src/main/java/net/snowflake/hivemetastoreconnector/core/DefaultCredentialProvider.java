@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.google.common.base.Preconditions;
+import net.snowflake.client.jdbc.internal.apache.commons.codec.binary.Base64;
+import net.snowflake.client.jdbc.internal.org.bouncycastle.jce.provider.BouncyCastleProvider;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import org.apache.hadoop.hive.ql.secrets.SecretSource;
+
+import java.net.URI;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+
+/**
+ * The default credential provider. Reads the password and private key from
+ * Hadoop credential providers or the configuration. If no password is
+ * configured, the password is fetched from the configured secret source
+ * (AWS Secrets Manager by default).
+ */
+public class DefaultCredentialProvider implements CredentialProvider
+{
+  static
+  {
+    // Only needs to be registered once per JVM
+    Security.addProvider(new BouncyCastleProvider());
+  }
+
+  private SnowflakeConf snowflakeConf;
+
+  @Override
+  public void initialize(SnowflakeConf snowflakeConf)
+  {
+    this.snowflakeConf = Preconditions.checkNotNull(snowflakeConf);
+  }
+
+  @Override
+  public SnowflakeCredentials getCredentials() throws Exception
+  {
+    Preconditions.checkState(snowflakeConf != null,
+                             "The credential provider is not initialized");
+
+    // JDBC password
+    String password = snowflakeConf.getSecret(
+        SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_PASSWORD.getVarname());
+    if (password == null && snowflakeConf.get(
+        SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_SECRETURL.getVarname()) != null)
+    {
+      password = getJDBCPasswordFromSecretSource(snowflakeConf);
+    }
+
+    // JDBC private key
+    PrivateKey privateKey = null;
+    String privateKeyConf = snowflakeConf.getSecret(
+        SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_PRIVATE_KEY.getVarname());
+    if (privateKeyConf != null)
+    {
+      try
+      {
+        byte[] keyBytes = Base64.decodeBase64(privateKeyConf);
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(keyBytes);
+        privateKey = keyFactory.generatePrivate(keySpec);
+      }
+      catch (InvalidKeySpecException | NoSuchAlgorithmException e)
+      {
+        throw new IllegalArgumentException(
+            String.format("Private key is invalid: %s", e), e);
+      }
+    }
+
+    return new SnowflakeCredentials(password, privateKey);
+  }
+
+  private static String getJDBCPasswordFromSecretSource(SnowflakeConf snowflakeConf) throws Exception{
+    String secretSourceClass =  snowflakeConf.get(SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_SECRETSOURCE.getVarname(),
+            "org.apache.hadoop.hive.ql.secrets.AWSSecretsManagerSecretSource");
+    SecretSource source = (SecretSource) Class.forName(secretSourceClass).newInstance();
+    URI secretName = new URI(snowflakeConf.get(SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_SECRETURL.getVarname()));
+    return source.getSecret(secretName);
+  }
+}
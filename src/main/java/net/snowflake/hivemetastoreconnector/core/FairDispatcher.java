@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.google.common.base.Preconditions;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Decides which table is processed next, so that databases share the
+ * workers fairly.
+ *
+ * Each database gets a share of the commands sent to Snowflake in
+ * proportion to its weight, using deficit round robin: when a database
+ * comes up in the round robin, it is credited a quantum of commands times
+ * its weight, and its tables keep getting turns while it has credit left.
+ * Each turn is charged for the commands it processed, so a database of
+ * weight 3 gets three times the turns of a database of weight 1 when their
+ * tables process one coalesced refresh per turn. A table may process up to
+ * the credit of its database in a turn. A database that overspent, through
+ * turns running at once, sits out rounds until its credit is positive
+ * again.
+ *
+ * Tables waiting for a turn are in one of two lanes. Tables whose next
+ * command creates, replaces or drops a table go first, but a table in the
+ * lane of refreshes is let through after a number of consecutive turns of
+ * the priority lane, so that refreshes aren't starved.
+ *
+ * A database may also be capped to a number of tables processed at once, so
+ * that it can't take every worker.
+ */
+public class FairDispatcher
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  private static final int PRIORITY_LANE = 0;
+
+  private static final int NORMAL_LANE = 1;
+
+  /**
+   * A turn of a table to process commands
+   */
+  public interface Turn
+  {
+    /**
+     * Processes commands of the table
+     * @param budget the maximum number of commands to process
+     * @return a future completed with the number of commands processed
+     */
+    CompletableFuture<Integer> run(int budget);
+  }
+
+  /**
+   * The scheduling state of a database
+   */
+  private static class Tenant
+  {
+    private final int weight;
+
+    private final int maxConcurrency;
+
+    // The turns waiting, per lane
+    private final List<ArrayDeque<Turn>> lanes = new ArrayList<>();
+
+    // The number of turns running
+    private int running = 0;
+
+    // The number of commands the database may still process this round
+    private long deficit = 0;
+
+    // Whether the database was credited since it last came up in the round
+    // robin, so that it goes to the back once its credit is used
+    private boolean credited = false;
+
+    Tenant(int weight, int maxConcurrency)
+    {
+      this.weight = weight;
+      this.maxConcurrency = maxConcurrency;
+      lanes.add(new ArrayDeque<>());
+      lanes.add(new ArrayDeque<>());
+    }
+
+    boolean isIdle()
+    {
+      return running == 0 && lanes.get(PRIORITY_LANE).isEmpty()
+          && lanes.get(NORMAL_LANE).isEmpty();
+    }
+  }
+
+  private final Executor executor;
+
+  private final int maxRunning;
+
+  private final int quantum;
+
+  private final int priorityRatio;
+
+  private final Map<String, Integer> weights;
+
+  private final Map<String, Integer> maxConcurrencies;
+
+  private final int defaultMaxConcurrency;
+
+  // Guarded by this
+  private final Map<String, Tenant> tenants = new HashMap<>();
+
+  // The databases with turns waiting, in round robin order, per lane.
+  // Guarded by this.
+  private final List<ArrayDeque<Tenant>> activeTenants = new ArrayList<>();
+
+  // Guarded by this
+  private int running = 0;
+
+  // Guarded by this
+  private int waiting = 0;
+
+  // The number of consecutive turns of the priority lane while the other
+  // lane was waiting. Guarded by this.
+  private int priorityStreak = 0;
+
+  /**
+   * Constructor for the dispatcher
+   * @param executor the executor to start turns on
+   * @param maxRunning the maximum number of turns running at once
+   * @param snowflakeConf The configuration for Snowflake Hive metastore
+   *                      listener
+   */
+  public FairDispatcher(Executor executor, int maxRunning,
+                        SnowflakeConf snowflakeConf)
+  {
+    Preconditions.checkArgument(maxRunning > 0);
+    this.executor = Preconditions.checkNotNull(executor);
+    this.maxRunning = maxRunning;
+    this.quantum = Math.max(1, snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SCHEDULING_QUANTUM.getVarname(), 10));
+    this.priorityRatio = Math.max(1, snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SCHEDULING_PRIORITY_RATIO.getVarname(), 4));
+    this.weights = parseDatabaseValues(snowflakeConf.getTrimmedStringCollection(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SCHEDULING_DATABASE_WEIGHTS.getVarname()));
+    this.maxConcurrencies = parseDatabaseValues(snowflakeConf.getTrimmedStringCollection(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SCHEDULING_DATABASE_MAX_CONCURRENCY.getVarname()));
+    this.defaultMaxConcurrency = snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SCHEDULING_DEFAULT_MAX_CONCURRENCY.getVarname(),
+        maxRunning);
+    activeTenants.add(new ArrayDeque<>());
+    activeTenants.add(new ArrayDeque<>());
+  }
+
+  /**
+   * Queues a turn of a table, and starts it once its database is due
+   * @param databaseName the database of the table
+   * @param priority whether the next command of the table creates, replaces
+   *                 or drops a table
+   * @param turn the turn
+   */
+  public void submit(String databaseName, boolean priority, Turn turn)
+  {
+    synchronized (this)
+    {
+      Tenant tenant = tenants.computeIfAbsent(
+          databaseName.toLowerCase(),
+          name -> new Tenant(Math.max(1, weights.getOrDefault(name, 1)),
+                             Math.max(1, maxConcurrencies.getOrDefault(
+                                 name, defaultMaxConcurrency))));
+      int lane = priority ? PRIORITY_LANE : NORMAL_LANE;
+      ArrayDeque<Turn> turns = tenant.lanes.get(lane);
+      if (turns.isEmpty())
+      {
+        activeTenants.get(lane).addLast(tenant);
+      }
+      turns.addLast(turn);
+      waiting++;
+    }
+    dispatch();
+  }
+
+  /**
+   * @return the number of turns waiting to start
+   */
+  public synchronized int getWaitingCount()
+  {
+    return waiting;
+  }
+
+  /**
+   * @return the number of turns running
+   */
+  public synchronized int getRunningCount()
+  {
+    return running;
+  }
+
+  /**
+   * Helper method that starts as many turns as allowed
+   */
+  private void dispatch()
+  {
+    List<Runnable> started = new ArrayList<>();
+    synchronized (this)
+    {
+      while (running < maxRunning)
+      {
+        boolean normalFirst = priorityStreak >= priorityRatio;
+        int lane = normalFirst ? NORMAL_LANE : PRIORITY_LANE;
+        Tenant tenant = nextTenant(lane);
+        if (tenant == null)
+        {
+          lane = normalFirst ? PRIORITY_LANE : NORMAL_LANE;
+          tenant = nextTenant(lane);
+        }
+        if (tenant == null)
+        {
+          break;
+        }
+
+        if (lane == NORMAL_LANE)
+        {
+          priorityStreak = 0;
+        }
+        else if (!activeTenants.get(NORMAL_LANE).isEmpty())
+        {
+          priorityStreak++;
+        }
+
+        // The database stays at the head of the lane while it has credit
+        ArrayDeque<Turn> turns = tenant.lanes.get(lane);
+        Turn turn = turns.pollFirst();
+        if (turns.isEmpty())
+        {
+          // Its visit is over, it is credited again when it comes back
+          activeTenants.get(lane).pollFirst();
+          tenant.credited = false;
+        }
+
+        // The turn is charged a command now, and the rest once it's done
+        int budget = (int) Math.min(Integer.MAX_VALUE, tenant.deficit);
+        tenant.deficit--;
+        tenant.running++;
+        running++;
+        waiting--;
+        Tenant dispatched = tenant;
+        started.add(() -> start(dispatched, turn, budget));
+      }
+    }
+    started.forEach(executor::execute);
+  }
+
+  /**
+   * Helper method that finds the next database of a lane with credit and
+   * below its concurrency cap, in round robin order, and leaves it at the
+   * head of the lane. A database is credited when it comes up, and goes to
+   * the back once its credit is used.
+   */
+  private Tenant nextTenant(int lane)
+  {
+    ArrayDeque<Tenant> active = activeTenants.get(lane);
+    // Each database may be passed over once for its credit and once more
+    // after being credited
+    for (int i = 2 * active.size() + 1; i > 0 && !active.isEmpty(); i--)
+    {
+      Tenant tenant = active.peekFirst();
+      if (tenant.running < tenant.maxConcurrency)
+      {
+        if (tenant.deficit > 0)
+        {
+          return tenant;
+        }
+        if (!tenant.credited)
+        {
+          tenant.deficit += (long) quantum * tenant.weight;
+          tenant.credited = true;
+          if (tenant.deficit > 0)
+          {
+            return tenant;
+          }
+        }
+        tenant.credited = false;
+      }
+      active.addLast(active.pollFirst());
+    }
+    return null;
+  }
+
+  private void start(Tenant tenant, Turn turn, int budget)
+  {
+    CompletableFuture<Integer> result;
+    try
+    {
+      result = turn.run(budget);
+    }
+    catch (Throwable t)
+    {
+      result = new CompletableFuture<>();
+      result.completeExceptionally(t);
+    }
+
+    result.whenComplete((used, t) ->
+    {
+      if (t != null)
+      {
+        log.error("Error processing a table: " + t);
+      }
+      synchronized (this)
+      {
+        tenant.running--;
+        running--;
+        // The turn was charged a command when it started
+        tenant.deficit -= (used == null ? 1 : Math.min(used, budget)) - 1;
+        // An idle database doesn't keep credit for later
+        if (tenant.isIdle())
+        {
+          tenant.deficit = 0;
+          tenant.credited = false;
+        }
+      }
+      dispatch();
+    });
+  }
+
+  /**
+   * Helper method that parses a list of "database:value" pairs
+   */
+  private static Map<String, Integer> parseDatabaseValues(Collection<String> pairs)
+  {
+    Map<String, Integer> values = new HashMap<>();
+    for (String pair : pairs)
+    {
+      int separator = pair.lastIndexOf(':');
+      Preconditions.checkArgument(separator > 0,
+                                  "Expected database:value, got " + pair);
+      values.put(pair.substring(0, separator).trim().toLowerCase(),
+                 Integer.parseInt(pair.substring(separator + 1).trim()));
+    }
+    return values;
+  }
+}
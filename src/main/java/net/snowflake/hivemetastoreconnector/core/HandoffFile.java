@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import net.snowflake.hivemetastoreconnector.commands.Command;
+import net.snowflake.hivemetastoreconnector.commands.PregeneratedCommand;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A file holding the commands that were still queued when the metastore
+ * shut down, so that the next start sends them instead of a full resync.
+ *
+ * Each command is stored as its length (int) and its encoding by
+ * {@link CommandCodec}. Commands are appended, so that commands arriving
+ * while the metastore shuts down are kept as well.
+ */
+public class HandoffFile
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  /**
+   * Appends commands to the file, and syncs it to disk
+   * @param file the file
+   * @param commands the commands, in the order they should be sent
+   * @return the number of commands written. Commands whose statements could
+   *         not be generated are skipped.
+   * @throws IOException thrown when the file could not be written
+   */
+  public static int append(File file, List<? extends Command> commands)
+      throws IOException
+  {
+    int written = 0;
+    try (FileOutputStream stream = new FileOutputStream(file, true))
+    {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+      for (Command command : commands)
+      {
+        byte[] encoded;
+        try
+        {
+          encoded = CommandCodec.encode(command);
+        }
+        catch (Exception e)
+        {
+          log.error(String.format("Could not hand off a command for %s.%s: %s",
+                                  command.getDatabaseName(),
+                                  command.getTableName(), e));
+          continue;
+        }
+        out.writeInt(encoded.length);
+        out.write(encoded);
+        written++;
+      }
+      out.flush();
+      stream.getFD().sync();
+    }
+    return written;
+  }
+
+  /**
+   * Reads the commands of the file, stopping at an incomplete command
+   * @param file the file
+   * @return the commands, in the order they were written
+   * @throws IOException thrown when the file could not be read
+   */
+  public static List<PregeneratedCommand> read(File file) throws IOException
+  {
+    List<PregeneratedCommand> commands = new ArrayList<>();
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file))))
+    {
+      while (true)
+      {
+        byte[] encoded;
+        try
+        {
+          int length = in.readInt();
+          if (length < 0)
+          {
+            throw new IOException("Invalid command length " + length);
+          }
+          encoded = new byte[length];
+          in.readFully(encoded);
+        }
+        catch (EOFException e)
+        {
+          break;
+        }
+        commands.add(CommandCodec.decode(encoded));
+      }
+    }
+    return commands;
+  }
+}
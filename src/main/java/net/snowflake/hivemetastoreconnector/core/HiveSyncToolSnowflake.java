@@ -0,0 +1,562 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import net.snowflake.hivemetastoreconnector.commands.Command;
+import net.snowflake.hivemetastoreconnector.commands.CreateIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.DropIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.RefreshIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.TableSnapshot;
+import net.snowflake.hivemetastoreconnector.util.HiveToSnowflakeSchema;
+import net.snowflake.hivemetastoreconnector.util.StringUtil;
+import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.metastore.conf.MetastoreConf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line tool that brings the Iceberg tables of Snowflake in line
+ * with the tables of the metastore, for example after the listener was
+ * down or to set up an account.
+ *
+ * Databases are reconciled in parallel. For each one, the tables of Hive
+ * are read in bulk, the Iceberg tables of the matching Snowflake schema are
+ * listed with a few SHOW statements, and only the differences are sent:
+ *
+ *   - tables missing from Snowflake are created
+ *   - tables whose metadata location changed since they were last synced
+ *     are refreshed
+ *   - tables of Snowflake missing from Hive are dropped, if enabled
+ *
+ * Commands go through the same queues as the listener, so they are
+ * batched, rate limited and retried as configured. The progress is kept in
+ * a {@link SyncCheckpoint}: an interrupted run skips the databases it
+ * finished, and the next run doesn't refresh tables that didn't change.
+ * Tables are recorded once their command is applied, and databases once
+ * every command of theirs is, as commands are sent in the background.
+ *
+ * The same table rules as the listener apply.
+ */
+public class HiveSyncToolSnowflake
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  // The number of tables read from the metastore at a time
+  private static final int TABLE_BATCH_SIZE = 500;
+
+  // The number of rows SHOW returns at most
+  private static final int SHOW_PAGE_SIZE = 10000;
+
+  /**
+   * Creates clients of the metastore. Clients aren't thread-safe, so each
+   * thread of the tool uses its own.
+   */
+  public interface MetaStoreClientFactory
+  {
+    IMetaStoreClient create() throws Exception;
+  }
+
+  /**
+   * Receives the commands to send
+   */
+  public interface CommandSink
+  {
+    /**
+     * @param command the command
+     * @return a future completed with whether the command was applied. It
+     *         may never complete, if the command is dropped.
+     */
+    CompletableFuture<Boolean> accept(Command command) throws Exception;
+  }
+
+  /**
+   * Lists the Iceberg tables of a Snowflake schema
+   */
+  public interface SnowflakeTableLister
+  {
+    /**
+     * @param schema the Snowflake schema
+     * @return the lowercase names of its Iceberg tables
+     */
+    Set<String> list(String schema) throws Exception;
+  }
+
+  /**
+   * What a run did
+   */
+  public static class Result
+  {
+    private final AtomicLong databases = new AtomicLong();
+
+    private final AtomicLong created = new AtomicLong();
+
+    private final AtomicLong refreshed = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong upToDate = new AtomicLong();
+
+    private final AtomicLong notCreatable = new AtomicLong();
+
+    private final AtomicLong pendingCommands = new AtomicLong();
+
+    private final AtomicLong failedCommands = new AtomicLong();
+
+    private final ConcurrentLinkedQueue<String> failedDatabases =
+        new ConcurrentLinkedQueue<>();
+
+    public long getDatabases()
+    {
+      return databases.get();
+    }
+
+    public long getCreated()
+    {
+      return created.get();
+    }
+
+    public long getRefreshed()
+    {
+      return refreshed.get();
+    }
+
+    public long getDropped()
+    {
+      return dropped.get();
+    }
+
+    public long getUpToDate()
+    {
+      return upToDate.get();
+    }
+
+    /**
+     * @return the number of tables missing from Snowflake that can't be
+     *         created, as they lack the Snowflake properties
+     */
+    public long getNotCreatable()
+    {
+      return notCreatable.get();
+    }
+
+    /**
+     * @return the number of commands sent that are not done yet
+     */
+    public long getPendingCommands()
+    {
+      return pendingCommands.get();
+    }
+
+    /**
+     * @return the number of commands that failed after every retry
+     */
+    public long getFailedCommands()
+    {
+      return failedCommands.get();
+    }
+
+    public List<String> getFailedDatabases()
+    {
+      return new ArrayList<>(failedDatabases);
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("databases=%s created=%s refreshed=%s dropped=%s " +
+                               "upToDate=%s notCreatable=%s pending=%s " +
+                               "failedCommands=%s failed=%s",
+                           databases, created, refreshed, dropped, upToDate,
+                           notCreatable, pendingCommands, failedCommands,
+                           failedDatabases);
+    }
+  }
+
+  private final MetaStoreClientFactory clientFactory;
+
+  private final SnowflakeTableLister snowflakeLister;
+
+  private final CommandSink sink;
+
+  private final SnowflakeConf snowflakeConf;
+
+  private final TableFilter tableFilter;
+
+  private final int parallelism;
+
+  private final boolean dropOrphans;
+
+  /**
+   * Constructor for the tool
+   * @param clientFactory creates the clients of the metastore
+   * @param snowflakeLister lists the Iceberg tables of Snowflake
+   * @param sink receives the commands to send
+   * @param snowflakeConf The configuration for Snowflake Hive metastore
+   *                      listener
+   */
+  public HiveSyncToolSnowflake(MetaStoreClientFactory clientFactory,
+                               SnowflakeTableLister snowflakeLister,
+                               CommandSink sink,
+                               SnowflakeConf snowflakeConf)
+  {
+    this.clientFactory = Preconditions.checkNotNull(clientFactory);
+    this.snowflakeLister = Preconditions.checkNotNull(snowflakeLister);
+    this.sink = Preconditions.checkNotNull(sink);
+    this.snowflakeConf = Preconditions.checkNotNull(snowflakeConf);
+    this.tableFilter = TableFilter.fromConf(snowflakeConf);
+    this.parallelism = Math.max(1, snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SYNC_PARALLELISM.getVarname(), 16));
+    this.dropOrphans = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SYNC_DROP_ORPHANS.getVarname(), false);
+  }
+
+  /**
+   * Reconciles every database, resuming from the checkpoint. The commands
+   * may still be sent in the background when this returns, the run is
+   * ended with {@link #end} once they are done.
+   * @param checkpoint the progress of the sync
+   * @return what the run did
+   * @throws Exception thrown when the databases could not be listed
+   */
+  public Result run(SyncCheckpoint checkpoint) throws Exception
+  {
+    Result result = new Result();
+    List<IMetaStoreClient> clients = new ArrayList<>();
+    ThreadLocal<IMetaStoreClient> threadClient = ThreadLocal.withInitial(() ->
+    {
+      try
+      {
+        IMetaStoreClient client = clientFactory.create();
+        synchronized (clients)
+        {
+          clients.add(client);
+        }
+        return client;
+      }
+      catch (Exception e)
+      {
+        throw new IllegalStateException("Could not connect to the metastore", e);
+      }
+    });
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try
+    {
+      List<Future<?>> futures = new ArrayList<>();
+      for (String databaseName : threadClient.get().getAllDatabases())
+      {
+        if (!tableFilter.acceptsDatabase(databaseName)
+            || checkpoint.isDone(databaseName))
+        {
+          continue;
+        }
+        futures.add(executor.submit(() ->
+        {
+          try
+          {
+            reconcile(threadClient.get(), databaseName, checkpoint, result);
+            result.databases.incrementAndGet();
+          }
+          catch (Exception e)
+          {
+            log.error(String.format("Could not sync the database %s: %s",
+                                    databaseName, e));
+            result.failedDatabases.add(databaseName);
+          }
+        }));
+      }
+      for (Future<?> future : futures)
+      {
+        future.get();
+      }
+    }
+    finally
+    {
+      executor.shutdown();
+      synchronized (clients)
+      {
+        clients.forEach(IMetaStoreClient::close);
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * Ends the run in the checkpoint if every database was reconciled and
+   * every command applied, or else closes it so that the next run resumes.
+   * Called once the commands of the run are done, for example after
+   * {@link SnowflakeClient#shutdown}.
+   * @param checkpoint the progress of the sync
+   * @param result what the run did
+   * @return whether the run was ended
+   * @throws IOException thrown when the checkpoint could not be written
+   */
+  public boolean end(SyncCheckpoint checkpoint, Result result)
+      throws IOException
+  {
+    if (result.failedDatabases.isEmpty()
+        && result.pendingCommands.get() == 0
+        && result.failedCommands.get() == 0)
+    {
+      checkpoint.finish();
+      return true;
+    }
+    checkpoint.close();
+    return false;
+  }
+
+  /**
+   * Helper method that sends the commands bringing the tables of a database
+   * in line with Hive
+   */
+  private void reconcile(IMetaStoreClient client, String databaseName,
+                         SyncCheckpoint checkpoint, Result result)
+      throws Exception
+  {
+    // Done once the listing is over and every command is applied
+    AtomicInteger pending = new AtomicInteger(1);
+    AtomicBoolean applied = new AtomicBoolean(true);
+    Runnable arrive = () ->
+    {
+      if (pending.decrementAndGet() == 0 && applied.get())
+      {
+        record(() -> checkpoint.done(databaseName));
+      }
+    };
+
+    List<String> tableNames = client.getAllTables(databaseName);
+    Set<String> snowflakeTables = snowflakeLister.list(
+        HiveToSnowflakeSchema.getSnowflakeSchemaFromHiveSchema(databaseName,
+                                                               snowflakeConf));
+
+    Set<String> hiveTables = new HashSet<>();
+    List<String> acceptedNames = new ArrayList<>();
+    for (String tableName : tableNames)
+    {
+      hiveTables.add(tableName.toLowerCase());
+      if (tableFilter.accepts(databaseName, tableName))
+      {
+        acceptedNames.add(tableName);
+      }
+    }
+
+    for (List<String> batch : Lists.partition(acceptedNames, TABLE_BATCH_SIZE))
+    {
+      for (Table table : client.getTableObjectsByName(databaseName, batch))
+      {
+        TableSnapshot snapshot = TableSnapshot.of(table);
+        if (snapshot.getMetadataLocation() == null)
+        {
+          // Not an Iceberg table
+          continue;
+        }
+        if (!snowflakeTables.contains(snapshot.getTableName().toLowerCase()))
+        {
+          if (!snapshot.isAbleToCreateTable())
+          {
+            result.notCreatable.incrementAndGet();
+            continue;
+          }
+          send(new CreateIcebergTable(snapshot, snowflakeConf, true), result,
+               pending, applied, arrive,
+               () -> checkpoint.synced(databaseName, snapshot.getTableName(),
+                                       snapshot.getMetadataLocation()));
+          result.created.incrementAndGet();
+        }
+        else if (snapshot.getMetadataLocation().equals(checkpoint.getLocation(
+            databaseName, snapshot.getTableName())))
+        {
+          result.upToDate.incrementAndGet();
+          continue;
+        }
+        else
+        {
+          send(new RefreshIcebergTable(snapshot), result, pending, applied,
+               arrive,
+               () -> checkpoint.synced(databaseName, snapshot.getTableName(),
+                                       snapshot.getMetadataLocation()));
+          result.refreshed.incrementAndGet();
+        }
+      }
+    }
+
+    if (!dropOrphans)
+    {
+      arrive.run();
+      return;
+    }
+    for (String snowflakeTable : snowflakeTables)
+    {
+      if (!hiveTables.contains(snowflakeTable)
+          && tableFilter.accepts(databaseName, snowflakeTable))
+      {
+        send(new DropIcebergTable(
+                 TableSnapshot.ofName(databaseName, snowflakeTable), snowflakeConf),
+             result, pending, applied, arrive,
+             () -> checkpoint.dropped(databaseName, snowflakeTable));
+        result.dropped.incrementAndGet();
+      }
+    }
+    arrive.run();
+  }
+
+  /**
+   * Writes to the checkpoint
+   */
+  private interface CheckpointUpdate
+  {
+    void run() throws IOException;
+  }
+
+  /**
+   * Helper method that hands a command over, and records it in the
+   * checkpoint once it is applied
+   */
+  private void send(Command command, Result result, AtomicInteger pending,
+                    AtomicBoolean applied, Runnable arrive,
+                    CheckpointUpdate update) throws Exception
+  {
+    pending.incrementAndGet();
+    result.pendingCommands.incrementAndGet();
+    sink.accept(command).whenComplete((done, error) ->
+    {
+      result.pendingCommands.decrementAndGet();
+      if (error == null && done)
+      {
+        record(update);
+      }
+      else
+      {
+        result.failedCommands.incrementAndGet();
+        applied.set(false);
+      }
+      arrive.run();
+    });
+  }
+
+  /**
+   * Helper method that writes to the checkpoint from the callback of a
+   * command, where the error can only be logged
+   */
+  private static void record(CheckpointUpdate update)
+  {
+    try
+    {
+      update.run();
+    }
+    catch (IOException e)
+    {
+      log.error("Could not write the sync checkpoint: " + e);
+    }
+  }
+
+  /**
+   * Lists the Iceberg tables of a Snowflake schema, a page of SHOW at a time
+   * @param snowflakeConf The configuration for Snowflake Hive metastore
+   *                      listener
+   * @param schema the Snowflake schema
+   * @return the lowercase names of the tables
+   * @throws Exception thrown when the tables could not be listed
+   */
+  public static Set<String> listSnowflakeIcebergTables(SnowflakeConf snowflakeConf,
+                                                       String schema)
+      throws Exception
+  {
+    Set<String> names = new HashSet<>();
+    String last = null;
+    try (SnowflakeConnectionPool.PooledConnection pooled =
+             SnowflakeClient.getConnectionPool(
+                 snowflakeConf,
+                 HiveToSnowflakeSchema.getSnowflakeDefaultSchema(snowflakeConf)).borrow();
+         Statement statement = pooled.getConnection().createStatement())
+    {
+      int rows;
+      do
+      {
+        rows = 0;
+        String query = String.format(
+            "SHOW ICEBERG TABLES IN SCHEMA %s LIMIT %s%s;",
+            StringUtil.escapeSqlIdentifier(schema), SHOW_PAGE_SIZE,
+            last == null ? "" : " FROM '" + StringUtil.escapeSqlText(last) + "'");
+        try (ResultSet resultSet = statement.executeQuery(query))
+        {
+          while (resultSet.next())
+          {
+            last = resultSet.getString("name");
+            names.add(last.toLowerCase());
+            rows++;
+          }
+        }
+      }
+      while (rows == SHOW_PAGE_SIZE);
+    }
+    return names;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    // The journal, the handoff file and the table registry file belong to
+    // the metastore
+    snowflakeConf.setBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_JOURNAL_ENABLED.getVarname(), false);
+    snowflakeConf.unset(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SHUTDOWN_HANDOFF_FILE.getVarname());
+    snowflakeConf.unset(
+        SnowflakeConf.ConfVars.SNOWFLAKE_TABLE_REGISTRY_FILE.getVarname());
+    // Wait for room in the queues rather than holding every table in memory
+    snowflakeConf.set(
+        SnowflakeConf.ConfVars.SNOWFLAKE_QUEUE_OVERLOAD_POLICY.getVarname(), "block");
+    snowflakeConf.setLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_QUEUE_BLOCK_TIMEOUT_MILLISECONDS.getVarname(),
+        Long.MAX_VALUE / 4);
+    // Wait for every command
+    snowflakeConf.setLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SHUTDOWN_DRAIN_TIMEOUT_MILLISECONDS.getVarname(),
+        Long.MAX_VALUE / 4);
+
+    SyncCheckpoint checkpoint = new SyncCheckpoint(new File(snowflakeConf.get(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SYNC_CHECKPOINT_FILE.getVarname(),
+        new File(System.getProperty("java.io.tmpdir"),
+                 "snowflake-hive-metastore-sync-checkpoint").getPath())));
+    HiveSyncToolSnowflake tool = new HiveSyncToolSnowflake(
+        () -> new HiveMetaStoreClient(MetastoreConf.newMetastoreConf()),
+        schema -> listSnowflakeIcebergTables(snowflakeConf, schema),
+        command -> SnowflakeClient.submitCommand(command, snowflakeConf),
+        snowflakeConf);
+
+    Result result = tool.run(checkpoint);
+    boolean drained = SnowflakeClient.shutdown(snowflakeConf);
+    boolean ended = tool.end(checkpoint, result);
+    System.out.println(String.format("Synced %s, %s", result,
+                                     drained ? "all commands were sent"
+                                         : "some commands were not sent in time"));
+    System.exit(drained && ended ? 0 : 1);
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.google.common.base.Preconditions;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import net.snowflake.hivemetastoreconnector.commands.Command;
+import net.snowflake.hivemetastoreconnector.util.IcebergTableUtil;
+import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.NotificationEvent;
+import org.apache.hadoop.hive.metastore.api.NotificationEventResponse;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.metastore.conf.MetastoreConf;
+import org.apache.hadoop.hive.metastore.messaging.AlterTableMessage;
+import org.apache.hadoop.hive.metastore.messaging.MessageDeserializer;
+import org.apache.hadoop.hive.metastore.messaging.MessageFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the events of the metastore from its notification log, instead of
+ * receiving them in the metastore process, and turns them into the same
+ * commands as the listener. The metastore then only needs its notification
+ * listener, and the connector runs, restarts and scales on its own.
+ *
+ * Events are read in batches after the last event processed. The ID of the
+ * last event of a batch is saved to a checkpoint file once the commands of
+ * the batch are handed over, so that a restarted tailer resumes where it
+ * stopped instead of missing events or starting over. As commands are
+ * handed over once queued, before they are sent, {@link #main} always
+ * enables the journal, which keeps the commands still queued when the
+ * tailer stops or crashes. Enable syncing the journal on enqueue for the
+ * commands to also survive a crash of the host.
+ *
+ * Without a checkpoint, the tailer starts from the current event, as tables
+ * are brought up to date by the sync tool first.
+ *
+ * Run with scripts/tail_notification_log.sh, with the listener removed from
+ * the metastore and its notification listener enabled.
+ */
+public class NotificationLogTailer
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  /**
+   * Receives the commands of the events
+   */
+  public interface CommandSink
+  {
+    void accept(Command command) throws Exception;
+  }
+
+  private final IMetaStoreClient client;
+
+  private final SnowflakeConf snowflakeConf;
+
+  private final CommandSink sink;
+
+  private final TableFilter tableFilter;
+
+  private final File checkpointFile;
+
+  private final int batchSize;
+
+  private final long pollIntervalMillis;
+
+  private final MessageDeserializer deserializer;
+
+  private final CountDownLatch stopped = new CountDownLatch(1);
+
+  // Only used by the thread tailing the log
+  private long lastEventId;
+
+  /**
+   * Constructor for the tailer
+   * @param client the client of the metastore
+   * @param snowflakeConf The configuration for Snowflake Hive metastore
+   *                      listener
+   * @param sink receives the commands of the events, in order
+   * @throws Exception thrown when the checkpoint or the current event could
+   *                   not be read
+   */
+  public NotificationLogTailer(IMetaStoreClient client,
+                               SnowflakeConf snowflakeConf,
+                               CommandSink sink) throws Exception
+  {
+    this.client = Preconditions.checkNotNull(client);
+    this.snowflakeConf = Preconditions.checkNotNull(snowflakeConf);
+    this.sink = Preconditions.checkNotNull(sink);
+    this.tableFilter = TableFilter.fromConf(snowflakeConf);
+    this.checkpointFile = new File(snowflakeConf.get(
+        SnowflakeConf.ConfVars.SNOWFLAKE_NOTIFICATION_LOG_CHECKPOINT_FILE.getVarname(),
+        new File(System.getProperty("java.io.tmpdir"),
+                 "snowflake-hive-metastore-notification-checkpoint").getPath()));
+    this.batchSize = snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_NOTIFICATION_LOG_BATCH_SIZE.getVarname(), 1000);
+    this.pollIntervalMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_NOTIFICATION_LOG_POLL_INTERVAL_MILLISECONDS.getVarname(),
+        1000);
+    Preconditions.checkArgument(batchSize > 0);
+    this.deserializer = MessageFactory.getInstance().getDeserializer();
+
+    if (checkpointFile.exists())
+    {
+      lastEventId = Long.parseLong(new String(
+          Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.UTF_8).trim());
+      log.info(String.format("Resuming the notification log after event %s",
+                             lastEventId));
+    }
+    else
+    {
+      lastEventId = client.getCurrentNotificationEventId().getEventId();
+      log.info(String.format("No checkpoint in %s, starting after the " +
+                                 "current event %s", checkpointFile, lastEventId));
+    }
+  }
+
+  /**
+   * @return the ID of the last event processed
+   */
+  public long getLastEventId()
+  {
+    return lastEventId;
+  }
+
+  /**
+   * Processes the next batch of events, and saves the checkpoint
+   * @return the number of events read, whether they were handled or not
+   * @throws Exception thrown when the events could not be read, or a command
+   *                   could not be handed over. The batch is read again.
+   */
+  public int poll() throws Exception
+  {
+    NotificationEventResponse response =
+        client.getNextNotification(lastEventId, batchSize, null);
+    List<NotificationEvent> events = response == null ? null : response.getEvents();
+    if (events == null || events.isEmpty())
+    {
+      return 0;
+    }
+
+    if (events.get(0).getEventId() > lastEventId + 1)
+    {
+      // Expired from the log before they were read
+      log.warn(String.format("Events %s to %s are missing from the " +
+                                 "notification log, tables may need a resync",
+                             lastEventId + 1, events.get(0).getEventId() - 1));
+    }
+
+    long batchLastEventId = lastEventId;
+    for (NotificationEvent event : events)
+    {
+      Command command;
+      try
+      {
+        command = getCommand(event);
+      }
+      catch (Exception e)
+      {
+        // Reading it again wouldn't help
+        log.error(String.format("Skipping the unreadable event %s: %s",
+                                event.getEventId(), e));
+        command = null;
+      }
+      if (command != null)
+      {
+        sink.accept(command);
+      }
+      batchLastEventId = event.getEventId();
+    }
+    saveCheckpoint(batchLastEventId);
+    lastEventId = batchLastEventId;
+    return events.size();
+  }
+
+  /**
+   * Tails the log until stopped. Batches are read back to back while the
+   * tailer is behind, and every poll interval once it caught up.
+   */
+  public void run()
+  {
+    while (stopped.getCount() > 0)
+    {
+      int read;
+      try
+      {
+        read = poll();
+      }
+      catch (Exception e)
+      {
+        log.error("Could not process the notification log, retrying: " + e);
+        read = 0;
+      }
+      if (read < batchSize)
+      {
+        try
+        {
+          stopped.await(pollIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops tailing the log once the current batch is processed
+   */
+  public void stop()
+  {
+    stopped.countDown();
+  }
+
+  /**
+   * Helper method that creates the command of an event, with the same
+   * rules as the listener
+   * @return the command, or null if the event is skipped
+   */
+  private Command getCommand(NotificationEvent event) throws Exception
+  {
+    if (!MessageFactory.ALTER_TABLE_EVENT.equals(event.getEventType()))
+    {
+      return null;
+    }
+    AlterTableMessage message =
+        deserializer.getAlterTableMessage(event.getMessage());
+    Table oldTable = message.getTableObjBefore();
+    Table newTable = message.getTableObjAfter();
+    if (!tableFilter.accepts(newTable.getDbName(), newTable.getTableName())
+        || newTable.getParameters() == null
+        || newTable.getParameters().get(IcebergTableUtil.metadataLocation) == null)
+    {
+      return null;
+    }
+    log.info(String.format("Event %s received (Table='%s.%s')",
+                           event.getEventId(), newTable.getDbName(),
+                           newTable.getTableName()));
+    return CommandGenerator.getAlterCommand(oldTable, newTable, snowflakeConf);
+  }
+
+  /**
+   * Helper method that saves the ID of the last event processed. The file
+   * is written to a temporary name and renamed, so it is never partial.
+   */
+  private void saveCheckpoint(long eventId) throws IOException
+  {
+    File directory = checkpointFile.getAbsoluteFile().getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+    {
+      throw new IOException("Could not create the directory " + directory);
+    }
+    File temporary = new File(checkpointFile.getPath() + ".tmp");
+    try (FileOutputStream stream = new FileOutputStream(temporary))
+    {
+      stream.write(Long.toString(eventId).getBytes(StandardCharsets.UTF_8));
+      stream.getFD().sync();
+    }
+    Files.move(temporary.toPath(), checkpointFile.toPath(),
+               StandardCopyOption.ATOMIC_MOVE,
+               StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    // The checkpoint moves past commands once they are queued
+    if (!snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_JOURNAL_ENABLED.getVarname(), false))
+    {
+      log.info("Enabling the journal, so that queued commands survive a restart");
+      snowflakeConf.setBoolean(
+          SnowflakeConf.ConfVars.SNOWFLAKE_JOURNAL_ENABLED.getVarname(), true);
+    }
+    IMetaStoreClient client =
+        new HiveMetaStoreClient(MetastoreConf.newMetastoreConf());
+    NotificationLogTailer tailer = new NotificationLogTailer(
+        client, snowflakeConf,
+        command -> SnowflakeClient.executeCommand(command, snowflakeConf));
+
+    CountDownLatch done = new CountDownLatch(1);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      tailer.stop();
+      try
+      {
+        done.await();
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+      SnowflakeClient.shutdown(snowflakeConf);
+    }, "snowflake-shutdown"));
+
+    try
+    {
+      tailer.run();
+    }
+    finally
+    {
+      client.close();
+      done.countDown();
+    }
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A budget shared by all table queues, bounding both the number of queued
+ * commands and their estimated memory. The scheduler decides what to do
+ * with a command that does not fit, according to the overload policy.
+ */
+public class QueueBudget
+{
+  /**
+   * What to do with a command when the queues are over budget
+   */
+  public enum OverloadPolicy
+  {
+    // Queue the command anyway, relying on refreshes superseding each other.
+    // This doesn't bound memory: creates, drops and the refreshes of
+    // distinct tables all stay queued.
+    COALESCE_ONLY,
+
+    // Block the metastore thread until there is room, or drop the command
+    // after a timeout
+    BLOCK,
+
+    // Drop the oldest queued commands of the same table until there is
+    // room, or drop the command if there is nothing left to drop
+    DROP_OLDEST,
+
+    // Write the command to disk instead of keeping it in memory
+    SPILL;
+
+    /**
+     * Parses a policy from its configured name, e.g. "drop-oldest"
+     * @param name the name of the policy
+     * @return the policy
+     */
+    public static OverloadPolicy fromName(String name)
+    {
+      return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+  }
+
+  private final long maxCommands;
+
+  private final long maxBytes;
+
+  private final AtomicLong commands = new AtomicLong();
+
+  private final AtomicLong bytes = new AtomicLong();
+
+  private final Object monitor = new Object();
+
+  // The number of threads waiting for room. Only changed holding the monitor.
+  private volatile int waiters = 0;
+
+  /**
+   * Constructor for the budget
+   * @param maxCommands the maximum number of queued commands
+   * @param maxBytes the maximum estimated memory of queued commands
+   */
+  public QueueBudget(long maxCommands, long maxBytes)
+  {
+    Preconditions.checkArgument(maxCommands > 0);
+    Preconditions.checkArgument(maxBytes > 0);
+    this.maxCommands = maxCommands;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @param sizeInBytes the estimated memory of a command
+   * @return whether the command fits in the budget
+   */
+  public boolean hasRoom(long sizeInBytes)
+  {
+    return commands.get() < maxCommands
+        && bytes.get() + sizeInBytes <= maxBytes;
+  }
+
+  /**
+   * Counts a queued command against the budget. The command is counted
+   * even if the budget is exceeded.
+   * @param sizeInBytes the estimated memory of the command
+   */
+  public void acquire(long sizeInBytes)
+  {
+    commands.incrementAndGet();
+    bytes.addAndGet(sizeInBytes);
+  }
+
+  /**
+   * Gives back the budget of a command that left the queues
+   * @param sizeInBytes the estimated memory of the command
+   */
+  public void release(long sizeInBytes)
+  {
+    commands.decrementAndGet();
+    bytes.addAndGet(-sizeInBytes);
+    if (waiters > 0)
+    {
+      synchronized (monitor)
+      {
+        monitor.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Waits until a command fits in the budget
+   * @param sizeInBytes the estimated memory of the command
+   * @param timeoutMillis the maximum time to wait
+   * @return whether the command fits
+   * @throws InterruptedException thrown when the thread is interrupted
+   */
+  public boolean awaitRoom(long sizeInBytes, long timeoutMillis)
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (monitor)
+    {
+      waiters++;
+      try
+      {
+        while (!hasRoom(sizeInBytes))
+        {
+          long remaining = deadline - System.currentTimeMillis();
+          if (remaining <= 0)
+          {
+            return false;
+          }
+          monitor.wait(remaining);
+        }
+        return true;
+      }
+      finally
+      {
+        waiters--;
+      }
+    }
+  }
+
+  public long getCommands()
+  {
+    return commands.get();
+  }
+
+  public long getBytes()
+  {
+    return bytes.get();
+  }
+
+  public long getMaxCommands()
+  {
+    return maxCommands;
+  }
+
+  public long getMaxBytes()
+  {
+    return maxBytes;
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import net.snowflake.hivemetastoreconnector.util.ConnectorMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of commands sent to Snowflake, so that bulk changes on
+ * the Hive side don't flood the account.
+ *
+ * Every command takes a token from three token buckets: one for the
+ * account, one for its database and one for its table. A bucket refills at
+ * its rate, in commands per second, and holds up to its burst. A command is
+ * sent once every bucket it needs has a token, so the most restrictive
+ * level sets the pace. All commands of the connector use the same
+ * warehouse, so the account bucket also bounds the load on the warehouse.
+ *
+ * The buckets are kept as the time at which they will be full again, so a
+ * command held back knows when to try again without polling the buckets.
+ */
+public class RateLimiter
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  private static final String ACCOUNT_LEVEL = "account";
+
+  private static final String DATABASE_LEVEL = "database";
+
+  private static final String TABLE_LEVEL = "table";
+
+  // How often buckets that are full again are removed, in acquired tokens
+  private static final int SWEEP_INTERVAL = 1024;
+
+  /**
+   * A token bucket, kept as the time at which it is full again
+   */
+  private static class Bucket
+  {
+    // The time between tokens
+    private final long intervalNanos;
+
+    // The time to refill the burst
+    private final long burstNanos;
+
+    private final Timer waitTimer;
+
+    private long fullNanos;
+
+    Bucket(double rate, double burst, long nowNanos, Timer waitTimer)
+    {
+      this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+      this.burstNanos = (long) (intervalNanos * Math.max(1, burst));
+      this.fullNanos = nowNanos;
+      this.waitTimer = waitTimer;
+    }
+
+    /**
+     * @return the earliest time a token may be taken
+     */
+    long availableNanos(long nowNanos)
+    {
+      return Math.max(nowNanos, fullNanos + intervalNanos - burstNanos);
+    }
+
+    void take(long nowNanos)
+    {
+      fullNanos = Math.max(fullNanos, nowNanos) + intervalNanos;
+    }
+
+    boolean isFull(long nowNanos)
+    {
+      return fullNanos <= nowNanos;
+    }
+  }
+
+  /**
+   * The rate and burst of a level
+   */
+  private static class Limit
+  {
+    private final double rate;
+
+    private final double burst;
+
+    Limit(double rate, double burst)
+    {
+      this.rate = rate;
+      this.burst = burst > 0 ? burst : Math.max(1, rate);
+    }
+
+    boolean isUnlimited()
+    {
+      return rate <= 0;
+    }
+  }
+
+  private final ScheduledExecutorService timer;
+
+  private final Limit tableLimit;
+
+  private final Limit defaultDatabaseLimit;
+
+  private final Map<String, Limit> databaseLimits;
+
+  // The following are guarded by this
+
+  // Null if the account is unlimited
+  private final Bucket accountBucket;
+
+  private final Map<String, Bucket> databaseBuckets = new HashMap<>();
+
+  private final Map<String, Bucket> tableBuckets = new HashMap<>();
+
+  private int acquiredSinceSweep = 0;
+
+  private final Timer waitTimer;
+
+  private final Timer databaseWaitTimer;
+
+  private final Timer tableWaitTimer;
+
+  /**
+   * Constructor for the rate limiter
+   * @param timer the timer that lets commands through once they may be sent
+   * @param snowflakeConf The configuration for Snowflake Hive metastore
+   *                      listener
+   */
+  public RateLimiter(ScheduledExecutorService timer,
+                     SnowflakeConf snowflakeConf)
+  {
+    this.timer = Preconditions.checkNotNull(timer);
+    Limit accountLimit = new Limit(
+        snowflakeConf.getDouble(
+            SnowflakeConf.ConfVars.SNOWFLAKE_RATE_LIMIT_ACCOUNT_RATE.getVarname(), 0),
+        snowflakeConf.getDouble(
+            SnowflakeConf.ConfVars.SNOWFLAKE_RATE_LIMIT_ACCOUNT_BURST.getVarname(), 0));
+    double databaseBurst = snowflakeConf.getDouble(
+        SnowflakeConf.ConfVars.SNOWFLAKE_RATE_LIMIT_DATABASE_BURST.getVarname(), 0);
+    this.defaultDatabaseLimit = new Limit(
+        snowflakeConf.getDouble(
+            SnowflakeConf.ConfVars.SNOWFLAKE_RATE_LIMIT_DATABASE_RATE.getVarname(), 0),
+        databaseBurst);
+    this.databaseLimits = parseDatabaseLimits(
+        snowflakeConf.getTrimmedStringCollection(
+            SnowflakeConf.ConfVars.SNOWFLAKE_RATE_LIMIT_DATABASE_RATES.getVarname()),
+        databaseBurst);
+    this.tableLimit = new Limit(
+        snowflakeConf.getDouble(
+            SnowflakeConf.ConfVars.SNOWFLAKE_RATE_LIMIT_TABLE_RATE.getVarname(), 0),
+        snowflakeConf.getDouble(
+            SnowflakeConf.ConfVars.SNOWFLAKE_RATE_LIMIT_TABLE_BURST.getVarname(), 0));
+
+    this.waitTimer = ConnectorMetrics.timer("rate-limit.wait");
+    this.databaseWaitTimer = ConnectorMetrics.timer(
+        ConnectorMetrics.name("rate-limit", DATABASE_LEVEL, "wait"));
+    this.tableWaitTimer = ConnectorMetrics.timer(
+        ConnectorMetrics.name("rate-limit", TABLE_LEVEL, "wait"));
+    this.accountBucket = accountLimit.isUnlimited() ? null
+        : new Bucket(accountLimit.rate, accountLimit.burst, System.nanoTime(),
+                     ConnectorMetrics.timer(
+                         ConnectorMetrics.name("rate-limit", ACCOUNT_LEVEL, "wait")));
+  }
+
+  /**
+   * Takes a token for a command of a table
+   * @param databaseName the database of the table
+   * @param tableName the table
+   * @return a future completed once the command may be sent
+   */
+  public CompletableFuture<Void> acquire(String databaseName, String tableName)
+  {
+    CompletableFuture<Void> granted = new CompletableFuture<>();
+    tryAcquire(databaseName.toLowerCase(), tableName.toLowerCase(),
+               System.nanoTime(), null, granted);
+    return granted;
+  }
+
+  /**
+   * Helper method that takes a token from every bucket of a table if they
+   * all have one, or else tries again once they should
+   * @param requestedNanos the time the token was asked for
+   * @param holdingBack the bucket that held the command back last time, or
+   *                    null
+   */
+  private void tryAcquire(String database, String table, long requestedNanos,
+                          Bucket holdingBack, CompletableFuture<Void> granted)
+  {
+    long nowNanos = System.nanoTime();
+    long availableNanos = nowNanos;
+    Bucket binding = holdingBack;
+    synchronized (this)
+    {
+      Bucket databaseBucket = getDatabaseBucket(database, nowNanos);
+      Bucket tableBucket = tableLimit.isUnlimited() ? null
+          : tableBuckets.computeIfAbsent(
+              database + "." + table,
+              key -> new Bucket(tableLimit.rate, tableLimit.burst, nowNanos,
+                                tableWaitTimer));
+      Bucket[] buckets = {accountBucket, databaseBucket, tableBucket};
+
+      for (Bucket bucket : buckets)
+      {
+        if (bucket != null && bucket.availableNanos(nowNanos) > availableNanos)
+        {
+          availableNanos = bucket.availableNanos(nowNanos);
+          binding = bucket;
+        }
+      }
+      // Tokens are only taken when every level has one, so that a command
+      // held back by one level doesn't use up the others
+      if (availableNanos <= nowNanos)
+      {
+        for (Bucket bucket : buckets)
+        {
+          if (bucket != null)
+          {
+            bucket.take(nowNanos);
+          }
+        }
+        if (++acquiredSinceSweep >= SWEEP_INTERVAL)
+        {
+          acquiredSinceSweep = 0;
+          sweep(nowNanos);
+        }
+      }
+    }
+
+    if (availableNanos <= nowNanos)
+    {
+      long waitNanos = nowNanos - requestedNanos;
+      waitTimer.update(waitNanos, TimeUnit.NANOSECONDS);
+      if (binding != null)
+      {
+        // The wait is counted against the level that held the command back
+        binding.waitTimer.update(waitNanos, TimeUnit.NANOSECONDS);
+      }
+      granted.complete(null);
+      return;
+    }
+
+    Bucket heldBackBy = binding;
+    try
+    {
+      timer.schedule(() -> tryAcquire(database, table, requestedNanos,
+                                      heldBackBy, granted),
+                     availableNanos - nowNanos, TimeUnit.NANOSECONDS);
+    }
+    catch (RejectedExecutionException e)
+    {
+      // Shutting down, the command stays queued
+      log.debug(String.format("Rate limit timer stopped, holding back a " +
+                                  "command for %s.%s", database, table));
+    }
+  }
+
+  /**
+   * Helper method that gets the bucket of a database, or null if the
+   * database is unlimited
+   */
+  private Bucket getDatabaseBucket(String database, long nowNanos)
+  {
+    Limit limit = databaseLimits.getOrDefault(database, defaultDatabaseLimit);
+    if (limit.isUnlimited())
+    {
+      return null;
+    }
+    return databaseBuckets.computeIfAbsent(
+        database,
+        key -> new Bucket(limit.rate, limit.burst, nowNanos, databaseWaitTimer));
+  }
+
+  /**
+   * Helper method that removes the buckets that are full again, which are
+   * no different from new buckets
+   */
+  private void sweep(long nowNanos)
+  {
+    databaseBuckets.values().removeIf(bucket -> bucket.isFull(nowNanos));
+    tableBuckets.values().removeIf(bucket -> bucket.isFull(nowNanos));
+  }
+
+  /**
+   * Helper method that parses a list of "database:rate" pairs
+   */
+  private static Map<String, Limit> parseDatabaseLimits(Collection<String> pairs,
+                                                        double burst)
+  {
+    Map<String, Limit> limits = new HashMap<>();
+    for (String pair : pairs)
+    {
+      int separator = pair.lastIndexOf(':');
+      Preconditions.checkArgument(separator > 0,
+                                  "Expected database:rate, got " + pair);
+      limits.put(pair.substring(0, separator).trim().toLowerCase(),
+                 new Limit(Double.parseDouble(pair.substring(separator + 1).trim()),
+                           burst));
+    }
+    return limits;
+  }
+}
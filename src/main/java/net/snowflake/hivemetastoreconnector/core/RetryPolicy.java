@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * Decides whether and when a failed operation should be retried.
+ *
+ * Errors are classified as retryable or fatal from their Snowflake error
+ * code and SQLState, so that errors such as compilation errors or missing
+ * objects are not retried. Retries are spaced with exponential backoff and
+ * jitter, and are not attempted past a deadline.
+ */
+public class RetryPolicy
+{
+  // Snowflake error codes that will fail again if retried
+  private static final Set<Integer> DEFAULT_FATAL_ERROR_CODES = ImmutableSet.of(
+      904,    // Invalid identifier
+      1003,   // SQL compilation error, syntax error
+      2002,   // Object already exists
+      2003,   // Object does not exist or not authorized
+      2043,   // Object does not exist, or operation cannot be performed
+      3001,   // Insufficient privileges
+      390100, // Incorrect username or password
+      390144  // JWT token is invalid
+  );
+
+  // Snowflake error codes that may succeed if retried
+  private static final Set<Integer> DEFAULT_RETRYABLE_ERROR_CODES = ImmutableSet.of(
+      604,    // Query was cancelled
+      390114  // Authentication token has expired
+  );
+
+  private final int maxRetries;
+
+  private final long baseDelayMillis;
+
+  private final long maxDelayMillis;
+
+  private final double jitter;
+
+  private final long deadlineMillis;
+
+  private final Set<Integer> fatalErrorCodes;
+
+  private final Set<Integer> retryableErrorCodes;
+
+  public RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis,
+                     double jitter, long deadlineMillis,
+                     Set<Integer> fatalErrorCodes,
+                     Set<Integer> retryableErrorCodes)
+  {
+    Preconditions.checkArgument(maxRetries >= 0);
+    Preconditions.checkArgument(baseDelayMillis >= 0);
+    Preconditions.checkArgument(jitter >= 0 && jitter <= 1);
+    this.maxRetries = maxRetries;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = Math.max(baseDelayMillis, maxDelayMillis);
+    this.jitter = jitter;
+    this.deadlineMillis = deadlineMillis;
+    this.fatalErrorCodes = ImmutableSet.<Integer>builder()
+        .addAll(DEFAULT_FATAL_ERROR_CODES).addAll(fatalErrorCodes).build();
+    this.retryableErrorCodes = ImmutableSet.<Integer>builder()
+        .addAll(DEFAULT_RETRYABLE_ERROR_CODES).addAll(retryableErrorCodes).build();
+  }
+
+  /**
+   * Creates the retry policy from the configuration
+   * @param snowflakeConf the configuration for Snowflake Hive metastore
+   *                      listener
+   * @return the retry policy
+   */
+  public static RetryPolicy fromConf(SnowflakeConf snowflakeConf)
+  {
+    return new RetryPolicy(
+        snowflakeConf.getInt(
+            SnowflakeConf.ConfVars.SNOWFLAKE_HIVEMETASTORELISTENER_RETRY_COUNT.getVarname(), 1),
+        snowflakeConf.getInt(
+            SnowflakeConf.ConfVars.SNOWFLAKE_HIVEMETASTORELISTENER_RETRY_TIMEOUT_MILLISECONDS.getVarname(), 1000),
+        snowflakeConf.getLong(
+            SnowflakeConf.ConfVars.SNOWFLAKE_RETRY_MAX_DELAY_MILLISECONDS.getVarname(), 60000),
+        snowflakeConf.getDouble(
+            SnowflakeConf.ConfVars.SNOWFLAKE_RETRY_JITTER.getVarname(), 0.5),
+        snowflakeConf.getLong(
+            SnowflakeConf.ConfVars.SNOWFLAKE_RETRY_DEADLINE_MILLISECONDS.getVarname(), 300000),
+        getErrorCodes(snowflakeConf,
+                      SnowflakeConf.ConfVars.SNOWFLAKE_RETRY_FATAL_ERROR_CODES),
+        getErrorCodes(snowflakeConf,
+                      SnowflakeConf.ConfVars.SNOWFLAKE_RETRY_RETRYABLE_ERROR_CODES));
+  }
+
+  private static Set<Integer> getErrorCodes(SnowflakeConf snowflakeConf,
+                                            SnowflakeConf.ConfVars confVar)
+  {
+    return snowflakeConf.getTrimmedStringCollection(confVar.getVarname())
+        .stream().map(Integer::valueOf).collect(Collectors.toSet());
+  }
+
+  /**
+   * @return a copy of this policy that never retries
+   */
+  public RetryPolicy withoutRetries()
+  {
+    return new RetryPolicy(0, baseDelayMillis, maxDelayMillis, jitter,
+                           deadlineMillis, fatalErrorCodes, retryableErrorCodes);
+  }
+
+  public int getMaxRetries()
+  {
+    return maxRetries;
+  }
+
+  /**
+   * Computes the delay before a retry. The delay doubles with every retry up
+   * to the maximum delay, then a random part of it, up to the jitter
+   * fraction, is taken off so that retries of many failures are spread out.
+   * @param retryNumber the number of retries done so far
+   * @return the delay, in milliseconds
+   */
+  public long getBackoffMillis(int retryNumber)
+  {
+    long delay = baseDelayMillis;
+    for (int i = 0; i < retryNumber && delay < maxDelayMillis; i++)
+    {
+      delay *= 2;
+    }
+    delay = Math.min(delay, maxDelayMillis);
+    long jitterMillis = (long) (delay * jitter);
+    if (jitterMillis <= 0)
+    {
+      return delay;
+    }
+    return delay - ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+  }
+
+  /**
+   * Decides whether a failed operation should be retried
+   * @param error the error of the last attempt
+   * @param retryNumber the number of retries done so far
+   * @param elapsedMillis the time since the first attempt
+   * @param backoffMillis the delay before the retry
+   * @return whether the operation should be retried after the delay
+   */
+  public boolean shouldRetry(Throwable error, int retryNumber,
+                             long elapsedMillis, long backoffMillis)
+  {
+    if (retryNumber >= maxRetries || !isRetryable(error))
+    {
+      return false;
+    }
+    return deadlineMillis <= 0 || elapsedMillis + backoffMillis <= deadlineMillis;
+  }
+
+  /**
+   * Classifies an error as retryable or fatal. The cause chain is searched
+   * for a SQL exception, which is classified by its error code and SQLState.
+   * Other errors are classified by type, and are retryable unless they are
+   * caused by invalid input.
+   * @param error the error
+   * @return whether the operation that caused the error may be retried
+   */
+  public boolean isRetryable(Throwable error)
+  {
+    for (Throwable t = error; t != null; t = t.getCause())
+    {
+      if (t instanceof SQLException)
+      {
+        return isRetryable((SQLException) t);
+      }
+      if (t instanceof TimeoutException || t instanceof IOException)
+      {
+        return true;
+      }
+      if (t instanceof IllegalArgumentException
+          || t instanceof IllegalStateException
+          || t instanceof UnsupportedOperationException
+          || t instanceof NullPointerException)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean isRetryable(SQLException error)
+  {
+    if (fatalErrorCodes.contains(error.getErrorCode()))
+    {
+      return false;
+    }
+    if (retryableErrorCodes.contains(error.getErrorCode()))
+    {
+      return true;
+    }
+
+    String sqlState = error.getSQLState();
+    if (sqlState == null || sqlState.length() < 2)
+    {
+      return true;
+    }
+    switch (sqlState.substring(0, 2))
+    {
+      case "0A": // Feature not supported
+      case "22": // Data exception
+      case "28": // Invalid authorization
+      case "42": // Syntax error or access rule violation
+        return false;
+      default:   // e.g. 08, connection exception
+        return true;
+    }
+  }
+}
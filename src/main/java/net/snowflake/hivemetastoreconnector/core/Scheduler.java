@@ -3,40 +3,118 @@
  */
 package net.snowflake.hivemetastoreconnector.core;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.google.common.base.Preconditions;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.cache.RemovalListener;
-import com.google.common.collect.Lists;
 import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import net.snowflake.hivemetastoreconnector.commands.AlterIcebergTable;
 import net.snowflake.hivemetastoreconnector.commands.Command;
+import net.snowflake.hivemetastoreconnector.commands.DropIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.PregeneratedCommand;
 import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.util.ConnectorMetrics;
+import net.snowflake.hivemetastoreconnector.util.HiveToSnowflakeSchema;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.ExecutionException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 /**
  * Utility class that allows messages to be queued and processed in the
  * background. Messages are accumulated in a queue, and processed whenever
  * possible by a thread pool
  *
- * Internally, there is a queue for each table and a thread pool to process
- * messages in each queue. When a new queue is created, a task is submitted
- * to the thread pool to do a unit of work. If there are still items in the
- * queue after the unit of work, the task will submit a continuation task to
- * repeat this process. If there are errors in processing the queue, the
- * we will skip that item and continue with the rest of the queue.
+ * Internally, there is a mailbox for each table: a lock-free queue of
+ * messages and a flag telling whether the mailbox is scheduled. Enqueueing
+ * a message into an idle mailbox schedules a task on the thread pool, which
+ * processes a round of messages and then reschedules the mailbox if it is
+ * not empty. Only one task processes a mailbox at a time, so the messages of
+ * a table are processed strictly in order, and no thread ever waits for a
+ * message. If there are errors in processing a message, the we will skip
+ * that item and continue with the rest of the queue.
+ *
+ * A mailbox that becomes empty is retired and removed, so idle tables take
+ * no memory. A retired mailbox refuses new messages, which then go to a new
+ * mailbox for the table. A mailbox is only retired when no message is being
+ * added to it, so the new mailbox can't be processed alongside the old one.
+ *
+ * A command that fails with a retryable error is retried after a backoff
+ * delay before the next command of its table is processed. The delay is
+ * measured by a timer, so worker threads keep processing other tables
+ * meanwhile instead of sleeping.
+ *
+ * If the circuit breaker is enabled, commands, including retries, are only
+ * sent with a permit from the circuit breaker of the Snowflake account.
+ * While the breaker is open, commands stay
+ * in their queues until Snowflake is available again. If the adaptive
+ * concurrency limit is enabled, they also need a permit from a
+ * {@link ConcurrencyLimiter}, which sends fewer commands at once as Snowflake
+ * slows down. Before either, if rate limiting is enabled, they wait for a
+ * token of the {@link RateLimiter}, which paces commands per account,
+ * database and table.
+ *
+ * Only the newest metadata file of a table matters, so consecutive refresh
+ * commands of a table are coalesced: when a refresh is dispatched, or
+ * retried, the refreshes right behind it in the mailbox replace it. A
+ * refresh may also be held back for a debounce window to let more commits
+ * arrive, but never for longer than the maximum staleness after its first
+ * commit was queued. A refresh that is queued right behind another refresh
+ * supersedes it right away, so that refreshes don't hold memory.
+ *
+ * Commands carry the version of the table they bring Snowflake to, parsed
+ * from the name of the metadata file. Refreshes that arrive late, to a
+ * version older than or equal to the one last applied, are discarded before
+ * they are queued and again before they are sent, and are never coalesced
+ * over a newer refresh.
+ *
+ * All mailboxes share a budget bounding the number of queued commands and
+ * their estimated memory. When a command doesn't fit, the overload policy
+ * decides whether it is queued anyway, waited for, makes room by dropping
+ * the oldest commands of its table, or is spilled to disk. Only queuing it
+ * anyway lets the queues grow past the budget, since refreshes superseding
+ * each other don't bound the commands of distinct tables.
+ *
+ * Mailboxes with messages take turns through a {@link FairDispatcher}, which
+ * shares the workers between databases by weight, lets creates, replaces and
+ * drops go ahead of refreshes, and caps the tables of a database processed
+ * at once.
+ *
+ * If the journal is enabled, every queued command is journaled before it is
+ * queued and acknowledged once it is done, superseded or dropped. Commands
+ * that were not acknowledged when the metastore stopped are queued again
+ * when the scheduler starts.
+ *
+ * If dead letters are enabled, commands that fail after every retry are
+ * kept in a {@link DeadLetterStore}, and can be queued again with
+ * {@link #replayDeadLetters(int, int, long)}.
+ *
+ * If the table registry is enabled, commands that would change nothing in
+ * Snowflake, according to the {@link TableRegistry}, are discarded before
+ * they are sent: drops of tables Snowflake doesn't have, and refreshes to
+ * the metadata file a table already points at.
+ *
+ * When the scheduler shuts down, it stops taking new messages and drains
+ * its mailboxes for a while, then lets the messages being sent finish. The
+ * messages left are kept by the journal if it is enabled, or else written
+ * to a handoff file, and queued again when the scheduler starts.
  *
  * @author wwong
  */
@@ -45,22 +123,114 @@ public class Scheduler
   private static final Logger log =
       LoggerFactory.getLogger(SnowflakeIcebergListener.class);
 
-  // Mapping between a table and a queue of messages for that table.
-  // When a queue is initialized, a task is also created. Therefore, the only
-  // time this cache may be accessed is while enqueueing a messages.
-  // Although this is actually a deque, we treat this as a queue.
-  private final LoadingCache<TableKey, BlockingDeque<Command>> messageQueues;
+  // Mapping between a table and the mailbox of messages for that table
+  private final ConcurrentHashMap<TableKey, TableMailbox<TableKey>> mailboxes =
+      new ConcurrentHashMap<>();
+
+  // The estimated memory of a mailbox entry, not counting its command
+  private static final long ENTRY_SIZE_IN_BYTES = 96;
+
+  // Bounds the messages held in memory by all mailboxes
+  private final QueueBudget budget;
+
+  private final QueueBudget.OverloadPolicy overloadPolicy;
+
+  private final long blockTimeoutMillis;
+
+  // Null unless the overload policy is to spill
+  private final SpillFile spillFile;
+
+  // The number of messages spilled to disk
+  private final AtomicLong spilledMessages = new AtomicLong();
+
+  private final Counter overBudgetCounter;
+
+  private final Counter droppedCounter;
+
+  private final Counter spilledCounter;
+
+  // Null if the journal is disabled
+  private final CommandJournal journal;
+
+  // Null if no handoff file is configured
+  private final File handoffFile;
+
+  // Null if dead letters are disabled
+  private final DeadLetterStore deadLetters;
+
+  // Cleared when shutting down, so that new messages are handed off
+  private volatile boolean accepting = true;
+
+  // Cleared once draining is over, so that tables stop taking messages
+  private volatile boolean processing = true;
+
+  // The message each table is processing, so that it can be handed off if
+  // it doesn't finish before shutdown
+  private final ConcurrentHashMap<TableKey, TableMailbox.Entry> inFlight =
+      new ConcurrentHashMap<>();
+
+  // Mapping from the new name of a renamed or moved table to the mailbox its
+  // rename was queued in, so that the rename runs after the messages queued
+  // under the old name, and later messages run after the rename
+  private final ConcurrentHashMap<TableKey, TableKey> renameRoutes =
+      new ConcurrentHashMap<>();
+
+  // Guards the routes, and makes routing a message and offering it to its
+  // mailbox atomic with respect to retiring the routes
+  private final ReentrantLock routeLock = new ReentrantLock();
 
   // The worker pool
   private final ExecutorService threadPool;
 
-  // To prevent other queues from starving, only execute a certain number of
-  // statements per 'round' of processing.
-  private static final int MAX_STATEMENTS_PER_ROUND = 10;
+  // Decides which mailbox is processed next, and how many of its messages
+  private final FairDispatcher dispatcher;
 
   // The Snowflake configuration
   private final SnowflakeConf snowflakeConf;
 
+  private final RetryPolicy retryPolicy;
+
+  // Schedules retries of failed commands after their backoff delay
+  private final ScheduledExecutorService retryTimer;
+
+  // Null if the circuit breaker is disabled
+  private final CircuitBreaker circuitBreaker;
+
+  // Null if the adaptive concurrency limit is disabled
+  private final ConcurrencyLimiter concurrencyLimiter;
+
+  // Null if rate limiting is disabled
+  private final RateLimiter rateLimiter;
+
+  private final boolean coalescingEnabled;
+
+  private final long debounceMillis;
+
+  private final long maxStalenessMillis;
+
+  private final Counter coalescedCounter;
+
+  // The last version applied to each table, null if stale commands aren't
+  // discarded
+  private final VersionIndex versionIndex;
+
+  private final Counter staleCounter;
+
+  // The tables known to exist in Snowflake, null if the registry is disabled
+  private final TableRegistry tableRegistry;
+
+  // Null if the registry isn't saved
+  private final File tableRegistryFile;
+
+  // Lists the tables of databases from Snowflake, null if the registry is
+  // disabled
+  private final ExecutorService registrySeeder;
+
+  // The lowercase databases being seeded
+  private final Set<String> seedingDatabases = ConcurrentHashMap.newKeySet();
+
+  private final Counter redundantCounter;
+
   /**
    * Constructor for the scheduler
    * @param threadPoolCount Number of worker threads to use
@@ -71,26 +241,249 @@ public class Scheduler
   {
     Preconditions.checkArgument(threadPoolCount > 0);
     Preconditions.checkNotNull(snowflakeConf);
-    this.threadPool = Executors.newFixedThreadPool(threadPoolCount);
+    this.threadPool = WorkerPools.newWorkerPool(threadPoolCount, snowflakeConf);
+    // A table waiting for a retry or a debounce window holds its turn
+    // without holding a worker, so more tables than workers may be active.
+    // With virtual threads the connection pool is the scarce resource, so
+    // no more tables are active than it has connections.
+    this.dispatcher = new FairDispatcher(
+        threadPool,
+        snowflakeConf.getInt(
+            SnowflakeConf.ConfVars.SNOWFLAKE_SCHEDULING_MAX_ACTIVE_TABLES.getVarname(),
+            WorkerPools.useVirtualThreads(snowflakeConf)
+                ? SnowflakeConnectionPool.getMaxSize(snowflakeConf)
+                : 4 * threadPoolCount),
+        snowflakeConf);
     this.snowflakeConf = snowflakeConf;
-    this.messageQueues = CacheBuilder.newBuilder()
-        .removalListener(
-            (RemovalListener<TableKey, BlockingDeque<Command>>)
-                removal -> log.info(String.format("Removing queue %s from cache",
-                                                  removal.getKey())))
-        .build(
-            new CacheLoader<TableKey, BlockingDeque<Command>>()
-            {
-              @ParametersAreNonnullByDefault
-              public BlockingDeque<Command> load(TableKey key)
-              {
-                // Submit a task when a queue is created. This ensures that
-                // a task is created for each queue in the cache.
-                BlockingDeque<Command> queue = new LinkedBlockingDeque<>();
-                threadPool.submit(() -> doWork(key, queue));
-                return queue;
-              }
-            });
+    this.retryPolicy = RetryPolicy.fromConf(snowflakeConf);
+    boolean circuitBreakerEnabled = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CIRCUIT_BREAKER_ENABLED.getVarname(), false);
+    this.circuitBreaker = circuitBreakerEnabled
+        ? SnowflakeClient.getCircuitBreaker(snowflakeConf) : null;
+    boolean adaptiveConcurrencyEnabled = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONCURRENCY_ADAPTIVE_ENABLED.getVarname(), false);
+    this.concurrencyLimiter = adaptiveConcurrencyEnabled
+        ? new ConcurrencyLimiter(threadPoolCount, snowflakeConf) : null;
+    this.retryTimer = Executors.newSingleThreadScheduledExecutor(runnable ->
+    {
+      Thread thread = new Thread(runnable, "snowflake-retry-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    boolean rateLimitEnabled = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_RATE_LIMIT_ENABLED.getVarname(), false);
+    this.rateLimiter = rateLimitEnabled
+        ? new RateLimiter(retryTimer, snowflakeConf) : null;
+    this.coalescingEnabled = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_REFRESH_COALESCING_ENABLED.getVarname(), true);
+    this.debounceMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_REFRESH_DEBOUNCE_MILLISECONDS.getVarname(), 0);
+    this.maxStalenessMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_REFRESH_MAX_STALENESS_MILLISECONDS.getVarname(),
+        10000);
+    this.coalescedCounter = ConnectorMetrics.counter("scheduler.coalesced-refreshes");
+    this.versionIndex = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_DEDUP_ENABLED.getVarname(), true)
+        ? new VersionIndex(Math.max(1, snowflakeConf.getInt(
+            SnowflakeConf.ConfVars.SNOWFLAKE_DEDUP_MAX_TABLES.getVarname(), 100000)))
+        : null;
+    this.staleCounter = ConnectorMetrics.counter("scheduler.stale-commands");
+    String tableRegistryPath = snowflakeConf.get(
+        SnowflakeConf.ConfVars.SNOWFLAKE_TABLE_REGISTRY_FILE.getVarname());
+    this.tableRegistryFile = tableRegistryPath == null
+        ? null : new File(tableRegistryPath);
+    this.tableRegistry = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_TABLE_REGISTRY_ENABLED.getVarname(), false)
+        ? openTableRegistry(tableRegistryFile, snowflakeConf.getLong(
+            SnowflakeConf.ConfVars.SNOWFLAKE_TABLE_REGISTRY_SEED_TTL_MILLISECONDS.getVarname(),
+            3600000))
+        : null;
+    this.registrySeeder = tableRegistry == null ? null
+        : Executors.newSingleThreadExecutor(runnable ->
+    {
+      Thread thread = new Thread(runnable, "snowflake-table-registry-seeder");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.redundantCounter = ConnectorMetrics.counter("scheduler.redundant-commands");
+    if (tableRegistry != null)
+    {
+      ConnectorMetrics.gauge("table-registry.size",
+                             (Gauge<Integer>) tableRegistry::size);
+    }
+
+    this.budget = new QueueBudget(
+        snowflakeConf.getLong(
+            SnowflakeConf.ConfVars.SNOWFLAKE_QUEUE_MAX_COMMANDS.getVarname(), 100000),
+        snowflakeConf.getLong(
+            SnowflakeConf.ConfVars.SNOWFLAKE_QUEUE_MAX_BYTES.getVarname(), 256L << 20));
+    this.overloadPolicy = QueueBudget.OverloadPolicy.fromName(snowflakeConf.get(
+        SnowflakeConf.ConfVars.SNOWFLAKE_QUEUE_OVERLOAD_POLICY.getVarname(),
+        "coalesce-only"));
+    this.blockTimeoutMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_QUEUE_BLOCK_TIMEOUT_MILLISECONDS.getVarname(),
+        10000);
+    this.spillFile = overloadPolicy == QueueBudget.OverloadPolicy.SPILL
+        ? createSpillFile(snowflakeConf) : null;
+    this.overBudgetCounter = ConnectorMetrics.counter("scheduler.over-budget");
+    this.droppedCounter = ConnectorMetrics.counter("scheduler.dropped");
+    this.spilledCounter = ConnectorMetrics.counter("scheduler.spilled");
+    ConnectorMetrics.gauge("scheduler.active-tables",
+                           (Gauge<Integer>) mailboxes::size);
+    ConnectorMetrics.gauge("scheduler.waiting-turns",
+                           (Gauge<Integer>) dispatcher::getWaitingCount);
+    ConnectorMetrics.gauge("scheduler.running-turns",
+                           (Gauge<Integer>) dispatcher::getRunningCount);
+    ConnectorMetrics.gauge("scheduler.queued-messages",
+                           (Gauge<Long>) this::getQueuedMessageCount);
+    ConnectorMetrics.gauge("scheduler.queued-bytes",
+                           (Gauge<Long>) budget::getBytes);
+    ConnectorMetrics.gauge("scheduler.budget-utilization",
+                           (Gauge<Double>) () -> Math.max(
+                               (double) budget.getCommands() / budget.getMaxCommands(),
+                               (double) budget.getBytes() / budget.getMaxBytes()));
+    ConnectorMetrics.gauge("scheduler.spilled-messages",
+                           (Gauge<Long>) spilledMessages::get);
+    ConnectorMetrics.gauge("scheduler.spilled-bytes",
+                           (Gauge<Long>) () -> spillFile == null
+                               ? 0L : spillFile.getLiveBytes());
+
+    this.journal = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_JOURNAL_ENABLED.getVarname(), false)
+        ? openJournal(snowflakeConf) : null;
+    this.deadLetters = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_DEAD_LETTER_ENABLED.getVarname(), false)
+        ? openDeadLetterStore(snowflakeConf) : null;
+    String handoffPath = snowflakeConf.get(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SHUTDOWN_HANDOFF_FILE.getVarname());
+    this.handoffFile = handoffPath == null ? null : new File(handoffPath);
+
+    // Commands left by the last run are queued last, once every field is
+    // set, as workers may start processing them right away
+    if (journal != null)
+    {
+      ConnectorMetrics.gauge("journal.live-commands",
+                             (Gauge<Integer>) journal::getLiveCommandCount);
+      ConnectorMetrics.gauge("journal.segments",
+                             (Gauge<Integer>) journal::getSegmentCount);
+      List<PregeneratedCommand> recovered = journal.getRecoveredCommands();
+      if (!recovered.isEmpty())
+      {
+        log.info(String.format("Queueing %s commands recovered from the journal",
+                               recovered.size()));
+      }
+      recovered.forEach(this::enqueueMessage);
+      journal.deleteRecoveredSegments();
+    }
+    if (handoffFile != null && handoffFile.exists())
+    {
+      try
+      {
+        List<PregeneratedCommand> handedOff = HandoffFile.read(handoffFile);
+        log.info(String.format("Queueing %s commands handed off at the last shutdown",
+                               handedOff.size()));
+        handedOff.forEach(this::enqueueMessage);
+      }
+      catch (IOException e)
+      {
+        log.error("Could not read the handoff file " + handoffFile + ": " + e);
+      }
+      if (!handoffFile.delete())
+      {
+        log.warn("Could not delete the handoff file " + handoffFile);
+      }
+    }
+  }
+
+  private static TableRegistry openTableRegistry(File file, long seedTtlMillis)
+  {
+    if (file != null && file.exists())
+    {
+      try
+      {
+        TableRegistry registry = TableRegistry.load(file, seedTtlMillis);
+        log.info(String.format("Loaded %s tables from the table registry %s",
+                               registry.size(), file));
+        return registry;
+      }
+      catch (IOException e)
+      {
+        log.error("Could not load the table registry " + file +
+                      ", starting empty: " + e);
+      }
+    }
+    return new TableRegistry(1024, seedTtlMillis);
+  }
+
+  private static CommandJournal openJournal(SnowflakeConf snowflakeConf)
+  {
+    String directory = snowflakeConf.get(
+        SnowflakeConf.ConfVars.SNOWFLAKE_JOURNAL_DIRECTORY.getVarname(),
+        new File(System.getProperty("java.io.tmpdir"),
+                 "snowflake-hive-metastore-journal").getPath());
+    try
+    {
+      return new CommandJournal(
+          new File(directory),
+          snowflakeConf.getLong(
+              SnowflakeConf.ConfVars.SNOWFLAKE_JOURNAL_SEGMENT_SIZE.getVarname(),
+              64L << 20),
+          snowflakeConf.getLong(
+              SnowflakeConf.ConfVars.SNOWFLAKE_JOURNAL_SYNC_INTERVAL_MILLISECONDS.getVarname(),
+              10),
+          snowflakeConf.getBoolean(
+              SnowflakeConf.ConfVars.SNOWFLAKE_JOURNAL_SYNC_ON_ENQUEUE.getVarname(),
+              false));
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException("Could not open the journal", e);
+    }
+  }
+
+  private static DeadLetterStore openDeadLetterStore(SnowflakeConf snowflakeConf)
+  {
+    String directory = snowflakeConf.get(
+        SnowflakeConf.ConfVars.SNOWFLAKE_DEAD_LETTER_DIRECTORY.getVarname(),
+        new File(System.getProperty("java.io.tmpdir"),
+                 "snowflake-hive-metastore-dead-letters").getPath());
+    try
+    {
+      return new DeadLetterStore(
+          new File(directory),
+          snowflakeConf.getInt(
+              SnowflakeConf.ConfVars.SNOWFLAKE_DEAD_LETTER_MAX_ENTRIES.getVarname(),
+              10000));
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException("Could not open the dead letter store", e);
+    }
+  }
+
+  private static SpillFile createSpillFile(SnowflakeConf snowflakeConf)
+  {
+    String directory = snowflakeConf.get(
+        SnowflakeConf.ConfVars.SNOWFLAKE_QUEUE_SPILL_DIRECTORY.getVarname(),
+        System.getProperty("java.io.tmpdir"));
+    long maxBytes = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_QUEUE_SPILL_MAX_BYTES.getVarname(), 1L << 30);
+    try
+    {
+      return new SpillFile(new File(directory), maxBytes);
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException("Could not create the spill file", e);
+    }
+  }
+
+  /**
+   * @return the number of messages in all mailboxes, in memory or spilled
+   */
+  public long getQueuedMessageCount()
+  {
+    return budget.getCommands() + spilledMessages.get();
   }
 
   /**
@@ -98,101 +491,1126 @@ public class Scheduler
    * @param message the message
    */
   public void enqueueMessage(Command message)
+  {
+    enqueueMessage(message, null);
+  }
+
+  /**
+   * Enqueues a message, and tells once it is processed whether it was
+   * applied to Snowflake
+   * @param message the message
+   * @return a future completed with true once the message is applied, or
+   *         discarded as it would change nothing, or superseded by a newer
+   *         message of its table, and with false once it failed after every
+   *         retry. It isn't completed if the message is dropped or handed
+   *         off.
+   */
+  public CompletableFuture<Boolean> submit(Command message)
+  {
+    CompletableFuture<Boolean> applied = new CompletableFuture<>();
+    enqueueMessage(message, applied::complete);
+    return applied;
+  }
+
+  /**
+   * Helper method that enqueues a message
+   * @param message the message
+   * @param onDone told once the message is processed or superseded whether
+   *               it was applied, see {@link #submit(Command)}. May be null.
+   */
+  private void enqueueMessage(Command message, Consumer<Boolean> onDone)
   {
     Preconditions.checkNotNull(message);
-    Queue<Command> messageQueue;
-    try
+    if (!accepting)
+    {
+      handOffLate(message);
+      return;
+    }
+    if (isStale(message))
     {
-      // If there is no key in the cache, a queue will be initialized
-      messageQueue = messageQueues.get(getKeyFromMessage(message));
+      staleCounter.inc();
+      log.info(String.format("Discarding a stale refresh of %s.%s to version %s",
+                             message.getDatabaseName(), message.getTableName(),
+                             message.getVersion()));
+      if (onDone != null)
+      {
+        onDone.accept(true);
+      }
+      return;
     }
-    catch (ExecutionException e)
+    TableKey key = getKeyFromMessage(message);
+    TableMailbox.Entry entry = createEntry(key, message);
+    if (entry == null)
     {
-      log.error("Could not initialize queue " + e);
       return;
     }
-    Preconditions.checkNotNull(messageQueue);
-    log.info("Enqueueing message. Current count (before enqueuing): " + messageQueue.size());
-    messageQueue.add(message);
+    entry.setOnDone(onDone);
+    if (journal != null)
+    {
+      try
+      {
+        entry.setJournalSequence(journal.append(message));
+      }
+      catch (Exception e)
+      {
+        log.error("Could not journal the message, it will not survive a " +
+                      "restart: " + e);
+      }
+    }
+
+    TableMailbox<TableKey> mailbox;
+    TableMailbox.Entry previous;
+    // Without renames in the queues, messages go to their own table
+    boolean routed = isRename(message) || !renameRoutes.isEmpty();
+    if (routed)
+    {
+      routeLock.lock();
+    }
+    try
+    {
+      if (routed)
+      {
+        key = route(key, message);
+      }
+      do
+      {
+        // If there is no mailbox for the table, one will be created
+        mailbox = mailboxes.computeIfAbsent(key, TableMailbox::new);
+        previous = mailbox.offer(entry);
+      }
+      while (previous == null);
+    }
+    finally
+    {
+      if (routed)
+      {
+        routeLock.unlock();
+      }
+    }
+
+    if (coalescingEnabled && mailbox.supersede(previous, entry))
+    {
+      release(previous);
+      done(previous, true);
+      coalescedCounter.inc();
+    }
+
+    log.info("Enqueueing message. Current count (after enqueuing): " +
+                 getQueuedMessageCount());
+    schedule(mailbox);
   }
 
   /**
-   * Helper method that does some work and queue up more work if necessary
-   * @param key The key associated with the queue
-   * @param queue The queue to process
+   * Helper method that counts a message against the budget and creates its
+   * mailbox entry, applying the overload policy if it doesn't fit
+   * @param key The key of the mailbox of the message
+   * @param message The message
+   * @return the entry, or null if the message was dropped
    */
-  private void doWork(TableKey key, BlockingDeque<Command> queue)
+  private TableMailbox.Entry createEntry(TableKey key, Command message)
   {
-    try
+    long now = System.currentTimeMillis();
+    long size = message.getEstimatedSizeInBytes() + ENTRY_SIZE_IN_BYTES;
+    if (!budget.hasRoom(size))
     {
-      boolean continueWork = processMessages(queue, snowflakeConf);
-      if (continueWork)
+      overBudgetCounter.inc();
+      switch (overloadPolicy)
       {
-        threadPool.submit(() -> doWork(key, queue));
+        case COALESCE_ONLY:
+          break;
+        case BLOCK:
+          try
+          {
+            if (!budget.awaitRoom(size, blockTimeoutMillis))
+            {
+              drop(message, "the queues stayed over budget");
+              return null;
+            }
+          }
+          catch (InterruptedException e)
+          {
+            Thread.currentThread().interrupt();
+            drop(message, "the thread was interrupted");
+            return null;
+          }
+          break;
+        case DROP_OLDEST:
+          // Make room from the table itself, and if it has nothing left to
+          // drop, such as a new table, drop the new message
+          TableMailbox<TableKey> mailbox = mailboxes.get(key);
+          TableMailbox.Entry oldest;
+          while (!budget.hasRoom(size) && mailbox != null
+              && (oldest = mailbox.removeOldest()) != null)
+          {
+            release(oldest);
+            droppedCounter.inc();
+            log.warn("Queues are over budget, dropped the oldest message of " + key);
+          }
+          if (!budget.hasRoom(size))
+          {
+            drop(message, "the queues are over budget");
+            return null;
+          }
+          break;
+        case SPILL:
+          return spill(message, now);
       }
-      else
+    }
+
+    budget.acquire(size);
+    return new TableMailbox.Entry(message, size, now, now);
+  }
+
+  /**
+   * Helper method that writes a message to the spill file
+   * @param message The message
+   * @param now The current time
+   * @return the entry, or null if the message was dropped
+   */
+  private TableMailbox.Entry spill(Command message, long now)
+  {
+    try
+    {
+      byte[] record = CommandCodec.encode(message);
+      long offset = spillFile.write(record);
+      if (offset < 0)
       {
-        // It's possible that an item is enqueued right before the queue is
-        // invalidated. We expect this to be exceedingly rare, so we'll just
-        // re-enqueue those messages in a new queue, knowing that the order
-        // may be incorrect if new messages come in before the messages are
-        // re-enqueued.
-        messageQueues.invalidate(key);
+        drop(message, "the spill file is full");
+        return null;
+      }
+      spilledCounter.inc();
+      spilledMessages.incrementAndGet();
+      return new TableMailbox.Entry(message.isRefresh(), message.getVersion(),
+                                    ENTRY_SIZE_IN_BYTES,
+                                    offset, record.length, now);
+    }
+    catch (Exception e)
+    {
+      drop(message, "it could not be spilled: " + e);
+      return null;
+    }
+  }
+
+  private void drop(Command message, String reason)
+  {
+    droppedCounter.inc();
+    log.error(String.format("Dropping message for %s.%s, as %s",
+                            message.getDatabaseName(),
+                            message.getTableName(),
+                            reason));
+  }
+
+  /**
+   * Helper method that gives back the budget of an entry that was removed
+   * from its mailbox without being processed
+   * @param entry The entry
+   */
+  private void release(TableMailbox.Entry entry)
+  {
+    acknowledge(entry);
+    if (!entry.isSpilled())
+    {
+      budget.release(entry.getSizeInBytes());
+      return;
+    }
+    spilledMessages.decrementAndGet();
+    try
+    {
+      spillFile.discard(entry.getSpillLength());
+    }
+    catch (IOException e)
+    {
+      log.warn("Could not truncate the spill file: " + e);
+    }
+  }
+
+  /**
+   * Helper method that gives back the budget of an entry taken from its
+   * mailbox, and reads it back if it was spilled
+   * @param entry The entry
+   * @return an entry holding the message in memory, or null if the message
+   *         could not be read back
+   */
+  private TableMailbox.Entry take(TableMailbox.Entry entry)
+  {
+    if (!entry.isSpilled())
+    {
+      budget.release(entry.getSizeInBytes());
+      return entry;
+    }
+    spilledMessages.decrementAndGet();
+    try
+    {
+      Command message = CommandCodec.decode(
+          spillFile.read(entry.getSpillOffset(), entry.getSpillLength()));
+      TableMailbox.Entry loaded = new TableMailbox.Entry(
+          message, 0, entry.getFirstQueuedMillis(), entry.getLastQueuedMillis());
+      loaded.setJournalSequence(entry.getJournalSequence());
+      loaded.setOnDone(entry.getOnDone());
+      return loaded;
+    }
+    catch (IOException e)
+    {
+      droppedCounter.inc();
+      acknowledge(entry);
+      log.error("Could not read a spilled message back: " + e);
+      return null;
+    }
+  }
 
-        List<Command> remaining = new ArrayList<>();
-        queue.drainTo(remaining);
-        remaining.forEach(this::enqueueMessage);
+  /**
+   * Helper method that marks the message a table was processing as done
+   * @param mailbox The mailbox of the table
+   * @param entry The entry of the message
+   * @param applied Whether the message was applied, see
+   *                {@link #submit(Command)}
+   */
+  private void finish(TableMailbox<TableKey> mailbox, TableMailbox.Entry entry,
+                      boolean applied)
+  {
+    inFlight.remove(mailbox.getKey(), entry);
+    acknowledge(entry);
+    done(entry, applied);
+  }
+
+  /**
+   * Helper method that tells whoever waits for a message that it is
+   * processed or superseded
+   * @param entry The entry of the message
+   * @param applied Whether the message was applied, see
+   *                {@link #submit(Command)}
+   */
+  private static void done(TableMailbox.Entry entry, boolean applied)
+  {
+    Consumer<Boolean> onDone = entry.getOnDone();
+    if (onDone != null)
+    {
+      entry.setOnDone(null);
+      onDone.accept(applied);
+    }
+  }
+
+  /**
+   * Stops taking new messages, drains the mailboxes and stops the workers.
+   * New messages and the messages left in the mailboxes are kept by the
+   * journal if it is enabled, or else written to the handoff file if one is
+   * configured, and are dropped otherwise.
+   * @param drainTimeoutMillis the maximum time to keep processing messages
+   * @param inFlightTimeoutMillis the maximum time to wait for the messages
+   *                              being sent once draining is over
+   * @return whether every message was processed
+   */
+  public synchronized boolean shutdown(long drainTimeoutMillis,
+                                       long inFlightTimeoutMillis)
+  {
+    if (!accepting)
+    {
+      return false;
+    }
+    accepting = false;
+    log.info(String.format("Shutting down the scheduler, draining %s messages",
+                           getQueuedMessageCount()));
+
+    boolean drained = await(() -> getQueuedMessageCount() == 0
+                                && dispatcher.getWaitingCount() == 0
+                                && dispatcher.getRunningCount() == 0,
+                            drainTimeoutMillis);
+
+    // Let the messages being sent finish, then stop every thread that could
+    // take messages from the mailboxes
+    processing = false;
+    await(() -> dispatcher.getRunningCount() == 0, inFlightTimeoutMillis);
+    retryTimer.shutdownNow();
+    if (registrySeeder != null)
+    {
+      registrySeeder.shutdownNow();
+    }
+    threadPool.shutdown();
+    try
+    {
+      if (!threadPool.awaitTermination(inFlightTimeoutMillis, TimeUnit.MILLISECONDS))
+      {
+        log.warn("Workers did not stop in time");
       }
     }
     catch (InterruptedException e)
     {
-      // Terminate on interrupt
-      log.error("Thread interrupted: " + e);
       Thread.currentThread().interrupt();
     }
+
+    List<Command> remaining = takeRemainingMessages();
+    if (journal != null)
+    {
+      try
+      {
+        journal.close();
+        log.info(String.format("%s messages are kept by the journal",
+                               remaining.size()));
+      }
+      catch (IOException e)
+      {
+        log.error("Could not close the journal: " + e);
+      }
+    }
+    else
+    {
+      handOff(remaining);
+    }
+    if (deadLetters != null)
+    {
+      try
+      {
+        deadLetters.close();
+      }
+      catch (IOException e)
+      {
+        log.error("Could not close the dead letter store: " + e);
+      }
+    }
+    if (tableRegistry != null && tableRegistryFile != null)
+    {
+      try
+      {
+        tableRegistry.save(tableRegistryFile);
+      }
+      catch (IOException e)
+      {
+        log.error("Could not save the table registry " + tableRegistryFile +
+                      ": " + e);
+      }
+    }
+    log.info("Scheduler shut down");
+    return drained && remaining.isEmpty();
+  }
+
+  /**
+   * Queues the dead letters again, oldest first. A dead letter is removed
+   * from the store once its command is processed or superseded, so that
+   * the commands dropped or not sent before shutdown are kept. Commands
+   * that fail again become new dead letters, and aren't replayed again by
+   * this call.
+   * The commands are queued in batches, each once the previous one is
+   * mostly sent, so that they go through the rate limits and the statement
+   * batcher without filling the queues. Replaying stops if the queues
+   * don't drain in time.
+   * @param batchSize the number of commands queued at a time
+   * @param maxCount the maximum number of dead letters to replay
+   * @param batchTimeoutMillis the maximum time to wait for a batch to be
+   *                           mostly sent
+   * @return the number of dead letters queued
+   */
+  public int replayDeadLetters(int batchSize, int maxCount,
+                               long batchTimeoutMillis)
+  {
+    Preconditions.checkArgument(batchSize > 0);
+    if (deadLetters == null)
+    {
+      log.warn("Dead letters are disabled, nothing to replay");
+      return 0;
+    }
+
+    // Commands that fail again aren't replayed again
+    long endSequence = deadLetters.getNextSequence();
+    long nextSequence = 0;
+    int replayed = 0;
+    while (replayed < maxCount && accepting)
+    {
+      // Dead letters of earlier batches may still be waiting to be removed
+      List<DeadLetterStore.DeadLetter> batch = deadLetters.list(
+          Math.min(batchSize, maxCount - replayed), nextSequence, endSequence);
+      if (batch.isEmpty())
+      {
+        break;
+      }
+      for (DeadLetterStore.DeadLetter deadLetter : batch)
+      {
+        // A new failure is a new dead letter, only this one is removed
+        enqueueMessage(deadLetter.getCommand(),
+                       applied -> deadLetters.remove(deadLetter));
+      }
+      nextSequence = batch.get(batch.size() - 1).getSequence() + 1;
+      replayed += batch.size();
+      log.info(String.format("Replayed %s dead letters", replayed));
+
+      // Let most of the batch be sent before queueing the next one
+      if (!await(() -> getQueuedMessageCount() < batchSize / 2 + 1 || !accepting,
+                 batchTimeoutMillis))
+      {
+        log.warn(String.format("The queues didn't drain within %s ms, " +
+                                   "stopping the replay of dead letters",
+                               batchTimeoutMillis));
+        break;
+      }
+    }
+    return replayed;
+  }
+
+  /**
+   * @return the dead letter store, or null if dead letters are disabled
+   */
+  public DeadLetterStore getDeadLetterStore()
+  {
+    return deadLetters;
+  }
+
+  /**
+   * @return whether the scheduler is shutting down or shut down
+   */
+  public boolean isShutDown()
+  {
+    return !accepting;
+  }
+
+  /**
+   * Helper method that waits for a condition, polling it
+   * @return whether the condition was met before the timeout
+   */
+  private static boolean await(BooleanSupplier condition,
+                               long timeoutMillis)
+  {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (!condition.getAsBoolean())
+    {
+      if (System.currentTimeMillis() >= deadline)
+      {
+        return false;
+      }
+      try
+      {
+        Thread.sleep(10);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Helper method that takes the messages left once the workers are
+   * stopped, including the messages that were being sent, table by table
+   * @return the messages, in the order they should be sent
+   */
+  private List<Command> takeRemainingMessages()
+  {
+    List<Command> remaining = new ArrayList<>();
+    for (TableMailbox<TableKey> mailbox : mailboxes.values())
+    {
+      TableMailbox.Entry current = inFlight.remove(mailbox.getKey());
+      if (current != null)
+      {
+        remaining.add(current.getCommand());
+      }
+      TableMailbox.Entry polled;
+      while ((polled = mailbox.poll()) != null)
+      {
+        TableMailbox.Entry next = take(polled);
+        if (next != null)
+        {
+          remaining.add(next.getCommand());
+        }
+      }
+    }
+    return remaining;
+  }
+
+  /**
+   * Helper method that writes messages to the handoff file
+   * @param messages The messages
+   */
+  private void handOff(List<Command> messages)
+  {
+    if (messages.isEmpty())
+    {
+      return;
+    }
+    if (handoffFile != null)
+    {
+      try
+      {
+        int written = HandoffFile.append(handoffFile, messages);
+        log.info(String.format("Handed off %s messages to %s", written, handoffFile));
+        return;
+      }
+      catch (IOException e)
+      {
+        log.error("Could not write the handoff file " + handoffFile + ": " + e);
+      }
+    }
+    droppedCounter.inc(messages.size());
+    log.error(String.format("Dropping %s messages at shutdown, enable the " +
+                                "journal or set a handoff file to keep them",
+                            messages.size()));
+  }
+
+  /**
+   * Helper method that keeps a message that arrived while shutting down
+   * @param message The message
+   */
+  private void handOffLate(Command message)
+  {
+    if (journal != null)
+    {
+      try
+      {
+        // Never acknowledged, so it is queued again on restart
+        journal.append(message);
+        return;
+      }
+      catch (Exception e)
+      {
+        // The journal is closed
+      }
+    }
+    handOff(Collections.singletonList(message));
+  }
+
+  /**
+   * Helper method that marks a message as done in the journal, so that it
+   * isn't queued again after a restart
+   * @param entry The entry of the message
+   */
+  private void acknowledge(TableMailbox.Entry entry)
+  {
+    if (journal != null && entry.getJournalSequence() >= 0)
+    {
+      journal.acknowledge(entry.getJournalSequence());
+    }
+  }
+
+  /**
+   * Helper method that submits a task for a mailbox, unless the mailbox is
+   * empty or a task is already submitted
+   * @param mailbox The mailbox
+   */
+  private void schedule(TableMailbox<TableKey> mailbox)
+  {
+    if (processing && mailbox.trySchedule())
+    {
+      TableMailbox.Entry next = mailbox.peek();
+      dispatcher.submit(mailbox.getKey().databaseName,
+                        next != null && !next.isRefresh(),
+                        budget -> doWork(mailbox, budget));
+    }
+  }
+
+  /**
+   * Helper method that does some work and queue up more work if necessary
+   * @param mailbox The mailbox to process
+   * @param budget The maximum number of messages to process
+   * @return a future completed with the number of messages processed
+   */
+  private CompletableFuture<Integer> doWork(TableMailbox<TableKey> mailbox,
+                                            int budget)
+  {
+    try
+    {
+      // The work may complete on another thread, for example if statements
+      // are batched. The thread is free to do other work meanwhile.
+      return processMessages(mailbox, snowflakeConf, 0, budget)
+          .whenComplete((ignored, t) -> afterWork(mailbox, t));
+    }
     catch (Throwable t)
     {
-      log.error("Encountered error while processing queue: " + t);
+      afterWork(mailbox, t);
+      CompletableFuture<Integer> failed = new CompletableFuture<>();
+      failed.completeExceptionally(t);
+      return failed;
+    }
+  }
 
+  /**
+   * Helper method that queues up more work for a mailbox if necessary, or
+   * retires the mailbox if it is empty
+   * @param mailbox The mailbox that was processed
+   * @param error The error encountered while processing the mailbox, if any
+   */
+  private void afterWork(TableMailbox<TableKey> mailbox, Throwable error)
+  {
+    if (error != null)
+    {
       // Skip the previous work and continue with new work
-      threadPool.submit(() -> doWork(key, queue));
+      log.error("Encountered error while processing queue: " + error);
+    }
+
+    if (mailbox.tryRetire())
+    {
+      mailboxes.remove(mailbox.getKey(), mailbox);
+      if (!renameRoutes.isEmpty())
+      {
+        retireRoutes(mailbox.getKey());
+      }
+      return;
     }
+
+    // A message may be enqueued after the mailbox is found empty but before
+    // the flag is cleared, so check again after clearing it
+    mailbox.unschedule();
+    schedule(mailbox);
   }
 
   /**
-   * Process messages in a queue with the same key. Assumes that there will
-   * be an element in the queue at some point.
-   * @param messages the messages in the queue
+   * Process messages in a mailbox, one after the other.
+   * @param mailbox the mailbox
    * @param snowflakeConf the Snowflake configuration
-   * @return whether there is still more work to be done
-   * @throws InterruptedException when the thread is interrupted
+   * @param numExecuted the number of messages processed so far in this turn
+   * @param budget the maximum number of messages to process in this turn
+   * @return a future completed with the number of messages processed when
+   *         the turn is over
+   */
+  private CompletableFuture<Integer> processMessages(
+      TableMailbox<TableKey> mailbox,
+      SnowflakeConf snowflakeConf,
+      int numExecuted,
+      int budget)
+  {
+    // Relinquish this thread once the turn's budget is used, to let other
+    // tables go
+    TableMailbox.Entry polled =
+        numExecuted < budget && processing ? mailbox.poll() : null;
+    if (polled == null)
+    {
+      log.info("Queue processed.");
+      return CompletableFuture.completedFuture(numExecuted);
+    }
+    TableMailbox.Entry next = take(polled);
+    if (next == null)
+    {
+      return processMessages(mailbox, snowflakeConf, numExecuted + 1, budget);
+    }
+    inFlight.put(mailbox.getKey(), next);
+
+    // Errors are logged, then the command is skipped
+    return debounce(mailbox, next)
+        .thenCompose(
+            queued ->
+            {
+              CompletableFuture<List<StatementOutcome>> outcomes =
+                  new CompletableFuture<>();
+              executeWithRetries(mailbox, queued, 0,
+                                 System.currentTimeMillis(), outcomes);
+              return outcomes;
+            })
+        .handle((result, t) ->
+                {
+                  if (t != null)
+                  {
+                    log.error("Error executing command: " + t);
+                  }
+                  return null;
+                })
+        .thenComposeAsync(
+            ignored -> processMessages(mailbox, snowflakeConf, numExecuted + 1,
+                                       budget),
+            threadPool);
+  }
+
+  /**
+   * Helper method that coalesces a refresh with the refreshes behind it,
+   * and holds it back until the debounce window is over
+   * @param mailbox the mailbox the command was polled from
+   * @param queued the command
+   * @return a future of the command to dispatch
+   */
+  private CompletableFuture<TableMailbox.Entry> debounce(
+      TableMailbox<TableKey> mailbox,
+      TableMailbox.Entry queued)
+  {
+    TableMailbox.Entry latest = coalesce(mailbox, queued);
+    if (debounceMillis <= 0 || !latest.isRefresh())
+    {
+      return CompletableFuture.completedFuture(latest);
+    }
+
+    long dispatchMillis = Math.min(
+        latest.getLastQueuedMillis() + debounceMillis,
+        latest.getFirstQueuedMillis() + maxStalenessMillis);
+    long delayMillis = dispatchMillis - System.currentTimeMillis();
+    if (delayMillis <= 0)
+    {
+      return CompletableFuture.completedFuture(latest);
+    }
+
+    CompletableFuture<TableMailbox.Entry> delayed = new CompletableFuture<>();
+    retryTimer.schedule(() -> delayed.complete(latest), delayMillis,
+                        TimeUnit.MILLISECONDS);
+    return delayed.thenComposeAsync(waited -> debounce(mailbox, waited),
+                                    threadPool);
+  }
+
+  /**
+   * Helper method that replaces a refresh with the refreshes right behind
+   * it in its mailbox, so that only the newest metadata file is refreshed.
+   * Must be called by the task processing the mailbox.
+   * @param mailbox the mailbox the command was polled from
+   * @param queued the command
+   * @return the command to dispatch instead
+   */
+  private TableMailbox.Entry coalesce(TableMailbox<TableKey> mailbox,
+                                      TableMailbox.Entry queued)
+  {
+    if (!coalescingEnabled || !queued.isRefresh())
+    {
+      return queued;
+    }
+
+    TableMailbox.Entry latest = queued;
+    TableMailbox.Entry polled;
+    while ((polled = mailbox.pollIf(TableMailbox.Entry::isRefresh)) != null)
+    {
+      TableMailbox.Entry next = take(polled);
+      if (next == null)
+      {
+        continue;
+      }
+      if (next.getVersion() != Command.NO_VERSION
+          && next.getVersion() < latest.getVersion())
+      {
+        // Arrived late with an older version
+        staleCounter.inc();
+        acknowledge(next);
+        done(next, true);
+        continue;
+      }
+      coalescedCounter.inc();
+      acknowledge(latest);
+      done(latest, true);
+      latest = new TableMailbox.Entry(next.getCommand(), 0,
+                                      latest.getFirstQueuedMillis(),
+                                      next.getLastQueuedMillis());
+      latest.setJournalSequence(next.getJournalSequence());
+      latest.setOnDone(next.getOnDone());
+      inFlight.put(mailbox.getKey(), latest);
+    }
+    return latest;
+  }
+
+  /**
+   * Helper method that executes a command, and retries it after a backoff
+   * delay if it fails with a retryable error
+   * @param mailbox the mailbox the command was polled from
+   * @param queued the command to execute
+   * @param retryNumber the number of retries done so far
+   * @param firstAttemptMillis the time of the first attempt
+   * @param result the future to complete with the outcome of the last
+   *               attempt
+   */
+  private void executeWithRetries(
+      TableMailbox<TableKey> mailbox,
+      TableMailbox.Entry queued,
+      int retryNumber,
+      long firstAttemptMillis,
+      CompletableFuture<List<StatementOutcome>> result)
+  {
+    // Only this task applies versions to the table, so a command that isn't
+    // stale now won't be once coalesced
+    if (isStale(queued.getCommand()))
+    {
+      staleCounter.inc();
+      finish(mailbox, queued, true);
+      result.complete(Collections.emptyList());
+      return;
+    }
+    if (isRedundant(queued.getCommand()))
+    {
+      redundantCounter.inc();
+      finish(mailbox, queued, true);
+      result.complete(Collections.emptyList());
+      return;
+    }
+
+    // The time waiting for permits doesn't count towards the deadline
+    long requestedMillis = System.currentTimeMillis();
+    TableKey key = mailbox.getKey();
+    whenGranted(
+        rateLimiter == null ? null
+            : rateLimiter.acquire(key.databaseName, key.tableName),
+        token -> whenGranted(
+            circuitBreaker == null ? null : circuitBreaker.acquire(),
+            breakerPermit -> whenGranted(
+                concurrencyLimiter == null ? null : concurrencyLimiter.acquire(),
+                limitPermit -> execute(mailbox, queued, breakerPermit, limitPermit,
+                                       retryNumber,
+                                       firstAttemptMillis + System.currentTimeMillis()
+                                           - requestedMillis,
+                                       result))));
+  }
+
+  /**
+   * Helper method that runs an action once a permit is granted, right away
+   * if it already is
+   * @param permit the future permit, or null if no permit is needed
+   * @param action the action
+   * @param <P> the type of the permit
+   */
+  private <P> void whenGranted(CompletableFuture<P> permit,
+                               Consumer<P> action)
+  {
+    if (permit == null)
+    {
+      action.accept(null);
+    }
+    else if (permit.isDone())
+    {
+      action.accept(permit.join());
+    }
+    else
+    {
+      permit.thenAcceptAsync(action, threadPool);
+    }
+  }
+
+  /**
+   * Helper method that executes a command once, then retries it if
+   * necessary. A refresh is bound to the newest metadata file queued for its
+   * table right before it is sent.
+   * @param mailbox the mailbox the command was polled from
+   * @param queued the command to execute
+   * @param permit the permit from the circuit breaker, or null if there is
+   *               no circuit breaker
+   * @param limitPermit the permit from the concurrency limiter, or null if
+   *                    there is no limiter
+   * @param retryNumber the number of retries done so far
+   * @param firstAttemptMillis the time of the first attempt
+   * @param result the future to complete with the outcome of the last
+   *               attempt
    */
-  private static boolean processMessages(BlockingDeque<Command> messages,
-                                         SnowflakeConf snowflakeConf)
-      throws InterruptedException
+  private void execute(
+      TableMailbox<TableKey> mailbox,
+      TableMailbox.Entry queued,
+      CircuitBreaker.Permit permit,
+      ConcurrencyLimiter.Permit limitPermit,
+      int retryNumber,
+      long firstAttemptMillis,
+      CompletableFuture<List<StatementOutcome>> result)
   {
-    // No item is in the queue when this method is first invoked, but we
-    // expect an element to be queued right after. There's no polling peek,
-    // so just take the next element and put it back
-    Command next = messages.take();
-    messages.addFirst(next);
+    TableMailbox.Entry latest = coalesce(mailbox, queued);
+    CompletableFuture<List<StatementOutcome>> outcome;
+    try
+    {
+      outcome = SnowflakeClient.generateAndExecuteSnowflakeStatementsAsync(
+          latest.getCommand(), snowflakeConf);
+    }
+    catch (Throwable t)
+    {
+      // Handled like a failed execution, so that the permits are recorded
+      outcome = new CompletableFuture<>();
+      outcome.completeExceptionally(t);
+    }
+    outcome.whenComplete((outcomes, t) ->
+    {
+      Throwable error = t instanceof CompletionException && t.getCause() != null
+          ? t.getCause() : t;
+      if (isBorrowTimeout(error))
+      {
+        // Nothing was sent, so wait for a connection again without
+        // counting a failure or a retry
+        if (permit != null)
+        {
+          circuitBreaker.release(permit);
+        }
+        if (limitPermit != null)
+        {
+          concurrencyLimiter.release(limitPermit, latest.isRefresh(), false);
+        }
+        log.info("No connection was free, waiting again: " + error);
+        try
+        {
+          threadPool.execute(
+              () -> executeWithRetries(mailbox, latest, retryNumber,
+                                       firstAttemptMillis, result));
+        }
+        catch (RejectedExecutionException e)
+        {
+          // Shutting down, the command is handed off
+          result.completeExceptionally(error);
+        }
+        return;
+      }
+      // Only errors that may go away count as failures
+      boolean failed = error != null && retryPolicy.isRetryable(error);
+      if (permit != null)
+      {
+        circuitBreaker.record(permit, !failed);
+      }
+      if (limitPermit != null)
+      {
+        concurrencyLimiter.release(limitPermit, latest.isRefresh(), failed);
+      }
+      if (error == null)
+      {
+        recordApplied(latest.getCommand());
+        if (tableRegistry != null)
+        {
+          tableRegistry.applied(latest.getCommand());
+        }
+        finish(mailbox, latest, true);
+        result.complete(outcomes);
+        return;
+      }
+
+      long backoffMillis = retryPolicy.getBackoffMillis(retryNumber);
+      if (!retryPolicy.shouldRetry(
+          error, retryNumber,
+          System.currentTimeMillis() - firstAttemptMillis, backoffMillis))
+      {
+        if (deadLetters != null)
+        {
+          deadLetters.add(latest.getCommand(), error, retryNumber + 1,
+                          firstAttemptMillis);
+        }
+        finish(mailbox, latest, false);
+        result.completeExceptionally(error);
+        return;
+      }
 
-    // Execute N statements on a table at a time.
-    int numExecuted = 0;
+      log.warn(String.format("Command failed, retrying in %sms (retry %s of %s): %s",
+                             backoffMillis, retryNumber + 1,
+                             retryPolicy.getMaxRetries(), error));
+      try
+      {
+        retryTimer.schedule(
+            () -> threadPool.execute(
+                () -> executeWithRetries(mailbox, latest, retryNumber + 1,
+                                         firstAttemptMillis, result)),
+            backoffMillis, TimeUnit.MILLISECONDS);
+      }
+      catch (RejectedExecutionException e)
+      {
+        // Shutting down, the command is handed off
+        result.completeExceptionally(error);
+      }
+    });
+  }
 
-    // Relinquish this thread after a certain number of commands have been
-    // processed.
-    while (!messages.isEmpty() && numExecuted < MAX_STATEMENTS_PER_ROUND)
+  /**
+   * Helper method that tells whether an error only means that no pooled
+   * connection was free
+   * @param error the error
+   * @return whether the command was not sent
+   */
+  private static boolean isBorrowTimeout(Throwable error)
+  {
+    for (Throwable t = error; t != null; t = t.getCause())
     {
-      try {
-        SnowflakeClient.generateAndExecuteSnowflakeStatements(
-                messages.poll(), snowflakeConf);
-      }catch (Exception e){}
-      numExecuted++;
+      if (t instanceof SnowflakeConnectionPool.BorrowTimeoutException)
+      {
+        return true;
+      }
     }
+    return false;
+  }
 
-    log.info("Queue processed.");
-    return !messages.isEmpty();
+  /**
+   * Helper method that tells whether a command refreshes a table to a
+   * version that is older than, or the same as, the version applied last
+   * @param message the command
+   * @return whether the command can be discarded
+   */
+  private boolean isStale(Command message)
+  {
+    return versionIndex != null && versionIndex.isStale(message);
+  }
+
+  /**
+   * Helper method that tells whether a command would change nothing in
+   * Snowflake. Drops are only skipped once the tables of their database
+   * are listed from Snowflake, as the registry can't tell otherwise whether
+   * a table it doesn't know exists. Until then they are sent, and the
+   * database is seeded in the background.
+   * @param message the command
+   * @return whether the command can be discarded
+   */
+  private boolean isRedundant(Command message)
+  {
+    if (tableRegistry == null)
+    {
+      return false;
+    }
+    if (message instanceof DropIcebergTable
+        && !tableRegistry.isSeeded(message.getDatabaseName()))
+    {
+      seed(message.getDatabaseName());
+      return false;
+    }
+    return tableRegistry.isRedundant(message);
+  }
+
+  /**
+   * Helper method that lists the Iceberg tables of a database from
+   * Snowflake into the registry, in the background and under the same rate
+   * limits and circuit breaker as commands
+   * @param databaseName the Hive database
+   */
+  private void seed(String databaseName)
+  {
+    if (!seedingDatabases.add(databaseName.toLowerCase()))
+    {
+      return;
+    }
+    whenGranted(
+        rateLimiter == null ? null : rateLimiter.acquire(databaseName, ""),
+        token -> whenGranted(
+            circuitBreaker == null ? null : circuitBreaker.acquire(),
+            permit ->
+            {
+              try
+              {
+                registrySeeder.execute(() -> seed(databaseName, permit));
+              }
+              catch (RejectedExecutionException e)
+              {
+                // Shutting down, give the permit back
+                if (permit != null)
+                {
+                  circuitBreaker.record(permit, true);
+                }
+                seedingDatabases.remove(databaseName.toLowerCase());
+              }
+            }));
+  }
+
+  private void seed(String databaseName, CircuitBreaker.Permit permit)
+  {
+    boolean failed = false;
+    try
+    {
+      tableRegistry.seed(
+          databaseName,
+          HiveSyncToolSnowflake.listSnowflakeIcebergTables(
+              snowflakeConf,
+              HiveToSnowflakeSchema.getSnowflakeSchemaFromHiveSchema(
+                  databaseName, snowflakeConf)));
+    }
+    catch (Exception e)
+    {
+      // Seeded again before the next drop
+      failed = retryPolicy.isRetryable(e);
+      log.warn("Could not list the Iceberg tables of " + databaseName + ": " + e);
+    }
+    finally
+    {
+      if (permit != null)
+      {
+        circuitBreaker.record(permit, !failed);
+      }
+      seedingDatabases.remove(databaseName.toLowerCase());
+    }
+  }
+
+  /**
+   * Helper method that records the version a command brought its table to,
+   * see {@link VersionIndex#applied(Command)}
+   * @param message the command
+   */
+  private void recordApplied(Command message)
+  {
+    if (versionIndex != null)
+    {
+      versionIndex.applied(message);
+    }
   }
 
   /**
@@ -205,6 +1623,67 @@ public class Scheduler
     return new TableKey(message.getDatabaseName(), message.getTableName());
   }
 
+  /**
+   * Helper method that tells whether a message renames or moves a table
+   * @param message the queue message
+   * @return true if the message changes the name of its table
+   */
+  private static boolean isRename(Command message)
+  {
+    if (!(message instanceof AlterIcebergTable))
+    {
+      return false;
+    }
+    AlterIcebergTable alter = (AlterIcebergTable) message;
+    return !alter.getOldDatabaseName().equals(alter.getDatabaseName())
+        || !alter.getOldTableName().equals(alter.getTableName());
+  }
+
+  /**
+   * Helper method that finds the mailbox a message is queued in. A rename
+   * is queued behind the messages of the old name, and messages for the new
+   * name follow it there until the mailbox is retired. Must be called with
+   * the route lock held.
+   * @param key the key of the table of the message
+   * @param message the queue message
+   * @return the key of the mailbox to enqueue the message to
+   */
+  private TableKey route(TableKey key, Command message)
+  {
+    if (!isRename(message))
+    {
+      return renameRoutes.getOrDefault(key, key);
+    }
+    AlterIcebergTable alter = (AlterIcebergTable) message;
+    TableKey oldKey = new TableKey(alter.getOldDatabaseName(),
+                                   alter.getOldTableName());
+    // The old name may itself be a rename that is still queued
+    TableKey target = renameRoutes.getOrDefault(oldKey, oldKey);
+    renameRoutes.put(key, target);
+    return target;
+  }
+
+  /**
+   * Helper method that forgets the routes to a retired mailbox, unless a
+   * message has been routed to a new mailbox under the same key since
+   * @param key the key of the retired mailbox
+   */
+  private void retireRoutes(TableKey key)
+  {
+    routeLock.lock();
+    try
+    {
+      if (!mailboxes.containsKey(key))
+      {
+        renameRoutes.values().removeIf(key::equals);
+      }
+    }
+    finally
+    {
+      routeLock.unlock();
+    }
+  }
+
   /**
    * Helper class that represents a key that identifies which queue a message
    * should be enqueued to.
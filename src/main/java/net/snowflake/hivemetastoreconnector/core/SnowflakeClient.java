@@ -3,34 +3,38 @@
  */
 package net.snowflake.hivemetastoreconnector.core;
 
+import com.codahale.metrics.Gauge;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import net.snowflake.client.jdbc.SnowflakeStatement;
 import net.snowflake.hivemetastoreconnector.SnowflakeConf;
 import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
 import net.snowflake.hivemetastoreconnector.commands.Command;
-import net.snowflake.client.jdbc.internal.apache.commons.codec.binary.Base64;
-import net.snowflake.client.jdbc.internal.org.bouncycastle.jce.provider.BouncyCastleProvider;
+import net.snowflake.hivemetastoreconnector.util.ConnectorMetrics;
 import net.snowflake.hivemetastoreconnector.util.HiveToSnowflakeSchema;
 import org.apache.hadoop.hive.metastore.api.MetaException;
 import org.apache.hadoop.hive.metastore.events.ListenerEvent;
-import org.apache.hadoop.hive.ql.secrets.SecretSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.net.URI;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
-import java.security.Security;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class that uses the snowflake jdbc to connect to snowflake.
@@ -43,6 +47,36 @@ public class SnowflakeClient
       LoggerFactory.getLogger(SnowflakeIcebergListener.class);
   private static Scheduler scheduler;
 
+  // Null if batching is disabled
+  private static StatementBatcher statementBatcher;
+
+  // Null if asynchronous queries are disabled
+  private static AsyncQueryPoller asyncQueryPoller;
+
+  private static CredentialProvider credentialProvider;
+
+  // Snowflake error codes for rejected credentials (incorrect username or
+  // password, invalid JWT token)
+  private static final Set<Integer> AUTHENTICATION_ERROR_CODES =
+      ImmutableSet.of(390100, 390144);
+
+  // Connection pools, by Snowflake schema
+  private static final ConcurrentHashMap<String, SnowflakeConnectionPool>
+      connectionPools = new ConcurrentHashMap<>();
+
+  // Circuit breakers, by Snowflake connection string
+  private static final ConcurrentHashMap<String, CircuitBreaker>
+      circuitBreakers = new ConcurrentHashMap<>();
+
+  // Whether the Snowflake JDBC driver was loaded
+  private static volatile boolean driverLoaded = false;
+
+  // Completed when the warm-up is done, null if no warm-up was started
+  private static CompletableFuture<Void> warmUp;
+
+  // The retry policy, by the configuration it was created from
+  private static volatile Map.Entry<SnowflakeConf, RetryPolicy> retryPolicy;
+
   /**
    * Creates and executes an event of Iceberg Table for snowflake. Events may be processed in
    * the background, but events on the same table will be processed in order.
@@ -58,7 +92,24 @@ public class SnowflakeClient
     // Obtains the proper command
     log.info("Creating the Snowflake command");
     Command command = CommandGenerator.getIcebergCommand(event, snowflakeConf);
+    if (command == null)
+    {
+      return;
+    }
+    executeCommand(command, snowflakeConf);
+  }
 
+  /**
+   * Executes a command for Snowflake. Commands may be processed in the
+   * background, but commands on the same table will be processed in order.
+   * @param command - the command to execute
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   */
+  public static void executeCommand(Command command,
+                                    SnowflakeConf snowflakeConf)
+      throws MetaException
+  {
+    Preconditions.checkNotNull(command);
     boolean backgroundTaskEnabled = !snowflakeConf.getBoolean(
             SnowflakeConf.ConfVars.SNOWFLAKE_CLIENT_FORCE_SYNCHRONOUS.getVarname(), false);
     if (backgroundTaskEnabled)
@@ -76,13 +127,48 @@ public class SnowflakeClient
     }
   }
 
+  /**
+   * Executes a command for Snowflake, and tells once it is done whether it
+   * was applied. Commands may be processed in the background, but commands
+   * on the same table will be processed in order.
+   * @param command - the command to execute
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   * @return a future completed with whether the command was applied, see
+   *         {@link Scheduler#submit(Command)}
+   */
+  public static CompletableFuture<Boolean> submitCommand(Command command,
+                                                         SnowflakeConf snowflakeConf)
+  {
+    Preconditions.checkNotNull(command);
+    boolean backgroundTaskEnabled = !snowflakeConf.getBoolean(
+            SnowflakeConf.ConfVars.SNOWFLAKE_CLIENT_FORCE_SYNCHRONOUS.getVarname(), false);
+    if (backgroundTaskEnabled)
+    {
+      initScheduler(snowflakeConf);
+      return scheduler.submit(command);
+    }
+    try
+    {
+      generateAndExecuteSnowflakeStatements(command, snowflakeConf);
+      return CompletableFuture.completedFuture(true);
+    }
+    catch (Exception e)
+    {
+      log.error(String.format("Could not execute the command for %s.%s: %s",
+                              command.getDatabaseName(),
+                              command.getTableName(), e));
+      return CompletableFuture.completedFuture(false);
+    }
+  }
+
   /**
    * Helper method. Generates commands for an event and executes those commands.
    * Synchronous.
    * @param command - the command to generate statements from
    * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   * @return the outcome of each executed statement
    */
-  public static void generateAndExecuteSnowflakeStatements(
+  public static List<StatementOutcome> generateAndExecuteSnowflakeStatements(
       Command command,
       SnowflakeConf snowflakeConf) throws Exception
   {
@@ -97,9 +183,69 @@ public class SnowflakeClient
               command.getDatabaseName(),
               snowflakeConf);
     commandList = command.generateSqlQueries();
-    executeStatements(commandList, snowflakeConf, schema);
+    return executeStatements(commandList, snowflakeConf, schema);
+  }
+
+  /**
+   * Helper method. Generates commands for an event and executes those
+   * commands in the background. If batching is enabled, the statements are
+   * sent together with the statements of other commands. Otherwise, if
+   * asynchronous queries are enabled, the statements are submitted without
+   * waiting for them to finish.
+   * Failures are not retried, so that the caller can retry the whole
+   * command later instead of blocking a thread.
+   * @param command - the command to generate statements from
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   * @return a future of the outcome of each executed statement
+   */
+  public static CompletableFuture<List<StatementOutcome>> generateAndExecuteSnowflakeStatementsAsync(
+      Command command,
+      SnowflakeConf snowflakeConf)
+  {
+    CompletableFuture<List<StatementOutcome>> result = new CompletableFuture<>();
+    try
+    {
+      String schema =
+          HiveToSnowflakeSchema.getSnowflakeSchemaFromHiveSchema(
+              command.getDatabaseName(),
+              snowflakeConf);
+      List<String> commandList = command.generateSqlQueries();
+      if (statementBatcher == null && asyncQueryPoller == null)
+      {
+        result.complete(executeStatements(
+            commandList, snowflakeConf, schema,
+            getRetryPolicy(snowflakeConf).withoutRetries()));
+        return result;
+      }
 
+      if (statementBatcher != null)
+      {
+        return statementBatcher.submit(schema, commandList);
+      }
+      return asyncQueryPoller.submit(schema, commandList);
+    }
+    catch (Exception e)
+    {
+      result.completeExceptionally(e);
+      return result;
+    }
+  }
 
+  /**
+   * Helper method to connect to Snowflake and execute a list of queries
+   * @param commandList - The list of queries to execute
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @param schema - the schema to use for the jdbc connection
+   * @return the outcome of each statement
+   */
+  public static List<StatementOutcome> executeStatements(
+      List<String> commandList,
+      SnowflakeConf snowflakeConf,
+      String schema) throws MetaException
+  {
+    return executeStatements(commandList, snowflakeConf, schema,
+                             getRetryPolicy(snowflakeConf));
   }
 
   /**
@@ -108,53 +254,23 @@ public class SnowflakeClient
    * @param snowflakeConf - the configuration for Snowflake Hive metastore
    *                        listener
    * @param schema - the schema to use for the jdbc connection
+   * @param retryPolicy - the policy for retrying connections and statements
+   * @return the outcome of each statement
    */
-  public static void executeStatements(List<String> commandList,
-                                       SnowflakeConf snowflakeConf,
-                                       String schema) throws MetaException
+  static List<StatementOutcome> executeStatements(
+      List<String> commandList,
+      SnowflakeConf snowflakeConf,
+      String schema,
+      RetryPolicy retryPolicy) throws MetaException
   {
     log.info("Executing statements: " + String.join(", ", commandList));
 
-    // Get connection
-    log.info("Getting connection to the Snowflake");
-    try (Connection connection = retry(
-        () -> getConnection(snowflakeConf, schema), snowflakeConf))
+    try
     {
-      commandList.forEach(commandStr ->
-      {
-        try (Statement statement =
-            retry(connection::createStatement, snowflakeConf))
-        {
-          log.info("Executing command: " + commandStr);
-          ResultSet resultSet = retry(
-              () -> statement.executeQuery(commandStr), snowflakeConf);
-          StringBuilder sb = new StringBuilder();
-          sb.append("Result:\n");
-          while (resultSet.next())
-          {
-            for (int i = 1; i <= resultSet.getMetaData().getColumnCount(); i++)
-            {
-              if (i == resultSet.getMetaData().getColumnCount())
-              {
-                sb.append(resultSet.getString(i));
-              }
-              else
-              {
-                sb.append(resultSet.getString(i));
-                sb.append("|");
-              }
-            }
-            sb.append("\n");
-          }
-          log.info(sb.toString());
-        }
-        catch (Exception e)
-        {
-          log.error("There was an error executing the statement: " +
-                        e.getMessage());
-          throw new RuntimeException(e);
-        }
-      });
+      return withConnection(
+          snowflakeConf, schema, retryPolicy,
+          connection -> executeStatements(connection, commandList, snowflakeConf,
+                                          retryPolicy));
     }
     catch (Exception e){
       log.error("There was an error creating the query: " +
@@ -164,10 +280,325 @@ public class SnowflakeClient
       PrintWriter pw = new PrintWriter(sw);
       e.printStackTrace(pw);
       String secretName = snowflakeConf.get(SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_SECRETURL.getVarname());
-      throw new MetaException(secretName+"  "+sw.toString());
+      MetaException metaException =
+          new MetaException(secretName+"  "+sw.toString());
+      // Keep the cause, so that the error can be classified for retries
+      metaException.initCause(e);
+      throw metaException;
+    }
+  }
+
+  /**
+   * Helper method to connect to Snowflake and execute a list of queries as a
+   * single multi-statement request. The statements are executed in order,
+   * and execution stops at the first statement that fails. Failures are not
+   * retried.
+   * @param commandList - The list of queries to execute
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @param schema - the schema to use for the jdbc connection
+   * @return the outcome of each statement. Snowflake runs the statements as
+   *         one request, so the elapsed time is that of the whole request.
+   * @throws Exception thrown when a connection could not be made or a
+   *                   statement failed
+   */
+  public static List<StatementOutcome> executeMultiStatement(
+      List<String> commandList,
+      SnowflakeConf snowflakeConf,
+      String schema) throws Exception
+  {
+    RetryPolicy noRetries = getRetryPolicy(snowflakeConf).withoutRetries();
+    return withConnection(snowflakeConf, schema, noRetries, connection ->
+    {
+      try (Statement statement = connection.createStatement())
+      {
+        long start = System.currentTimeMillis();
+        statement.unwrap(SnowflakeStatement.class).setParameter(
+            "MULTI_STATEMENT_COUNT", commandList.size());
+        boolean hasResultSet = statement.execute(String.join("\n", commandList));
+        long elapsedMillis = System.currentTimeMillis() - start;
+
+        List<StatementOutcome> outcomes = new ArrayList<>(commandList.size());
+        for (int i = 0; i < commandList.size(); i++)
+        {
+          if (i > 0)
+          {
+            hasResultSet = statement.getMoreResults();
+          }
+          outcomes.add(getOutcome(commandList.get(i), statement, hasResultSet,
+                                  elapsedMillis, snowflakeConf));
+        }
+        return outcomes;
+      }
+    });
+  }
+
+  /**
+   * Helper interface that represents work done with a connection
+   * @param <T> The type of object returned by the work
+   */
+  @FunctionalInterface
+  interface ConnectionTask<T>
+  {
+    T run(Connection connection) throws Exception;
+  }
+
+  /**
+   * Helper method that runs some work with a connection to Snowflake. The
+   * connection is borrowed from a pool, unless pooling is disabled.
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @param schema - the schema to use for the jdbc connection
+   * @param task - the work to do with the connection
+   * @param <T> The type of object returned by the work
+   * @return the result of the work
+   * @throws Exception thrown when a connection could not be made or the
+   *                   work failed
+   */
+  static <T> T withConnection(SnowflakeConf snowflakeConf,
+                              String schema,
+                              ConnectionTask<T> task) throws Exception
+  {
+    return withConnection(snowflakeConf, schema,
+                          getRetryPolicy(snowflakeConf), task);
+  }
+
+  /**
+   * Helper method that runs some work with a connection to Snowflake. The
+   * connection is borrowed from a pool, unless pooling is disabled.
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @param schema - the schema to use for the jdbc connection
+   * @param retryPolicy - the policy for retrying to get a connection
+   * @param task - the work to do with the connection
+   * @param <T> The type of object returned by the work
+   * @return the result of the work
+   * @throws Exception thrown when a connection could not be made or the
+   *                   work failed
+   */
+  static <T> T withConnection(SnowflakeConf snowflakeConf,
+                              String schema,
+                              RetryPolicy retryPolicy,
+                              ConnectionTask<T> task) throws Exception
+  {
+    log.info("Getting connection to the Snowflake");
+    boolean poolingEnabled = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONNECTION_POOL_ENABLED.getVarname(), true);
+    if (!poolingEnabled)
+    {
+      try (Connection connection = retry(
+          () -> getConnection(snowflakeConf, schema), retryPolicy))
+      {
+        return task.run(connection);
+      }
+    }
+
+    try (SnowflakeConnectionPool.PooledConnection pooled = retry(
+        () -> getConnectionPool(snowflakeConf, schema).borrow(), retryPolicy))
+    {
+      try
+      {
+        return task.run(pooled.getConnection());
+      }
+      catch (Exception e)
+      {
+        // The connection may be broken, validate it before reusing it
+        pooled.markSuspect();
+        throw e;
+      }
     }
   }
 
+  /**
+   * Helper method to execute a list of queries on an open connection
+   * @param connection - The connection to use
+   * @param commandList - The list of queries to execute
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @param retryPolicy - the policy for retrying statements
+   * @return the outcome of each statement
+   * @throws SQLException thrown when a statement failed
+   */
+  private static List<StatementOutcome> executeStatements(
+      Connection connection,
+      List<String> commandList,
+      SnowflakeConf snowflakeConf,
+      RetryPolicy retryPolicy) throws SQLException
+  {
+    List<StatementOutcome> outcomes = new ArrayList<>(commandList.size());
+    for (String commandStr : commandList)
+    {
+      long start = System.currentTimeMillis();
+      try (Statement statement =
+          retry(connection::createStatement, retryPolicy))
+      {
+        log.info("Executing command: " + commandStr);
+        boolean hasResultSet = retry(
+            () -> statement.execute(commandStr), retryPolicy);
+        outcomes.add(getOutcome(commandStr, statement, hasResultSet,
+                                System.currentTimeMillis() - start,
+                                snowflakeConf));
+      }
+      catch (SQLException e)
+      {
+        log.error("There was an error executing the statement: " +
+                      e.getMessage() + " " + StatementOutcome.failed(
+                          commandStr, System.currentTimeMillis() - start, e));
+        throw e;
+      }
+    }
+    return outcomes;
+  }
+
+  /**
+   * Helper method that summarizes the current result of a statement. The
+   * rows are counted, but their text is only materialized when debug
+   * logging is on, or for a sample of statements if configured.
+   * @param commandStr - The query that was executed
+   * @param statement - The statement positioned on the result
+   * @param hasResultSet - Whether the result is a result set
+   * @param elapsedMillis - The time it took to execute the query
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @return the outcome of the statement
+   * @throws SQLException thrown when the result could not be read
+   */
+  private static StatementOutcome getOutcome(String commandStr,
+                                             Statement statement,
+                                             boolean hasResultSet,
+                                             long elapsedMillis,
+                                             SnowflakeConf snowflakeConf)
+      throws SQLException
+  {
+    String queryId = statement.isWrapperFor(SnowflakeStatement.class)
+        ? statement.unwrap(SnowflakeStatement.class).getQueryID() : null;
+    if (!hasResultSet)
+    {
+      StatementOutcome outcome = StatementOutcome.succeeded(
+          commandStr, queryId, elapsedMillis, statement.getUpdateCount());
+      log.info("Command executed: " + outcome);
+      return outcome;
+    }
+
+    boolean materialize = log.isDebugEnabled();
+    if (!materialize)
+    {
+      float sampleRate = snowflakeConf.getFloat(
+          SnowflakeConf.ConfVars.SNOWFLAKE_RESULT_SAMPLE_RATE.getVarname(), 0);
+      materialize = sampleRate > 0
+          && ThreadLocalRandom.current().nextFloat() < sampleRate;
+    }
+
+    long rowCount = 0;
+    StringBuilder sb = materialize ? new StringBuilder() : null;
+    try (ResultSet resultSet = statement.getResultSet())
+    {
+      int columnCount = materialize ? resultSet.getMetaData().getColumnCount() : 0;
+      while (resultSet.next())
+      {
+        rowCount++;
+        if (materialize)
+        {
+          for (int i = 1; i <= columnCount; i++)
+          {
+            if (i > 1)
+            {
+              sb.append("|");
+            }
+            sb.append(resultSet.getString(i));
+          }
+          sb.append("\n");
+        }
+      }
+    }
+
+    StatementOutcome outcome = StatementOutcome.succeeded(
+        commandStr, queryId, elapsedMillis, rowCount);
+    log.info("Command executed: " + outcome);
+    if (materialize)
+    {
+      outcome = outcome.withResultText(sb.toString());
+      log.info("Result:\n" + outcome.getResultText());
+    }
+    return outcome;
+  }
+
+  /**
+   * Gets the circuit breaker for the Snowflake account of a configuration,
+   * creating it if necessary
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @return the circuit breaker
+   */
+  public static CircuitBreaker getCircuitBreaker(SnowflakeConf snowflakeConf)
+  {
+    String connectStr = Strings.nullToEmpty(snowflakeConf.get(
+        SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_CONNECTION.getVarname()));
+    return circuitBreakers.computeIfAbsent(
+        connectStr,
+        key -> new CircuitBreaker(getAccountName(key), snowflakeConf,
+                                  () -> probe(snowflakeConf)));
+  }
+
+  /**
+   * Helper method that extracts a name for an account from a connection
+   * string, e.g. "myaccount.snowflakecomputing.com" from
+   * "jdbc:snowflake://myaccount.snowflakecomputing.com:443/?db=mydb"
+   * @param connectStr - the Snowflake connection string
+   * @return the name of the account
+   */
+  private static String getAccountName(String connectStr)
+  {
+    String name = connectStr.replaceFirst("^jdbc:snowflake://", "");
+    name = name.replaceFirst("[:/?].*$", "");
+    return name.isEmpty() ? "default" : name;
+  }
+
+  /**
+   * Helper method that checks whether Snowflake is available by running a
+   * trivial query, without retries
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @throws Exception thrown when the query failed
+   */
+  private static void probe(SnowflakeConf snowflakeConf) throws Exception
+  {
+    // Any schema will do, prefer one that already has a connection pool
+    String schema = connectionPools.values().stream()
+        .map(SnowflakeConnectionPool::getSchema)
+        .filter(poolSchema -> poolSchema != null)
+        .findFirst()
+        .orElse(snowflakeConf.get(
+            SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_SCHEMA.getVarname(), "PUBLIC"));
+    withConnection(snowflakeConf, schema,
+                   getRetryPolicy(snowflakeConf).withoutRetries(),
+                   connection ->
+                   {
+                     try (Statement statement = connection.createStatement())
+                     {
+                       statement.execute("SELECT 1");
+                     }
+                     return null;
+                   });
+  }
+
+  /**
+   * Gets the connection pool for a schema, creating it if necessary
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @param schema - the schema to use for the connections of the pool
+   * @return the connection pool
+   */
+  public static SnowflakeConnectionPool getConnectionPool(
+      SnowflakeConf snowflakeConf, String schema)
+  {
+    // A null schema is allowed, but can't be used as a key
+    return connectionPools.computeIfAbsent(
+        Strings.nullToEmpty(schema),
+        key -> new SnowflakeConnectionPool(
+            schema, snowflakeConf, () -> getConnection(snowflakeConf, schema)));
+  }
+
   /**
    * (Deprecated)
    * Utility method to connect to Snowflake and execute a query.
@@ -192,12 +623,215 @@ public class SnowflakeClient
     return resultSet;
   }
 
+  /**
+   * Shuts down the background pipeline: new events are no longer sent,
+   * queued events are drained for up to the drain timeout, then the
+   * statements being sent are given up to the in-flight timeout to finish.
+   * Events left are kept for the next start, see
+   * {@link Scheduler#shutdown(long, long)}. Connections are closed
+   * afterwards. Meant to be called from a JVM shutdown hook.
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @return whether every queued event was sent
+   */
+  public static boolean shutdown(SnowflakeConf snowflakeConf)
+  {
+    // Not holding the lock while draining, so that events arriving meanwhile
+    // aren't blocked
+    Scheduler currentScheduler;
+    StatementBatcher currentBatcher;
+    AsyncQueryPoller currentPoller;
+    synchronized (SnowflakeClient.class)
+    {
+      currentScheduler = scheduler;
+      currentBatcher = statementBatcher;
+      currentPoller = asyncQueryPoller;
+    }
+
+    long drainTimeoutMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SHUTDOWN_DRAIN_TIMEOUT_MILLISECONDS.getVarname(),
+        30000);
+    long inFlightTimeoutMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SHUTDOWN_IN_FLIGHT_TIMEOUT_MILLISECONDS.getVarname(),
+        10000);
+
+    // The scheduler is kept, so that events arriving meanwhile are handed off
+    boolean drained = currentScheduler == null
+        || currentScheduler.shutdown(drainTimeoutMillis, inFlightTimeoutMillis);
+    if (currentBatcher != null)
+    {
+      currentBatcher.shutdown();
+    }
+    if (currentPoller != null)
+    {
+      currentPoller.shutdown();
+    }
+    connectionPools.values().forEach(SnowflakeConnectionPool::close);
+    return drained;
+  }
+
+  /**
+   * Queues the commands that failed after every retry again, in batches.
+   * See {@link Scheduler#replayDeadLetters(int, int, long)}.
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @param maxCount - the maximum number of dead letters to replay
+   * @return the number of dead letters queued
+   */
+  public static int replayDeadLetters(SnowflakeConf snowflakeConf, int maxCount)
+  {
+    initScheduler(snowflakeConf);
+    int batchSize = Math.max(1, snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_DEAD_LETTER_REPLAY_BATCH_SIZE.getVarname(),
+        100));
+    long batchTimeoutMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_DEAD_LETTER_REPLAY_TIMEOUT_MILLISECONDS.getVarname(),
+        600000);
+    return scheduler.replayDeadLetters(batchSize, maxCount, batchTimeoutMillis);
+  }
+
+  /**
+   * Starts warming up the client in the background, so that the first
+   * events do not pay for loading the driver, fetching credentials,
+   * logging in and starting the scheduler. The configuration is validated,
+   * the credentials are resolved, the connection pools of the configured
+   * schemas are filled and the scheduler is started.
+   * Only the first call starts a warm-up.
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @return a future completed when the warm-up is done, exceptionally if
+   *         it failed
+   */
+  public static synchronized CompletableFuture<Void> startWarmUp(
+      SnowflakeConf snowflakeConf)
+  {
+    if (warmUp != null)
+    {
+      return warmUp;
+    }
+
+    log.info("Warming up the Snowflake client");
+    long start = System.currentTimeMillis();
+    warmUp = CompletableFuture.runAsync(() -> warmUp(snowflakeConf), runnable ->
+    {
+      Thread thread = new Thread(runnable, "snowflake-warm-up");
+      thread.setDaemon(true);
+      thread.start();
+    });
+    warmUp.whenComplete((ignored, t) ->
+    {
+      if (t != null)
+      {
+        log.error("Warm-up of the Snowflake client failed: " + t);
+      }
+      else
+      {
+        log.info(String.format("Snowflake client warmed up in %sms",
+                               System.currentTimeMillis() - start));
+      }
+    });
+    ConnectorMetrics.gauge("warm-up.ready",
+                           (Gauge<Integer>) () -> isWarmedUp() ? 1 : 0);
+    return warmUp;
+  }
+
+  /**
+   * @return whether a warm-up was started and completed successfully
+   */
+  public static synchronized boolean isWarmedUp()
+  {
+    return warmUp != null && warmUp.isDone()
+        && !warmUp.isCompletedExceptionally();
+  }
+
+  /**
+   * Helper method that warms up the client. Pools that fail to fill are
+   * skipped, they are filled again when they are first used.
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   */
+  private static void warmUp(SnowflakeConf snowflakeConf)
+  {
+    Preconditions.checkArgument(
+        snowflakeConf.get(SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_CONNECTION.getVarname()) != null,
+        "Missing " + SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_CONNECTION.getVarname());
+    Preconditions.checkArgument(
+        snowflakeConf.get(SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_USERNAME.getVarname()) != null,
+        "Missing " + SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_USERNAME.getVarname());
+    getRetryPolicy(snowflakeConf);
+
+    loadDriver();
+    try
+    {
+      getCredentialProvider(snowflakeConf).getCredentials();
+    }
+    catch (Exception e)
+    {
+      throw new IllegalStateException("Could not resolve credentials", e);
+    }
+
+    boolean backgroundTaskEnabled = !snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CLIENT_FORCE_SYNCHRONOUS.getVarname(), false);
+    if (backgroundTaskEnabled)
+    {
+      initScheduler(snowflakeConf);
+    }
+
+    boolean poolingEnabled = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONNECTION_POOL_ENABLED.getVarname(), true);
+    if (!poolingEnabled)
+    {
+      return;
+    }
+    Set<String> schemas = new LinkedHashSet<>();
+    String defaultSchema =
+        HiveToSnowflakeSchema.getSnowflakeDefaultSchema(snowflakeConf);
+    if (defaultSchema != null)
+    {
+      schemas.add(defaultSchema);
+    }
+    schemas.addAll(snowflakeConf.getTrimmedStringCollection(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SCHEMA_LIST.getVarname()));
+    for (String schema : schemas)
+    {
+      try
+      {
+        getConnectionPool(snowflakeConf, schema).fill();
+      }
+      catch (Exception e)
+      {
+        log.warn(String.format("Could not open connections for schema %s: %s",
+                               schema, e));
+      }
+    }
+  }
+
+  /**
+   * Helper method that loads the Snowflake JDBC driver, once
+   */
+  private static void loadDriver()
+  {
+    if (driverLoaded)
+    {
+      return;
+    }
+    try
+    {
+      Class.forName("net.snowflake.client.jdbc.SnowflakeDriver");
+      driverLoaded = true;
+    }
+    catch(ClassNotFoundException e)
+    {
+      log.error("Driver not found");
+    }
+  }
+
   /**
    * Helper method. Initializes and starts the query scheduler
    * @param snowflakeConf - the configuration for Snowflake Hive metastore
    *                        listener
    */
-  private static void initScheduler(SnowflakeConf snowflakeConf)
+  private static synchronized void initScheduler(SnowflakeConf snowflakeConf)
   {
     if (scheduler != null)
     {
@@ -207,6 +841,18 @@ public class SnowflakeClient
     int numThreads = snowflakeConf.getInt(
         SnowflakeConf.ConfVars.SNOWFLAKE_CLIENT_THREAD_COUNT.getVarname(), 8);
 
+    boolean batchingEnabled = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_BATCHING_ENABLED.getVarname(), false);
+    if (batchingEnabled)
+    {
+      statementBatcher = new StatementBatcher(numThreads, snowflakeConf);
+    }
+    else if (snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_ASYNC_QUERIES_ENABLED.getVarname(), false))
+    {
+      asyncQueryPoller = new AsyncQueryPoller(snowflakeConf);
+    }
+
     scheduler = new Scheduler(numThreads, snowflakeConf);
   }
 
@@ -223,14 +869,7 @@ public class SnowflakeClient
   public static Connection getConnection(SnowflakeConf snowflakeConf, String schema)
       throws Exception
   {
-    try
-    {
-      Class.forName("com.snowflake.client.jdbc.SnowflakeDriver");
-    }
-    catch(ClassNotFoundException e)
-    {
-      log.error("Driver not found");
-    }
+    loadDriver();
 
     // build connection properties
     Properties properties = new Properties();
@@ -252,52 +891,75 @@ public class SnowflakeClient
         properties.put(confVar.getSnowflakePropertyName(), conf.getValue());
       });
 
-    // JDBC password
-    String snowflakePassword = snowflakeConf.getSecret(
-        SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_PASSWORD.getVarname());
-    if (snowflakePassword != null)
+    // JDBC password and private key
+    SnowflakeCredentials credentials =
+        getCredentialProvider(snowflakeConf).getCredentials();
+    if (credentials.getPassword() != null)
     {
       properties.put(SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_PASSWORD.getSnowflakePropertyName(),
-                     snowflakePassword);
-    }else{
-      properties.put(SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_PASSWORD.getSnowflakePropertyName(),
-              getJDBCPasswordFromSecretSource(snowflakeConf));
+                     credentials.getPassword());
     }
-
-    // JDBC private key
-    String privateKeyConf = snowflakeConf.getSecret(
-        SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_PRIVATE_KEY.getVarname());
-    if (privateKeyConf != null)
+    if (credentials.getPrivateKey() != null)
     {
-      try
-      {
-        Security.addProvider(new BouncyCastleProvider());
-        byte[] keyBytes = Base64.decodeBase64(privateKeyConf);
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(keyBytes);
-        properties.put("privateKey", keyFactory.generatePrivate(keySpec));
-      }
-      catch (InvalidKeySpecException | NoSuchAlgorithmException e)
-      {
-        throw new IllegalArgumentException(
-            String.format("Private key is invalid: %s", e), e);
-      }
+      properties.put("privateKey", credentials.getPrivateKey());
     }
 
     properties.put(SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_SCHEMA.getSnowflakePropertyName(), schema);
 
     String connectStr = snowflakeConf.get(
         SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_CONNECTION.getVarname());
-    log.info(properties.toString());
-    return DriverManager.getConnection(connectStr, properties);
+    try
+    {
+      return DriverManager.getConnection(connectStr, properties);
+    }
+    catch (SQLException e)
+    {
+      if (AUTHENTICATION_ERROR_CODES.contains(e.getErrorCode()))
+      {
+        // The credentials may have been rotated, fetch them again next time
+        getCredentialProvider(snowflakeConf).invalidate();
+      }
+      throw e;
+    }
   }
 
-  private static String getJDBCPasswordFromSecretSource(SnowflakeConf snowflakeConf) throws Exception{
-    String secretSourceClass =  snowflakeConf.get(SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_SECRETSOURCE.getVarname(),
-            "org.apache.hadoop.hive.ql.secrets.AWSSecretsManagerSecretSource");
-    SecretSource source = (SecretSource) Class.forName(secretSourceClass).newInstance();
-    URI secretName = new URI(snowflakeConf.get(SnowflakeConf.ConfVars.SNOWFLAKE_JDBC_SECRETURL.getVarname()));
-    return source.getSecret(secretName);
+  /**
+   * Gets the credential provider, creating it if necessary. Unless disabled,
+   * the configured provider is wrapped in a cache.
+   * @param snowflakeConf - the configuration for Snowflake Hive metastore
+   *                        listener
+   * @return the credential provider
+   * @throws Exception thrown when the provider could not be created
+   */
+  public static synchronized CredentialProvider getCredentialProvider(
+      SnowflakeConf snowflakeConf) throws Exception
+  {
+    if (credentialProvider != null)
+    {
+      return credentialProvider;
+    }
+
+    String providerClass = snowflakeConf.get(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CREDENTIAL_PROVIDER.getVarname(),
+        DefaultCredentialProvider.class.getName());
+    CredentialProvider provider =
+        (CredentialProvider) Class.forName(providerClass).newInstance();
+
+    long ttlMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CREDENTIAL_CACHE_TTL_MILLISECONDS.getVarname(),
+        3600000);
+    if (ttlMillis > 0)
+    {
+      long refreshIntervalMillis = snowflakeConf.getLong(
+          SnowflakeConf.ConfVars.SNOWFLAKE_CREDENTIAL_CACHE_REFRESH_MILLISECONDS.getVarname(),
+          ttlMillis * 3 / 4);
+      provider = new CachingCredentialProvider(
+          provider, ttlMillis, Math.max(1, Math.min(ttlMillis, refreshIntervalMillis)));
+    }
+
+    provider.initialize(snowflakeConf);
+    credentialProvider = provider;
+    return credentialProvider;
   }
 
   /**
@@ -312,49 +974,60 @@ public class SnowflakeClient
   }
 
   /**
-   * Helper method for simple retries.
-   * Note: The total number of attempts is 1 + retries.
+   * Helper method for retries. Errors that the policy classifies as fatal
+   * are not retried, and the time between retries grows exponentially.
+   * Note: The total number of attempts is at most 1 + retries.
    * @param <T> The type of object returned by the supplier
    * @param <E> The type of exception thrown by the supplier
    * @param method The method to be executed and retried on.
-   * @param maxRetries The maximum number of retries.
-   * @param timeoutInMilliseconds Time between retries.
+   * @param retryPolicy The policy deciding whether and when to retry.
+   *
+   * @return The result of the method.
    */
-  private static <T, E extends Throwable> T retry(
+  @SuppressWarnings("unchecked")
+  static <T, E extends Throwable> T retry(
       ThrowableSupplier<T,E> method,
-      int maxRetries,
-      int timeoutInMilliseconds)
+      RetryPolicy retryPolicy)
   throws E
   {
-    // Attempt to call the method with N-1 retries
-    for (int i = 0; i < maxRetries; i++)
+    long start = System.currentTimeMillis();
+    for (int i = 0; ; i++)
     {
       try
       {
         // Attempt to call the method
         return method.get();
       }
-      catch (Exception e)
+      catch (Throwable e)
       {
+        long backoffMillis = retryPolicy.getBackoffMillis(i);
+        if (!retryPolicy.shouldRetry(e, i,
+                                     System.currentTimeMillis() - start,
+                                     backoffMillis))
+        {
+          // The exception will by handled by the caller
+          throw (E) e;
+        }
+        log.warn(String.format("Attempt %s failed, retrying in %sms: %s",
+                               i + 1, backoffMillis, e));
+
         // Wait between retries
         try
         {
-          Thread.sleep(timeoutInMilliseconds);
+          Thread.sleep(backoffMillis);
         }
         catch (InterruptedException interruptedEx)
         {
           log.error("Thread interrupted.");
           Thread.currentThread().interrupt();
+          throw (E) e;
         }
       }
     }
-
-    // Retry one last time, the exception will by handled by the caller
-    return method.get();
   }
 
   /**
-   * Helper method for simple retries. Overload for default arguments.
+   * Helper method for retries. Overload for default arguments.
    * @param <T> The type of object returned by the supplier
    * @param <E> The type of exception thrown by the supplier
    * @param method The method to be executed and retried on.
@@ -367,10 +1040,24 @@ public class SnowflakeClient
       SnowflakeConf snowflakeConf)
   throws E
   {
-    int maxRetries = snowflakeConf.getInt(
-        SnowflakeConf.ConfVars.SNOWFLAKE_HIVEMETASTORELISTENER_RETRY_COUNT.getVarname(), 1);
-    int timeoutInMilliseconds = snowflakeConf.getInt(
-        SnowflakeConf.ConfVars.SNOWFLAKE_HIVEMETASTORELISTENER_RETRY_TIMEOUT_MILLISECONDS.getVarname(), 1000);
-    return retry(method, maxRetries, timeoutInMilliseconds);
+    return retry(method, getRetryPolicy(snowflakeConf));
+  }
+
+  /**
+   * Gets the retry policy for a configuration. The policy is only created
+   * again if the configuration changes.
+   * @param snowflakeConf The snowflake configuration to use.
+   * @return the retry policy
+   */
+  static RetryPolicy getRetryPolicy(SnowflakeConf snowflakeConf)
+  {
+    Map.Entry<SnowflakeConf, RetryPolicy> entry = retryPolicy;
+    if (entry == null || entry.getKey() != snowflakeConf)
+    {
+      entry = new AbstractMap.SimpleImmutableEntry<>(
+          snowflakeConf, RetryPolicy.fromConf(snowflakeConf));
+      retryPolicy = entry;
+    }
+    return entry.getValue();
   }
 }
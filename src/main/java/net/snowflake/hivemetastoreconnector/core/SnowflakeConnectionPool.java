@@ -0,0 +1,534 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Preconditions;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import net.snowflake.hivemetastoreconnector.util.ConnectorMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of long-lived Snowflake connections for a single schema.
+ *
+ * Connections are borrowed for the duration of a command and returned to the
+ * pool afterwards, so that the login handshake is only paid when the pool
+ * grows. The pool keeps at least min-size connections open, never opens more
+ * than max-size connections, closes connections that have been idle for
+ * longer than the idle timeout and periodically runs a trivial query on idle
+ * connections so that the Snowflake session does not expire.
+ *
+ * Connections that have not been used recently, or that were in use when an
+ * error occurred, are validated before being handed out.
+ */
+public class SnowflakeConnectionPool
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  // Shared by all pools, only runs the short eviction and keep-alive tasks
+  private static final ScheduledExecutorService maintenanceExecutor =
+      Executors.newSingleThreadScheduledExecutor(runnable ->
+      {
+        Thread thread = new Thread(runnable, "snowflake-connection-pool");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private final String schema;
+
+  private final SnowflakeClient.ThrowableSupplier<Connection, Exception> factory;
+
+  // Idle connections, the most recently used connection is at the head
+  private final BlockingDeque<PooledConnection> idleConnections =
+      new LinkedBlockingDeque<>();
+
+  // One permit per connection that may still be borrowed
+  private final Semaphore borrowPermits;
+
+  private final AtomicInteger openConnections = new AtomicInteger();
+
+  private final int minSize;
+
+  private final int maxSize;
+
+  private final long idleTimeoutMillis;
+
+  private final long borrowTimeoutMillis;
+
+  private final long validationIntervalMillis;
+
+  private final int validationTimeoutSeconds;
+
+  private final long keepAliveIntervalMillis;
+
+  private volatile boolean closed = false;
+
+  // The eviction and keep-alive task of this pool, cancelled on close
+  private final ScheduledFuture<?> maintenanceTask;
+
+  private final Timer borrowTimer;
+
+  private final Counter createdCounter;
+
+  private final Counter destroyedCounter;
+
+  private final Counter validationFailureCounter;
+
+  /**
+   * Constructor for the connection pool
+   * @param schema the Snowflake schema the connections of this pool use
+   * @param snowflakeConf the configuration for Snowflake Hive metastore
+   *                      listener
+   * @param factory opens a new connection to Snowflake
+   */
+  public SnowflakeConnectionPool(
+      String schema,
+      SnowflakeConf snowflakeConf,
+      SnowflakeClient.ThrowableSupplier<Connection, Exception> factory)
+  {
+    Preconditions.checkNotNull(snowflakeConf);
+    this.schema = schema;
+    this.factory = Preconditions.checkNotNull(factory);
+
+    this.maxSize = getMaxSize(snowflakeConf);
+    this.minSize = Math.min(maxSize, snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONNECTION_POOL_MIN_SIZE.getVarname(), 1));
+    this.idleTimeoutMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONNECTION_POOL_IDLE_TIMEOUT_MILLISECONDS.getVarname(),
+        600000);
+    this.borrowTimeoutMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONNECTION_POOL_BORROW_TIMEOUT_MILLISECONDS.getVarname(),
+        30000);
+    this.validationIntervalMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONNECTION_POOL_VALIDATION_INTERVAL_MILLISECONDS.getVarname(),
+        30000);
+    this.validationTimeoutSeconds = snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONNECTION_POOL_VALIDATION_TIMEOUT_SECONDS.getVarname(),
+        5);
+    this.keepAliveIntervalMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONNECTION_POOL_KEEP_ALIVE_MILLISECONDS.getVarname(),
+        900000);
+    Preconditions.checkArgument(maxSize > 0,
+                                "The connection pool max size must be positive");
+    this.borrowPermits = new Semaphore(maxSize, true);
+
+    String prefix = ConnectorMetrics.name("connection-pool", schema);
+    this.borrowTimer = ConnectorMetrics.timer(ConnectorMetrics.name(prefix, "borrow"));
+    this.createdCounter = ConnectorMetrics.counter(ConnectorMetrics.name(prefix, "created"));
+    this.destroyedCounter = ConnectorMetrics.counter(ConnectorMetrics.name(prefix, "destroyed"));
+    this.validationFailureCounter = ConnectorMetrics.counter(
+        ConnectorMetrics.name(prefix, "validation-failures"));
+    ConnectorMetrics.gauge(ConnectorMetrics.name(prefix, "open"),
+                           (Gauge<Integer>) openConnections::get);
+    ConnectorMetrics.gauge(ConnectorMetrics.name(prefix, "idle"),
+                           (Gauge<Integer>) idleConnections::size);
+    ConnectorMetrics.gauge(ConnectorMetrics.name(prefix, "active"),
+                           (Gauge<Integer>) () -> maxSize - borrowPermits.availablePermits());
+
+    long maintenanceIntervalMillis = Math.max(1000, Math.min(
+        idleTimeoutMillis,
+        keepAliveIntervalMillis > 0 ? keepAliveIntervalMillis : Long.MAX_VALUE) / 2);
+    this.maintenanceTask = maintenanceExecutor.scheduleWithFixedDelay(
+        this::maintain, maintenanceIntervalMillis, maintenanceIntervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Thrown when no connection was returned to an exhausted pool within the
+   * borrow timeout. Nothing was sent to Snowflake, so the caller should wait
+   * for a connection again rather than count it as a failure.
+   */
+  public static class BorrowTimeoutException extends TimeoutException
+  {
+    BorrowTimeoutException(String message)
+    {
+      super(message);
+    }
+  }
+
+  /**
+   * @param snowflakeConf the configuration for Snowflake Hive metastore
+   *                      listener
+   * @return the maximum number of connections of a pool
+   */
+  public static int getMaxSize(SnowflakeConf snowflakeConf)
+  {
+    return snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_CONNECTION_POOL_MAX_SIZE.getVarname(),
+        snowflakeConf.getInt(
+            SnowflakeConf.ConfVars.SNOWFLAKE_CLIENT_THREAD_COUNT.getVarname(), 8));
+  }
+
+  /**
+   * Borrows a connection from the pool, opening a new connection if no idle
+   * connection is available and the pool is not at its maximum size.
+   * The connection must be returned by closing the returned object.
+   * @return a pooled connection
+   * @throws Exception thrown when no connection could be borrowed within the
+   *                   borrow timeout, or when a new connection could not
+   *                   be opened
+   */
+  public PooledConnection borrow() throws Exception
+  {
+    Preconditions.checkState(!closed, "The connection pool is closed");
+    Timer.Context context = borrowTimer.time();
+    try
+    {
+      if (!borrowPermits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS))
+      {
+        throw new BorrowTimeoutException(String.format(
+            "Timed out waiting for a connection for schema %s after %s ms",
+            schema, borrowTimeoutMillis));
+      }
+
+      try
+      {
+        PooledConnection pooled;
+        while ((pooled = idleConnections.pollFirst()) != null)
+        {
+          if (isUsable(pooled))
+          {
+            // A new handle, so that a holder that closes its handle twice
+            // can't return the connection of the next borrower
+            return new PooledConnection(pooled);
+          }
+          validationFailureCounter.inc();
+          destroy(pooled);
+        }
+
+        return open();
+      }
+      catch (Throwable t)
+      {
+        borrowPermits.release();
+        throw t;
+      }
+    }
+    finally
+    {
+      context.stop();
+    }
+  }
+
+  /**
+   * Returns a connection to the pool
+   * @param pooled the connection to return
+   */
+  private void release(PooledConnection pooled)
+  {
+    try
+    {
+      if (closed || pooled.isClosedQuietly())
+      {
+        destroy(pooled);
+      }
+      else
+      {
+        pooled.lastReleasedMillis = System.currentTimeMillis();
+        idleConnections.offerFirst(pooled);
+      }
+    }
+    finally
+    {
+      borrowPermits.release();
+    }
+  }
+
+  /**
+   * Helper method that checks whether an idle connection can be handed out.
+   * Recently used connections skip the round trip to Snowflake.
+   * @param pooled the idle connection
+   * @return whether the connection can be used
+   */
+  private boolean isUsable(PooledConnection pooled)
+  {
+    long idleMillis = System.currentTimeMillis() - pooled.lastReleasedMillis;
+    if (!pooled.suspect && idleMillis < validationIntervalMillis)
+    {
+      return true;
+    }
+
+    try
+    {
+      boolean valid = pooled.connection.isValid(validationTimeoutSeconds);
+      pooled.suspect = !valid;
+      return valid;
+    }
+    catch (SQLException e)
+    {
+      log.warn("Could not validate pooled connection: " + e.getMessage());
+      return false;
+    }
+  }
+
+  private PooledConnection open() throws Exception
+  {
+    log.info("Opening a new pooled connection for schema " + schema);
+    Connection connection = factory.get();
+    openConnections.incrementAndGet();
+    createdCounter.inc();
+    return new PooledConnection(connection);
+  }
+
+  private void destroy(PooledConnection pooled)
+  {
+    openConnections.decrementAndGet();
+    destroyedCounter.inc();
+    try
+    {
+      pooled.connection.close();
+    }
+    catch (SQLException e)
+    {
+      log.warn("Error closing pooled connection: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Helper method run periodically. Evicts idle connections above the
+   * minimum size, keeps the sessions of the remaining idle connections alive
+   * and tops the pool up to its minimum size.
+   */
+  private void maintain()
+  {
+    if (closed)
+    {
+      return;
+    }
+
+    try
+    {
+      long now = System.currentTimeMillis();
+      List<PooledConnection> expired = new ArrayList<>();
+      List<PooledConnection> stale = new ArrayList<>();
+
+      // The least recently used connections are at the tail
+      Iterator<PooledConnection> iterator = idleConnections.descendingIterator();
+      int remaining = openConnections.get();
+      while (iterator.hasNext())
+      {
+        PooledConnection pooled = iterator.next();
+        long idleMillis = now - pooled.lastReleasedMillis;
+        if (remaining > minSize && idleMillis > idleTimeoutMillis)
+        {
+          expired.add(pooled);
+          remaining--;
+        }
+        else if (keepAliveIntervalMillis > 0
+            && now - pooled.lastKeepAliveMillis > keepAliveIntervalMillis)
+        {
+          stale.add(pooled);
+        }
+      }
+
+      for (PooledConnection pooled : expired)
+      {
+        if (idleConnections.remove(pooled))
+        {
+          log.info("Evicting idle pooled connection for schema " + schema);
+          destroy(pooled);
+        }
+      }
+
+      for (PooledConnection pooled : stale)
+      {
+        // The check holds a permit like a borrower, so that a borrower
+        // doesn't open another connection meanwhile. If all are borrowed,
+        // the connection is checked on the next run.
+        if (!borrowPermits.tryAcquire())
+        {
+          break;
+        }
+        try
+        {
+          // Take the connection out of the pool so it's not borrowed meanwhile
+          if (idleConnections.remove(pooled))
+          {
+            keepAlive(pooled);
+          }
+        }
+        finally
+        {
+          borrowPermits.release();
+        }
+      }
+
+      while (!closed && openConnections.get() < minSize
+          && borrowPermits.tryAcquire())
+      {
+        try
+        {
+          release(open());
+        }
+        catch (Throwable t)
+        {
+          borrowPermits.release();
+          throw t;
+        }
+      }
+    }
+    catch (Throwable t)
+    {
+      log.warn("Error maintaining the connection pool for schema " + schema +
+                   ": " + t);
+    }
+  }
+
+  private void keepAlive(PooledConnection pooled)
+  {
+    try (Statement statement = pooled.connection.createStatement())
+    {
+      statement.execute("SELECT 1");
+      pooled.lastKeepAliveMillis = System.currentTimeMillis();
+      idleConnections.offerLast(pooled);
+    }
+    catch (SQLException e)
+    {
+      log.warn("Keep-alive failed for pooled connection: " + e.getMessage());
+      validationFailureCounter.inc();
+      destroy(pooled);
+    }
+  }
+
+  /**
+   * Opens connections until the pool reaches its minimum size
+   * @throws Exception thrown when a connection could not be opened
+   */
+  public void fill() throws Exception
+  {
+    while (openConnections.get() < minSize && borrowPermits.tryAcquire())
+    {
+      try
+      {
+        PooledConnection pooled = open();
+        pooled.lastReleasedMillis = System.currentTimeMillis();
+        idleConnections.offerLast(pooled);
+      }
+      finally
+      {
+        borrowPermits.release();
+      }
+    }
+  }
+
+  /**
+   * Closes all idle connections. Borrowed connections are closed when they
+   * are returned.
+   */
+  public void close()
+  {
+    closed = true;
+    maintenanceTask.cancel(false);
+    PooledConnection pooled;
+    while ((pooled = idleConnections.pollFirst()) != null)
+    {
+      destroy(pooled);
+    }
+  }
+
+  public String getSchema()
+  {
+    return schema;
+  }
+
+  public int getOpenConnectionCount()
+  {
+    return openConnections.get();
+  }
+
+  public int getIdleConnectionCount()
+  {
+    return idleConnections.size();
+  }
+
+  /**
+   * A connection borrowed from the pool. Closing this object returns the
+   * connection to the pool, closing it again does nothing.
+   */
+  public class PooledConnection implements AutoCloseable
+  {
+    private final Connection connection;
+
+    private volatile long lastReleasedMillis;
+
+    private volatile long lastKeepAliveMillis;
+
+    private volatile boolean suspect = false;
+
+    // Set once the connection is returned, so that closing twice doesn't
+    // return it twice
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private PooledConnection(Connection connection)
+    {
+      this.connection = connection;
+      this.lastKeepAliveMillis = System.currentTimeMillis();
+    }
+
+    private PooledConnection(PooledConnection previous)
+    {
+      this.connection = previous.connection;
+      this.lastReleasedMillis = previous.lastReleasedMillis;
+      this.lastKeepAliveMillis = previous.lastKeepAliveMillis;
+      this.suspect = previous.suspect;
+    }
+
+    public Connection getConnection()
+    {
+      return connection;
+    }
+
+    /**
+     * Marks the connection to be validated before it's borrowed again,
+     * for example after an error was encountered while using it.
+     */
+    public void markSuspect()
+    {
+      this.suspect = true;
+    }
+
+    private boolean isClosedQuietly()
+    {
+      try
+      {
+        return connection.isClosed();
+      }
+      catch (SQLException e)
+      {
+        return true;
+      }
+    }
+
+    @Override
+    public void close()
+    {
+      if (released.compareAndSet(false, true))
+      {
+        release(this);
+      }
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import java.security.PrivateKey;
+
+/**
+ * The secrets used to log in to Snowflake. Either may be null if the
+ * corresponding authentication method is not configured.
+ */
+public class SnowflakeCredentials
+{
+  private final String password;
+
+  private final PrivateKey privateKey;
+
+  public SnowflakeCredentials(String password, PrivateKey privateKey)
+  {
+    this.password = password;
+    this.privateKey = privateKey;
+  }
+
+  public String getPassword()
+  {
+    return password;
+  }
+
+  public PrivateKey getPrivateKey()
+  {
+    return privateKey;
+  }
+
+  @Override
+  public String toString()
+  {
+    // Never log the secrets themselves
+    return String.format("SnowflakeCredentials(password=%s, privateKey=%s)",
+                         password == null ? "unset" : "set",
+                         privateKey == null ? "unset" : "set");
+  }
+}
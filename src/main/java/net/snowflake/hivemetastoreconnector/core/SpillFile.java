@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A temporary file that holds queued commands that don't fit in memory.
+ *
+ * Records are appended to the end of the file and read back once. The file
+ * is truncated when every record written to it has been read back, so it
+ * only grows while the queues are backed up.
+ */
+public class SpillFile
+{
+  private final File file;
+
+  private final RandomAccessFile raf;
+
+  private final long maxBytes;
+
+  // Guarded by this
+  private long liveBytes = 0;
+
+  /**
+   * Creates a spill file in a directory
+   * @param directory the directory
+   * @param maxBytes the maximum number of bytes that may be held in the file
+   * @throws IOException thrown when the file could not be created
+   */
+  public SpillFile(File directory, long maxBytes) throws IOException
+  {
+    Preconditions.checkArgument(maxBytes > 0);
+    if (!directory.isDirectory() && !directory.mkdirs())
+    {
+      throw new IOException("Could not create spill directory " + directory);
+    }
+    this.file = File.createTempFile("snowflake-hive-metastore-spill-", ".bin",
+                                    directory);
+    this.file.deleteOnExit();
+    this.raf = new RandomAccessFile(file, "rw");
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Appends a record
+   * @param record the record
+   * @return the offset of the record, or -1 if the file is full
+   * @throws IOException thrown when the record could not be written
+   */
+  public synchronized long write(byte[] record) throws IOException
+  {
+    if (liveBytes + record.length > maxBytes)
+    {
+      return -1;
+    }
+    long offset = raf.length();
+    raf.seek(offset);
+    raf.write(record);
+    liveBytes += record.length;
+    return offset;
+  }
+
+  /**
+   * Reads a record back. Each record must be read or discarded exactly once.
+   * @param offset the offset of the record
+   * @param length the length of the record
+   * @return the record
+   * @throws IOException thrown when the record could not be read
+   */
+  public synchronized byte[] read(long offset, int length) throws IOException
+  {
+    byte[] record = new byte[length];
+    raf.seek(offset);
+    raf.readFully(record);
+    discard(length);
+    return record;
+  }
+
+  /**
+   * Discards a record without reading it
+   * @param length the length of the record
+   * @throws IOException thrown when the file could not be truncated
+   */
+  public synchronized void discard(int length) throws IOException
+  {
+    liveBytes -= length;
+    if (liveBytes == 0)
+    {
+      raf.setLength(0);
+    }
+  }
+
+  public synchronized long getLiveBytes()
+  {
+    return liveBytes;
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs the statements of many commands, possibly for many tables, into a
+ * single multi-statement request to Snowflake.
+ *
+ * Statements are accumulated per Snowflake schema, since the statements
+ * generated by commands are mostly not qualified with a schema. A batch is sent
+ * when it reaches the maximum number of statements, or when the linger time
+ * has passed since its first statement was added. The statements of a batch
+ * are executed in the order they were submitted.
+ *
+ * Each submission completes its own future, so outcomes are reported back
+ * to the command they came from. If a multi-statement request fails,
+ * Snowflake does not report which statements ran, so each submission of the
+ * batch is executed again on its own to find out which one failed. This is
+ * safe because the generated statements can run twice: tables are created
+ * with CREATE OR REPLACE, dropped and renamed only IF EXISTS, and refreshed
+ * to a given metadata file. Failed submissions are not retried here, the
+ * scheduler retries their commands.
+ */
+public class StatementBatcher
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  private final SnowflakeConf snowflakeConf;
+
+  private final int maxStatements;
+
+  private final long lingerMillis;
+
+  // Batches that are still accepting statements, by schema. Guarded by this.
+  private final Map<String, Batch> openBatches = new HashMap<>();
+
+  private final ScheduledExecutorService lingerTimer;
+
+  private final ExecutorService batchExecutor;
+
+  // Set once the batcher shuts down. Guarded by this.
+  private boolean shutdown = false;
+
+  /**
+   * Constructor for the batcher
+   * @param threadCount the number of batches that may execute concurrently
+   * @param snowflakeConf the configuration for Snowflake Hive metastore
+   *                      listener
+   */
+  public StatementBatcher(int threadCount, SnowflakeConf snowflakeConf)
+  {
+    Preconditions.checkArgument(threadCount > 0);
+    this.snowflakeConf = Preconditions.checkNotNull(snowflakeConf);
+    this.maxStatements = snowflakeConf.getInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_BATCHING_MAX_STATEMENTS.getVarname(), 100);
+    this.lingerMillis = snowflakeConf.getLong(
+        SnowflakeConf.ConfVars.SNOWFLAKE_BATCHING_LINGER_MILLISECONDS.getVarname(), 50);
+    Preconditions.checkArgument(maxStatements > 0);
+    this.lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable ->
+    {
+      Thread thread = new Thread(runnable, "snowflake-batch-linger");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.batchExecutor = Executors.newFixedThreadPool(threadCount);
+  }
+
+  /**
+   * Submits the statements of a command to be executed in a batch
+   * @param schema the Snowflake schema of the statements
+   * @param statements the statements of the command, executed in order
+   * @return a future of the outcome of each statement, completed
+   *         exceptionally if one of them failed, or if the batcher is shut
+   *         down
+   */
+  public CompletableFuture<List<StatementOutcome>> submit(String schema,
+                                                         List<String> statements)
+  {
+    Preconditions.checkNotNull(statements);
+    Submission submission = new Submission(statements);
+    if (statements.isEmpty())
+    {
+      submission.future.complete(new ArrayList<>());
+      return submission.future;
+    }
+
+    Batch full = null;
+    synchronized (this)
+    {
+      if (shutdown)
+      {
+        submission.future.completeExceptionally(new RejectedExecutionException(
+            "The statement batcher is shut down"));
+        return submission.future;
+      }
+      String key = Strings.nullToEmpty(schema);
+      Batch batch = openBatches.get(key);
+      if (batch == null)
+      {
+        Batch newBatch = new Batch(schema);
+        openBatches.put(key, newBatch);
+        lingerTimer.schedule(() -> close(newBatch), lingerMillis,
+                             TimeUnit.MILLISECONDS);
+        batch = newBatch;
+      }
+
+      batch.submissions.add(submission);
+      batch.statementCount += statements.size();
+      if (batch.statementCount >= maxStatements)
+      {
+        full = batch;
+        closeLocked(batch);
+      }
+    }
+
+    if (full != null)
+    {
+      dispatch(full);
+    }
+    return submission.future;
+  }
+
+  /**
+   * Helper method that stops a batch from accepting statements and sends it
+   * @param batch the batch
+   */
+  private void close(Batch batch)
+  {
+    synchronized (this)
+    {
+      if (batch.closed)
+      {
+        return;
+      }
+      closeLocked(batch);
+    }
+    dispatch(batch);
+  }
+
+  private void closeLocked(Batch batch)
+  {
+    batch.closed = true;
+    openBatches.remove(Strings.nullToEmpty(batch.schema), batch);
+  }
+
+  /**
+   * Stops the threads of the batcher. Batches already dispatched finish,
+   * batches still lingering are dispatched right away. Statements submitted
+   * afterwards fail.
+   */
+  public void shutdown()
+  {
+    List<Batch> lingering;
+    synchronized (this)
+    {
+      shutdown = true;
+      lingering = new ArrayList<>(openBatches.values());
+      lingering.forEach(this::closeLocked);
+    }
+    lingering.forEach(this::dispatch);
+    lingerTimer.shutdownNow();
+    batchExecutor.shutdown();
+  }
+
+  private void dispatch(Batch batch)
+  {
+    try
+    {
+      batchExecutor.execute(() -> execute(batch));
+    }
+    catch (RejectedExecutionException e)
+    {
+      batch.submissions.forEach(
+          submission -> submission.future.completeExceptionally(e));
+    }
+  }
+
+  /**
+   * Helper method that executes a batch and completes its submissions
+   * @param batch the batch
+   */
+  private void execute(Batch batch)
+  {
+    if (batch.submissions.size() > 1)
+    {
+      List<String> statements = new ArrayList<>(batch.statementCount);
+      batch.submissions.forEach(
+          submission -> statements.addAll(submission.statements));
+      try
+      {
+        log.info(String.format("Executing a batch of %s statements from %s commands",
+                               statements.size(), batch.submissions.size()));
+        List<StatementOutcome> outcomes = SnowflakeClient.executeMultiStatement(
+            statements, snowflakeConf, batch.schema);
+
+        // Hand each submission the outcomes of its own statements
+        int offset = 0;
+        for (Submission submission : batch.submissions)
+        {
+          int end = offset + submission.statements.size();
+          submission.future.complete(
+              new ArrayList<>(outcomes.subList(offset, end)));
+          offset = end;
+        }
+        return;
+      }
+      catch (Throwable t)
+      {
+        log.warn("Batch failed, executing its commands one by one: " + t);
+      }
+    }
+
+    for (Submission submission : batch.submissions)
+    {
+      try
+      {
+        submission.future.complete(SnowflakeClient.executeStatements(
+            submission.statements, snowflakeConf, batch.schema,
+            SnowflakeClient.getRetryPolicy(snowflakeConf).withoutRetries()));
+      }
+      catch (Throwable t)
+      {
+        submission.future.completeExceptionally(t);
+      }
+    }
+  }
+
+  /**
+   * The statements of a single command and the future to complete
+   */
+  private static class Submission
+  {
+    private final List<String> statements;
+
+    private final CompletableFuture<List<StatementOutcome>> future =
+        new CompletableFuture<>();
+
+    Submission(List<String> statements)
+    {
+      this.statements = statements;
+    }
+  }
+
+  /**
+   * The submissions for a schema that will be sent in a single request
+   */
+  private static class Batch
+  {
+    private final String schema;
+
+    private final List<Submission> submissions = new ArrayList<>();
+
+    private int statementCount = 0;
+
+    private boolean closed = false;
+
+    Batch(String schema)
+    {
+      this.schema = schema;
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import net.snowflake.client.jdbc.SnowflakeSQLException;
+
+/**
+ * The outcome of a statement executed in Snowflake. The result rows are not
+ * kept, only their count, unless result text was requested.
+ */
+public class StatementOutcome
+{
+  public enum Status
+  {
+    SUCCEEDED,
+    FAILED
+  }
+
+  // Used when the number of rows is not known, e.g. for asynchronous queries
+  public static final long UNKNOWN_ROW_COUNT = -1;
+
+  private final String statement;
+
+  private final String queryId;
+
+  private final Status status;
+
+  private final long elapsedMillis;
+
+  private final long rowCount;
+
+  private final String resultText;
+
+  public StatementOutcome(String statement, String queryId, Status status,
+                          long elapsedMillis, long rowCount,
+                          String resultText)
+  {
+    this.statement = statement;
+    this.queryId = queryId;
+    this.status = status;
+    this.elapsedMillis = elapsedMillis;
+    this.rowCount = rowCount;
+    this.resultText = resultText;
+  }
+
+  /**
+   * Creates the outcome of a statement that succeeded
+   * @param statement the statement
+   * @param queryId the Snowflake query ID, if known
+   * @param elapsedMillis the time it took to execute the statement
+   * @param rowCount the number of rows returned or affected
+   * @return the outcome
+   */
+  public static StatementOutcome succeeded(String statement, String queryId,
+                                           long elapsedMillis, long rowCount)
+  {
+    return new StatementOutcome(statement, queryId, Status.SUCCEEDED,
+                                elapsedMillis, rowCount, null);
+  }
+
+  /**
+   * Creates the outcome of a statement that failed
+   * @param statement the statement
+   * @param elapsedMillis the time it took for the statement to fail
+   * @param error the error
+   * @return the outcome
+   */
+  public static StatementOutcome failed(String statement, long elapsedMillis,
+                                        Throwable error)
+  {
+    String queryId = error instanceof SnowflakeSQLException
+        ? ((SnowflakeSQLException) error).getQueryId() : null;
+    return new StatementOutcome(statement, queryId, Status.FAILED,
+                                elapsedMillis, UNKNOWN_ROW_COUNT, null);
+  }
+
+  /**
+   * Creates a copy of this outcome with the given result text
+   * @param resultText the text of the result rows
+   * @return the outcome
+   */
+  public StatementOutcome withResultText(String resultText)
+  {
+    return new StatementOutcome(statement, queryId, status, elapsedMillis,
+                                rowCount, resultText);
+  }
+
+  public String getStatement()
+  {
+    return statement;
+  }
+
+  public String getQueryId()
+  {
+    return queryId;
+  }
+
+  public Status getStatus()
+  {
+    return status;
+  }
+
+  public long getElapsedMillis()
+  {
+    return elapsedMillis;
+  }
+
+  public long getRowCount()
+  {
+    return rowCount;
+  }
+
+  /**
+   * @return the text of the result rows, or null if it was not materialized
+   */
+  public String getResultText()
+  {
+    return resultText;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("StatementOutcome(queryId=%s, status=%s, " +
+                             "elapsed=%sms, rows=%s)",
+                         queryId, status, elapsedMillis, rowCount);
+  }
+}
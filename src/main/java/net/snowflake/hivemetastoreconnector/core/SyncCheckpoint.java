@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The progress of the sync tool, kept in a file so that a long run can
+ * resume, and so that the next run only refreshes what changed.
+ *
+ * The file is a log of tab separated lines:
+ *
+ *   T  database  table  metadata location   the table was synced to it
+ *   X  database  table                      the table was dropped
+ *   D  database                             every table of the database
+ *                                           was synced in this run
+ *
+ * A run skips the databases it finds done, and at the end, rewrites the
+ * file with only the locations of the tables, so that the next run starts
+ * over while remembering what each table was synced to. A line is only
+ * written once its command is applied, and the file is synced to disk
+ * each time a database is done.
+ */
+public class SyncCheckpoint
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  private final File file;
+
+  // The following are guarded by this
+
+  // The metadata location each table was synced to, by lowercase name
+  private final Map<String, String> locations = new HashMap<>();
+
+  // The databases done in the current run, lowercase
+  private final Set<String> doneDatabases = new HashSet<>();
+
+  private final FileOutputStream stream;
+
+  private final BufferedWriter writer;
+
+  /**
+   * Opens the checkpoint, reading the progress kept so far
+   * @param file the checkpoint file, created if missing
+   * @throws IOException thrown when the file could not be read or opened
+   */
+  public SyncCheckpoint(File file) throws IOException
+  {
+    this.file = file;
+    if (file.exists())
+    {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+          new FileInputStream(file), StandardCharsets.UTF_8)))
+      {
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+          read(line);
+        }
+      }
+    }
+    File directory = file.getAbsoluteFile().getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+    {
+      throw new IOException("Could not create the directory " + directory);
+    }
+    this.stream = new FileOutputStream(file, true);
+    this.writer = new BufferedWriter(
+        new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+  }
+
+  private void read(String line)
+  {
+    String[] fields = line.split("\t", -1);
+    if (fields[0].equals("T") && fields.length == 4)
+    {
+      locations.put(getKey(fields[1], fields[2]), fields[3]);
+    }
+    else if (fields[0].equals("X") && fields.length == 3)
+    {
+      locations.remove(getKey(fields[1], fields[2]));
+    }
+    else if (fields[0].equals("D") && fields.length == 2)
+    {
+      doneDatabases.add(fields[1].toLowerCase());
+    }
+    else if (!line.isEmpty())
+    {
+      // Left by a write that didn't finish
+      log.warn("Skipping an invalid sync checkpoint line: " + line);
+    }
+  }
+
+  /**
+   * @param databaseName the database
+   * @return whether every table of the database was synced in this run
+   */
+  public synchronized boolean isDone(String databaseName)
+  {
+    return doneDatabases.contains(databaseName.toLowerCase());
+  }
+
+  /**
+   * @param databaseName the database of the table
+   * @param tableName the table
+   * @return the metadata location the table was last synced to, or null
+   */
+  public synchronized String getLocation(String databaseName, String tableName)
+  {
+    return locations.get(getKey(databaseName, tableName));
+  }
+
+  /**
+   * Records that a table was synced to a metadata location
+   * @param databaseName the database of the table
+   * @param tableName the table
+   * @param metadataLocation the full metadata location
+   * @throws IOException thrown when the checkpoint could not be written
+   */
+  public synchronized void synced(String databaseName, String tableName,
+                                  String metadataLocation) throws IOException
+  {
+    locations.put(getKey(databaseName, tableName), metadataLocation);
+    writer.write("T\t" + databaseName + "\t" + tableName + "\t" +
+                     metadataLocation + "\n");
+  }
+
+  /**
+   * Records that a table was dropped
+   * @param databaseName the database of the table
+   * @param tableName the table
+   * @throws IOException thrown when the checkpoint could not be written
+   */
+  public synchronized void dropped(String databaseName, String tableName)
+      throws IOException
+  {
+    locations.remove(getKey(databaseName, tableName));
+    writer.write("X\t" + databaseName + "\t" + tableName + "\n");
+  }
+
+  /**
+   * Records that every table of a database was synced, and syncs the
+   * checkpoint to disk
+   * @param databaseName the database
+   * @throws IOException thrown when the checkpoint could not be written
+   */
+  public synchronized void done(String databaseName) throws IOException
+  {
+    doneDatabases.add(databaseName.toLowerCase());
+    writer.write("D\t" + databaseName + "\n");
+    writer.flush();
+    stream.getFD().sync();
+  }
+
+  /**
+   * Ends the run: the file is rewritten with the location of each table,
+   * without the databases done
+   * @throws IOException thrown when the checkpoint could not be written
+   */
+  public synchronized void finish() throws IOException
+  {
+    writer.close();
+    File temporary = new File(file.getPath() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temporary);
+         BufferedWriter compacted = new BufferedWriter(
+             new OutputStreamWriter(out, StandardCharsets.UTF_8)))
+    {
+      for (Map.Entry<String, String> entry : locations.entrySet())
+      {
+        int separator = entry.getKey().indexOf('\t');
+        compacted.write("T\t" + entry.getKey().substring(0, separator) + "\t" +
+                            entry.getKey().substring(separator + 1) + "\t" +
+                            entry.getValue() + "\n");
+      }
+      compacted.flush();
+      out.getFD().sync();
+    }
+    Files.move(temporary.toPath(), file.toPath(),
+               StandardCopyOption.ATOMIC_MOVE,
+               StandardCopyOption.REPLACE_EXISTING);
+    doneDatabases.clear();
+  }
+
+  /**
+   * Closes the checkpoint without ending the run, so that the next run
+   * resumes it
+   * @throws IOException thrown when the checkpoint could not be written
+   */
+  public synchronized void close() throws IOException
+  {
+    writer.close();
+  }
+
+  private static String getKey(String databaseName, String tableName)
+  {
+    // Names can't contain tabs
+    return databaseName.toLowerCase() + "\t" + tableName.toLowerCase();
+  }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which tables the listener handles, from include and exclude
+ * rules on database and table names, compiled once from the configuration.
+ *
+ * A rule is either a name, a prefix ending with "*", or a regex starting
+ * with "regex:". Names and prefixes are matched case-insensitively, and are
+ * checked with a hash set and a prefix trie, so they cost a lookup per
+ * event. Regexes are only tried when no name or prefix rule matched, and
+ * the result for a name is cached, so that each name is matched against
+ * them once.
+ *
+ * A table is handled if neither its database nor its name is excluded, and
+ * both are included by the include rules of their level, if there are any.
+ *
+ * Rules are separated by commas. A comma inside a character class,
+ * quantifier or group of a regex, e.g. "regex:t[0-9]{1,3}", or escaped
+ * with a backslash is part of the regex.
+ */
+public class TableFilter
+{
+  private static final String REGEX_PREFIX = "regex:";
+
+  // The maximum number of names whose result is cached, per level
+  private static final int MAX_CACHED_NAMES = 10000;
+
+  /**
+   * A trie of prefixes. Children are kept in small arrays, as names share
+   * few characters at each position.
+   */
+  private static class PrefixTrie
+  {
+    private char[] keys = new char[0];
+
+    private PrefixTrie[] children = new PrefixTrie[0];
+
+    // Whether a prefix ends here
+    private boolean terminal = false;
+
+    void add(String prefix)
+    {
+      PrefixTrie node = this;
+      for (int i = 0; i < prefix.length(); i++)
+      {
+        node = node.childOrCreate(prefix.charAt(i));
+      }
+      node.terminal = true;
+    }
+
+    boolean isEmpty()
+    {
+      return !terminal && keys.length == 0;
+    }
+
+    /**
+     * @param name the lowercase name
+     * @return whether the name starts with one of the prefixes
+     */
+    boolean matches(String name)
+    {
+      PrefixTrie node = this;
+      for (int i = 0; ; i++)
+      {
+        if (node.terminal)
+        {
+          return true;
+        }
+        if (i == name.length())
+        {
+          return false;
+        }
+        node = node.child(name.charAt(i));
+        if (node == null)
+        {
+          return false;
+        }
+      }
+    }
+
+    private PrefixTrie child(char key)
+    {
+      for (int i = 0; i < keys.length; i++)
+      {
+        if (keys[i] == key)
+        {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    private PrefixTrie childOrCreate(char key)
+    {
+      PrefixTrie child = child(key);
+      if (child == null)
+      {
+        child = new PrefixTrie();
+        keys = Arrays.copyOf(keys, keys.length + 1);
+        children = Arrays.copyOf(children, children.length + 1);
+        keys[keys.length - 1] = key;
+        children[children.length - 1] = child;
+      }
+      return child;
+    }
+  }
+
+  /**
+   * The rules of one kind and level, e.g. the tables to exclude
+   */
+  private static class Rules
+  {
+    private final Set<String> names;
+
+    private final PrefixTrie prefixes = new PrefixTrie();
+
+    private final List<Pattern> patterns;
+
+    Rules(Collection<String> rules)
+    {
+      ImmutableSet.Builder<String> names = ImmutableSet.builder();
+      ImmutableList.Builder<Pattern> patterns = ImmutableList.builder();
+      for (String rule : rules)
+      {
+        if (rule.startsWith(REGEX_PREFIX))
+        {
+          patterns.add(Pattern.compile(rule.substring(REGEX_PREFIX.length())));
+        }
+        else if (rule.endsWith("*"))
+        {
+          prefixes.add(rule.substring(0, rule.length() - 1).toLowerCase());
+        }
+        else if (!rule.isEmpty())
+        {
+          names.add(rule.toLowerCase());
+        }
+      }
+      this.names = names.build();
+      this.patterns = patterns.build();
+    }
+
+    boolean isEmpty()
+    {
+      return names.isEmpty() && prefixes.isEmpty() && patterns.isEmpty();
+    }
+
+    boolean hasPatterns()
+    {
+      return !patterns.isEmpty();
+    }
+
+    /**
+     * @param lowerName the lowercase name
+     * @return whether a name or prefix rule matches the name
+     */
+    boolean matchesWithoutPatterns(String lowerName)
+    {
+      return (!names.isEmpty() && names.contains(lowerName))
+          || prefixes.matches(lowerName);
+    }
+
+    boolean matchesPatterns(String name)
+    {
+      for (Pattern pattern : patterns)
+      {
+        if (pattern.matcher(name).matches())
+        {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * The include and exclude rules of a level, with the cached results of
+   * names that needed a regex
+   */
+  private static class Level
+  {
+    private final Rules include;
+
+    private final Rules exclude;
+
+    private final ConcurrentHashMap<String, Boolean> cachedResults =
+        new ConcurrentHashMap<>();
+
+    Level(Collection<String> include, Collection<String> exclude)
+    {
+      this.include = new Rules(include);
+      this.exclude = new Rules(exclude);
+    }
+
+    boolean accepts(String name)
+    {
+      // Hive names are usually lowercase already, then this doesn't copy
+      String lowerName = name.toLowerCase();
+      if (exclude.matchesWithoutPatterns(lowerName))
+      {
+        return false;
+      }
+      boolean included = include.isEmpty()
+          || include.matchesWithoutPatterns(lowerName);
+      if (!exclude.hasPatterns() && (included || !include.hasPatterns()))
+      {
+        return included;
+      }
+
+      Boolean cached = cachedResults.get(name);
+      if (cached != null)
+      {
+        return cached;
+      }
+      boolean accepted = !exclude.matchesPatterns(name)
+          && (included || include.matchesPatterns(name));
+      if (cachedResults.size() >= MAX_CACHED_NAMES)
+      {
+        cachedResults.clear();
+      }
+      cachedResults.put(name, accepted);
+      return accepted;
+    }
+  }
+
+  private final Level databases;
+
+  private final Level tables;
+
+  /**
+   * Constructor for the filter
+   * @param databaseInclude the rules of the databases to handle, all if empty
+   * @param databaseExclude the rules of the databases to ignore
+   * @param tableInclude the rules of the tables to handle, all if empty
+   * @param tableExclude the rules of the tables to ignore
+   */
+  public TableFilter(Collection<String> databaseInclude,
+                     Collection<String> databaseExclude,
+                     Collection<String> tableInclude,
+                     Collection<String> tableExclude)
+  {
+    this.databases = new Level(databaseInclude, databaseExclude);
+    this.tables = new Level(tableInclude, tableExclude);
+  }
+
+  /**
+   * Compiles the filter of a configuration. The regexes of the older
+   * database and table filter settings are exclude rules.
+   * @param snowflakeConf The configuration for Snowflake Hive metastore
+   *                      listener
+   * @return the filter
+   */
+  public static TableFilter fromConf(SnowflakeConf snowflakeConf)
+  {
+    return new TableFilter(
+        splitRules(snowflakeConf.get(
+            SnowflakeConf.ConfVars.SNOWFLAKE_DATABASE_INCLUDE.getVarname())),
+        withRegex(splitRules(snowflakeConf.get(
+                      SnowflakeConf.ConfVars.SNOWFLAKE_DATABASE_EXCLUDE.getVarname())),
+                  snowflakeConf.get(
+                      SnowflakeConf.ConfVars.SNOWFLAKE_DATABASE_FILTER_REGEX.getVarname())),
+        splitRules(snowflakeConf.get(
+            SnowflakeConf.ConfVars.SNOWFLAKE_TABLE_INCLUDE.getVarname())),
+        withRegex(splitRules(snowflakeConf.get(
+                      SnowflakeConf.ConfVars.SNOWFLAKE_TABLE_EXCLUDE.getVarname())),
+                  snowflakeConf.get(
+                      SnowflakeConf.ConfVars.SNOWFLAKE_TABLE_FILTER_REGEX.getVarname())));
+  }
+
+  /**
+   * Splits a list of rules on the commas that aren't part of a regex
+   * @param value the comma separated rules, may be null
+   * @return the trimmed rules
+   */
+  public static List<String> splitRules(String value)
+  {
+    List<String> rules = new ArrayList<>();
+    if (value == null)
+    {
+      return rules;
+    }
+    int start = 0;
+    while (start <= value.length())
+    {
+      int ruleStart = start;
+      while (ruleStart < value.length()
+          && Character.isWhitespace(value.charAt(ruleStart)))
+      {
+        ruleStart++;
+      }
+      int end = value.startsWith(REGEX_PREFIX, ruleStart)
+          ? endOfRegex(value, ruleStart + REGEX_PREFIX.length())
+          : value.indexOf(',', start);
+      if (end < 0)
+      {
+        end = value.length();
+      }
+      addRule(rules, value.substring(start, end));
+      start = end + 1;
+    }
+    return rules;
+  }
+
+  /**
+   * Finds the comma that ends a regex rule, skipping the commas of escapes,
+   * character classes, quantifiers and groups
+   * @param value the comma separated rules
+   * @param from the start of the regex
+   * @return the index of the comma, or the length of the value
+   */
+  private static int endOfRegex(String value, int from)
+  {
+    int depth = 0;
+    boolean inClass = false;
+    for (int i = from; i < value.length(); i++)
+    {
+      char c = value.charAt(i);
+      if (c == '\\')
+      {
+        i++;
+      }
+      else if (inClass)
+      {
+        inClass = c != ']';
+      }
+      else if (c == '[')
+      {
+        inClass = true;
+      }
+      else if (c == '{' || c == '(')
+      {
+        depth++;
+      }
+      else if ((c == '}' || c == ')') && depth > 0)
+      {
+        depth--;
+      }
+      else if (c == ',' && depth == 0)
+      {
+        return i;
+      }
+    }
+    return value.length();
+  }
+
+  private static void addRule(List<String> rules, String rule)
+  {
+    String trimmed = rule.trim();
+    if (!trimmed.isEmpty())
+    {
+      rules.add(trimmed);
+    }
+  }
+
+  private static Collection<String> withRegex(Collection<String> rules,
+                                              String regex)
+  {
+    if (regex == null || regex.isEmpty())
+    {
+      return rules;
+    }
+    return ImmutableList.<String>builder()
+        .addAll(rules)
+        .add(REGEX_PREFIX + regex)
+        .build();
+  }
+
+  /**
+   * @param databaseName the database
+   * @return whether the listener may handle tables of the database
+   */
+  public boolean acceptsDatabase(String databaseName)
+  {
+    return databases.accepts(databaseName);
+  }
+
+  /**
+   * @param databaseName the database of the table
+   * @param tableName the table
+   * @return whether the listener handles the table
+   */
+  public boolean accepts(String databaseName, String tableName)
+  {
+    return databases.accepts(databaseName) && tables.accepts(tableName);
+  }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import net.snowflake.hivemetastoreconnector.commands.Command;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The queued commands of a table, processed by at most one task at a time.
+ *
+ * The queue is a lock-free linked list with many producers and a single
+ * consumer. A producer appends an entry by swapping the tail, so it learns
+ * which entry was queued right before its own. This lets a refresh
+ * supersede the refresh queued right before it, and lets producers drop
+ * the oldest entry, by marking entries as removed. The consumer skips
+ * removed entries.
+ *
+ * @param <K> the type of the key of the table
+ */
+public class TableMailbox<K>
+{
+  private static final int QUEUED = 0;
+
+  private static final int TAKEN = 1;
+
+  private static final int REMOVED = 2;
+
+  /**
+   * A command in a mailbox, either held in memory or spilled to disk. An
+   * entry that replaced older entries keeps the time the oldest of them
+   * was queued.
+   */
+  public static class Entry
+  {
+    // Null if the command is spilled, or once the entry is removed
+    private volatile Command command;
+
+    private final boolean refresh;
+
+    // The version of the table the command brings Snowflake to
+    private final long version;
+
+    // The estimated memory of the entry, counted against the queue budget
+    private final long sizeInBytes;
+
+    // The location of the spilled command, -1 if it is held in memory
+    private final long spillOffset;
+
+    private final int spillLength;
+
+    private volatile long firstQueuedMillis;
+
+    private final long lastQueuedMillis;
+
+    // The sequence number of the command in the journal, -1 if it isn't
+    // journaled
+    private volatile long journalSequence = -1;
+
+    // Told once the command is processed or superseded, whether it was
+    // applied, null if nothing waits for it
+    private volatile Consumer<Boolean> onDone;
+
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+    private volatile Entry next;
+
+    /**
+     * Creates an entry for a command held in memory
+     * @param command the command
+     * @param sizeInBytes the estimated memory of the entry
+     * @param firstQueuedMillis the time the oldest replaced command was queued
+     * @param lastQueuedMillis the time the command was queued
+     */
+    public Entry(Command command, long sizeInBytes, long firstQueuedMillis,
+                 long lastQueuedMillis)
+    {
+      this.command = command;
+      this.refresh = command.isRefresh();
+      this.version = command.getVersion();
+      this.sizeInBytes = sizeInBytes;
+      this.spillOffset = -1;
+      this.spillLength = 0;
+      this.firstQueuedMillis = firstQueuedMillis;
+      this.lastQueuedMillis = lastQueuedMillis;
+    }
+
+    /**
+     * Creates an entry for a command spilled to disk
+     * @param refresh whether the command only refreshes the table
+     * @param version the version of the table the command brings
+     *                Snowflake to
+     * @param sizeInBytes the estimated memory of the entry
+     * @param spillOffset the offset of the command in the spill file
+     * @param spillLength the length of the command in the spill file
+     * @param queuedMillis the time the command was queued
+     */
+    public Entry(boolean refresh, long version, long sizeInBytes,
+                 long spillOffset, int spillLength, long queuedMillis)
+    {
+      this.command = null;
+      this.refresh = refresh;
+      this.version = version;
+      this.sizeInBytes = sizeInBytes;
+      this.spillOffset = spillOffset;
+      this.spillLength = spillLength;
+      this.firstQueuedMillis = queuedMillis;
+      this.lastQueuedMillis = queuedMillis;
+    }
+
+    private Entry()
+    {
+      this.command = null;
+      this.refresh = false;
+      this.version = Command.NO_VERSION;
+      this.sizeInBytes = 0;
+      this.spillOffset = -1;
+      this.spillLength = 0;
+      this.firstQueuedMillis = 0;
+      this.lastQueuedMillis = 0;
+      this.state.set(TAKEN);
+    }
+
+    public Command getCommand()
+    {
+      return command;
+    }
+
+    public boolean isRefresh()
+    {
+      return refresh;
+    }
+
+    public long getVersion()
+    {
+      return version;
+    }
+
+    public long getSizeInBytes()
+    {
+      return sizeInBytes;
+    }
+
+    public boolean isSpilled()
+    {
+      return spillOffset >= 0;
+    }
+
+    public long getSpillOffset()
+    {
+      return spillOffset;
+    }
+
+    public int getSpillLength()
+    {
+      return spillLength;
+    }
+
+    public long getFirstQueuedMillis()
+    {
+      return firstQueuedMillis;
+    }
+
+    public long getLastQueuedMillis()
+    {
+      return lastQueuedMillis;
+    }
+
+    public long getJournalSequence()
+    {
+      return journalSequence;
+    }
+
+    public void setJournalSequence(long journalSequence)
+    {
+      this.journalSequence = journalSequence;
+    }
+
+    public Consumer<Boolean> getOnDone()
+    {
+      return onDone;
+    }
+
+    public void setOnDone(Consumer<Boolean> onDone)
+    {
+      this.onDone = onDone;
+    }
+  }
+
+  private final K key;
+
+  // Whether a task is submitted to process this mailbox
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+  // The number of entries added or being added to this mailbox and neither
+  // taken nor removed yet, or -1 once the mailbox is retired
+  private final AtomicInteger pending = new AtomicInteger();
+
+  // The last entry taken by the consumer, or a stub. Only the consumer
+  // moves it.
+  private volatile Entry head = new Entry();
+
+  private final AtomicReference<Entry> tail = new AtomicReference<>(head);
+
+  public TableMailbox(K key)
+  {
+    this.key = key;
+  }
+
+  public K getKey()
+  {
+    return key;
+  }
+
+  /**
+   * Appends an entry, unless the mailbox is retired
+   * @param entry the entry
+   * @return the entry queued right before, which may already be taken or
+   *         removed, or null if the mailbox is retired
+   */
+  public Entry offer(Entry entry)
+  {
+    int count;
+    do
+    {
+      count = pending.get();
+      if (count < 0)
+      {
+        return null;
+      }
+    }
+    while (!pending.compareAndSet(count, count + 1));
+
+    Entry previous = tail.getAndSet(entry);
+    previous.next = entry;
+    return previous;
+  }
+
+  /**
+   * Marks a refresh as superseded by the refresh queued right after it, so
+   * that the consumer skips it. The newer refresh inherits the time the
+   * superseded one was first queued. A refresh to a newer version of the
+   * table isn't superseded by one that arrived late with an older version.
+   * @param superseded the older refresh
+   * @param newer the newer refresh
+   * @return whether the older refresh was still queued and is now removed
+   */
+  public boolean supersede(Entry superseded, Entry newer)
+  {
+    if (!superseded.refresh || !newer.refresh
+        || superseded.version > newer.version || !remove(superseded))
+    {
+      return false;
+    }
+    newer.firstQueuedMillis = Math.min(newer.firstQueuedMillis,
+                                       superseded.firstQueuedMillis);
+    return true;
+  }
+
+  /**
+   * Removes the oldest queued entry
+   * @return the removed entry, or null if there is none
+   */
+  public Entry removeOldest()
+  {
+    for (Entry entry = head.next; entry != null; entry = entry.next)
+    {
+      if (remove(entry))
+      {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  private boolean remove(Entry entry)
+  {
+    if (!entry.state.compareAndSet(QUEUED, REMOVED))
+    {
+      return false;
+    }
+    entry.command = null;
+    pending.decrementAndGet();
+    return true;
+  }
+
+  /**
+   * Looks at the next entry without taking it. The entry may be taken or
+   * removed meanwhile.
+   * @return the entry, or null if there is none
+   */
+  public Entry peek()
+  {
+    for (Entry entry = head.next; entry != null; entry = entry.next)
+    {
+      if (entry.state.get() == QUEUED)
+      {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Takes the next entry. Only called by the task processing the mailbox.
+   * @return the entry, or null if there is none
+   */
+  public Entry poll()
+  {
+    return pollIf(entry -> true);
+  }
+
+  /**
+   * Takes the next entry if it matches a condition. Only called by the
+   * task processing the mailbox.
+   * @param condition the condition
+   * @return the entry, or null if there is none or it doesn't match
+   */
+  public Entry pollIf(Predicate<Entry> condition)
+  {
+    Entry next;
+    while ((next = head.next) != null)
+    {
+      if (next.state.get() == REMOVED)
+      {
+        head = next;
+        continue;
+      }
+      if (!condition.test(next))
+      {
+        return null;
+      }
+
+      head = next;
+      if (next.state.compareAndSet(QUEUED, TAKEN))
+      {
+        pending.decrementAndGet();
+        return next;
+      }
+      // Removed by a producer meanwhile, try the one after
+    }
+    return null;
+  }
+
+  /**
+   * @return whether no entry is linked after the last taken entry. Removed
+   *         entries that were not skipped yet count as entries.
+   */
+  public boolean isEmpty()
+  {
+    return head.next == null;
+  }
+
+  /**
+   * @return whether the caller should submit a task for the mailbox
+   */
+  public boolean trySchedule()
+  {
+    return !isEmpty() && scheduled.compareAndSet(false, true);
+  }
+
+  /**
+   * Called by the task processing the mailbox when it is done
+   */
+  public void unschedule()
+  {
+    scheduled.set(false);
+  }
+
+  /**
+   * Retires the mailbox if no entry is queued in it or being added to it.
+   * Only called by the task processing the mailbox.
+   * @return whether the mailbox was retired
+   */
+  public boolean tryRetire()
+  {
+    return pending.compareAndSet(0, -1);
+  }
+}
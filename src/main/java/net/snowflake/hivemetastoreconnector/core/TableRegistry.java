@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import net.snowflake.hivemetastoreconnector.commands.AlterIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.Command;
+import net.snowflake.hivemetastoreconnector.commands.DropIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.TableChange;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers which Iceberg tables exist in Snowflake and the metadata file
+ * each one points at, so that statements that would change nothing are not
+ * sent: a drop of a table Snowflake doesn't have, or a refresh to the
+ * metadata file the table already points at.
+ *
+ * The registry learns from the statements the connector applied, and the
+ * tables of a database are seeded from Snowflake before its drops are
+ * skipped, as only then does a missing table mean that Snowflake doesn't
+ * have it. As tables may also be created by other means, a seed expires
+ * after a while, and the database is seeded again. Anything not known is
+ * sent as before.
+ *
+ * Tables are keyed by the same 64-bit hash of their lowercase names as
+ * {@link VersionIndex}, and their metadata location by a 64-bit hash, in an
+ * open addressing table of two primitive arrays. A table costs 32 to 64
+ * bytes whatever its names, and the registry is two objects for the garbage
+ * collector, so it holds millions of tables. The registry may be saved to
+ * a file and loaded on the next start. Seeds are not saved: the file may
+ * be stale after a crash, so databases are seeded again before their drops
+ * are skipped.
+ */
+public class TableRegistry
+{
+  private static final int MAGIC = 0x534e5452;
+
+  private static final byte VERSION = 2;
+
+  // Also held the seeded databases
+  private static final byte VERSION_WITH_SEEDS = 1;
+
+  // Marks an empty slot. A hash of 0 is stored as 1.
+  private static final long EMPTY = 0;
+
+  // The location of a table known to exist, pointing at an unknown file
+  private static final long UNKNOWN_LOCATION = 0;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  // The following are guarded by this
+
+  private long[] keys;
+
+  private long[] locations;
+
+  private int size = 0;
+
+  // The time each lowercase database was seeded from Snowflake
+  private final Map<String, Long> seededMillis = new HashMap<>();
+
+  private final long seedTtlMillis;
+
+  /**
+   * Constructor for an empty registry whose seeds don't expire
+   * @param expectedTables the number of tables expected, the registry grows
+   *                       past it as needed
+   */
+  public TableRegistry(int expectedTables)
+  {
+    this(expectedTables, Long.MAX_VALUE);
+  }
+
+  /**
+   * Constructor for an empty registry
+   * @param expectedTables the number of tables expected, the registry grows
+   *                       past it as needed
+   * @param seedTtlMillis the time after which the tables of a database must
+   *                      be seeded again
+   */
+  public TableRegistry(int expectedTables, long seedTtlMillis)
+  {
+    // At most half full, so that probes stay short
+    int slots = Integer.highestOneBit(Math.max(2, expectedTables * 2 - 1)) << 1;
+    this.keys = new long[slots];
+    this.locations = new long[slots];
+    this.seedTtlMillis = seedTtlMillis;
+  }
+
+  /**
+   * Records the tables Snowflake has in a database, as listed by SHOW
+   * ICEBERG TABLES. The metadata files of tables already known are kept.
+   * @param databaseName the Hive database
+   * @param tableNames the tables
+   */
+  public synchronized void seed(String databaseName,
+                                Collection<String> tableNames)
+  {
+    for (String tableName : tableNames)
+    {
+      long key = VersionIndex.hash(databaseName, tableName);
+      if (keys[find(key)] != key)
+      {
+        put(key, UNKNOWN_LOCATION);
+      }
+    }
+    seededMillis.put(databaseName.toLowerCase(), System.currentTimeMillis());
+  }
+
+  /**
+   * @param databaseName the Hive database
+   * @return whether the tables of the database were seeded from Snowflake,
+   *         and the seed didn't expire
+   */
+  public synchronized boolean isSeeded(String databaseName)
+  {
+    Long seeded = seededMillis.get(databaseName.toLowerCase());
+    return seeded != null
+        && System.currentTimeMillis() - seeded < seedTtlMillis;
+  }
+
+  /**
+   * @param databaseName the Hive database of the table
+   * @param tableName the table
+   * @return whether the table is known to exist in Snowflake
+   */
+  public synchronized boolean contains(String databaseName, String tableName)
+  {
+    long key = VersionIndex.hash(databaseName, tableName);
+    return keys[find(key)] == key;
+  }
+
+  /**
+   * Tells whether a command would change nothing in Snowflake
+   * @param command the command
+   * @return whether the command can be skipped
+   */
+  public synchronized boolean isRedundant(Command command)
+  {
+    long key = VersionIndex.hash(command.getDatabaseName(),
+                                 command.getTableName());
+    int slot = find(key);
+    if (command instanceof DropIcebergTable)
+    {
+      return keys[slot] != key && isSeeded(command.getDatabaseName());
+    }
+    return command.isRefresh()
+        && command.getMetadataLocation() != null
+        && keys[slot] == key
+        && locations[slot] == hashLocation(command.getMetadataLocation());
+  }
+
+  /**
+   * Records what a command applied to Snowflake. A command whose effect
+   * isn't known, such as a command read back from the journal, makes the
+   * metadata file of its table unknown.
+   * @param command the command
+   */
+  public synchronized void applied(Command command)
+  {
+    long key = VersionIndex.hash(command.getDatabaseName(),
+                                 command.getTableName());
+    if (command instanceof DropIcebergTable)
+    {
+      remove(key);
+      return;
+    }
+
+    long location = command.getMetadataLocation() == null
+        ? UNKNOWN_LOCATION : hashLocation(command.getMetadataLocation());
+    if (command instanceof AlterIcebergTable
+        && (((AlterIcebergTable) command).getChange().isRenamed()
+            || ((AlterIcebergTable) command).getChange().isMoved()))
+    {
+      AlterIcebergTable alter = (AlterIcebergTable) command;
+      long oldKey = VersionIndex.hash(alter.getOldDatabaseName(),
+                                      alter.getOldTableName());
+      int slot = find(oldKey);
+      boolean existed = keys[slot] == oldKey;
+      if (existed && alter.getChange().isRenamed()
+          && location == UNKNOWN_LOCATION)
+      {
+        location = locations[slot];
+      }
+      remove(oldKey);
+      if (alter.getChange().isMoved()
+          && alter.getChange().getAction() != TableChange.Action.CREATE_OR_REPLACE)
+      {
+        // Only dropped from the old schema
+        remove(key);
+        return;
+      }
+    }
+    else if (location == UNKNOWN_LOCATION && keys[find(key)] != key)
+    {
+      // Not known to exist, and still not
+      return;
+    }
+    put(key, location);
+  }
+
+  /**
+   * @return the number of tables known to exist in Snowflake
+   */
+  public synchronized int size()
+  {
+    return size;
+  }
+
+  /**
+   * Saves the registry to a file. The file is written to a temporary name
+   * and renamed, so it is either complete or the previous one.
+   * @param file the file
+   * @throws IOException thrown when the file could not be written
+   */
+  public synchronized void save(File file) throws IOException
+  {
+    File temporary = new File(file.getPath() + ".tmp");
+    try (FileOutputStream stream = new FileOutputStream(temporary);
+         DataOutputStream out = new DataOutputStream(
+             new BufferedOutputStream(stream, 1 << 16)))
+    {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeInt(size);
+      for (int slot = 0; slot < keys.length; slot++)
+      {
+        if (keys[slot] != EMPTY)
+        {
+          out.writeLong(keys[slot]);
+          out.writeLong(locations[slot]);
+        }
+      }
+      out.flush();
+      stream.getFD().sync();
+    }
+    Files.move(temporary.toPath(), file.toPath(),
+               StandardCopyOption.ATOMIC_MOVE,
+               StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Loads a registry saved to a file, whose seeds don't expire
+   * @param file the file
+   * @return the registry, with no database seeded
+   * @throws IOException thrown when the file could not be read
+   */
+  public static TableRegistry load(File file) throws IOException
+  {
+    return load(file, Long.MAX_VALUE);
+  }
+
+  /**
+   * Loads a registry saved to a file
+   * @param file the file
+   * @param seedTtlMillis the time after which the tables of a database must
+   *                      be seeded again
+   * @return the registry, with no database seeded
+   * @throws IOException thrown when the file could not be read
+   */
+  public static TableRegistry load(File file, long seedTtlMillis)
+      throws IOException
+  {
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+    {
+      if (in.readInt() != MAGIC)
+      {
+        throw new IOException("Not a table registry");
+      }
+      byte version = in.readByte();
+      if (version != VERSION && version != VERSION_WITH_SEEDS)
+      {
+        throw new IOException("Unknown table registry version " + version);
+      }
+      if (version == VERSION_WITH_SEEDS)
+      {
+        // Seeds are no longer trusted across restarts
+        int databaseCount = in.readInt();
+        for (int i = 0; i < databaseCount; i++)
+        {
+          in.readUTF();
+        }
+      }
+      int tableCount = in.readInt();
+      if (tableCount < 0)
+      {
+        throw new IOException("Invalid table registry");
+      }
+      TableRegistry registry = new TableRegistry(Math.max(1, tableCount),
+                                                 seedTtlMillis);
+      synchronized (registry)
+      {
+        for (int i = 0; i < tableCount; i++)
+        {
+          registry.put(in.readLong(), in.readLong());
+        }
+      }
+      return registry;
+    }
+  }
+
+  /**
+   * Helper method that finds the slot of a key, or of the empty slot where
+   * it would go
+   */
+  private int find(long key)
+  {
+    int mask = keys.length - 1;
+    int slot = (int) (key ^ (key >>> 32)) & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key)
+    {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void put(long key, long location)
+  {
+    int slot = find(key);
+    if (keys[slot] != key)
+    {
+      if ((size + 1) * 2 > keys.length)
+      {
+        grow();
+        slot = find(key);
+      }
+      keys[slot] = key;
+      size++;
+    }
+    locations[slot] = location;
+  }
+
+  /**
+   * Helper method that removes a key, moving the keys probed after it back
+   * so that no tombstone is needed
+   */
+  private void remove(long key)
+  {
+    int slot = find(key);
+    if (keys[slot] != key)
+    {
+      return;
+    }
+    int mask = keys.length - 1;
+    int hole = slot;
+    int next = (hole + 1) & mask;
+    while (keys[next] != EMPTY)
+    {
+      int home = (int) (keys[next] ^ (keys[next] >>> 32)) & mask;
+      // Move the key back if the hole is between its home slot and it
+      if (((next - home) & mask) >= ((next - hole) & mask))
+      {
+        keys[hole] = keys[next];
+        locations[hole] = locations[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[hole] = EMPTY;
+    size--;
+  }
+
+  private void grow()
+  {
+    long[] oldKeys = keys;
+    long[] oldLocations = locations;
+    keys = new long[oldKeys.length * 2];
+    locations = new long[oldKeys.length * 2];
+    for (int slot = 0; slot < oldKeys.length; slot++)
+    {
+      if (oldKeys[slot] != EMPTY)
+      {
+        int newSlot = find(oldKeys[slot]);
+        keys[newSlot] = oldKeys[slot];
+        locations[newSlot] = oldLocations[slot];
+      }
+    }
+  }
+
+  /**
+   * Helper method that hashes a metadata location with FNV-1a
+   */
+  private static long hashLocation(String location)
+  {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < location.length(); i++)
+    {
+      hash = (hash ^ location.charAt(i)) * FNV_PRIME;
+    }
+    return hash == UNKNOWN_LOCATION ? 1 : hash;
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import com.google.common.base.Preconditions;
+import net.snowflake.hivemetastoreconnector.commands.Command;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the last version applied to each table in Snowflake, so that
+ * refreshes bringing a table back to an older version, or to the version it
+ * already has, can be discarded. Refreshes only move the version forward,
+ * while commands that create or replace a table set it, as the metadata
+ * files of a new table may start over at a lower version.
+ *
+ * Tables are keyed by a 64-bit hash of their lowercase names, computed
+ * without building a string, and the versions are kept in open addressing
+ * tables of primitive arrays, so a lookup doesn't allocate. Two tables of
+ * the same capacity are used as generations: when the current one is full,
+ * it becomes the previous one and the old previous one is cleared and
+ * reused. Tables that were not looked up for a generation are forgotten,
+ * which only means their next command isn't checked.
+ */
+public class VersionIndex
+{
+  // Marks an empty slot. A hash of 0 is stored as 1.
+  private static final long EMPTY = 0;
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * An open addressing table of hashes and versions
+   */
+  private static class Generation
+  {
+    private final long[] keys;
+
+    private final long[] versions;
+
+    private int size = 0;
+
+    Generation(int slots)
+    {
+      keys = new long[slots];
+      versions = new long[slots];
+    }
+
+    /**
+     * @return the slot of a key, or of the empty slot where it would go
+     */
+    int find(long key)
+    {
+      int mask = keys.length - 1;
+      int slot = (int) (key ^ (key >>> 32)) & mask;
+      while (keys[slot] != EMPTY && keys[slot] != key)
+      {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    void clear()
+    {
+      Arrays.fill(keys, EMPTY);
+      size = 0;
+    }
+  }
+
+  // The number of tables a generation holds before it is rotated
+  private final int capacity;
+
+  // Guarded by this
+  private Generation current;
+
+  // Guarded by this
+  private Generation previous;
+
+  /**
+   * Constructor for the index
+   * @param capacity the number of tables a generation holds. The index
+   *                 remembers at least this many recently used tables.
+   */
+  public VersionIndex(int capacity)
+  {
+    Preconditions.checkArgument(capacity > 0);
+    this.capacity = capacity;
+    // At most half full, so that probes stay short
+    int slots = Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1;
+    this.current = new Generation(slots);
+    this.previous = new Generation(slots);
+  }
+
+  /**
+   * Gets the last version applied to a table
+   * @param databaseName the database of the table
+   * @param tableName the table
+   * @return the version, or {@link Command#NO_VERSION} if it isn't known
+   */
+  public synchronized long get(String databaseName, String tableName)
+  {
+    long key = hash(databaseName, tableName);
+    int slot = lookUp(key);
+    return slot < 0 ? Command.NO_VERSION : current.versions[slot];
+  }
+
+  /**
+   * Records what a command applied to its table: a refresh advances the
+   * version, another command sets it, or forgets it if it has no version,
+   * as a drop does
+   * @param command the command
+   */
+  public void applied(Command command)
+  {
+    if (command.isRefresh())
+    {
+      if (command.getVersion() != Command.NO_VERSION)
+      {
+        advance(command.getDatabaseName(), command.getTableName(),
+                command.getVersion());
+      }
+    }
+    else if (command.getVersion() != Command.NO_VERSION)
+    {
+      set(command.getDatabaseName(), command.getTableName(),
+          command.getVersion());
+    }
+    else
+    {
+      reset(command.getDatabaseName(), command.getTableName());
+    }
+  }
+
+  /**
+   * Tells whether a command refreshes its table to a version that is older
+   * than, or the same as, the version applied last
+   * @param command the command
+   * @return whether the command can be discarded
+   */
+  public boolean isStale(Command command)
+  {
+    return command.isRefresh()
+        && command.getVersion() != Command.NO_VERSION
+        && command.getVersion() <= get(command.getDatabaseName(),
+                                       command.getTableName());
+  }
+
+  /**
+   * Records that a version was applied to a table, unless a newer one was
+   * @param databaseName the database of the table
+   * @param tableName the table
+   * @param version the version
+   */
+  public synchronized void advance(String databaseName, String tableName,
+                                   long version)
+  {
+    long key = hash(databaseName, tableName);
+    int slot = lookUp(key);
+    if (slot >= 0)
+    {
+      current.versions[slot] = Math.max(current.versions[slot], version);
+    }
+    else
+    {
+      insert(key, version);
+    }
+  }
+
+  /**
+   * Records that a version was applied to a table, even if it is older than
+   * the version applied before, for example once the table is created again
+   * @param databaseName the database of the table
+   * @param tableName the table
+   * @param version the version
+   */
+  public synchronized void set(String databaseName, String tableName,
+                               long version)
+  {
+    long key = hash(databaseName, tableName);
+    int slot = lookUp(key);
+    if (slot >= 0)
+    {
+      current.versions[slot] = version;
+    }
+    else
+    {
+      insert(key, version);
+    }
+  }
+
+  /**
+   * Forgets the version of a table, for example once it is dropped, so that
+   * a table created again with the same name starts over
+   * @param databaseName the database of the table
+   * @param tableName the table
+   */
+  public synchronized void reset(String databaseName, String tableName)
+  {
+    long key = hash(databaseName, tableName);
+    int slot = lookUp(key);
+    if (slot >= 0)
+    {
+      current.versions[slot] = Command.NO_VERSION;
+    }
+  }
+
+  /**
+   * @return the number of tables remembered, counting tables of the
+   *         previous generation that were used again only once
+   */
+  public synchronized int size()
+  {
+    return current.size + previous.size;
+  }
+
+  /**
+   * Helper method that finds a key in the current generation, moving it
+   * there from the previous one if necessary
+   * @return the slot of the key in the current generation, or -1
+   */
+  private int lookUp(long key)
+  {
+    int slot = current.find(key);
+    if (current.keys[slot] == key)
+    {
+      return slot;
+    }
+    int previousSlot = previous.find(key);
+    if (previous.keys[previousSlot] != key)
+    {
+      return -1;
+    }
+    // The stale copy in the previous generation is never read again, as the
+    // current generation is looked up first
+    return insert(key, previous.versions[previousSlot]);
+  }
+
+  /**
+   * Helper method that adds a key missing from the current generation,
+   * rotating the generations if it is full
+   * @return the slot of the key in the current generation
+   */
+  private int insert(long key, long version)
+  {
+    if (current.size >= capacity)
+    {
+      Generation retired = previous;
+      previous = current;
+      current = retired;
+      current.clear();
+    }
+    int slot = current.find(key);
+    current.keys[slot] = key;
+    current.versions[slot] = version;
+    current.size++;
+    return slot;
+  }
+
+  /**
+   * Helper method that hashes the lowercase name of a table with FNV-1a.
+   * Never returns 0, so that it can mark empty slots.
+   */
+  static long hash(String databaseName, String tableName)
+  {
+    long hash = FNV_OFFSET_BASIS;
+    hash = hash(hash, databaseName);
+    hash = (hash ^ '.') * FNV_PRIME;
+    hash = hash(hash, tableName);
+    return hash == EMPTY ? 1 : hash;
+  }
+
+  private static long hash(long hash, String str)
+  {
+    for (int i = 0; i < str.length(); i++)
+    {
+      hash = (hash ^ Character.toLowerCase(str.charAt(i))) * FNV_PRIME;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.core;
+
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.SnowflakeIcebergListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the pools of workers that run blocking Snowflake statements.
+ *
+ * On Java 21 and later, workers may be virtual threads, so that a statement
+ * blocking in JDBC doesn't hold a platform thread and the number of
+ * statements in flight isn't bounded by the thread count. The connector is
+ * built for Java 8, so virtual threads are created through reflection, and
+ * a fixed pool of platform threads is used when they aren't available.
+ */
+public class WorkerPools
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(SnowflakeIcebergListener.class);
+
+  // Creates named virtual threads, or null if the JVM doesn't support them
+  private static final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+
+  // Executors.newThreadPerTaskExecutor, or null before Java 21
+  private static final Method newThreadPerTaskExecutor = getNewThreadPerTaskExecutor();
+
+  /**
+   * @return whether the JVM supports virtual threads
+   */
+  public static boolean isVirtualThreadSupported()
+  {
+    return virtualThreadFactory != null && newThreadPerTaskExecutor != null;
+  }
+
+  /**
+   * @param snowflakeConf The configuration for Snowflake Hive metastore
+   *                      listener
+   * @return whether workers are virtual threads
+   */
+  public static boolean useVirtualThreads(SnowflakeConf snowflakeConf)
+  {
+    return snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_VIRTUAL_THREADS_ENABLED.getVarname(), false)
+        && isVirtualThreadSupported();
+  }
+
+  /**
+   * Creates a pool of workers, running each task on its own virtual thread
+   * if enabled and supported, or on a fixed pool of platform threads
+   * @param threadCount the number of platform threads
+   * @param snowflakeConf The configuration for Snowflake Hive metastore
+   *                      listener
+   * @return the pool
+   */
+  public static ExecutorService newWorkerPool(int threadCount,
+                                              SnowflakeConf snowflakeConf)
+  {
+    boolean enabled = snowflakeConf.getBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_VIRTUAL_THREADS_ENABLED.getVarname(), false);
+    if (enabled && isVirtualThreadSupported())
+    {
+      try
+      {
+        return (ExecutorService) newThreadPerTaskExecutor.invoke(
+            null, virtualThreadFactory);
+      }
+      catch (ReflectiveOperationException e)
+      {
+        log.warn("Could not create virtual threads, using platform threads: " + e);
+      }
+    }
+    else if (enabled)
+    {
+      log.warn("Virtual threads need Java 21 or later, using " + threadCount +
+                   " platform threads");
+    }
+    return Executors.newFixedThreadPool(threadCount);
+  }
+
+  private static ThreadFactory createVirtualThreadFactory()
+  {
+    try
+    {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, "snowflake-worker-", 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    }
+    catch (ReflectiveOperationException | RuntimeException e)
+    {
+      // Not available before Java 21
+      return null;
+    }
+  }
+
+  private static Method getNewThreadPerTaskExecutor()
+  {
+    try
+    {
+      return Executors.class.getMethod("newThreadPerTaskExecutor",
+                                       ThreadFactory.class);
+    }
+    catch (NoSuchMethodException e)
+    {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+package net.snowflake.hivemetastoreconnector.util;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Holder for the metrics reported by the Hive metastore connector.
+ * Metrics are kept in a registry that is private to the connector and are
+ * published over JMX under the domain of the connector's package.
+ */
+public class ConnectorMetrics
+{
+  private static final String JMX_DOMAIN = "net.snowflake.hivemetastoreconnector";
+
+  private static final MetricRegistry registry = new MetricRegistry();
+
+  static
+  {
+    JmxReporter.forRegistry(registry).inDomain(JMX_DOMAIN).build().start();
+  }
+
+  /**
+   * @return the registry that holds all the connector metrics
+   */
+  public static MetricRegistry getRegistry()
+  {
+    return registry;
+  }
+
+  /**
+   * Helper method to build a dotted metric name
+   * @param first the first part of the name
+   * @param rest the remaining parts of the name, null parts are skipped
+   * @return the metric name
+   */
+  public static String name(String first, String... rest)
+  {
+    return MetricRegistry.name(first, rest);
+  }
+
+  public static Counter counter(String name)
+  {
+    return registry.counter(name);
+  }
+
+  public static Timer timer(String name)
+  {
+    return registry.timer(name);
+  }
+
+  /**
+   * Registers a gauge, replacing any gauge previously registered with the
+   * same name.
+   * @param name the metric name
+   * @param gauge the gauge
+   * @param <T> the type of the value reported by the gauge
+   */
+  public static <T> void gauge(String name, Gauge<T> gauge)
+  {
+    registry.remove(name);
+    registry.register(name, gauge);
+  }
+}
@@ -6,6 +6,9 @@ package net.snowflake.hivemetastoreconnector.util;
 
 import org.apache.hadoop.hive.metastore.api.Table;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 public class IcebergTableUtil
 {
   public static String metadataLocation = "metadata_location";
@@ -18,6 +21,12 @@ public class IcebergTableUtil
 
 //  public static String isIcebergTable = "isIcebergTable";
 
+  // The name of a metadata file, either 00005-<uuid>.metadata.json as
+  // written by catalogs, or v5.metadata.json as written by Hadoop tables,
+  // optionally compressed
+  private static final Pattern METADATA_FILE_NAME = Pattern.compile(
+      "(?:(\\d+)-[^/]*|v(\\d+))(?:\\.[a-z0-9]+)?\\.metadata\\.json");
+
   public static Boolean isAbletoCreateTable(Table table){
     if(table.getParameters().keySet().contains(IcebergTableUtil.sfCatalog) &&
             table.getParameters().keySet().contains(IcebergTableUtil.sfExternalVolume) &&
@@ -28,9 +37,52 @@ public class IcebergTableUtil
   }
 
   public static String getMetadataLocation(Table table){
-    String fullPath=table.getParameters().get(metadataLocation);
+    return getMetadataFilePath(table.getParameters().get(metadataLocation));
+  }
+
+  /**
+   * Gets the path of a metadata file relative to the base location of its
+   * table, e.g. metadata/v1.metadata.json
+   * @param fullPath the full location of the metadata file
+   * @return the relative path
+   */
+  public static String getMetadataFilePath(String fullPath){
     int metadataIndex = fullPath.indexOf("/metadata/");
     return fullPath.substring(metadataIndex + 1);
   }
 
+  /**
+   * Gets the version of the metadata file of a table, which grows with
+   * every commit to the table
+   * @param table the Hive table
+   * @return the version, or -1 if the table has no metadata file or its
+   *         name has no version
+   */
+  public static long getMetadataVersion(Table table){
+    return getMetadataVersion(table.getParameters() == null
+        ? null : table.getParameters().get(metadataLocation));
+  }
+
+  /**
+   * Gets the version of a metadata file from its name
+   * @param fullPath the full location of the metadata file, or null
+   * @return the version, or -1 if there is no file or its name has no version
+   */
+  public static long getMetadataVersion(String fullPath){
+    if (fullPath == null) {
+      return -1;
+    }
+    String fileName = fullPath.substring(fullPath.lastIndexOf('/') + 1);
+    Matcher matcher = METADATA_FILE_NAME.matcher(fileName);
+    if (!matcher.matches()) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(matcher.group(1) != null
+                                ? matcher.group(1) : matcher.group(2));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
 }
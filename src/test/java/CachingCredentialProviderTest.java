@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.core.CachingCredentialProvider;
+import net.snowflake.hivemetastoreconnector.core.CredentialProvider;
+import net.snowflake.hivemetastoreconnector.core.SnowflakeCredentials;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the cache of Snowflake credentials
+ */
+public class CachingCredentialProviderTest
+{
+  /**
+   * A provider that returns new credentials on each fetch, and fails its
+   * fetches while told to
+   */
+  private static class CountingProvider implements CredentialProvider
+  {
+    final AtomicInteger fetches = new AtomicInteger();
+
+    final AtomicBoolean failing = new AtomicBoolean();
+
+    @Override
+    public void initialize(SnowflakeConf snowflakeConf)
+    {
+    }
+
+    @Override
+    public SnowflakeCredentials getCredentials() throws Exception
+    {
+      fetches.incrementAndGet();
+      if (failing.get())
+      {
+        throw new IllegalStateException("Secret store unavailable");
+      }
+      return new SnowflakeCredentials("password" + fetches.get(), null);
+    }
+  }
+
+  private static void waitFor(AtomicInteger counter, int value)
+      throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (counter.get() < value && System.currentTimeMillis() < deadline)
+    {
+      Thread.sleep(5);
+    }
+  }
+
+  /**
+   * Verifies that cached credentials are served without fetching again,
+   * and fetched again once they expire
+   */
+  @Test
+  public void cacheHitAndExpiryTest() throws Exception
+  {
+    CountingProvider delegate = new CountingProvider();
+    CachingCredentialProvider provider =
+        new CachingCredentialProvider(delegate, 100, 60000);
+    // Doesn't fail before the first fetch
+    provider.invalidate();
+    provider.initialize(new SnowflakeConf());
+
+    SnowflakeCredentials first = provider.getCredentials();
+    assertSame(first, provider.getCredentials());
+    assertEquals(1, delegate.fetches.get());
+
+    Thread.sleep(150);
+    SnowflakeCredentials second = provider.getCredentials();
+    assertNotSame(first, second);
+    assertEquals(2, delegate.fetches.get());
+
+    provider.invalidate();
+    assertNotSame(second, provider.getCredentials());
+    assertEquals(3, delegate.fetches.get());
+  }
+
+  /**
+   * Verifies that credentials are refreshed in the background a refresh
+   * interval after each fetch, and that a failed refresh keeps the
+   * credentials fetched before
+   */
+  @Test
+  public void backgroundRefreshTest() throws Exception
+  {
+    CountingProvider delegate = new CountingProvider();
+    CachingCredentialProvider provider =
+        new CachingCredentialProvider(delegate, 60000, 50);
+    provider.initialize(new SnowflakeConf());
+
+    SnowflakeCredentials first = provider.getCredentials();
+    waitFor(delegate.fetches, 2);
+    // The refresh may not have replaced the value yet
+    Thread.sleep(20);
+    SnowflakeCredentials refreshed = provider.getCredentials();
+    assertNotSame(first, refreshed);
+
+    // Failed refreshes keep being retried, and keep the last credentials
+    delegate.failing.set(true);
+    waitFor(delegate.fetches, delegate.fetches.get() + 1);
+    SnowflakeCredentials kept = provider.getCredentials();
+    int fetches = delegate.fetches.get();
+    waitFor(delegate.fetches, fetches + 2);
+    assertTrue(delegate.fetches.get() >= fetches + 2);
+    assertSame(kept, provider.getCredentials());
+  }
+}
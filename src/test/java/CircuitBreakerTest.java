@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.core.CircuitBreaker;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the circuit breaker around the Snowflake execution path
+ */
+public class CircuitBreakerTest
+{
+  private static SnowflakeConf initializeConfig()
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.setInt("snowflake.hive-metastore-listener.circuit-breaker.window-size", 4);
+    snowflakeConf.setInt("snowflake.hive-metastore-listener.circuit-breaker.minimum-calls", 4);
+    snowflakeConf.setInt("snowflake.hive-metastore-listener.circuit-breaker.open-duration", 10);
+    snowflakeConf.setInt("snowflake.hive-metastore-listener.circuit-breaker.half-open-permits", 1);
+    return snowflakeConf;
+  }
+
+  /**
+   * The breaker should open once enough commands fail, hold back new
+   * commands until a probe succeeds, then close after a trial command
+   * succeeds.
+   */
+  @Test
+  public void tripsAndRecoversTest() throws Exception
+  {
+    AtomicBoolean available = new AtomicBoolean(false);
+    CircuitBreaker breaker = new CircuitBreaker(
+        "tripsAndRecovers", initializeConfig(), () ->
+        {
+          if (!available.get())
+          {
+            throw new Exception("Snowflake is unavailable");
+          }
+        });
+
+    breaker.record(breaker.acquire().get(), true);
+    for (int i = 0; i < 2; i++)
+    {
+      breaker.record(breaker.acquire().get(), false);
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    breaker.record(breaker.acquire().get(), false);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+    CompletableFuture<CircuitBreaker.Permit> first = breaker.acquire();
+    CompletableFuture<CircuitBreaker.Permit> second = breaker.acquire();
+    Thread.sleep(50);
+    assertFalse(first.isDone());
+    assertEquals(2, breaker.getWaitingCount());
+
+    // Only one trial command is let through after the probe succeeds
+    available.set(true);
+    CircuitBreaker.Permit trial = first.get(5, TimeUnit.SECONDS);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertFalse(second.isDone());
+
+    breaker.record(trial, true);
+    assertTrue(second.isDone());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  /**
+   * A trial command that was not sent should give its turn to the next
+   * command without closing or tripping the breaker
+   */
+  @Test
+  public void releaseTest() throws Exception
+  {
+    CircuitBreaker breaker = new CircuitBreaker(
+        "release", initializeConfig(), () -> { });
+    for (int i = 0; i < 4; i++)
+    {
+      breaker.record(breaker.acquire().get(), false);
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+    CompletableFuture<CircuitBreaker.Permit> first = breaker.acquire();
+    CompletableFuture<CircuitBreaker.Permit> second = breaker.acquire();
+    CircuitBreaker.Permit trial = first.get(5, TimeUnit.SECONDS);
+    assertFalse(second.isDone());
+
+    breaker.release(trial);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    breaker.record(second.get(5, TimeUnit.SECONDS), true);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import net.snowflake.hivemetastoreconnector.commands.PregeneratedCommand;
+import net.snowflake.hivemetastoreconnector.core.CommandJournal;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the journal of queued commands
+ */
+public class CommandJournalTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static PregeneratedCommand command(String table)
+  {
+    return new PregeneratedCommand("db", table, false,
+                                   ImmutableList.of("DROP ICEBERG TABLE " + table + ";"));
+  }
+
+  /**
+   * Verifies that commands that were not acknowledged are recovered after
+   * the journal is reopened, in order
+   */
+  @Test
+  public void recoveryTest() throws Exception
+  {
+    File directory = folder.newFolder();
+    CommandJournal journal = new CommandJournal(directory, 1 << 20, 5, true);
+    long first = journal.append(command("t1"));
+    journal.append(command("t2"));
+    journal.append(command("t3"));
+    journal.acknowledge(first);
+    journal.close();
+
+    journal = new CommandJournal(directory, 1 << 20, 5, false);
+    List<PregeneratedCommand> recovered = journal.getRecoveredCommands();
+    assertEquals(2, recovered.size());
+    assertEquals("t2", recovered.get(0).getTableName());
+    assertEquals("t3", recovered.get(1).getTableName());
+    assertEquals(ImmutableList.of("DROP ICEBERG TABLE t3;"),
+                 recovered.get(1).generateSqlQueries());
+    journal.deleteRecoveredSegments();
+    journal.close();
+
+    journal = new CommandJournal(directory, 1 << 20, 5, false);
+    assertTrue(journal.getRecoveredCommands().isEmpty());
+    journal.close();
+  }
+
+  /**
+   * Verifies that segments are rotated when full, and deleted once their
+   * commands are acknowledged
+   */
+  @Test
+  public void compactionTest() throws Exception
+  {
+    File directory = folder.newFolder();
+    CommandJournal journal = new CommandJournal(directory, 256, 5, false);
+    long[] sequences = new long[20];
+    for (int i = 0; i < sequences.length; i++)
+    {
+      sequences[i] = journal.append(command("t" + i));
+    }
+    assertTrue(journal.getSegmentCount() > 1);
+
+    for (long sequence : sequences)
+    {
+      journal.acknowledge(sequence);
+    }
+    assertEquals(0, journal.getLiveCommandCount());
+    assertEquals(1, journal.getSegmentCount());
+    journal.close();
+
+    journal = new CommandJournal(directory, 256, 5, false);
+    assertTrue(journal.getRecoveredCommands().isEmpty());
+    journal.close();
+  }
+}
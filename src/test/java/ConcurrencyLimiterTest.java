@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.core.ConcurrencyLimiter;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the adaptive limit on commands sent to Snowflake at once
+ */
+public class ConcurrencyLimiterTest
+{
+  private static SnowflakeConf initializeConfig()
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.setInt("snowflake.hive-metastore-listener.concurrency.min-limit", 2);
+    snowflakeConf.setInt("snowflake.hive-metastore-listener.concurrency.max-limit", 5);
+    snowflakeConf.set("snowflake.hive-metastore-listener.concurrency.backoff-ratio", "0.5");
+    return snowflakeConf;
+  }
+
+  /**
+   * Commands over the limit should wait, and overload should cut the limit
+   * down to the minimum and no further.
+   */
+  @Test
+  public void backsOffOnOverloadTest() throws Exception
+  {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, initializeConfig());
+    assertEquals(4, limiter.getLimit());
+
+    ConcurrencyLimiter.Permit[] permits = new ConcurrencyLimiter.Permit[4];
+    for (int i = 0; i < permits.length; i++)
+    {
+      permits[i] = limiter.acquire().get();
+    }
+    CompletableFuture<ConcurrencyLimiter.Permit> waiting = limiter.acquire();
+    assertFalse(waiting.isDone());
+    assertEquals(1, limiter.getWaitingCount());
+
+    // The limit drops to 2, with 3 commands in flight, so nothing is let in
+    limiter.release(permits[0], true, true);
+    assertEquals(2, limiter.getLimit());
+    assertFalse(waiting.isDone());
+
+    // Never below the minimum
+    Thread.sleep(5);
+    limiter.release(permits[1], true, true);
+    assertEquals(2, limiter.getLimit());
+    assertFalse(waiting.isDone());
+
+    limiter.release(permits[2], true, false);
+    assertTrue(waiting.isDone());
+    assertEquals(2, limiter.getInFlight());
+  }
+
+  /**
+   * The limit should grow while it is in use and commands are fast, up to
+   * the maximum.
+   */
+  @Test
+  public void growsUpToMaximumTest() throws Exception
+  {
+    SnowflakeConf snowflakeConf = initializeConfig();
+    // Timing in tests is too noisy to judge latency
+    snowflakeConf.set("snowflake.hive-metastore-listener.concurrency.latency-tolerance", "1e9");
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, snowflakeConf);
+
+    Deque<ConcurrencyLimiter.Permit> permits = new ArrayDeque<>();
+    for (int i = 0; i < 100; i++)
+    {
+      while (limiter.getInFlight() < limiter.getLimit())
+      {
+        permits.add(limiter.acquire().get());
+      }
+      limiter.release(permits.poll(), false, false);
+    }
+    assertEquals(5, limiter.getLimit());
+  }
+}
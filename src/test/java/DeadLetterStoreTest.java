@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import net.snowflake.hivemetastoreconnector.commands.PregeneratedCommand;
+import net.snowflake.hivemetastoreconnector.core.DeadLetterStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the store of commands that failed after every retry
+ */
+public class DeadLetterStoreTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static PregeneratedCommand command(String table, boolean refresh)
+  {
+    return new PregeneratedCommand(
+        "db", table, refresh,
+        ImmutableList.of((refresh ? "ALTER ICEBERG TABLE " : "DROP ICEBERG TABLE ")
+                             + table + ";"));
+  }
+
+  /**
+   * Verifies that dead letters survive reopening the store with their error
+   * and attempts, and that a refresh replaces the failed refresh before it
+   */
+  @Test
+  public void persistAndSupersedeTest() throws Exception
+  {
+    File directory = folder.newFolder();
+    DeadLetterStore store = new DeadLetterStore(directory, 10);
+    assertTrue(store.add(command("t1", false), new SQLException("denied"), 1, 100));
+    assertTrue(store.add(command("t2", true), new SQLException("timeout"), 4, 200));
+    assertTrue(store.add(command("t2", true), new SQLException("timeout"), 5, 300));
+    assertEquals(2, store.size());
+
+    // Only one store may use the directory
+    try
+    {
+      new DeadLetterStore(directory, 10);
+      fail("The directory should be locked");
+    }
+    catch (IOException e)
+    {
+      assertTrue(e.getMessage().contains("another process"));
+    }
+    store.close();
+
+    store = new DeadLetterStore(directory, 10);
+    List<DeadLetterStore.DeadLetter> deadLetters =
+        store.list(Integer.MAX_VALUE, store.getNextSequence());
+    assertEquals(2, deadLetters.size());
+    assertEquals("t1", deadLetters.get(0).getCommand().getTableName());
+    assertEquals("java.sql.SQLException: denied", deadLetters.get(0).getError());
+    assertEquals("t2", deadLetters.get(1).getCommand().getTableName());
+    assertEquals(5, deadLetters.get(1).getAttempts());
+    assertEquals(300, deadLetters.get(1).getFirstAttemptMillis());
+    assertTrue(deadLetters.get(1).getCommand().isRefresh());
+
+    store.remove(deadLetters.get(0));
+    store.close();
+    assertEquals(1, new DeadLetterStore(directory, 10).size());
+  }
+
+  /**
+   * Verifies that the oldest dead letters are dropped when the store is
+   * full, and that listing stops at a sequence number
+   */
+  @Test
+  public void boundedTest() throws Exception
+  {
+    DeadLetterStore store = new DeadLetterStore(folder.newFolder(), 2);
+    for (int i = 0; i < 4; i++)
+    {
+      store.add(command("t" + i, false), new SQLException("denied"), 1, i);
+    }
+    assertEquals(2, store.size());
+    long end = store.getNextSequence();
+    store.add(command("t4", false), new SQLException("denied"), 1, 4);
+
+    List<DeadLetterStore.DeadLetter> deadLetters = store.list(10, end);
+    assertEquals(1, deadLetters.size());
+    assertEquals("t3", deadLetters.get(0).getCommand().getTableName());
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.core.FairDispatcher;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the fair scheduling of tables across databases
+ */
+public class FairDispatcherTest
+{
+  private static FairDispatcher.Turn record(List<String> started, String name,
+                                            List<CompletableFuture<Integer>> pending)
+  {
+    return budget ->
+    {
+      started.add(name + ":" + budget);
+      CompletableFuture<Integer> result = new CompletableFuture<>();
+      pending.add(result);
+      return result;
+    };
+  }
+
+  /**
+   * Verifies that creates and drops go ahead of refreshes, and that weights
+   * scale the budget of a turn
+   */
+  @Test
+  public void lanesAndWeightsTest()
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.set("snowflake.hive-metastore-listener.scheduling.database-weights",
+                      "critical:3");
+    FairDispatcher dispatcher = new FairDispatcher(Runnable::run, 1, snowflakeConf);
+    List<String> started = new ArrayList<>();
+    List<CompletableFuture<Integer>> pending = new ArrayList<>();
+
+    dispatcher.submit("bulk", false, record(started, "bulk-refresh", pending));
+    dispatcher.submit("bulk", false, record(started, "bulk-refresh", pending));
+    dispatcher.submit("critical", false, record(started, "critical-refresh", pending));
+    dispatcher.submit("bulk", true, record(started, "bulk-create", pending));
+    assertEquals(1, dispatcher.getRunningCount());
+    assertEquals(3, dispatcher.getWaitingCount());
+
+    pending.get(0).complete(10);
+    pending.get(1).complete(10);
+    pending.get(2).complete(1);
+    pending.get(3).complete(1);
+    assertEquals("bulk-refresh:10", started.get(0));
+    assertEquals("bulk-create:10", started.get(1));
+    assertEquals("bulk-refresh:10", started.get(2));
+    assertEquals("critical-refresh:30", started.get(3));
+    assertEquals(0, dispatcher.getRunningCount());
+  }
+
+  /**
+   * Verifies that, when every turn processes a single coalesced refresh, a
+   * database gets turns in proportion to its weight
+   */
+  @Test
+  public void weightedShareTest()
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.set("snowflake.hive-metastore-listener.scheduling.database-weights",
+                      "critical:3");
+    snowflakeConf.setInt("snowflake.hive-metastore-listener.scheduling.quantum", 1);
+    FairDispatcher dispatcher = new FairDispatcher(Runnable::run, 1, snowflakeConf);
+    List<String> started = new ArrayList<>();
+    List<CompletableFuture<Integer>> pending = new ArrayList<>();
+    for (int i = 0; i < 6; i++)
+    {
+      dispatcher.submit("bulk", false, record(started, "bulk", pending));
+      dispatcher.submit("critical", false, record(started, "critical", pending));
+    }
+
+    for (int i = 0; i < pending.size(); i++)
+    {
+      pending.get(i).complete(1);
+    }
+    List<String> order = new ArrayList<>();
+    started.forEach(turn -> order.add(turn.substring(0, turn.indexOf(':'))));
+    assertEquals(Arrays.asList(
+        "bulk", "critical", "critical", "critical", "bulk",
+        "critical", "critical", "critical", "bulk", "bulk", "bulk", "bulk"),
+                 order);
+    assertEquals(0, dispatcher.getRunningCount());
+  }
+
+  /**
+   * Verifies that a database can't take more workers than its cap
+   */
+  @Test
+  public void bulkheadTest()
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.set("snowflake.hive-metastore-listener.scheduling.database-max-concurrency",
+                      "bulk:1");
+    FairDispatcher dispatcher = new FairDispatcher(Runnable::run, 4, snowflakeConf);
+    List<String> started = new ArrayList<>();
+    List<CompletableFuture<Integer>> pending = new ArrayList<>();
+
+    dispatcher.submit("bulk", false, record(started, "bulk", pending));
+    dispatcher.submit("bulk", false, record(started, "bulk", pending));
+    dispatcher.submit("other", false, record(started, "other", pending));
+    assertEquals(2, dispatcher.getRunningCount());
+    assertEquals(1, dispatcher.getWaitingCount());
+
+    pending.get(0).complete(10);
+    assertEquals(2, dispatcher.getRunningCount());
+    assertEquals(0, dispatcher.getWaitingCount());
+  }
+}
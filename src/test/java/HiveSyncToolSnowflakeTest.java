@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.commands.Command;
+import net.snowflake.hivemetastoreconnector.commands.CreateIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.DropIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.RefreshIcebergTable;
+import net.snowflake.hivemetastoreconnector.core.HiveSyncToolSnowflake;
+import net.snowflake.hivemetastoreconnector.core.SyncCheckpoint;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+
+/**
+ * Tests for reconciling the tables of Hive and Snowflake
+ */
+public class HiveSyncToolSnowflakeTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static Table table(String name, String location, boolean creatable)
+  {
+    Table table = new Table();
+    table.setDbName("db1");
+    table.setTableName(name);
+    Map<String, String> parameters = new HashMap<>();
+    if (location != null)
+    {
+      parameters.put("metadata_location", "s3://bucket/" + name + "/" + location);
+    }
+    if (creatable)
+    {
+      parameters.put("CATALOG", "catalog");
+      parameters.put("EXTERNAL_VOLUME", "volume");
+      parameters.put("BASE_LOCATION", name);
+    }
+    table.setParameters(parameters);
+    return table;
+  }
+
+  private static IMetaStoreClient client(List<Table> tables) throws Exception
+  {
+    List<String> names = new ArrayList<>();
+    tables.forEach(table -> names.add(table.getTableName()));
+    IMetaStoreClient client = Mockito.mock(IMetaStoreClient.class);
+    Mockito.when(client.getAllDatabases()).thenReturn(ImmutableList.of("db1", "db2"));
+    Mockito.when(client.getAllTables("db1")).thenReturn(names);
+    Mockito.when(client.getAllTables("db2")).thenReturn(Collections.emptyList());
+    Mockito.when(client.getTableObjectsByName(eq("db1"), anyListOf(String.class)))
+        .thenReturn(tables);
+    return client;
+  }
+
+  /**
+   * A sink that applies every command right away
+   */
+  private static HiveSyncToolSnowflake.CommandSink sink(List<Command> commands)
+  {
+    return command ->
+    {
+      commands.add(command);
+      return CompletableFuture.completedFuture(true);
+    };
+  }
+
+  /**
+   * Verifies that only missing, changed and orphan tables get a command,
+   * and that the next run skips the tables synced by the first one
+   */
+  @Test
+  public void reconcileTest() throws Exception
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.setBoolean(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SYNC_DROP_ORPHANS.getVarname(), true);
+    snowflakeConf.setInt(
+        SnowflakeConf.ConfVars.SNOWFLAKE_SYNC_PARALLELISM.getVarname(), 2);
+    File checkpointFile = new File(folder.getRoot(), "checkpoint");
+    Files.write(checkpointFile.toPath(),
+                "T\tdb1\tt_same\ts3://bucket/t_same/metadata/v1.metadata.json\n"
+                    .getBytes(StandardCharsets.UTF_8));
+
+    IMetaStoreClient client = client(ImmutableList.of(
+        table("t_new", "metadata/v1.metadata.json", true),
+        table("t_changed", "metadata/v2.metadata.json", false),
+        table("t_same", "metadata/v1.metadata.json", false),
+        table("t_missing_properties", "metadata/v1.metadata.json", false),
+        table("t_not_iceberg", null, false)));
+    Map<String, Set<String>> snowflake = new HashMap<>();
+    snowflake.put("db1", ImmutableSet.of("t_changed", "t_same", "t_orphan",
+                                         "t_not_iceberg"));
+    snowflake.put("db2", ImmutableSet.of());
+
+    List<Command> commands = Collections.synchronizedList(new ArrayList<>());
+    HiveSyncToolSnowflake tool = new HiveSyncToolSnowflake(
+        () -> client, snowflake::get, sink(commands), snowflakeConf);
+    SyncCheckpoint checkpoint = new SyncCheckpoint(checkpointFile);
+    HiveSyncToolSnowflake.Result result = tool.run(checkpoint);
+    assertTrue(tool.end(checkpoint, result));
+
+    assertEquals(2, result.getDatabases());
+    assertEquals(1, result.getCreated());
+    assertEquals(1, result.getRefreshed());
+    assertEquals(1, result.getUpToDate());
+    assertEquals(1, result.getNotCreatable());
+    assertEquals(1, result.getDropped());
+    assertEquals(3, commands.size());
+    for (Command command : commands)
+    {
+      if (command instanceof CreateIcebergTable)
+      {
+        assertEquals("t_new", command.getTableName());
+      }
+      else if (command instanceof RefreshIcebergTable)
+      {
+        assertEquals(ImmutableList.of(
+            "ALTER ICEBERG TABLE t_changed REFRESH 'metadata/v2.metadata.json';"),
+                     command.generateSqlQueries());
+      }
+      else
+      {
+        assertTrue(command instanceof DropIcebergTable);
+        assertEquals("t_orphan", command.getTableName());
+      }
+    }
+
+    // Everything is synced now
+    snowflake.put("db1", ImmutableSet.of("t_new", "t_changed", "t_same",
+                                         "t_not_iceberg"));
+    commands.clear();
+    checkpoint = new SyncCheckpoint(checkpointFile);
+    result = tool.run(checkpoint);
+    tool.end(checkpoint, result);
+    assertEquals(0, commands.size());
+    assertEquals(3, result.getUpToDate());
+  }
+
+  /**
+   * Verifies that an interrupted run skips the databases it finished
+   */
+  @Test
+  public void resumeTest() throws Exception
+  {
+    File checkpointFile = new File(folder.getRoot(), "checkpoint");
+    Files.write(checkpointFile.toPath(),
+                "D\tdb1\n".getBytes(StandardCharsets.UTF_8));
+    IMetaStoreClient client = client(ImmutableList.of(
+        table("t_new", "metadata/v1.metadata.json", true)));
+
+    List<Command> commands = new ArrayList<>();
+    HiveSyncToolSnowflake tool = new HiveSyncToolSnowflake(
+        () -> client, schema -> ImmutableSet.of(), sink(commands),
+        new SnowflakeConf());
+    SyncCheckpoint checkpoint = new SyncCheckpoint(checkpointFile);
+    HiveSyncToolSnowflake.Result result = tool.run(checkpoint);
+    assertTrue(tool.end(checkpoint, result));
+
+    assertEquals(1, result.getDatabases());
+    assertEquals(0, commands.size());
+    Mockito.verify(client, Mockito.never()).getAllTables("db1");
+
+    // The run is over, so the next one starts over
+    assertEquals(1, tool.run(new SyncCheckpoint(checkpointFile)).getCreated());
+  }
+
+  /**
+   * Verifies that tables and databases are only recorded once their
+   * commands are applied
+   */
+  @Test
+  public void pendingCommandsTest() throws Exception
+  {
+    File checkpointFile = new File(folder.getRoot(), "checkpoint");
+    IMetaStoreClient client = client(ImmutableList.of(
+        table("t_new", "metadata/v1.metadata.json", true),
+        table("t_changed", "metadata/v2.metadata.json", false)));
+    Map<String, CompletableFuture<Boolean>> futures = new HashMap<>();
+    Set<String> snowflake = new HashSet<>(ImmutableSet.of("t_changed"));
+    HiveSyncToolSnowflake tool = new HiveSyncToolSnowflake(
+        () -> client, schema -> snowflake,
+        command ->
+        {
+          CompletableFuture<Boolean> future = new CompletableFuture<>();
+          futures.put(command.getTableName(), future);
+          return future;
+        },
+        new SnowflakeConf());
+    SyncCheckpoint checkpoint = new SyncCheckpoint(checkpointFile);
+    HiveSyncToolSnowflake.Result result = tool.run(checkpoint);
+    assertEquals(2, result.getPendingCommands());
+    assertFalse(checkpoint.isDone("db1"));
+    assertTrue(checkpoint.isDone("db2"));
+
+    futures.get("t_new").complete(true);
+    assertEquals("s3://bucket/t_new/metadata/v1.metadata.json",
+                 checkpoint.getLocation("db1", "t_new"));
+    futures.get("t_changed").complete(false);
+    assertNull(checkpoint.getLocation("db1", "t_changed"));
+    assertFalse(checkpoint.isDone("db1"));
+    assertEquals(1, result.getFailedCommands());
+
+    // The next run resumes the database, and sends the failed refresh again
+    assertFalse(tool.end(checkpoint, result));
+    snowflake.add("t_new");
+    futures.clear();
+    checkpoint = new SyncCheckpoint(checkpointFile);
+    tool.run(checkpoint);
+    assertEquals(ImmutableSet.of("t_changed"), futures.keySet());
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.commands.Command;
+import net.snowflake.hivemetastoreconnector.core.NotificationLogTailer;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.CurrentNotificationEventId;
+import org.apache.hadoop.hive.metastore.api.NotificationEvent;
+import org.apache.hadoop.hive.metastore.api.NotificationEventResponse;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.metastore.messaging.MessageFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+
+/**
+ * Tests for tailing the notification log of the metastore
+ */
+public class NotificationLogTailerTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static NotificationEvent alterEvent(long eventId, Table before,
+                                              Table after)
+  {
+    return new NotificationEvent(
+        eventId, 0, MessageFactory.ALTER_TABLE_EVENT,
+        MessageFactory.getInstance()
+            .buildAlterTableMessage(before, after, false).toString());
+  }
+
+  /**
+   * Verifies that alter events become commands, that other events and
+   * alters needing nothing are skipped, and that a new tailer resumes after
+   * the last event processed
+   */
+  @Test
+  public void tailAndResumeTest() throws Exception
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    File checkpoint = new File(folder.getRoot(), "checkpoint");
+    snowflakeConf.set(
+        SnowflakeConf.ConfVars.SNOWFLAKE_NOTIFICATION_LOG_CHECKPOINT_FILE.getVarname(),
+        checkpoint.getPath());
+
+    Table before = TestUtil.initializeMockIcebergRefreshTable();
+    Table after = TestUtil.initializeMockIcebergRefreshTable();
+    after.getParameters().put("metadata_location",
+                              "s3://bucket/db/t/metadata/00009-ab.metadata.json");
+
+    IMetaStoreClient client = Mockito.mock(IMetaStoreClient.class);
+    Mockito.when(client.getCurrentNotificationEventId())
+        .thenReturn(new CurrentNotificationEventId(5));
+    Mockito.when(client.getNextNotification(
+        eq(5L), anyInt(), isNull(IMetaStoreClient.NotificationFilter.class)))
+        .thenReturn(new NotificationEventResponse(ImmutableList.of(
+            alterEvent(6, before, after),
+            new NotificationEvent(7, 0, MessageFactory.CREATE_TABLE_EVENT, "{}"),
+            alterEvent(8, after, after))));
+
+    List<Command> commands = new ArrayList<>();
+    NotificationLogTailer tailer =
+        new NotificationLogTailer(client, snowflakeConf, commands::add);
+    assertEquals(5, tailer.getLastEventId());
+    assertEquals(3, tailer.poll());
+
+    assertEquals(1, commands.size());
+    assertTrue(commands.get(0).isRefresh());
+    assertEquals(9, commands.get(0).getVersion());
+    assertEquals(8, tailer.getLastEventId());
+    assertEquals("8", new String(Files.readAllBytes(checkpoint.toPath()),
+                                 StandardCharsets.UTF_8));
+
+    Mockito.when(client.getNextNotification(
+        eq(8L), anyInt(), isNull(IMetaStoreClient.NotificationFilter.class)))
+        .thenReturn(new NotificationEventResponse(new ArrayList<>()));
+    NotificationLogTailer resumed =
+        new NotificationLogTailer(client, snowflakeConf, commands::add);
+    assertEquals(8, resumed.getLastEventId());
+    assertEquals(0, resumed.poll());
+    assertEquals(1, commands.size());
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.core.RateLimiter;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the token buckets pacing commands sent to Snowflake
+ */
+public class RateLimiterTest
+{
+  private final ScheduledExecutorService timer =
+      Executors.newSingleThreadScheduledExecutor();
+
+  @After
+  public void tearDown()
+  {
+    timer.shutdownNow();
+  }
+
+  /**
+   * The account bucket should let a burst through, then pace the commands
+   * of every table.
+   */
+  @Test
+  public void accountBurstThenPaceTest() throws Exception
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.set("snowflake.hive-metastore-listener.rate-limit.account-rate", "5");
+    snowflakeConf.set("snowflake.hive-metastore-listener.rate-limit.account-burst", "2");
+    RateLimiter limiter = new RateLimiter(timer, snowflakeConf);
+
+    assertTrue(limiter.acquire("db", "t1").isDone());
+    assertTrue(limiter.acquire("db", "t2").isDone());
+    CompletableFuture<Void> third = limiter.acquire("other", "t3");
+    assertFalse(third.isDone());
+    third.get(5, TimeUnit.SECONDS);
+  }
+
+  /**
+   * A slow table or database should not hold back the others, and a
+   * database may have its own rate.
+   */
+  @Test
+  public void levelsAreIndependentTest() throws Exception
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.set("snowflake.hive-metastore-listener.rate-limit.table-rate", "1");
+    snowflakeConf.set("snowflake.hive-metastore-listener.rate-limit.database-rate", "100");
+    snowflakeConf.set("snowflake.hive-metastore-listener.rate-limit.database-rates",
+                      "bulk:0.01");
+    RateLimiter limiter = new RateLimiter(timer, snowflakeConf);
+
+    assertTrue(limiter.acquire("db", "t1").isDone());
+    assertFalse(limiter.acquire("db", "t1").isDone());
+    assertTrue(limiter.acquire("db", "t2").isDone());
+
+    assertTrue(limiter.acquire("BULK", "t1").isDone());
+    assertFalse(limiter.acquire("bulk", "t2").isDone());
+    assertTrue(limiter.acquire("db", "t3").isDone());
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableSet;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.core.RetryPolicy;
+import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.junit.Test;
+
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the classification and backoff of retries
+ */
+public class RetryPolicyTest
+{
+  /**
+   * Compilation errors and missing objects should not be retried, while
+   * connection errors should, even when wrapped.
+   */
+  @Test
+  public void classifiesErrorsTest()
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.set("snowflake.hive-metastore-listener.retry.fatal-error-codes", "12345");
+    RetryPolicy policy = RetryPolicy.fromConf(snowflakeConf);
+
+    assertFalse(policy.isRetryable(
+        new SQLException("SQL compilation error", "42000", 1003)));
+    assertFalse(policy.isRetryable(
+        new SQLException("Object does not exist", "02000", 2003)));
+    assertFalse(policy.isRetryable(
+        new SQLException("Configured as fatal", "08001", 12345)));
+    assertTrue(policy.isRetryable(
+        new SQLException("Connection reset", "08006", 0)));
+
+    MetaException wrapped = new MetaException("Wrapped");
+    wrapped.initCause(new SQLException("Syntax error", "42601", 0));
+    assertFalse(policy.isRetryable(wrapped));
+  }
+
+  /**
+   * The backoff should grow exponentially up to the maximum delay, and stop
+   * at the maximum number of retries or the deadline.
+   */
+  @Test
+  public void backoffTest()
+  {
+    RetryPolicy policy = new RetryPolicy(3, 100, 300, 0, 1000,
+                                         ImmutableSet.of(), ImmutableSet.of());
+    assertEquals(100, policy.getBackoffMillis(0));
+    assertEquals(200, policy.getBackoffMillis(1));
+    assertEquals(300, policy.getBackoffMillis(2));
+
+    Exception error = new SQLException("Connection reset", "08006", 0);
+    assertTrue(policy.shouldRetry(error, 2, 0, 300));
+    assertFalse(policy.shouldRetry(error, 3, 0, 300));
+    assertFalse(policy.shouldRetry(error, 0, 900, 200));
+
+    RetryPolicy jittered = new RetryPolicy(3, 100, 300, 0.5, 0,
+                                           ImmutableSet.of(), ImmutableSet.of());
+    long backoff = jittered.getBackoffMillis(1);
+    assertTrue(backoff >= 100 && backoff <= 200);
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.commands.AlterIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.Command;
+import net.snowflake.hivemetastoreconnector.commands.PregeneratedCommand;
+import net.snowflake.hivemetastoreconnector.commands.TableSnapshot;
+import net.snowflake.hivemetastoreconnector.core.Scheduler;
+import net.snowflake.hivemetastoreconnector.core.SnowflakeClient;
+import net.snowflake.hivemetastoreconnector.core.StatementOutcome;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+
+/**
+ * Tests for the ordering of renames in the scheduler
+ */
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "jdk.internal.reflect.*"})
+@PrepareForTest(SnowflakeClient.class)
+public class SchedulerRenameTest
+{
+  /**
+   * Verifies that a rename runs after the commands queued under the old
+   * name, even with a free worker for the new name
+   */
+  @Test
+  public void renameAfterOldCommandsTest() throws Exception
+  {
+    List<String> events = new CopyOnWriteArrayList<>();
+    PowerMockito.mockStatic(SnowflakeClient.class);
+    PowerMockito
+        .when(SnowflakeClient.generateAndExecuteSnowflakeStatementsAsync(
+            any(Command.class), any(SnowflakeConf.class)))
+        .thenAnswer(invocation ->
+        {
+          Command command = (Command) invocation.getArguments()[0];
+          String name = command.getTableName();
+          events.add("start " + name);
+          CompletableFuture<List<StatementOutcome>> outcome = new CompletableFuture<>();
+          // The old name takes a while, leaving time for the rename to run
+          CompletableFuture.runAsync(() ->
+          {
+            sleep(name.equals("t1") ? 200 : 0);
+            events.add("end " + name);
+            outcome.complete(Collections.emptyList());
+          });
+          return outcome;
+        });
+
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.setBoolean("snowflake.hive-metastore-listener.circuit-breaker.enabled",
+                             false);
+    Scheduler scheduler = new Scheduler(2, snowflakeConf);
+
+    Table oldTable = TestUtil.initializeMockIcebergRefreshTable();
+    oldTable.setTableName("t1");
+    Table newTable = TestUtil.initializeMockIcebergRefreshTable();
+    newTable.setTableName("t2");
+
+    CompletableFuture<Boolean> refreshed = scheduler.submit(new PregeneratedCommand(
+        oldTable.getDbName(), "t1", true,
+        ImmutableList.of("ALTER ICEBERG TABLE t1 REFRESH 'v2';")));
+    CompletableFuture<Boolean> renamed = scheduler.submit(new AlterIcebergTable(
+        TableSnapshot.of(oldTable), TableSnapshot.of(newTable), snowflakeConf));
+
+    assertTrue(refreshed.get(10, TimeUnit.SECONDS));
+    assertTrue(renamed.get(10, TimeUnit.SECONDS));
+    assertEquals(ImmutableList.of("start t1", "end t1", "start t2", "end t2"),
+                 events);
+    assertTrue(scheduler.shutdown(1000, 1000));
+  }
+
+  private static void sleep(long millis)
+  {
+    try
+    {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
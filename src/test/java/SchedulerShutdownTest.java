@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.commands.PregeneratedCommand;
+import net.snowflake.hivemetastoreconnector.core.HandoffFile;
+import net.snowflake.hivemetastoreconnector.core.Scheduler;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the graceful shutdown of the scheduler
+ */
+public class SchedulerShutdownTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Verifies that messages arriving after shutdown are handed off to the
+   * next start
+   */
+  @Test
+  public void handoffTest() throws Exception
+  {
+    File handoffFile = new File(folder.getRoot(), "handoff.bin");
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.set("snowflake.hive-metastore-listener.shutdown.handoff-file",
+                      handoffFile.getPath());
+    snowflakeConf.setBoolean("snowflake.hive-metastore-listener.circuit-breaker.enabled",
+                             false);
+
+    Scheduler scheduler = new Scheduler(1, snowflakeConf);
+    assertTrue(scheduler.shutdown(1000, 1000));
+    assertTrue(scheduler.isShutDown());
+
+    scheduler.enqueueMessage(new PregeneratedCommand(
+        "db", "t1", true, ImmutableList.of("ALTER ICEBERG TABLE t1 REFRESH 'v2';")));
+    scheduler.enqueueMessage(new PregeneratedCommand(
+        "db", "t2", false, ImmutableList.of("DROP ICEBERG TABLE t2;")));
+    assertEquals(0, scheduler.getQueuedMessageCount());
+
+    List<PregeneratedCommand> handedOff = HandoffFile.read(handoffFile);
+    assertEquals(2, handedOff.size());
+    assertEquals("t1", handedOff.get(0).getTableName());
+    assertTrue(handedOff.get(0).isRefresh());
+    assertEquals(ImmutableList.of("DROP ICEBERG TABLE t2;"),
+                 handedOff.get(1).generateSqlQueries());
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.core.SnowflakeConnectionPool;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for the Snowflake connection pool
+ */
+public class SnowflakeConnectionPoolTest
+{
+  private static SnowflakeConf initializeConfig()
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.setInt("snowflake.hive-metastore-listener.connection-pool.min-size", 0);
+    snowflakeConf.setInt("snowflake.hive-metastore-listener.connection-pool.max-size", 1);
+    snowflakeConf.setInt("snowflake.hive-metastore-listener.connection-pool.borrow-timeout", 10);
+    return snowflakeConf;
+  }
+
+  /**
+   * A returned connection should be handed out again instead of opening a
+   * new one.
+   */
+  @Test
+  public void reusesReturnedConnectionTest() throws Exception
+  {
+    AtomicInteger opened = new AtomicInteger();
+    SnowflakeConnectionPool pool = new SnowflakeConnectionPool(
+        "reuseSchema", initializeConfig(), () ->
+        {
+          opened.incrementAndGet();
+          return Mockito.mock(Connection.class);
+        });
+
+    Connection first;
+    try (SnowflakeConnectionPool.PooledConnection pooled = pool.borrow())
+    {
+      first = pooled.getConnection();
+    }
+    try (SnowflakeConnectionPool.PooledConnection pooled = pool.borrow())
+    {
+      assertSame(first, pooled.getConnection());
+    }
+    assertEquals(1, opened.get());
+    assertEquals(1, pool.getIdleConnectionCount());
+    pool.close();
+  }
+
+  /**
+   * Closing a borrowed connection twice should return it once, so that the
+   * pool doesn't hand out more connections than its max size
+   */
+  @Test(expected = TimeoutException.class)
+  public void doubleCloseTest() throws Exception
+  {
+    SnowflakeConnectionPool pool = new SnowflakeConnectionPool(
+        "doubleCloseSchema", initializeConfig(),
+        () -> Mockito.mock(Connection.class));
+
+    SnowflakeConnectionPool.PooledConnection pooled = pool.borrow();
+    pooled.close();
+    pooled.close();
+    try (SnowflakeConnectionPool.PooledConnection ignored = pool.borrow())
+    {
+      // The stale handle must not return the connection borrowed now
+      pooled.close();
+      pool.borrow();
+    }
+  }
+
+  /**
+   * Borrowing from an exhausted pool should time out, telling the scheduler
+   * that nothing was sent
+   */
+  @Test(expected = SnowflakeConnectionPool.BorrowTimeoutException.class)
+  public void exhaustedPoolTimesOutTest() throws Exception
+  {
+    SnowflakeConnectionPool pool = new SnowflakeConnectionPool(
+        "exhaustedSchema", initializeConfig(),
+        () -> Mockito.mock(Connection.class));
+
+    try (SnowflakeConnectionPool.PooledConnection ignored = pool.borrow())
+    {
+      pool.borrow();
+    }
+  }
+}
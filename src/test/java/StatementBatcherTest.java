@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.core.StatementBatcher;
+import net.snowflake.hivemetastoreconnector.core.StatementOutcome;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for packing statements into batches
+ */
+public class StatementBatcherTest
+{
+  /**
+   * Verifies that statements submitted after shutdown fail their own
+   * future instead of throwing
+   */
+  @Test
+  public void submitAfterShutdownTest() throws Exception
+  {
+    StatementBatcher batcher = new StatementBatcher(1, new SnowflakeConf());
+    batcher.shutdown();
+
+    CompletableFuture<List<StatementOutcome>> future = batcher.submit(
+        "schema", ImmutableList.of("ALTER ICEBERG TABLE t REFRESH 'v1';"));
+    try
+    {
+      future.get();
+      fail("The submission should have failed");
+    }
+    catch (ExecutionException e)
+    {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.commands.AlterIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.TableChange;
+import net.snowflake.hivemetastoreconnector.commands.TableSnapshot;
+import net.snowflake.hivemetastoreconnector.util.HiveToSnowflakeSchema;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the changes detected between a table before and after an alter
+ */
+public class TableChangeTest
+{
+  private static TableChange change(Table oldTable, Table newTable)
+  {
+    return TableChange.between(TableSnapshot.of(oldTable),
+                               TableSnapshot.of(newTable));
+  }
+
+  /**
+   * Verifies that the cheapest action is picked for each kind of alter
+   */
+  @Test
+  public void actionTest()
+  {
+    Table table = TestUtil.initializeMockIcebergCreateTable();
+
+    // Statistics, comments and owners are not compared
+    Table touched = TestUtil.initializeMockIcebergCreateTable();
+    touched.getParameters().put("numRows", "42");
+    touched.getParameters().put("comment", "a comment");
+    touched.setOwner("someone");
+    assertTrue(change(table, touched).isEmpty());
+
+    Table committed = TestUtil.initializeMockIcebergCreateTable();
+    committed.getParameters().put("metadata_location",
+                                  "s3://bucket/db/t/metadata/00006-ab.metadata.json");
+    assertEquals(TableChange.Action.REFRESH, change(table, committed).getAction());
+    assertFalse(change(table, committed).isRenamed());
+
+    Table moved = TestUtil.initializeMockIcebergCreateTable();
+    moved.getParameters().put("BASE_LOCATION", "airlines/airlines2");
+    assertEquals(TableChange.Action.CREATE_OR_REPLACE,
+                 change(table, moved).getAction());
+
+    // The table is missing from Snowflake until its properties are set
+    assertEquals(TableChange.Action.CREATE_OR_REPLACE,
+                 change(TestUtil.initializeMockIcebergRefreshTable(), table).getAction());
+
+    Table renamed = TestUtil.initializeMockIcebergCreateTable();
+    renamed.setTableName("renamed_tb");
+    assertTrue(change(table, renamed).isRenamed());
+    assertEquals(TableChange.Action.NONE, change(table, renamed).getAction());
+    assertFalse(change(table, renamed).isEmpty());
+  }
+
+  /**
+   * Verifies the statements of a renamed table that was also committed to
+   */
+  @Test
+  public void renameTest() throws Exception
+  {
+    Table oldTable = TestUtil.initializeMockIcebergRefreshTable();
+    Table newTable = TestUtil.initializeMockIcebergRefreshTable();
+    newTable.setTableName("renamed_tb");
+    newTable.getParameters().put("metadata_location",
+                                 "s3://bucket/db/t/metadata/00007-ab.metadata.json");
+
+    AlterIcebergTable command = new AlterIcebergTable(
+        TableSnapshot.of(oldTable), TableSnapshot.of(newTable),
+        TestUtil.initializeMockConfig());
+    assertFalse(command.isRefresh());
+    // Queued with the later commands of the renamed table
+    assertEquals("renamed_tb", command.getTableName());
+    assertEquals(ImmutableList.of(
+        "ALTER ICEBERG TABLE IF EXISTS test_iceberg_tb RENAME TO renamed_tb;",
+        "ALTER ICEBERG TABLE renamed_tb REFRESH 'metadata/00007-ab.metadata.json';"),
+                 command.generateSqlQueries());
+  }
+
+  /**
+   * Verifies that a table moved to another database is created in the
+   * schema of the new database, and dropped from the schema of the old one
+   */
+  @Test
+  public void moveTest() throws Exception
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    Table oldTable = TestUtil.initializeMockIcebergCreateTable();
+    Table newTable = TestUtil.initializeMockIcebergCreateTable();
+    newTable.setDbName("otherdb");
+
+    AlterIcebergTable command = new AlterIcebergTable(
+        TableSnapshot.of(oldTable), TableSnapshot.of(newTable), snowflakeConf);
+    assertTrue(command.getChange().isMoved());
+    assertFalse(command.getChange().isRenamed());
+    assertEquals(TableChange.Action.CREATE_OR_REPLACE,
+                 command.getChange().getAction());
+    assertEquals("otherdb", HiveToSnowflakeSchema.getSnowflakeSchemaFromHiveSchema(
+        command.getDatabaseName(), snowflakeConf));
+
+    List<String> statements = command.generateSqlQueries();
+    assertEquals(2, statements.size());
+    assertTrue(statements.get(0).startsWith(
+        "CREATE OR REPLACE ICEBERG TABLE test_iceberg_tb "));
+    assertEquals("DROP ICEBERG TABLE IF EXISTS icebergdemo.test_iceberg_tb;",
+                 statements.get(1));
+
+    // Without its Snowflake properties, it is only dropped
+    Table unsynced = TestUtil.initializeMockIcebergRefreshTable();
+    unsynced.setDbName("otherdb");
+    AlterIcebergTable drop = new AlterIcebergTable(
+        TableSnapshot.of(oldTable), TableSnapshot.of(unsynced), snowflakeConf);
+    assertEquals(ImmutableList.of(
+        "DROP ICEBERG TABLE IF EXISTS icebergdemo.test_iceberg_tb;"),
+                 drop.generateSqlQueries());
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.core.TableFilter;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the include and exclude rules of the tables the listener handles
+ */
+public class TableFilterTest
+{
+  /**
+   * Verifies that names, prefixes and regexes are matched at both levels,
+   * and that exclude rules take precedence
+   */
+  @Test
+  public void rulesTest()
+  {
+    TableFilter filter = new TableFilter(
+        ImmutableList.of("sales", "mart_*", "regex:team[0-9]+"),
+        ImmutableList.of("mart_scratch"),
+        ImmutableList.of(),
+        ImmutableList.of("tmp_*", "regex:.*_bak"));
+
+    assertTrue(filter.accepts("sales", "orders"));
+    assertTrue(filter.accepts("SALES", "orders"));
+    assertTrue(filter.accepts("mart_finance", "orders"));
+    assertTrue(filter.accepts("team42", "orders"));
+    assertFalse(filter.accepts("mart_scratch", "orders"));
+    assertFalse(filter.accepts("marketing", "orders"));
+    assertFalse(filter.accepts("teamx", "orders"));
+
+    assertFalse(filter.accepts("sales", "tmp_orders"));
+    assertFalse(filter.accepts("sales", "orders_bak"));
+    // Answered from the cache the second time
+    assertFalse(filter.accepts("sales", "orders_bak"));
+    assertTrue(filter.accepts("sales", "orders_bakery"));
+  }
+
+  /**
+   * Verifies that the older filter regexes still exclude tables, and that
+   * everything is handled without rules
+   */
+  @Test
+  public void fromConfTest()
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    assertTrue(TableFilter.fromConf(snowflakeConf).accepts("db", "t1"));
+
+    snowflakeConf.set("snowflake.hive-metastore-listener.table-filter-regex", "t[0-9]");
+    snowflakeConf.set("snowflake.hive-metastore-listener.database-filter-regex", "staging");
+    snowflakeConf.set("snowflake.hive-metastore-listener.table-include", "t*,orders");
+    TableFilter filter = TableFilter.fromConf(snowflakeConf);
+    assertFalse(filter.accepts("db", "t1"));
+    assertTrue(filter.accepts("db", "t10"));
+    assertTrue(filter.accepts("db", "orders"));
+    assertFalse(filter.accepts("db", "customers"));
+    assertFalse(filter.accepts("staging", "orders"));
+  }
+
+  /**
+   * Verifies that the commas of a regex don't split it into several rules
+   */
+  @Test
+  public void regexCommaTest()
+  {
+    assertEquals(ImmutableList.of("t*", "regex:t[0-9]{1,3}", "orders"),
+                 TableFilter.splitRules(" t*, regex:t[0-9]{1,3} ,orders,"));
+    assertEquals(ImmutableList.of("regex:(a|,)[,]\\,b", "c"),
+                 TableFilter.splitRules("regex:(a|,)[,]\\,b,c"));
+
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.set("snowflake.hive-metastore-listener.table-exclude",
+                      "regex:t[0-9]{1,3},tmp_*");
+    TableFilter filter = TableFilter.fromConf(snowflakeConf);
+    assertFalse(filter.accepts("db", "t1"));
+    assertFalse(filter.accepts("db", "t123"));
+    assertFalse(filter.accepts("db", "TMP_orders"));
+    assertTrue(filter.accepts("db", "t1234"));
+  }
+}
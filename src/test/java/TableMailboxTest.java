@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import net.snowflake.hivemetastoreconnector.commands.PregeneratedCommand;
+import net.snowflake.hivemetastoreconnector.core.CommandCodec;
+import net.snowflake.hivemetastoreconnector.core.TableMailbox;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the per-table mailboxes of the scheduler
+ */
+public class TableMailboxTest
+{
+  private static TableMailbox.Entry entry(boolean refresh, long queuedMillis)
+  {
+    return new TableMailbox.Entry(
+        new PregeneratedCommand("db", "t1", refresh, ImmutableList.of("SELECT 1")),
+        100, queuedMillis, queuedMillis);
+  }
+
+  /**
+   * Verifies that a refresh supersedes the refresh queued right before it,
+   * but not other commands
+   */
+  @Test
+  public void supersedeTest()
+  {
+    TableMailbox<String> mailbox = new TableMailbox<>("db.t1");
+    TableMailbox.Entry create = entry(false, 1);
+    TableMailbox.Entry refresh1 = entry(true, 2);
+    TableMailbox.Entry refresh2 = entry(true, 3);
+
+    assertTrue(mailbox.offer(create) != null);
+    assertFalse(mailbox.supersede(mailbox.offer(refresh1), refresh1));
+    assertTrue(mailbox.supersede(mailbox.offer(refresh2), refresh2));
+    assertEquals(2, refresh2.getFirstQueuedMillis());
+
+    assertSame(create, mailbox.poll());
+    assertSame(refresh2, mailbox.poll());
+    assertNull(mailbox.poll());
+    assertTrue(mailbox.tryRetire());
+    assertNull(mailbox.offer(entry(true, 4)));
+  }
+
+  /**
+   * Verifies that the oldest queued entry can be dropped
+   */
+  @Test
+  public void removeOldestTest()
+  {
+    TableMailbox<String> mailbox = new TableMailbox<>("db.t1");
+    TableMailbox.Entry first = entry(false, 1);
+    TableMailbox.Entry second = entry(false, 2);
+    mailbox.offer(first);
+    mailbox.offer(second);
+
+    assertSame(first, mailbox.removeOldest());
+    assertFalse(mailbox.tryRetire());
+    assertSame(second, mailbox.poll());
+    assertNull(mailbox.removeOldest());
+    assertTrue(mailbox.tryRetire());
+  }
+
+  /**
+   * Verifies that a command is read back as it was spilled
+   */
+  @Test
+  public void codecTest() throws Exception
+  {
+    PregeneratedCommand command = new PregeneratedCommand(
+        "db", "t1", true, 7,
+        ImmutableList.of("ALTER ICEBERG TABLE t1 REFRESH", "\u00fc"));
+    PregeneratedCommand decoded = CommandCodec.decode(CommandCodec.encode(command));
+    assertEquals("db", decoded.getDatabaseName());
+    assertEquals("t1", decoded.getTableName());
+    assertTrue(decoded.isRefresh());
+    assertEquals(7, decoded.getVersion());
+    assertEquals(command.generateSqlQueries(), decoded.generateSqlQueries());
+  }
+}
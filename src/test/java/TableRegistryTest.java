@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.commands.AlterIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.CreateIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.DropIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.RefreshIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.TableSnapshot;
+import net.snowflake.hivemetastoreconnector.core.TableRegistry;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the registry of the Iceberg tables of Snowflake
+ */
+public class TableRegistryTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static TableSnapshot snapshot(String name, String location)
+  {
+    Table table = new Table();
+    table.setDbName("db1");
+    table.setTableName(name);
+    Map<String, String> parameters = new HashMap<>();
+    parameters.put("metadata_location", "s3://bucket/t/" + location);
+    parameters.put("CATALOG", "catalog");
+    parameters.put("EXTERNAL_VOLUME", "volume");
+    parameters.put("BASE_LOCATION", "t");
+    table.setParameters(parameters);
+    return TableSnapshot.of(table);
+  }
+
+  /**
+   * Verifies that drops are only skipped once the database is seeded, and
+   * refreshes only once the metadata file of the table is known
+   */
+  @Test
+  public void redundantCommandsTest()
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    TableRegistry registry = new TableRegistry(4);
+    DropIcebergTable dropMissing = new DropIcebergTable(
+        TableSnapshot.ofName("db1", "t_missing"), snowflakeConf);
+    assertFalse(registry.isRedundant(dropMissing));
+
+    registry.seed("DB1", ImmutableList.of("t1", "T2"));
+    assertTrue(registry.isSeeded("db1"));
+    assertTrue(registry.contains("db1", "t2"));
+    assertTrue(registry.isRedundant(dropMissing));
+    assertFalse(registry.isRedundant(new DropIcebergTable(
+        TableSnapshot.ofName("db1", "t1"), snowflakeConf)));
+
+    // The metadata file of a seeded table isn't known
+    RefreshIcebergTable refresh = new RefreshIcebergTable(
+        snapshot("t1", "metadata/v2.metadata.json"));
+    assertFalse(registry.isRedundant(refresh));
+    registry.applied(refresh);
+    assertTrue(registry.isRedundant(refresh));
+    assertFalse(registry.isRedundant(new RefreshIcebergTable(
+        snapshot("t1", "metadata/v3.metadata.json"))));
+
+    // A create is never skipped
+    CreateIcebergTable create = new CreateIcebergTable(
+        snapshot("t3", "metadata/v1.metadata.json"), snowflakeConf, true);
+    registry.applied(create);
+    assertTrue(registry.contains("db1", "t3"));
+    assertFalse(registry.isRedundant(create));
+    assertTrue(registry.isRedundant(new RefreshIcebergTable(
+        snapshot("t3", "metadata/v1.metadata.json"))));
+
+    registry.applied(new DropIcebergTable(
+        TableSnapshot.ofName("db1", "t3"), snowflakeConf));
+    assertFalse(registry.contains("db1", "t3"));
+    assertEquals(2, registry.size());
+  }
+
+  /**
+   * Verifies that a rename moves the table and its metadata file
+   */
+  @Test
+  public void renameTest()
+  {
+    // A refresh that went through tells that the table exists
+    TableRegistry registry = new TableRegistry(4);
+    registry.applied(new RefreshIcebergTable(
+        snapshot("t1", "metadata/v1.metadata.json")));
+    assertTrue(registry.contains("db1", "t1"));
+
+    AlterIcebergTable rename = new AlterIcebergTable(
+        snapshot("t1", "metadata/v1.metadata.json"),
+        snapshot("t2", "metadata/v1.metadata.json"),
+        new SnowflakeConf());
+    registry.applied(rename);
+
+    assertFalse(registry.contains("db1", "t1"));
+    assertTrue(registry.contains("db1", "t2"));
+    assertTrue(registry.isRedundant(new RefreshIcebergTable(
+        snapshot("t2", "metadata/v1.metadata.json"))));
+  }
+
+  /**
+   * Verifies that the registry grows, removes tables without losing the
+   * others, and survives a save and a load
+   */
+  @Test
+  public void growAndPersistTest() throws Exception
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    TableRegistry registry = new TableRegistry(1);
+    for (int i = 0; i < 10000; i++)
+    {
+      registry.applied(new CreateIcebergTable(
+          snapshot("t" + i, "metadata/v" + i + ".metadata.json"),
+          snowflakeConf, false));
+    }
+    for (int i = 0; i < 10000; i += 2)
+    {
+      registry.applied(new DropIcebergTable(
+          TableSnapshot.ofName("db1", "t" + i), snowflakeConf));
+    }
+    registry.seed("db1", ImmutableList.of());
+    assertEquals(5000, registry.size());
+
+    File file = new File(folder.getRoot(), "registry");
+    registry.save(file);
+    TableRegistry loaded = TableRegistry.load(file);
+    assertEquals(5000, loaded.size());
+    for (int i = 0; i < 10000; i++)
+    {
+      assertEquals(i % 2 == 1, loaded.contains("db1", "t" + i));
+    }
+    assertTrue(loaded.isRedundant(new RefreshIcebergTable(
+        snapshot("t9999", "metadata/v9999.metadata.json"))));
+
+    // The file may be stale, drops are only skipped once seeded again
+    DropIcebergTable drop = new DropIcebergTable(
+        TableSnapshot.ofName("db1", "t0"), snowflakeConf);
+    assertFalse(loaded.isSeeded("db1"));
+    assertFalse(loaded.isRedundant(drop));
+    loaded.seed("db1", ImmutableList.of());
+    assertTrue(loaded.isRedundant(drop));
+  }
+
+  /**
+   * Verifies that a database must be seeded again once its seed expires
+   */
+  @Test
+  public void seedExpiryTest() throws Exception
+  {
+    TableRegistry registry = new TableRegistry(4, 50);
+    registry.seed("db1", ImmutableList.of("t1"));
+    assertTrue(registry.isSeeded("db1"));
+    Thread.sleep(100);
+    assertFalse(registry.isSeeded("db1"));
+    assertFalse(registry.isRedundant(new DropIcebergTable(
+        TableSnapshot.ofName("db1", "t_missing"), new SnowflakeConf())));
+    assertTrue(registry.contains("db1", "t1"));
+  }
+}
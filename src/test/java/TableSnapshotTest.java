@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import net.snowflake.hivemetastoreconnector.commands.AlterIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.TableSnapshot;
+import org.apache.hadoop.hive.metastore.IHMSHandler;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.metastore.events.AlterTableEvent;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the snapshots of tables kept by queued commands
+ */
+public class TableSnapshotTest
+{
+  /**
+   * Verifies that a snapshot keeps the fields commands need, and that the
+   * names of snapshots of the same table are shared
+   */
+  @Test
+  public void snapshotTest()
+  {
+    TableSnapshot first = TableSnapshot.of(TestUtil.initializeMockIcebergCreateTable());
+    TableSnapshot second = TableSnapshot.of(TestUtil.initializeMockIcebergCreateTable());
+
+    assertEquals("icebergdemo", first.getDatabaseName());
+    assertEquals("test_iceberg_tb", first.getTableName());
+    assertEquals("metadata/00005-07601ab7-6eac-4562-a87d-1dd3a5bd05d5.metadata.json",
+                 first.getMetadataFilePath());
+    assertEquals(5, first.getMetadataVersion());
+    assertTrue(first.isAbleToCreateTable());
+    assertSame(first.getDatabaseName(), second.getDatabaseName());
+    assertSame(first.getTableName(), second.getTableName());
+    assertSame(first.getCatalog(), second.getCatalog());
+
+    TableSnapshot refresh = TableSnapshot.of(TestUtil.initializeMockIcebergRefreshTable());
+    assertFalse(refresh.isAbleToCreateTable());
+    assertEquals(4, refresh.getMetadataVersion());
+  }
+
+  /**
+   * Verifies that commands generate the same statements from snapshots
+   */
+  @Test
+  public void alterTableTest() throws Exception
+  {
+    IHMSHandler mockHandler = TestUtil.initializeMockHMSHandler();
+
+    Table oldTable = TestUtil.initializeMockIcebergRefreshTable();
+    oldTable.getParameters().put("metadata_location",
+                                 "S3://iubeta/db/t/metadata/00003-aa.metadata.json");
+    Table refreshTable = TestUtil.initializeMockIcebergRefreshTable();
+    AlterIcebergTable refresh = new AlterIcebergTable(
+        new AlterTableEvent(oldTable, refreshTable, true, true, mockHandler),
+        TestUtil.initializeMockConfig());
+    assertTrue(refresh.isRefresh());
+    assertEquals(ImmutableList.of(
+        "ALTER ICEBERG TABLE test_iceberg_tb REFRESH " +
+            "'metadata/00004-9df00026-c7fe-48e4-ab07-9c7c06aad3ea.metadata.json';"),
+                 refresh.generateSqlQueries());
+
+    Table createTable = TestUtil.initializeMockIcebergCreateTable();
+    AlterIcebergTable create = new AlterIcebergTable(
+        new AlterTableEvent(refreshTable, createTable, true, true, mockHandler),
+        TestUtil.initializeMockConfig());
+    assertFalse(create.isRefresh());
+    assertEquals(ImmutableList.of(
+        "CREATE OR REPLACE ICEBERG TABLE test_iceberg_tb" +
+            " EXTERNAL_VOLUME='extIcebergVolC'" +
+            " CATALOG='zzengIcebergCatalogInt'" +
+            " BASE_LOCATION='airlines/airlines'" +
+            " METADATA_FILE_PATH='metadata/00005-07601ab7-6eac-4562-a87d-1dd3a5bd05d5.metadata.json';"),
+                 create.generateSqlQueries());
+  }
+}
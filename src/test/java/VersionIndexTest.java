@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import com.google.common.collect.ImmutableMap;
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.commands.AlterIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.Command;
+import net.snowflake.hivemetastoreconnector.commands.CreateIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.RefreshIcebergTable;
+import net.snowflake.hivemetastoreconnector.commands.TableChange;
+import net.snowflake.hivemetastoreconnector.commands.TableSnapshot;
+import net.snowflake.hivemetastoreconnector.core.VersionIndex;
+import net.snowflake.hivemetastoreconnector.util.IcebergTableUtil;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the versions of tables used to discard stale commands
+ */
+public class VersionIndexTest
+{
+  private static long metadataVersion(String location)
+  {
+    Table table = new Table();
+    table.setParameters(location == null ? new HashMap<>()
+        : new HashMap<>(ImmutableMap.of("metadata_location", location)));
+    return IcebergTableUtil.getMetadataVersion(table);
+  }
+
+  /**
+   * Verifies that the version is parsed from the usual metadata file names
+   */
+  @Test
+  public void metadataVersionTest()
+  {
+    assertEquals(12, metadataVersion(
+        "s3://bucket/db/t1/metadata/00012-3f1c2b1e-8d8a-4a4e-9d5c-1b2a3c4d5e6f.metadata.json"));
+    assertEquals(3, metadataVersion(
+        "s3://bucket/db/t1/metadata/00003-3f1c2b1e.gz.metadata.json"));
+    assertEquals(5, metadataVersion("hdfs://nn/warehouse/t1/metadata/v5.metadata.json"));
+    assertEquals(-1, metadataVersion("s3://bucket/db/t1/metadata/latest.metadata.json"));
+    assertEquals(-1, metadataVersion(null));
+  }
+
+  /**
+   * Verifies that versions only move forward until reset, and that tables
+   * used recently survive a rotation while others are forgotten
+   */
+  @Test
+  public void advanceAndRotateTest()
+  {
+    VersionIndex index = new VersionIndex(2);
+    assertEquals(Command.NO_VERSION, index.get("db", "t1"));
+    index.advance("db", "t1", 5);
+    index.advance("DB", "T1", 3);
+    assertEquals(5, index.get("db", "t1"));
+    index.reset("db", "t1");
+    assertEquals(Command.NO_VERSION, index.get("db", "t1"));
+
+    index.advance("db", "t1", 1);
+    index.advance("db", "t2", 2);
+    // Rotates, t1 and t2 are in the previous generation
+    index.advance("db", "t3", 3);
+    // Moved back to the current generation, which is then full
+    assertEquals(1, index.get("db", "t1"));
+    // Rotates again, t2 is forgotten
+    index.advance("db", "t4", 4);
+    assertEquals(Command.NO_VERSION, index.get("db", "t2"));
+    assertEquals(4, index.get("db", "t4"));
+  }
+
+  private static TableSnapshot snapshot(String location, String baseLocation)
+  {
+    Table table = new Table();
+    table.setDbName("db1");
+    table.setTableName("t1");
+    table.setParameters(new HashMap<>(ImmutableMap.of(
+        "metadata_location", "s3://bucket/" + baseLocation + "/" + location,
+        "CATALOG", "catalog",
+        "EXTERNAL_VOLUME", "volume",
+        "BASE_LOCATION", baseLocation)));
+    return TableSnapshot.of(table);
+  }
+
+  /**
+   * Verifies that a table created again, whose metadata files start over,
+   * isn't held back by the versions of the table it replaced
+   */
+  @Test
+  public void replacedTableTest()
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    VersionIndex index = new VersionIndex(4);
+    index.applied(new CreateIcebergTable(
+        snapshot("metadata/v10.metadata.json", "t1"), snowflakeConf, true));
+    RefreshIcebergTable refresh = new RefreshIcebergTable(
+        snapshot("metadata/v11.metadata.json", "t1"));
+    assertFalse(index.isStale(refresh));
+    index.applied(refresh);
+    assertTrue(index.isStale(new RefreshIcebergTable(
+        snapshot("metadata/v11.metadata.json", "t1"))));
+
+    // Pointed to a new lineage, which starts over at version 1
+    AlterIcebergTable replace = new AlterIcebergTable(
+        snapshot("metadata/v11.metadata.json", "t1"),
+        snapshot("metadata/v1.metadata.json", "t1_new"),
+        snowflakeConf);
+    assertEquals(TableChange.Action.CREATE_OR_REPLACE,
+                 replace.getChange().getAction());
+    index.applied(replace);
+    assertEquals(1, index.get("db1", "t1"));
+    assertFalse(index.isStale(new RefreshIcebergTable(
+        snapshot("metadata/v2.metadata.json", "t1_new"))));
+    assertTrue(index.isStale(new RefreshIcebergTable(
+        snapshot("metadata/v1.metadata.json", "t1_new"))));
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2012-2019 Snowflake Computing Inc. All right reserved.
+ */
+
+import net.snowflake.hivemetastoreconnector.SnowflakeConf;
+import net.snowflake.hivemetastoreconnector.core.WorkerPools;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the worker pools of the scheduler
+ */
+public class WorkerPoolsTest
+{
+  /**
+   * Verifies that workers are virtual threads when enabled on a JVM that
+   * supports them, and platform threads otherwise
+   */
+  @Test
+  public void virtualThreadFallbackTest() throws Exception
+  {
+    SnowflakeConf snowflakeConf = new SnowflakeConf();
+    snowflakeConf.setBoolean("snowflake.hive-metastore-listener.virtual-threads.enabled", true);
+    ExecutorService pool = WorkerPools.newWorkerPool(2, snowflakeConf);
+    Thread worker = pool.submit(Thread::currentThread).get();
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+    boolean isVirtual = WorkerPools.isVirtualThreadSupported()
+        && (Boolean) Thread.class.getMethod("isVirtual").invoke(worker);
+    assertEquals(WorkerPools.isVirtualThreadSupported(), isVirtual);
+    assertEquals(WorkerPools.isVirtualThreadSupported(),
+                 WorkerPools.useVirtualThreads(snowflakeConf));
+  }
+}